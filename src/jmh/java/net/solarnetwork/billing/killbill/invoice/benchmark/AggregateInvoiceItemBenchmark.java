@@ -0,0 +1,114 @@
+/*  Copyright 2020 SolarNetwork Foundation
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.solarnetwork.billing.killbill.invoice.benchmark;
+
+import static java.util.stream.Collectors.groupingBy;
+import static java.util.stream.Collectors.toList;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collector;
+
+import org.killbill.billing.invoice.api.InvoiceItem;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.solarnetwork.billing.killbill.invoice.api.ExtendedInvoiceItemFormatter;
+import net.solarnetwork.billing.killbill.invoice.core.SolarNetworkInvoiceFormatterHelper;
+import net.solarnetwork.billing.killbill.invoice.util.AggregateInvoiceItem;
+
+/**
+ * Benchmark grouping tax items with {@link AggregateInvoiceItem}.
+ * 
+ * <p>
+ * The {@code legacyGroupByDescription} benchmark is the grouping the formatter helper used before
+ * {@link AggregateInvoiceItem#groupByDescription(Iterable, Locale, boolean)}: a hash
+ * grouping followed by a sort that looks up the position of each group with
+ * {@link List#indexOf(Object)}, which is quadratic when there are many distinct descriptions.
+ * </p>
+ * 
+ * @author matt
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AggregateInvoiceItemBenchmark {
+
+  @Param({ "10", "1000", "50000", "100000" })
+  private int itemCount;
+
+  @Param({ "4", "1000" })
+  private int descriptionCount;
+
+  private List<InvoiceItem> taxItems;
+
+  @Setup
+  public void setup() {
+    SyntheticInvoiceGenerator gen = new SyntheticInvoiceGenerator();
+    gen.setItemCount(itemCount);
+    gen.setTaxRatio(1);
+    gen.setCustomFieldCount(0);
+    gen.setTaxDescriptionCount(descriptionCount);
+    SyntheticInvoice invoice = gen.generate();
+    taxItems = new SolarNetworkInvoiceFormatterHelper(invoice.getInvoice(), invoice::getItems,
+        Locale.US, invoice.getCustomFields()).getTaxInvoiceItems();
+  }
+
+  @Benchmark
+  public List<AggregateInvoiceItem> groupByDescriptionRetainingItems() {
+    return AggregateInvoiceItem.groupByDescription(taxItems, Locale.US, true);
+  }
+
+  @Benchmark
+  public List<AggregateInvoiceItem> groupByDescription() {
+    return AggregateInvoiceItem.groupByDescription(taxItems, Locale.US, false);
+  }
+
+  @Benchmark
+  public String groupByDescriptionFormatted() {
+    List<AggregateInvoiceItem> groups = AggregateInvoiceItem.groupByDescription(taxItems,
+        Locale.US, false);
+    return groups.get(0).getFormattedAmount();
+  }
+
+  @Benchmark
+  public List<AggregateInvoiceItem> legacyGroupByDescription() {
+    final List<UUID> ordering = taxItems.stream().map(InvoiceItem::getId).collect(toList());
+    return taxItems.stream()
+        .collect(groupingBy(InvoiceItem::getDescription,
+            Collector.of(AggregateInvoiceItem.itemOfLocale(Locale.US),
+                (agg, item) -> agg.addItem((ExtendedInvoiceItemFormatter) item),
+                AggregateInvoiceItem::addItems)))
+        .values().stream().sorted(Comparator.comparing(item -> ordering.indexOf(item.getId())))
+        .collect(toList());
+  }
+
+}
@@ -0,0 +1,129 @@
+/*  Copyright 2020 SolarNetwork Foundation
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.solarnetwork.billing.killbill.invoice.benchmark;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.killbill.billing.invoice.api.Invoice;
+import org.killbill.billing.invoice.api.formatters.InvoiceFormatter;
+import org.killbill.billing.util.callcontext.TenantContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import net.solarnetwork.billing.killbill.invoice.core.CustomFieldCache;
+import net.solarnetwork.billing.killbill.invoice.notification.SolarNetworkInvoiceFormatter;
+import net.solarnetwork.billing.killbill.invoice.notification.SolarNetworkInvoiceFormatterFactory;
+
+/**
+ * Benchmark creating formatters for a batch of invoices one at a time compared to the batch API.
+ * 
+ * <p>
+ * Each benchmark creates a new factory, so every account starts uncached, then creates a formatter
+ * for every invoice and reads its custom fields, like a month-end job rendering all the invoices
+ * of a billing run. Custom fields come from {@link InMemoryCustomFields} fakes with a simulated
+ * query latency.
+ * </p>
+ * 
+ * @author matt
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BatchFormattingBenchmark {
+
+  @Param({ "1000" })
+  private int invoiceCount;
+
+  @Param({ "10", "100" })
+  private int accountCount;
+
+  @Param({ "0", "1" })
+  private long fetchDelay;
+
+  private InMemoryCustomFields customFields;
+  private List<Invoice> invoices;
+  private TenantContext context;
+  private Map<String, String> translator;
+
+  @Setup
+  public void setup() {
+    customFields = new InMemoryCustomFields(fetchDelay);
+    SyntheticInvoiceGenerator gen = new SyntheticInvoiceGenerator();
+    gen.setItemCount(20);
+    gen.setSubscriptionCount(5);
+    gen.setCustomFieldCount(20);
+    invoices = new ArrayList<>(invoiceCount);
+    for (int i = 0; i < invoiceCount; i++) {
+      final long accountRecordId = (i % accountCount) + 1L;
+      gen.setSeed(i + 1L);
+      gen.setAccountId(new UUID(1L, accountRecordId));
+      SyntheticInvoice invoice = gen.generate();
+      if (!customFields.hasAccount(invoice.getAccountId())) {
+        customFields.addAccount(invoice.getAccountId(), accountRecordId,
+            invoice.getCustomFields());
+      }
+      invoices.add(invoice.getInvoice());
+    }
+    Map<String, Object> ctx = new HashMap<>(2);
+    ctx.put("getTenantId", new UUID(0L, 1L));
+    context = BeanProxy.of(TenantContext.class, ctx);
+    translator = new HashMap<>();
+  }
+
+  private SolarNetworkInvoiceFormatterFactory factory() {
+    return new SolarNetworkInvoiceFormatterFactory(customFields.api(),
+        new CustomFieldCache<>(accountCount, TimeUnit.MINUTES.toMillis(5)));
+  }
+
+  @Benchmark
+  public void perInvoice(Blackhole bh) {
+    final SolarNetworkInvoiceFormatterFactory factory = factory();
+    for (Invoice invoice : invoices) {
+      InvoiceFormatter formatter = factory.createInvoiceFormatter(translator, invoice, Locale.US,
+          context);
+      bh.consume(((SolarNetworkInvoiceFormatter) formatter).getCustomFields());
+    }
+  }
+
+  @Benchmark
+  public void batch(Blackhole bh) {
+    final SolarNetworkInvoiceFormatterFactory factory = factory();
+    for (InvoiceFormatter formatter : factory.createInvoiceFormatters(translator, invoices,
+        Locale.US, context)) {
+      bh.consume(((SolarNetworkInvoiceFormatter) formatter).getCustomFields());
+    }
+  }
+
+}
@@ -0,0 +1,83 @@
+/*  Copyright 2020 SolarNetwork Foundation
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.solarnetwork.billing.killbill.invoice.benchmark;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A simple {@link InvocationHandler} that returns property values from a map, keyed by method
+ * name, so that synthetic Kill Bill API objects can be created without a mocking framework.
+ * 
+ * <p>
+ * Methods without a value return {@literal null}, or the default value of a primitive return type.
+ * </p>
+ * 
+ * @author matt
+ */
+public final class BeanProxy implements InvocationHandler {
+
+  private final Map<String, Object> values;
+
+  private BeanProxy(Map<String, Object> values) {
+    super();
+    this.values = values;
+  }
+
+  /**
+   * Create a proxy.
+   * 
+   * @param <T>
+   *          the interface type
+   * @param type
+   *          the interface to implement
+   * @param values
+   *          the method return values, keyed by method name
+   * @return the proxy
+   */
+  public static <T> T of(Class<T> type, Map<String, Object> values) {
+    return type.cast(Proxy.newProxyInstance(BeanProxy.class.getClassLoader(),
+        new Class<?>[] { type }, new BeanProxy(new HashMap<>(values))));
+  }
+
+  @Override
+  public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+    final String name = method.getName();
+    if ("hashCode".equals(name) && args == null) {
+      return System.identityHashCode(proxy);
+    } else if ("equals".equals(name) && args != null && args.length == 1) {
+      return proxy == args[0];
+    } else if ("toString".equals(name) && args == null) {
+      return "BeanProxy" + values;
+    }
+    Object result = values.get(name);
+    if (result == null) {
+      Class<?> type = method.getReturnType();
+      if (type == boolean.class) {
+        return Boolean.FALSE;
+      } else if (type == int.class) {
+        return 0;
+      } else if (type == long.class) {
+        return 0L;
+      }
+    }
+    return result;
+  }
+
+}
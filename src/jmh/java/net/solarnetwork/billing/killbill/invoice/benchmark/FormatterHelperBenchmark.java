@@ -0,0 +1,108 @@
+/*  Copyright 2020 SolarNetwork Foundation
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.solarnetwork.billing.killbill.invoice.benchmark;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import org.killbill.billing.invoice.api.InvoiceItem;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.solarnetwork.billing.killbill.invoice.core.SolarNetworkInvoiceFormatterHelper;
+
+/**
+ * Benchmark the {@link SolarNetworkInvoiceFormatterHelper} extended attributes.
+ * 
+ * <p>
+ * Each benchmark creates a new helper, as the helper caches the attributes it computes, so the
+ * results include wrapping the invoice items.
+ * </p>
+ * 
+ * @author matt
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FormatterHelperBenchmark {
+
+  @Param({ "10", "1000", "100000" })
+  private int itemCount;
+
+  @Param({ "0", "100", "10000" })
+  private int customFieldCount;
+
+  private SyntheticInvoice invoice;
+
+  @Setup
+  public void setup() {
+    SyntheticInvoiceGenerator gen = new SyntheticInvoiceGenerator();
+    gen.setItemCount(itemCount);
+    gen.setCustomFieldCount(customFieldCount);
+    gen.setSubscriptionCount(Math.max(1, Math.min(itemCount, customFieldCount) / 2));
+    invoice = gen.generate();
+  }
+
+  private SolarNetworkInvoiceFormatterHelper helper() {
+    return new SolarNetworkInvoiceFormatterHelper(invoice.getInvoice(), invoice::getItems,
+        Locale.US, invoice.getCustomFields());
+  }
+
+  @Benchmark
+  public List<InvoiceItem> extendedInvoiceItems() {
+    return helper().getExtendedInvoiceItems();
+  }
+
+  @Benchmark
+  public List<InvoiceItem> nonTaxInvoiceItems() {
+    return helper().getNonTaxInvoiceItems();
+  }
+
+  @Benchmark
+  public List<InvoiceItem> nonTaxInvoiceItemsSortedBySubscriptionCustomFields() {
+    return helper().getNonTaxInvoiceItemsSortedBySubscriptionCustomFields();
+  }
+
+  @Benchmark
+  public List<InvoiceItem> taxInvoiceItemsGroupedByDescription() {
+    return helper().getTaxInvoiceItemsGroupedByDescription();
+  }
+
+  @Benchmark
+  public BigDecimal taxAmount() {
+    return helper().getTaxAmount();
+  }
+
+  @Benchmark
+  public String formattedNonTaxChargedAmount() {
+    return helper().getFormattedNonTaxChargedAmount();
+  }
+
+}
@@ -0,0 +1,168 @@
+/*  Copyright 2020 SolarNetwork Foundation
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.solarnetwork.billing.killbill.invoice.benchmark;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import org.killbill.billing.callcontext.InternalTenantContext;
+import org.killbill.billing.util.api.CustomFieldUserApi;
+import org.killbill.billing.util.customfield.CustomField;
+import org.killbill.billing.util.customfield.dao.CustomFieldDao;
+import org.killbill.billing.util.customfield.dao.CustomFieldModelDao;
+
+/**
+ * In-memory fakes of the Kill Bill custom field DAO and API, with an optional simulated query
+ * latency.
+ * 
+ * <p>
+ * Accounts must all be added before the fakes are used, after which they can be used by any
+ * number of threads. The account, account type, and object queries are supported.
+ * </p>
+ * 
+ * @author matt
+ */
+public class InMemoryCustomFields {
+
+  private final long fetchDelay;
+  private final Map<UUID, List<CustomField>> accountFields = new HashMap<>();
+  private final Map<Long, List<CustomFieldModelDao>> accountRecordFields = new HashMap<>();
+  private final Map<UUID, List<CustomField>> objectFields = new HashMap<>();
+
+  /**
+   * Constructor.
+   * 
+   * @param fetchDelay
+   *          the simulated query latency, in milliseconds
+   */
+  public InMemoryCustomFields(long fetchDelay) {
+    super();
+    this.fetchDelay = fetchDelay;
+  }
+
+  /**
+   * Add an account.
+   * 
+   * @param accountId
+   *          the account ID
+   * @param accountRecordId
+   *          the account record ID
+   * @param fields
+   *          the account custom fields
+   */
+  public void addAccount(UUID accountId, long accountRecordId, List<CustomField> fields) {
+    accountFields.put(accountId, fields);
+    accountRecordFields.put(accountRecordId,
+        fields.stream().map(InMemoryCustomFields::model).collect(Collectors.toList()));
+    for (CustomField f : fields) {
+      objectFields.computeIfAbsent(f.getObjectId(), k -> new ArrayList<>()).add(f);
+    }
+  }
+
+  /**
+   * Test if an account has been added.
+   * 
+   * @param accountId
+   *          the account ID
+   * @return {@literal true} if the account has been added
+   */
+  public boolean hasAccount(UUID accountId) {
+    return accountFields.containsKey(accountId);
+  }
+
+  private static CustomFieldModelDao model(CustomField f) {
+    return new CustomFieldModelDao(f.getCreatedDate(), f.getFieldName(), f.getFieldValue(),
+        f.getObjectId(), f.getObjectType());
+  }
+
+  private void simulateFetchDelay() {
+    if (fetchDelay > 0) {
+      try {
+        Thread.sleep(fetchDelay);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Get a fake DAO, for the internal factory.
+   * 
+   * @return the DAO
+   */
+  public CustomFieldDao dao() {
+    return (CustomFieldDao) Proxy.newProxyInstance(getClass().getClassLoader(),
+        new Class<?>[] { CustomFieldDao.class }, (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "getCustomFieldsForAccount":
+              simulateFetchDelay();
+              return accountRecordFields
+                  .get(((InternalTenantContext) args[0]).getAccountRecordId());
+
+            case "getCustomFieldsForAccountType":
+              simulateFetchDelay();
+              return accountRecordFields
+                  .get(((InternalTenantContext) args[1]).getAccountRecordId()).stream()
+                  .filter(f -> f.getObjectType() == args[0]).collect(Collectors.toList());
+
+            case "getCustomFieldsForObject":
+              simulateFetchDelay();
+              return objectFields.getOrDefault(args[0], Collections.emptyList()).stream()
+                  .filter(f -> f.getObjectType() == args[1]).map(InMemoryCustomFields::model)
+                  .collect(Collectors.toList());
+
+            default:
+              throw new UnsupportedOperationException(method.getName());
+          }
+        });
+  }
+
+  /**
+   * Get a fake API, for the notification factory.
+   * 
+   * @return the API
+   */
+  public CustomFieldUserApi api() {
+    return (CustomFieldUserApi) Proxy.newProxyInstance(getClass().getClassLoader(),
+        new Class<?>[] { CustomFieldUserApi.class }, (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "getCustomFieldsForAccount":
+              simulateFetchDelay();
+              return accountFields.get(args[0]);
+
+            case "getCustomFieldsForAccountType":
+              simulateFetchDelay();
+              return accountFields.get(args[0]).stream()
+                  .filter(f -> f.getObjectType() == args[1]).collect(Collectors.toList());
+
+            case "getCustomFieldsForObject":
+              simulateFetchDelay();
+              return objectFields.getOrDefault(args[0], Collections.emptyList()).stream()
+                  .filter(f -> f.getObjectType() == args[1]).collect(Collectors.toList());
+
+            default:
+              throw new UnsupportedOperationException(method.getName());
+          }
+        });
+  }
+
+}
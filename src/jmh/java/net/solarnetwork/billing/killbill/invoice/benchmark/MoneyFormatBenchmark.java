@@ -0,0 +1,113 @@
+/*  Copyright 2020 SolarNetwork Foundation
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.solarnetwork.billing.killbill.invoice.benchmark;
+
+import java.math.BigDecimal;
+import java.text.DecimalFormat;
+import java.text.NumberFormat;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.solarnetwork.billing.killbill.invoice.util.MoneyFormat;
+import net.solarnetwork.billing.killbill.invoice.util.StringUtils;
+
+/**
+ * Compare {@link MoneyFormat} with the {@link NumberFormat} formatting it replaces, and benchmark
+ * the {@link StringUtils} formatting methods that use it.
+ * 
+ * @author matt
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MoneyFormatBenchmark {
+
+  @Param({ "1.99", "1234567.891", "-42.5" })
+  private String amountValue;
+
+  private BigDecimal amount;
+  private DecimalFormat decimalFormat;
+  private MoneyFormat moneyFormat;
+  private StringBuilder buf;
+
+  @Setup
+  public void setup() {
+    amount = new BigDecimal(amountValue);
+    decimalFormat = (DecimalFormat) NumberFormat.getCurrencyInstance(Locale.US);
+    decimalFormat.setCurrency(java.util.Currency.getInstance("USD"));
+    moneyFormat = MoneyFormat.of(decimalFormat);
+    buf = new StringBuilder(32);
+  }
+
+  /**
+   * The original approach: create a new format for every amount and format it as a double.
+   * 
+   * @return the formatted amount
+   */
+  @Benchmark
+  public String newNumberFormatDouble() {
+    NumberFormat number = NumberFormat.getCurrencyInstance(Locale.US);
+    number.setCurrency(java.util.Currency.getInstance("USD"));
+    return number.format(amount.doubleValue());
+  }
+
+  @Benchmark
+  public String sharedDecimalFormatDouble() {
+    return decimalFormat.format(amount.doubleValue());
+  }
+
+  @Benchmark
+  public String sharedDecimalFormatBigDecimal() {
+    return decimalFormat.format(amount);
+  }
+
+  @Benchmark
+  public String moneyFormat() {
+    return moneyFormat.format(amount);
+  }
+
+  @Benchmark
+  public StringBuilder moneyFormatReusedBuffer() {
+    buf.setLength(0);
+    return moneyFormat.format(amount, buf);
+  }
+
+  @Benchmark
+  public String currencyFormatCache() {
+    return StringUtils.formattedCurrencyAmountWithImplicitSymbol(amount, "USD", Locale.US);
+  }
+
+  @Benchmark
+  public String currencyFormatCacheExplicitSymbol() {
+    return StringUtils.formattedCurrencyAmountWithExplicitSymbol(amount, "USD", Locale.US);
+  }
+
+}
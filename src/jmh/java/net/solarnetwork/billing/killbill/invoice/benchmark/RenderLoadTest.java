@@ -0,0 +1,415 @@
+/*  Copyright 2020 SolarNetwork Foundation
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.solarnetwork.billing.killbill.invoice.benchmark;
+
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.callcontext.InternalTenantContext;
+import org.killbill.billing.catalog.api.Currency;
+import org.killbill.billing.currency.api.CurrencyConversionApi;
+import org.killbill.billing.invoice.api.formatters.InvoiceFormatter;
+import org.killbill.billing.invoice.api.formatters.ResourceBundleFactory;
+import org.killbill.billing.plugin.notification.api.InvoiceFormatterFactory;
+import org.killbill.billing.util.callcontext.TenantContext;
+import org.killbill.billing.util.template.translation.TranslatorConfig;
+
+import com.samskivert.mustache.Mustache;
+import com.samskivert.mustache.Template;
+
+import net.solarnetwork.billing.killbill.invoice.core.CustomFieldCache;
+import net.solarnetwork.billing.killbill.invoice.core.CustomFieldFetchStrategy;
+import net.solarnetwork.billing.killbill.invoice.internal.SolarNetworkInvoiceFormatterFactory;
+
+/**
+ * An end-to-end load test that renders synthetic invoices through both formatter factories and a
+ * Mustache template, like Kill Bill does when generating invoice HTML or notification emails.
+ * 
+ * <p>
+ * A pool of synthetic invoices spread over a number of accounts is generated up front, then for
+ * each factory and thread count every thread renders invoices from the pool for a fixed duration.
+ * Each render creates a new formatter via the factory, so the results include loading (or
+ * caching) the account custom fields, just like in Kill Bill. The throughput and latency
+ * percentiles of each run are printed as a table.
+ * </p>
+ * 
+ * <p>
+ * Settings are passed as {@literal name=value} arguments:
+ * </p>
+ * 
+ * <dl>
+ * <dt>items</dt>
+ * <dd>the number of items per invoice; defaults to {@literal 100}</dd>
+ * <dt>taxRatio</dt>
+ * <dd>the probability of each item being a tax item; defaults to {@literal 0.1}</dd>
+ * <dt>subscriptions</dt>
+ * <dd>the number of subscriptions per account; defaults to {@literal 10}</dd>
+ * <dt>fields</dt>
+ * <dd>the number of subscription custom fields per account; defaults to {@literal 20}</dd>
+ * <dt>fieldNames</dt>
+ * <dd>the number of distinct custom field names; defaults to {@literal 2}</dd>
+ * <dt>fieldValues</dt>
+ * <dd>the number of distinct custom field values; defaults to {@literal 10}</dd>
+ * <dt>accounts</dt>
+ * <dd>the number of accounts; defaults to {@literal 100}</dd>
+ * <dt>invoices</dt>
+ * <dd>the number of invoices to generate; defaults to {@literal 1000}</dd>
+ * <dt>locales</dt>
+ * <dd>a comma-delimited list of locales to spread the invoices over; defaults to
+ * {@literal en_US,en_NZ,de_DE,fr_FR,ja_JP}</dd>
+ * <dt>currencies</dt>
+ * <dd>a comma-delimited list of currencies to spread the invoices over; defaults to
+ * {@literal USD,NZD,EUR,JPY}</dd>
+ * <dt>threads</dt>
+ * <dd>a comma-delimited list of thread counts to run; defaults to {@literal 1,2,4,8}</dd>
+ * <dt>factories</dt>
+ * <dd>a comma-delimited list of {@literal internal} and {@literal notification}; defaults to
+ * both</dd>
+ * <dt>warmup</dt>
+ * <dd>the warm up time of each run, in seconds; defaults to {@literal 5}</dd>
+ * <dt>duration</dt>
+ * <dd>the measured time of each run, in seconds; defaults to {@literal 10}</dd>
+ * <dt>fetchDelay</dt>
+ * <dd>a simulated custom field query latency, in milliseconds; defaults to {@literal 0}</dd>
+ * </dl>
+ * 
+ * <p>
+ * The custom field cache and fetch strategy can be configured with the usual
+ * {@link CustomFieldCache} and {@link CustomFieldFetchStrategy} system properties.
+ * </p>
+ * 
+ * @author matt
+ */
+public class RenderLoadTest {
+
+  private static final String TEMPLATE_RESOURCE = "invoice.mustache";
+
+  private final Map<String, String> settings;
+  private final Template template;
+  private final List<Workload> workloads;
+  private final InMemoryCustomFields customFields;
+
+  /**
+   * A pre-generated invoice to render.
+   */
+  private static final class Workload {
+
+    private final SyntheticInvoice invoice;
+    private final Locale locale;
+    private final InternalTenantContext internalContext;
+    private final TenantContext context;
+
+    private Workload(SyntheticInvoice invoice, Locale locale,
+        InternalTenantContext internalContext, TenantContext context) {
+      super();
+      this.invoice = invoice;
+      this.locale = locale;
+      this.internalContext = internalContext;
+      this.context = context;
+    }
+
+  }
+
+  /**
+   * A function to create an invoice formatter for a workload.
+   */
+  @FunctionalInterface
+  private interface FormatterSource {
+
+    InvoiceFormatter create(Workload workload);
+  }
+
+  /**
+   * Constructor.
+   * 
+   * @param settings
+   *          the settings
+   */
+  public RenderLoadTest(Map<String, String> settings) {
+    super();
+    this.settings = settings;
+    this.template = compileTemplate();
+    this.customFields = new InMemoryCustomFields(longSetting("fetchDelay", 0));
+    this.workloads = generateWorkloads();
+  }
+
+  /**
+   * Run the load test.
+   * 
+   * @param args
+   *          the {@literal name=value} settings
+   */
+  public static void main(String[] args) {
+    Map<String, String> settings = new LinkedHashMap<>();
+    for (String arg : args) {
+      int idx = arg.indexOf('=');
+      if (idx < 1) {
+        System.err.println("Ignoring invalid argument [" + arg + "]; use name=value.");
+        continue;
+      }
+      settings.put(arg.substring(0, idx).trim(), arg.substring(idx + 1).trim());
+    }
+    new RenderLoadTest(settings).run();
+  }
+
+  private static Template compileTemplate() {
+    try (Reader in = new InputStreamReader(
+        RenderLoadTest.class.getResourceAsStream(TEMPLATE_RESOURCE), StandardCharsets.UTF_8)) {
+      return Mustache.compiler().nullValue("").compile(in);
+    } catch (Exception e) {
+      throw new IllegalStateException("Unable to load template " + TEMPLATE_RESOURCE, e);
+    }
+  }
+
+  private String setting(String name, String defaultValue) {
+    String value = settings.get(name);
+    return (value != null && !value.isEmpty() ? value : defaultValue);
+  }
+
+  private long longSetting(String name, long defaultValue) {
+    return Long.parseLong(setting(name, String.valueOf(defaultValue)));
+  }
+
+  private int intSetting(String name, int defaultValue) {
+    return Integer.parseInt(setting(name, String.valueOf(defaultValue)));
+  }
+
+  private List<String> listSetting(String name, String defaultValue) {
+    return Arrays.stream(setting(name, defaultValue).split("\\s*,\\s*"))
+        .filter(s -> !s.isEmpty()).collect(Collectors.toList());
+  }
+
+  private List<Workload> generateWorkloads() {
+    final int invoiceCount = intSetting("invoices", 1000);
+    final int accountCount = Math.max(1, intSetting("accounts", 100));
+    final List<Locale> locales = listSetting("locales", "en_US,en_NZ,de_DE,fr_FR,ja_JP").stream()
+        .map(s -> Locale.forLanguageTag(s.replace('_', '-'))).collect(Collectors.toList());
+    final List<Currency> currencies = listSetting("currencies", "USD,NZD,EUR,JPY").stream()
+        .map(Currency::valueOf).collect(Collectors.toList());
+
+    final SyntheticInvoiceGenerator gen = new SyntheticInvoiceGenerator();
+    gen.setItemCount(intSetting("items", 100));
+    gen.setTaxRatio(Double.parseDouble(setting("taxRatio", "0.1")));
+    gen.setSubscriptionCount(intSetting("subscriptions", 10));
+    gen.setCustomFieldCount(intSetting("fields", 20));
+    gen.setFieldNameCount(intSetting("fieldNames", 2));
+    gen.setFieldValueCount(intSetting("fieldValues", 10));
+
+    final UUID tenantId = new UUID(0L, 1L);
+    final DateTime now = new DateTime(0L);
+    final List<Workload> result = new ArrayList<>(invoiceCount);
+    for (int i = 0; i < invoiceCount; i++) {
+      final int account = i % accountCount;
+      final long accountRecordId = account + 1L;
+      gen.setSeed(i + 1L);
+      gen.setAccountId(new UUID(1L, accountRecordId));
+      gen.setCurrency(currencies.get(i % currencies.size()));
+      final SyntheticInvoice invoice = gen.generate();
+      if (!customFields.hasAccount(invoice.getAccountId())) {
+        customFields.addAccount(invoice.getAccountId(), accountRecordId,
+            invoice.getCustomFields());
+      }
+      Map<String, Object> ctx = new HashMap<>(4);
+      ctx.put("getTenantId", tenantId);
+      ctx.put("getAccountId", invoice.getAccountId());
+      result.add(new Workload(invoice, locales.get(i % locales.size()),
+          new InternalTenantContext(1L, accountRecordId, DateTimeZone.UTC, now),
+          BeanProxy.of(TenantContext.class, ctx)));
+    }
+    return result;
+  }
+
+  private FormatterSource internalSource() {
+    final SolarNetworkInvoiceFormatterFactory factory = new SolarNetworkInvoiceFormatterFactory(
+        customFields.dao(), CustomFieldCache.fromProperties(System::getProperty),
+        CustomFieldFetchStrategy.fromProperties(System::getProperty), null);
+    final TranslatorConfig config = BeanProxy.of(TranslatorConfig.class, new HashMap<>());
+    final CurrencyConversionApi currencyConversionApi = BeanProxy.of(CurrencyConversionApi.class,
+        new HashMap<>());
+    final ResourceBundleFactory bundleFactory = BeanProxy.of(ResourceBundleFactory.class,
+        new HashMap<>());
+    return w -> factory.createInvoiceFormatter(config, w.invoice.getInvoice(), w.locale,
+        currencyConversionApi, bundleFactory, w.internalContext);
+  }
+
+  private InvoiceFormatterFactory notificationFactory() {
+    // the internal factory is imported, and shares the simple name of this one
+    return new net.solarnetwork.billing.killbill.invoice.notification
+        .SolarNetworkInvoiceFormatterFactory(customFields.api(),
+            CustomFieldCache.fromProperties(System::getProperty),
+            CustomFieldFetchStrategy.fromProperties(System::getProperty), null);
+  }
+
+  private FormatterSource notificationSource() {
+    final InvoiceFormatterFactory factory = notificationFactory();
+    final Map<String, String> translator = new HashMap<>();
+    return w -> factory.createInvoiceFormatter(translator, w.invoice.getInvoice(), w.locale,
+        w.context);
+  }
+
+  private static Map<String, Object> text() {
+    Map<String, Object> text = new HashMap<>(8);
+    text.put("invoiceTitle", "Invoice");
+    text.put("invoiceDate", "Date");
+    text.put("invoiceItemDescription", "Description");
+    text.put("invoiceItemAmount", "Amount");
+    text.put("invoiceAmount", "Total");
+    text.put("invoiceTax", "Tax");
+    text.put("invoiceAmountPaid", "Paid");
+    text.put("invoiceBalance", "Balance");
+    return text;
+  }
+
+  /**
+   * Run all the configured factory and thread count combinations, printing the results.
+   */
+  public void run() {
+    final long warmup = TimeUnit.SECONDS.toNanos(longSetting("warmup", 5));
+    final long duration = TimeUnit.SECONDS.toNanos(longSetting("duration", 10));
+    System.out.println("Settings: " + settings);
+    System.out.println(String.format("%-12s %7s %10s %12s %10s %10s %10s %10s %10s",
+        "Factory", "Threads", "Renders", "Renders/s", "p50 (us)", "p90 (us)", "p99 (us)",
+        "p99.9 (us)", "Max (us)"));
+    for (String factory : listSetting("factories", "internal,notification")) {
+      for (String threads : listSetting("threads", "1,2,4,8")) {
+        final int threadCount = Integer.parseInt(threads);
+        // a new factory per run, so each run starts with an empty custom field cache
+        final FormatterSource source = ("internal".equalsIgnoreCase(factory) ? internalSource()
+            : notificationSource());
+        execute(source, threadCount, warmup);
+        Result r = execute(source, threadCount, duration);
+        System.out.println(String.format(
+            "%-12s %7d %10d %12.1f %10.1f %10.1f %10.1f %10.1f %10.1f", factory, threadCount,
+            r.count, r.throughput(), r.percentile(50), r.percentile(90),
+            r.percentile(99), r.percentile(99.9), r.percentile(100)));
+      }
+    }
+  }
+
+  /**
+   * The latencies recorded during a run.
+   */
+  private static final class Result {
+
+    private final long[] latencies;
+    private final int count;
+    private final long elapsed;
+
+    private Result(long[] latencies, int count, long elapsed) {
+      super();
+      this.latencies = latencies;
+      this.count = count;
+      this.elapsed = elapsed;
+      Arrays.sort(latencies, 0, count);
+    }
+
+    private double throughput() {
+      return (elapsed > 0 ? count / (elapsed / 1_000_000_000.0) : 0);
+    }
+
+    private double percentile(double p) {
+      if (count < 1) {
+        return 0;
+      }
+      int idx = (int) Math.ceil(p / 100.0 * count) - 1;
+      return latencies[Math.max(0, Math.min(count - 1, idx))] / 1000.0;
+    }
+
+  }
+
+  private Result execute(FormatterSource source, int threadCount, long duration) {
+    final Map<String, Object> text = text();
+    final AtomicBoolean stop = new AtomicBoolean();
+    final CountDownLatch start = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(threadCount);
+    final long[][] latencies = new long[threadCount][];
+    final int[] counts = new int[threadCount];
+    final List<Thread> threads = new ArrayList<>(threadCount);
+    for (int t = 0; t < threadCount; t++) {
+      final int threadIdx = t;
+      Thread thread = new Thread(() -> {
+        long[] times = new long[1024];
+        int count = 0;
+        int next = threadIdx * (workloads.size() / threadCount);
+        final Map<String, Object> data = new HashMap<>(4);
+        data.put("text", text);
+        try {
+          start.await();
+          while (!stop.get()) {
+            Workload w = workloads.get(next++ % workloads.size());
+            long t0 = System.nanoTime();
+            data.put("invoice", source.create(w));
+            template.execute(data);
+            long t1 = System.nanoTime();
+            if (count == times.length) {
+              times = Arrays.copyOf(times, count * 2);
+            }
+            times[count++] = t1 - t0;
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        } finally {
+          latencies[threadIdx] = times;
+          counts[threadIdx] = count;
+          done.countDown();
+        }
+      }, "RenderLoadTest-" + t);
+      threads.add(thread);
+      thread.start();
+    }
+    final long t0 = System.nanoTime();
+    start.countDown();
+    try {
+      TimeUnit.NANOSECONDS.sleep(duration);
+      stop.set(true);
+      done.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      stop.set(true);
+    }
+    final long elapsed = System.nanoTime() - t0;
+
+    int total = 0;
+    for (int c : counts) {
+      total += c;
+    }
+    long[] all = new long[total];
+    int pos = 0;
+    for (int t = 0; t < threadCount; t++) {
+      if (latencies[t] != null) {
+        System.arraycopy(latencies[t], 0, all, pos, counts[t]);
+        pos += counts[t];
+      }
+    }
+    return new Result(all, pos, elapsed);
+  }
+
+}
@@ -0,0 +1,88 @@
+/*  Copyright 2020 SolarNetwork Foundation
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.solarnetwork.billing.killbill.invoice.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import org.killbill.billing.invoice.api.formatters.InvoiceItemFormatter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.solarnetwork.billing.killbill.invoice.core.SolarNetworkInvoiceFormatterHelper;
+import net.solarnetwork.billing.killbill.invoice.util.CustomFieldsThenDescriptionComparator;
+import net.solarnetwork.billing.killbill.invoice.util.CustomFieldsThenDescriptionSortKey;
+
+/**
+ * Compare sorting invoice items with {@link CustomFieldsThenDescriptionComparator} and with
+ * {@link CustomFieldsThenDescriptionSortKey}.
+ * 
+ * @author matt
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SortingBenchmark {
+
+  @Param({ "10", "1000", "100000" })
+  private int itemCount;
+
+  @Param({ "0", "100", "10000" })
+  private int customFieldCount;
+
+  private List<InvoiceItemFormatter> items;
+
+  @Setup
+  public void setup() {
+    SyntheticInvoiceGenerator gen = new SyntheticInvoiceGenerator();
+    gen.setItemCount(itemCount);
+    gen.setTaxRatio(0);
+    gen.setCustomFieldCount(customFieldCount);
+    gen.setSubscriptionCount(Math.max(1, Math.min(itemCount, customFieldCount) / 2));
+    SyntheticInvoice invoice = gen.generate();
+    items = new ArrayList<>();
+    new SolarNetworkInvoiceFormatterHelper(invoice.getInvoice(), invoice::getItems, Locale.US,
+        invoice.getCustomFields()).getExtendedInvoiceItems()
+            .forEach(item -> items.add((InvoiceItemFormatter) item));
+  }
+
+  @Benchmark
+  public List<InvoiceItemFormatter> comparator() {
+    List<InvoiceItemFormatter> sorted = new ArrayList<>(items);
+    sorted.sort(CustomFieldsThenDescriptionComparator.INVOICE_ITEM_SORT_BY_CUSTOM_FIELDS_THEN_DESC);
+    return sorted;
+  }
+
+  @Benchmark
+  public List<InvoiceItemFormatter> sortKey() {
+    return CustomFieldsThenDescriptionSortKey.sort(items);
+  }
+
+}
@@ -0,0 +1,95 @@
+/*  Copyright 2020 SolarNetwork Foundation
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.solarnetwork.billing.killbill.invoice.benchmark;
+
+import java.util.List;
+import java.util.UUID;
+
+import org.killbill.billing.invoice.api.InvoiceItem;
+import org.killbill.billing.invoice.api.formatters.InvoiceFormatter;
+import org.killbill.billing.util.customfield.CustomField;
+
+/**
+ * A synthetic invoice, with its items and the custom fields of its account.
+ * 
+ * @author matt
+ */
+public final class SyntheticInvoice {
+
+  private final UUID accountId;
+  private final InvoiceFormatter invoice;
+  private final List<InvoiceItem> items;
+  private final List<CustomField> customFields;
+
+  /**
+   * Constructor.
+   * 
+   * @param accountId
+   *          the account ID
+   * @param invoice
+   *          the invoice
+   * @param items
+   *          the invoice items, all of which implement
+   *          {@link org.killbill.billing.invoice.api.formatters.InvoiceItemFormatter}
+   * @param customFields
+   *          the account custom fields
+   */
+  public SyntheticInvoice(UUID accountId, InvoiceFormatter invoice, List<InvoiceItem> items,
+      List<CustomField> customFields) {
+    super();
+    this.accountId = accountId;
+    this.invoice = invoice;
+    this.items = items;
+    this.customFields = customFields;
+  }
+
+  /**
+   * Get the account ID.
+   * 
+   * @return the account ID
+   */
+  public UUID getAccountId() {
+    return accountId;
+  }
+
+  /**
+   * Get the invoice.
+   * 
+   * @return the invoice
+   */
+  public InvoiceFormatter getInvoice() {
+    return invoice;
+  }
+
+  /**
+   * Get the invoice items.
+   * 
+   * @return the items
+   */
+  public List<InvoiceItem> getItems() {
+    return items;
+  }
+
+  /**
+   * Get the account custom fields.
+   * 
+   * @return the custom fields
+   */
+  public List<CustomField> getCustomFields() {
+    return customFields;
+  }
+
+}
@@ -0,0 +1,262 @@
+/*  Copyright 2020 SolarNetwork Foundation
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.solarnetwork.billing.killbill.invoice.benchmark;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+import org.joda.time.DateTime;
+import org.joda.time.LocalDate;
+import org.killbill.billing.ObjectType;
+import org.killbill.billing.catalog.api.Currency;
+import org.killbill.billing.invoice.api.InvoiceItem;
+import org.killbill.billing.invoice.api.InvoiceItemType;
+import org.killbill.billing.invoice.api.formatters.InvoiceFormatter;
+import org.killbill.billing.invoice.api.formatters.InvoiceItemFormatter;
+import org.killbill.billing.util.customfield.CustomField;
+import org.killbill.billing.util.customfield.StringCustomField;
+
+/**
+ * Generate synthetic invoices, with items and custom fields, for benchmarks and load tests.
+ * 
+ * <p>
+ * Each non-tax item belongs to one of {@code subscriptionCount} subscriptions. The
+ * {@code customFieldCount} custom fields are spread evenly over those subscriptions, using
+ * {@code fieldNameCount} distinct field names and {@code fieldValueCount} distinct values per name.
+ * The generator is deterministic for a given seed. The subscriptions and custom fields depend only
+ * on the account, so all invoices generated for the same account share them.
+ * </p>
+ * 
+ * @author matt
+ */
+public class SyntheticInvoiceGenerator {
+
+  private static final String[] TAX_DESCRIPTIONS = new String[] { "GST", "VAT", "State Tax",
+      "City Tax" };
+
+  private int itemCount = 100;
+  private double taxRatio = 0.1;
+  private int subscriptionCount = 10;
+  private int customFieldCount = 10;
+  private int fieldNameCount = 2;
+  private int fieldValueCount = 10;
+  private int taxDescriptionCount = 0;
+  private Currency currency = Currency.USD;
+  private long seed = 1L;
+  private UUID accountId;
+
+  /**
+   * Generate an invoice.
+   * 
+   * @return the new invoice
+   */
+  public SyntheticInvoice generate() {
+    final Random rng = new Random(seed);
+    final UUID account = (accountId != null ? accountId : new UUID(seed, 0L));
+    final UUID invoiceId = new UUID(seed, 1L);
+    final DateTime now = new DateTime(0L);
+    final LocalDate date = new LocalDate(2020, 1, 1);
+
+    final int subCount = Math.max(1, subscriptionCount);
+    final List<UUID> subscriptionIds = subscriptionIds(account, subCount);
+    final List<CustomField> fields = customFields(account, subscriptionIds, now);
+
+    final List<InvoiceItem> items = new ArrayList<>(itemCount);
+    BigDecimal total = BigDecimal.ZERO;
+    for (int i = 0; i < itemCount; i++) {
+      final boolean tax = rng.nextDouble() < taxRatio;
+      final BigDecimal amount = BigDecimal.valueOf(rng.nextInt(100000), 2);
+      total = total.add(amount);
+      Map<String, Object> props = new HashMap<>(16);
+      props.put("getId", new UUID(seed, 1000000L + i));
+      props.put("getInvoiceId", invoiceId);
+      props.put("getAccountId", account);
+      props.put("getCreatedDate", now);
+      props.put("getUpdatedDate", now);
+      props.put("getStartDate", date);
+      props.put("getEndDate", date.plusMonths(1));
+      props.put("getAmount", amount);
+      props.put("getCurrency", currency);
+      props.put("getFormattedAmount", amount.toPlainString());
+      if (tax) {
+        props.put("getInvoiceItemType", InvoiceItemType.TAX);
+        props.put("getDescription",
+            taxDescriptionCount > 0 ? "Tax " + rng.nextInt(taxDescriptionCount)
+                : TAX_DESCRIPTIONS[rng.nextInt(TAX_DESCRIPTIONS.length)]);
+      } else {
+        props.put("getInvoiceItemType", InvoiceItemType.USAGE);
+        props.put("getDescription", "Usage " + rng.nextInt(50));
+        props.put("getSubscriptionId", subscriptionIds.get(rng.nextInt(subCount)));
+      }
+      items.add(BeanProxy.of(InvoiceItemFormatter.class, props));
+    }
+
+    Map<String, Object> props = new HashMap<>(16);
+    props.put("getId", invoiceId);
+    props.put("getAccountId", account);
+    props.put("getInvoiceNumber", (int) (seed & 0x7FFFFFFF));
+    props.put("getInvoiceDate", date);
+    props.put("getTargetDate", date);
+    props.put("getCurrency", currency);
+    props.put("getInvoiceItems", Collections.unmodifiableList(items));
+    props.put("getNumberOfItems", items.size());
+    props.put("getChargedAmount", total);
+    props.put("getOriginalChargedAmount", total);
+    props.put("getPaidAmount", BigDecimal.ZERO);
+    props.put("getCreditedAmount", BigDecimal.ZERO);
+    props.put("getRefundedAmount", BigDecimal.ZERO);
+    props.put("getBalance", total);
+    InvoiceFormatter invoice = BeanProxy.of(InvoiceFormatter.class, props);
+
+    return new SyntheticInvoice(account, invoice, Collections.unmodifiableList(items),
+        Collections.unmodifiableList(fields));
+  }
+
+  private static List<UUID> subscriptionIds(UUID account, int count) {
+    final List<UUID> ids = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      ids.add(new UUID(account.getMostSignificantBits(),
+          account.getLeastSignificantBits() + i + 1));
+    }
+    return ids;
+  }
+
+  /**
+   * Generate the account custom fields, which depend only on the account and the field settings,
+   * so that all invoices generated for an account share the same fields.
+   */
+  private List<CustomField> customFields(UUID account, List<UUID> subscriptionIds, DateTime now) {
+    final Random rng = new Random(account.hashCode());
+    final int subCount = subscriptionIds.size();
+    final List<CustomField> fields = new ArrayList<>(customFieldCount);
+    for (int i = 0; i < customFieldCount; i++) {
+      UUID subscriptionId = subscriptionIds.get(i % subCount);
+      String name = "field" + ((i / subCount) % Math.max(1, fieldNameCount));
+      String value = "value" + rng.nextInt(Math.max(1, fieldValueCount));
+      fields.add(new StringCustomField(name, value, ObjectType.SUBSCRIPTION, subscriptionId, now));
+    }
+    return fields;
+  }
+
+  /**
+   * Set the number of invoice items to generate.
+   * 
+   * @param itemCount
+   *          the item count; defaults to {@literal 100}
+   */
+  public void setItemCount(int itemCount) {
+    this.itemCount = itemCount;
+  }
+
+  /**
+   * Set the probability of each item being a tax item.
+   * 
+   * @param taxRatio
+   *          the ratio, between {@literal 0} and {@literal 1}; defaults to {@literal 0.1}
+   */
+  public void setTaxRatio(double taxRatio) {
+    this.taxRatio = taxRatio;
+  }
+
+  /**
+   * Set the number of subscriptions the items belong to.
+   * 
+   * @param subscriptionCount
+   *          the subscription count; defaults to {@literal 10}
+   */
+  public void setSubscriptionCount(int subscriptionCount) {
+    this.subscriptionCount = subscriptionCount;
+  }
+
+  /**
+   * Set the total number of subscription custom fields to generate.
+   * 
+   * @param customFieldCount
+   *          the custom field count; defaults to {@literal 10}
+   */
+  public void setCustomFieldCount(int customFieldCount) {
+    this.customFieldCount = customFieldCount;
+  }
+
+  /**
+   * Set the number of distinct custom field names.
+   * 
+   * @param fieldNameCount
+   *          the name count; defaults to {@literal 2}
+   */
+  public void setFieldNameCount(int fieldNameCount) {
+    this.fieldNameCount = fieldNameCount;
+  }
+
+  /**
+   * Set the number of distinct custom field values per field name.
+   * 
+   * @param fieldValueCount
+   *          the value count; defaults to {@literal 10}
+   */
+  public void setFieldValueCount(int fieldValueCount) {
+    this.fieldValueCount = fieldValueCount;
+  }
+
+  /**
+   * Set the number of distinct tax item descriptions.
+   * 
+   * @param taxDescriptionCount
+   *          the description count, or {@literal 0} to use a few realistic tax names; defaults to
+   *          {@literal 0}
+   */
+  public void setTaxDescriptionCount(int taxDescriptionCount) {
+    this.taxDescriptionCount = taxDescriptionCount;
+  }
+
+  /**
+   * Set the invoice currency.
+   * 
+   * @param currency
+   *          the currency; defaults to {@literal USD}
+   */
+  public void setCurrency(Currency currency) {
+    this.currency = currency;
+  }
+
+  /**
+   * Set the random seed.
+   * 
+   * @param seed
+   *          the seed; defaults to {@literal 1}
+   */
+  public void setSeed(long seed) {
+    this.seed = seed;
+  }
+
+  /**
+   * Set the account ID.
+   * 
+   * @param accountId
+   *          the account ID, or {@literal null} to derive one from the seed; defaults to
+   *          {@literal null}
+   */
+  public void setAccountId(UUID accountId) {
+    this.accountId = accountId;
+  }
+
+}
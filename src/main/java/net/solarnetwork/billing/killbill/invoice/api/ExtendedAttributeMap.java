@@ -0,0 +1,234 @@
+/*  Copyright 2020 SolarNetwork Foundation
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package net.solarnetwork.billing.killbill.invoice.api;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * An immutable {@link Map} view of the attributes of an {@link InvoiceFormatterExtensions}, keyed
+ * by attribute name.
+ * 
+ * <p>
+ * Template engines resolve map keys with a simple lookup rather than finding and invoking a getter
+ * method by reflection. Each attribute value is computed the first time its key is looked up and
+ * is then returned for every later lookup, so attributes a template never uses are never computed
+ * and attributes it uses many times are computed once. This class is thread-safe.
+ * </p>
+ * 
+ * @author matt
+ * @since 2
+ */
+public final class ExtendedAttributeMap extends AbstractMap<String, Object> {
+
+  /** The {@link InvoiceFormatterExtensions#getBasicFormattedBalance()} attribute. */
+  public static final String BASIC_FORMATTED_BALANCE = "basicFormattedBalance";
+
+  /** The {@link InvoiceFormatterExtensions#getBasicFormattedPaidAmount()} attribute. */
+  public static final String BASIC_FORMATTED_PAID_AMOUNT = "basicFormattedPaidAmount";
+
+  /** The {@link InvoiceFormatterExtensions#getCustomFields()} attribute. */
+  public static final String CUSTOM_FIELDS = "customFields";
+
+  /** The {@link InvoiceFormatterExtensions#getFormattedNonTaxChargedAmount()} attribute. */
+  public static final String FORMATTED_NON_TAX_CHARGED_AMOUNT = "formattedNonTaxChargedAmount";
+
+  /** The {@link InvoiceFormatterExtensions#getFormattedTaxAmount()} attribute. */
+  public static final String FORMATTED_TAX_AMOUNT = "formattedTaxAmount";
+
+  /** The {@link InvoiceFormatterExtensions#getNonTaxChargedAmount()} attribute. */
+  public static final String NON_TAX_CHARGED_AMOUNT = "nonTaxChargedAmount";
+
+  /** The {@link InvoiceFormatterExtensions#getNonTaxInvoiceItems()} attribute. */
+  public static final String NON_TAX_INVOICE_ITEMS = "nonTaxInvoiceItems";
+
+  /**
+   * The {@link InvoiceFormatterExtensions#getNonTaxInvoiceItemsSortedBySubscriptionCustomFields()}
+   * attribute.
+   */
+  public static final String NON_TAX_INVOICE_ITEMS_SORTED_BY_SUBSCRIPTION_CUSTOM_FIELDS =
+      "nonTaxInvoiceItemsSortedBySubscriptionCustomFields";
+
+  /** The {@link InvoiceFormatterExtensions#getTaxAmount()} attribute. */
+  public static final String TAX_AMOUNT = "taxAmount";
+
+  /** The {@link InvoiceFormatterExtensions#getTaxInvoiceItems()} attribute. */
+  public static final String TAX_INVOICE_ITEMS = "taxInvoiceItems";
+
+  /** The {@link InvoiceFormatterExtensions#getTaxInvoiceItemsGroupedByDescription()} attribute. */
+  public static final String TAX_INVOICE_ITEMS_GROUPED_BY_DESCRIPTION =
+      "taxInvoiceItemsGroupedByDescription";
+
+  /** The getter of each attribute, by attribute name, in the order the map iterates over them. */
+  private static final Map<String, Function<InvoiceFormatterExtensions, ?>> ATTRIBUTES =
+      attributes();
+
+  /** All attribute names, in the order the map iterates over them. */
+  public static final List<String> ATTRIBUTE_NAMES = Collections
+      .unmodifiableList(new ArrayList<>(ATTRIBUTES.keySet()));
+
+  private final InvoiceFormatterExtensions source;
+  private final Map<String, Object> values = new HashMap<>(ATTRIBUTES.size() * 2);
+  private Set<Map.Entry<String, Object>> entrySet;
+
+  /**
+   * Constructor.
+   * 
+   * @param source
+   *          the source of the attribute values
+   * @throws IllegalArgumentException
+   *           if {@code source} is {@literal null}
+   */
+  public ExtendedAttributeMap(InvoiceFormatterExtensions source) {
+    super();
+    if (source == null) {
+      throw new IllegalArgumentException("The source argument must not be null.");
+    }
+    this.source = source;
+  }
+
+  private static Map<String, Function<InvoiceFormatterExtensions, ?>> attributes() {
+    Map<String, Function<InvoiceFormatterExtensions, ?>> m = new LinkedHashMap<>(16);
+    m.put(BASIC_FORMATTED_BALANCE, InvoiceFormatterExtensions::getBasicFormattedBalance);
+    m.put(BASIC_FORMATTED_PAID_AMOUNT, InvoiceFormatterExtensions::getBasicFormattedPaidAmount);
+    m.put(CUSTOM_FIELDS, InvoiceFormatterExtensions::getCustomFields);
+    m.put(FORMATTED_NON_TAX_CHARGED_AMOUNT,
+        InvoiceFormatterExtensions::getFormattedNonTaxChargedAmount);
+    m.put(FORMATTED_TAX_AMOUNT, InvoiceFormatterExtensions::getFormattedTaxAmount);
+    m.put(NON_TAX_CHARGED_AMOUNT, InvoiceFormatterExtensions::getNonTaxChargedAmount);
+    m.put(NON_TAX_INVOICE_ITEMS, InvoiceFormatterExtensions::getNonTaxInvoiceItems);
+    m.put(NON_TAX_INVOICE_ITEMS_SORTED_BY_SUBSCRIPTION_CUSTOM_FIELDS,
+        InvoiceFormatterExtensions::getNonTaxInvoiceItemsSortedBySubscriptionCustomFields);
+    m.put(TAX_AMOUNT, InvoiceFormatterExtensions::getTaxAmount);
+    m.put(TAX_INVOICE_ITEMS, InvoiceFormatterExtensions::getTaxInvoiceItems);
+    m.put(TAX_INVOICE_ITEMS_GROUPED_BY_DESCRIPTION,
+        InvoiceFormatterExtensions::getTaxInvoiceItemsGroupedByDescription);
+    return Collections.unmodifiableMap(m);
+  }
+
+  private Object value(String name, Function<InvoiceFormatterExtensions, ?> getter) {
+    synchronized (values) {
+      if (values.containsKey(name)) {
+        return values.get(name);
+      }
+      Object value = getter.apply(source);
+      values.put(name, value);
+      return value;
+    }
+  }
+
+  /**
+   * Test if an attribute value has been computed.
+   * 
+   * @param name
+   *          the attribute name
+   * @return {@literal true} if the attribute has been looked up before
+   */
+  public boolean isComputed(String name) {
+    synchronized (values) {
+      return values.containsKey(name);
+    }
+  }
+
+  @Override
+  public Object get(Object key) {
+    Function<InvoiceFormatterExtensions, ?> getter = ATTRIBUTES.get(key);
+    return (getter != null ? value((String) key, getter) : null);
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    return ATTRIBUTES.containsKey(key);
+  }
+
+  @Override
+  public int size() {
+    return ATTRIBUTES.size();
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return false;
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * <p>
+   * The keys are returned in {@link #ATTRIBUTE_NAMES} order, and the set is not modifiable.
+   * </p>
+   */
+  @Override
+  public Set<String> keySet() {
+    return ATTRIBUTES.keySet();
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * <p>
+   * The entries are returned in {@link #ATTRIBUTE_NAMES} order, and each entry value is computed
+   * when the entry is first returned by the iterator.
+   * </p>
+   */
+  @Override
+  public Set<Map.Entry<String, Object>> entrySet() {
+    Set<Map.Entry<String, Object>> set = entrySet;
+    if (set == null) {
+      set = new AbstractSet<Map.Entry<String, Object>>() {
+
+        @Override
+        public Iterator<Map.Entry<String, Object>> iterator() {
+          final Iterator<Map.Entry<String, Function<InvoiceFormatterExtensions, ?>>> itr =
+              ATTRIBUTES.entrySet().iterator();
+          return new Iterator<Map.Entry<String, Object>>() {
+
+            @Override
+            public boolean hasNext() {
+              return itr.hasNext();
+            }
+
+            @Override
+            public Map.Entry<String, Object> next() {
+              final Map.Entry<String, Function<InvoiceFormatterExtensions, ?>> e = itr.next();
+              return new SimpleImmutableEntry<>(e.getKey(), value(e.getKey(), e.getValue()));
+            }
+
+          };
+        }
+
+        @Override
+        public int size() {
+          return ATTRIBUTES.size();
+        }
+
+      };
+      entrySet = set;
+    }
+    return set;
+  }
+
+}
@@ -17,6 +17,7 @@ package net.solarnetwork.billing.killbill.invoice.api;
 
 import java.math.BigDecimal;
 import java.util.List;
+import java.util.Map;
 
 import org.killbill.billing.invoice.api.InvoiceItem;
 import org.killbill.billing.util.customfield.CustomField;
@@ -25,6 +26,7 @@ import org.killbill.billing.util.customfield.CustomField;
  * API of extended methods for invoice formatting.
  * 
  * @author matt
+ * @version 2
  */
 public interface InvoiceFormatterExtensions {
 
@@ -116,4 +118,21 @@ public interface InvoiceFormatterExtensions {
    */
   List<CustomField> getCustomFields();
 
+  /**
+   * Get an immutable map of all the attributes of this API, keyed by attribute name.
+   * 
+   * <p>
+   * Templates can use this map to look up the attributes without reflection, for example
+   * {@literal {{invoice.extendedAttributes.formattedTaxAmount}}}. Each value is computed the first
+   * time it is looked up. Implementations must create the map once, typically as an
+   * {@link ExtendedAttributeMap}, and return that same instance for the life of the formatter, so
+   * the computed values are shared by every lookup.
+   * </p>
+   * 
+   * @return the attribute map, never {@literal null}
+   * @see ExtendedAttributeMap
+   * @since 2
+   */
+  Map<String, Object> getExtendedAttributes();
+
 }
@@ -0,0 +1,156 @@
+/*  Copyright 2020 SolarNetwork Foundation
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.solarnetwork.billing.killbill.invoice.core;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.killbill.billing.util.customfield.CustomField;
+
+import net.solarnetwork.billing.killbill.invoice.util.MemoizingSupplier;
+
+/**
+ * Fetch custom fields in the background, so the fetch overlaps creating the formatter and starting
+ * to render the template.
+ * 
+ * <p>
+ * The fetch is started as soon as {@link #fetch(Supplier, Runnable)} is called, and joined the
+ * first time the returned supplier is used. If the fetch has not completed within the timeout by
+ * then, the supplier returns an empty list, so the invoice is rendered without custom fields
+ * rather than waiting any longer. The fetch itself carries on, so it can still populate a cache
+ * for later invoices. If the executor rejects the fetch, it is run lazily by the caller instead.
+ * </p>
+ * 
+ * @author matt
+ */
+public class AsyncCustomFieldFetcher {
+
+  /** The maximum number of fetches queued in the {@link #defaultExecutor()}. */
+  public static final int DEFAULT_QUEUE_CAPACITY = 1000;
+
+  private static final class DefaultExecutorHolder {
+
+    private static final ThreadPoolExecutor EXECUTOR = createDefaultExecutor();
+
+  }
+
+  private final Executor executor;
+  private final long timeoutNanos;
+
+  /**
+   * Constructor.
+   * 
+   * @param executor
+   *          the executor to fetch custom fields with
+   * @param timeout
+   *          the maximum time to wait for a fetch when the custom fields are first used, in
+   *          milliseconds
+   */
+  public AsyncCustomFieldFetcher(Executor executor, long timeout) {
+    super();
+    this.executor = executor;
+    this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, timeout));
+  }
+
+  private static ThreadPoolExecutor createDefaultExecutor() {
+    final int size = Math.max(InvoiceFormatterBatch.MINIMUM_DEFAULT_PARALLELISM,
+        Runtime.getRuntime().availableProcessors());
+    final AtomicInteger threadCounter = new AtomicInteger();
+    ThreadPoolExecutor pool = new ThreadPoolExecutor(size, size, 60L, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<>(DEFAULT_QUEUE_CAPACITY), r -> {
+          Thread t = new Thread(r, "AsyncCustomFieldFetcher-" + threadCounter.incrementAndGet());
+          t.setDaemon(true);
+          return t;
+        });
+    pool.allowCoreThreadTimeOut(true);
+    return pool;
+  }
+
+  /**
+   * Get a shared executor suitable for fetching custom fields.
+   * 
+   * <p>
+   * The executor uses daemon threads that time out when idle, at least
+   * {@link InvoiceFormatterBatch#MINIMUM_DEFAULT_PARALLELISM} of them, and rejects fetches once
+   * {@link #DEFAULT_QUEUE_CAPACITY} are queued.
+   * </p>
+   * 
+   * @return the shared executor
+   */
+  public static Executor defaultExecutor() {
+    return DefaultExecutorHolder.EXECUTOR;
+  }
+
+  /**
+   * Start fetching custom fields.
+   * 
+   * @param loader
+   *          the supplier that fetches the custom fields
+   * @param timeoutHandler
+   *          a callback to run if the fetch times out, or {@literal null}
+   * @return a supplier of the fetched custom fields, or an empty list if the fetch times out
+   */
+  public Supplier<List<CustomField>> fetch(Supplier<List<CustomField>> loader,
+      Runnable timeoutHandler) {
+    final CompletableFuture<List<CustomField>> future;
+    try {
+      future = CompletableFuture.supplyAsync(loader, executor);
+    } catch (RejectedExecutionException e) {
+      return loader;
+    }
+    return MemoizingSupplier.of(() -> {
+      try {
+        return future.get(timeoutNanos, TimeUnit.NANOSECONDS);
+      } catch (TimeoutException | InterruptedException e) {
+        if (e instanceof InterruptedException) {
+          Thread.currentThread().interrupt();
+        }
+        if (timeoutHandler != null) {
+          timeoutHandler.run();
+        }
+        return Collections.emptyList();
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof RuntimeException) {
+          throw (RuntimeException) cause;
+        } else if (cause instanceof Error) {
+          throw (Error) cause;
+        }
+        throw new IllegalStateException("Error fetching custom fields.", cause);
+      }
+    });
+  }
+
+  /**
+   * Get the timeout.
+   * 
+   * @return the maximum time to wait for a fetch, in milliseconds
+   */
+  public long getTimeout() {
+    return TimeUnit.NANOSECONDS.toMillis(timeoutNanos);
+  }
+
+}
@@ -0,0 +1,218 @@
+/*  Copyright 2020 SolarNetwork Foundation
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.solarnetwork.billing.killbill.invoice.core;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import javax.sql.DataSource;
+
+import org.joda.time.DateTime;
+import org.killbill.billing.ObjectType;
+import org.killbill.billing.util.customfield.CustomField;
+import org.killbill.billing.util.customfield.StringCustomField;
+
+/**
+ * Query the custom fields of many objects at once, directly from the Kill Bill
+ * {@literal custom_fields} table.
+ * 
+ * <p>
+ * Kill Bill only offers APIs to query the custom fields of a single object, or of every object of
+ * a given type within an account. This queries the active custom fields of a set of objects with
+ * a single {@literal object_id IN (...)} query, using the index on the {@literal object_id}
+ * column, or with one query per chunk of {@link #getChunkSize()} objects for larger sets.
+ * </p>
+ * 
+ * @author matt
+ */
+public class CustomFieldBatchQuery {
+
+  /** The default maximum number of object IDs to query at once. */
+  public static final int DEFAULT_CHUNK_SIZE = 500;
+
+  /** The tenant record ID Kill Bill uses when there is no tenant. */
+  public static final long DEFAULT_TENANT_RECORD_ID = 0L;
+
+  private static final String SELECT = "SELECT object_id, object_type, field_name, field_value,"
+      + " created_date FROM custom_fields WHERE is_active = ? AND tenant_record_id = ";
+
+  private static final String TENANT_RECORD_ID = "?";
+
+  private static final String TENANT_ID = "(SELECT record_id FROM tenants WHERE id = ?)";
+
+  private final DataSource dataSource;
+  private final int chunkSize;
+
+  /**
+   * Constructor.
+   * 
+   * @param dataSource
+   *          the Kill Bill data source
+   */
+  public CustomFieldBatchQuery(DataSource dataSource) {
+    this(dataSource, DEFAULT_CHUNK_SIZE);
+  }
+
+  /**
+   * Constructor.
+   * 
+   * @param dataSource
+   *          the Kill Bill data source
+   * @param chunkSize
+   *          the maximum number of object IDs to query at once
+   * @throws IllegalArgumentException
+   *           if {@code dataSource} is {@literal null} or {@code chunkSize} is less than
+   *           {@literal 1}
+   */
+  public CustomFieldBatchQuery(DataSource dataSource, int chunkSize) {
+    super();
+    if (dataSource == null) {
+      throw new IllegalArgumentException("The dataSource argument must be provided.");
+    }
+    if (chunkSize < 1) {
+      throw new IllegalArgumentException("The chunkSize argument must be at least 1.");
+    }
+    this.dataSource = dataSource;
+    this.chunkSize = chunkSize;
+  }
+
+  /**
+   * Get the custom fields of a set of objects of a tenant, by tenant record ID.
+   * 
+   * @param tenantRecordId
+   *          the tenant record ID, or {@literal null} for {@link #DEFAULT_TENANT_RECORD_ID}
+   * @param objects
+   *          the types of the objects to get the custom fields of, by object ID
+   * @return the custom fields of each object that has any, in the iteration order of
+   *         {@code objects}
+   * @throws IllegalStateException
+   *           if the query fails
+   */
+  public Map<UUID, List<CustomField>> getCustomFieldsForTenantRecordId(Long tenantRecordId,
+      Map<UUID, ObjectType> objects) {
+    return query(TENANT_RECORD_ID,
+        tenantRecordId != null ? tenantRecordId : DEFAULT_TENANT_RECORD_ID, objects);
+  }
+
+  /**
+   * Get the custom fields of a set of objects of a tenant, by tenant ID.
+   * 
+   * @param tenantId
+   *          the tenant ID, or {@literal null} for {@link #DEFAULT_TENANT_RECORD_ID}
+   * @param objects
+   *          the types of the objects to get the custom fields of, by object ID
+   * @return the custom fields of each object that has any, in the iteration order of
+   *         {@code objects}
+   * @throws IllegalStateException
+   *           if the query fails
+   */
+  public Map<UUID, List<CustomField>> getCustomFieldsForTenantId(UUID tenantId,
+      Map<UUID, ObjectType> objects) {
+    if (tenantId == null) {
+      return query(TENANT_RECORD_ID, DEFAULT_TENANT_RECORD_ID, objects);
+    }
+    return query(TENANT_ID, tenantId.toString(), objects);
+  }
+
+  private Map<UUID, List<CustomField>> query(String tenantClause, Object tenant,
+      Map<UUID, ObjectType> objects) {
+    if (objects == null || objects.isEmpty()) {
+      return Collections.emptyMap();
+    }
+    final Map<UUID, List<CustomField>> fields = new LinkedHashMap<>(objects.size());
+    try (Connection conn = dataSource.getConnection()) {
+      final Iterator<UUID> ids = objects.keySet().iterator();
+      while (ids.hasNext()) {
+        final List<UUID> chunk = new ArrayList<>(Math.min(chunkSize, objects.size()));
+        while (ids.hasNext() && chunk.size() < chunkSize) {
+          chunk.add(ids.next());
+        }
+        queryChunk(conn, tenantClause, tenant, chunk, objects, fields);
+      }
+    } catch (SQLException e) {
+      throw new IllegalStateException("Error querying custom fields: " + e.getMessage(), e);
+    }
+
+    // return in the order requested
+    final Map<UUID, List<CustomField>> result = new LinkedHashMap<>(fields.size());
+    for (UUID id : objects.keySet()) {
+      List<CustomField> l = fields.get(id);
+      if (l != null) {
+        result.put(id, l);
+      }
+    }
+    return result;
+  }
+
+  private static void queryChunk(Connection conn, String tenantClause, Object tenant,
+      List<UUID> chunk, Map<UUID, ObjectType> objects, Map<UUID, List<CustomField>> fields)
+      throws SQLException {
+    final StringBuilder sql = new StringBuilder(SELECT.length() + 64 + chunk.size() * 3);
+    sql.append(SELECT).append(tenantClause).append(" AND object_id IN (");
+    for (int i = 0, len = chunk.size(); i < len; i++) {
+      if (i > 0) {
+        sql.append(',');
+      }
+      sql.append('?');
+    }
+    sql.append(") ORDER BY record_id");
+    try (PreparedStatement stmt = conn.prepareStatement(sql.toString())) {
+      int p = 0;
+      stmt.setBoolean(++p, true);
+      if (tenant instanceof Long) {
+        stmt.setLong(++p, (Long) tenant);
+      } else {
+        stmt.setString(++p, tenant.toString());
+      }
+      for (UUID id : chunk) {
+        stmt.setString(++p, id.toString());
+      }
+      try (ResultSet rs = stmt.executeQuery()) {
+        while (rs.next()) {
+          final UUID objectId = UUID.fromString(rs.getString(1));
+          final ObjectType type = objects.get(objectId);
+          if (type == null || !type.name().equals(rs.getString(2))) {
+            continue;
+          }
+          final Timestamp created = rs.getTimestamp(5);
+          fields.computeIfAbsent(objectId, k -> new ArrayList<>(4))
+              .add(new StringCustomField(rs.getString(3), rs.getString(4), type, objectId,
+                  created != null ? new DateTime(created.getTime()) : null));
+        }
+      }
+    }
+  }
+
+  /**
+   * Get the maximum number of object IDs queried at once.
+   * 
+   * @return the chunk size
+   */
+  public int getChunkSize() {
+    return chunkSize;
+  }
+
+}
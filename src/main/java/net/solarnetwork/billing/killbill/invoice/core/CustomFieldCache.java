@@ -0,0 +1,749 @@
+/*  Copyright 2020 SolarNetwork Foundation
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.solarnetwork.billing.killbill.invoice.core;
+
+import static net.solarnetwork.billing.killbill.invoice.core.InvoiceFormatterProperties.PROPERTY_PREFIX;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+
+import org.killbill.billing.util.customfield.CustomField;
+
+/**
+ * A bounded, expiring cache of custom field lists, for example all the custom fields of an account.
+ * 
+ * <p>
+ * Cached lists are immutable, so they can be shared by any number of invoice formatters. The cache
+ * holds at most {@code maximumSize} lists, evicting the least recently used list when full, and
+ * each list expires {@code timeToLive} after it was loaded. Lists can also be invalidated
+ * explicitly, for example when custom fields are known to have changed. Expired lists are kept
+ * until they are replaced, evicted, or invalidated, so they remain available from
+ * {@link #getStale(Object)} when loading fresh fields is not possible.
+ * </p>
+ * 
+ * <p>
+ * Loading happens outside of any lock, so a slow load for one key does not block other keys. A
+ * list loaded concurrently with an invalidation of its key is returned to the caller that loaded it
+ * but is not cached, so invalidations are never lost. Invalidating one key does not prevent
+ * concurrent loads of other keys from being cached.
+ * </p>
+ * 
+ * <p>
+ * Concurrent loads of the same key are coalesced: while one caller is loading a key, other callers
+ * that miss the same key wait for and share that result rather than loading it again. A load that
+ * fails fails every caller waiting on it. Invalidating a key that is being loaded makes later
+ * callers start a new load rather than wait for the invalidated one.
+ * </p>
+ * 
+ * <p>
+ * A positive {@code refreshAfter} shorter than {@code timeToLive} enables stale-while-revalidate:
+ * once a list is older than {@code refreshAfter} it is still returned immediately, but a single
+ * background refresh of it is started. Only lists older than {@code timeToLive} block callers
+ * while they are loaded. A failed refresh leaves the stale list cached, so a later caller starts
+ * another refresh.
+ * </p>
+ * 
+ * @param <K>
+ *          the cache key type
+ * @author matt
+ */
+public class CustomFieldCache<K> {
+
+  /**
+   * A callback for the outcome of a cache lookup.
+   */
+  public interface Listener {
+
+    /**
+     * Called when a lookup was served entirely from the cache, including from stale lists.
+     */
+    default void hit() {
+      // nothing
+    }
+
+    /**
+     * Called when a lookup waited for fields being loaded by another caller.
+     * 
+     * @param waitNanos
+     *          the time spent waiting, in nanoseconds
+     */
+    default void coalesced(long waitNanos) {
+      // nothing
+    }
+
+    /**
+     * Called when a lookup was served stale fields while they are refreshed in the background.
+     */
+    default void staleServed() {
+      // nothing
+    }
+
+    /**
+     * Called when a background refresh started by a lookup fails.
+     * 
+     * @param t
+     *          the failure
+     */
+    default void refreshFailed(Throwable t) {
+      // nothing
+    }
+
+  }
+
+  /** The default maximum number of lists to cache. */
+  public static final int DEFAULT_MAXIMUM_SIZE = 1000;
+
+  /** The default time to live, in milliseconds. */
+  public static final long DEFAULT_TIME_TO_LIVE = TimeUnit.MINUTES.toMillis(5);
+
+  /** The configuration property for the maximum number of lists to cache. */
+  public static final String MAXIMUM_SIZE_PROPERTY =
+      PROPERTY_PREFIX + "customFieldCache.maximumSize";
+
+  /** The configuration property for the time to live, in milliseconds. */
+  public static final String TIME_TO_LIVE_PROPERTY =
+      PROPERTY_PREFIX + "customFieldCache.timeToLive";
+
+  /**
+   * The configuration property for the age after which lists are refreshed in the background, in
+   * milliseconds.
+   */
+  public static final String REFRESH_AFTER_PROPERTY =
+      PROPERTY_PREFIX + "customFieldCache.refreshAfter";
+
+  private final int maximumSize;
+  private final long timeToLiveNanos;
+  private final long refreshAfterNanos;
+  private final LongSupplier clock;
+  private final Executor refreshExecutor;
+  private final Map<K, CachedFields> entries;
+  private final Map<K, CompletableFuture<List<CustomField>>> loading = new LinkedHashMap<>();
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder coalesced = new LongAdder();
+  private final LongAdder staleServes = new LongAdder();
+  private final LongAdder refreshFailures = new LongAdder();
+
+  /**
+   * Constructor.
+   * 
+   * @param maximumSize
+   *          the maximum number of lists to cache; {@literal 0} disables caching
+   * @param timeToLive
+   *          the maximum time to cache each list, in milliseconds; {@literal 0} disables caching
+   */
+  public CustomFieldCache(int maximumSize, long timeToLive) {
+    this(maximumSize, timeToLive, 0);
+  }
+
+  /**
+   * Constructor.
+   * 
+   * @param maximumSize
+   *          the maximum number of lists to cache; {@literal 0} disables caching
+   * @param timeToLive
+   *          the maximum time to cache each list, in milliseconds; {@literal 0} disables caching
+   * @param refreshAfter
+   *          the age after which lists are refreshed in the background, in milliseconds;
+   *          {@literal 0} or at least {@code timeToLive} disables background refresh
+   */
+  public CustomFieldCache(int maximumSize, long timeToLive, long refreshAfter) {
+    this(maximumSize, timeToLive, refreshAfter, System::nanoTime, null);
+  }
+
+  /**
+   * Constructor.
+   * 
+   * @param maximumSize
+   *          the maximum number of lists to cache; {@literal 0} disables caching
+   * @param timeToLive
+   *          the maximum time to cache each list, in milliseconds; {@literal 0} disables caching
+   * @param clock
+   *          the nanosecond time source
+   */
+  CustomFieldCache(int maximumSize, long timeToLive, LongSupplier clock) {
+    this(maximumSize, timeToLive, 0, clock, null);
+  }
+
+  /**
+   * Constructor.
+   * 
+   * @param maximumSize
+   *          the maximum number of lists to cache; {@literal 0} disables caching
+   * @param timeToLive
+   *          the maximum time to cache each list, in milliseconds; {@literal 0} disables caching
+   * @param refreshAfter
+   *          the age after which lists are refreshed in the background, in milliseconds
+   * @param clock
+   *          the nanosecond time source
+   * @param refreshExecutor
+   *          the executor to refresh lists with, or {@literal null} for
+   *          {@link AsyncCustomFieldFetcher#defaultExecutor()}
+   */
+  CustomFieldCache(int maximumSize, long timeToLive, long refreshAfter, LongSupplier clock,
+      Executor refreshExecutor) {
+    super();
+    this.maximumSize = Math.max(0, maximumSize);
+    this.timeToLiveNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, timeToLive));
+    final long refreshNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, refreshAfter));
+    this.refreshAfterNanos = (refreshNanos < timeToLiveNanos ? refreshNanos : 0);
+    this.clock = clock;
+    this.refreshExecutor = refreshExecutor;
+    this.entries = new LinkedHashMap<K, CachedFields>(16, 0.75f, true) {
+
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<K, CachedFields> eldest) {
+        return size() > CustomFieldCache.this.maximumSize;
+      }
+
+    };
+  }
+
+  /**
+   * Create a cache configured from the {@link #MAXIMUM_SIZE_PROPERTY},
+   * {@link #TIME_TO_LIVE_PROPERTY}, and {@link #REFRESH_AFTER_PROPERTY} properties.
+   * 
+   * <p>
+   * Missing or invalid property values are replaced by the {@link #DEFAULT_MAXIMUM_SIZE} and
+   * {@link #DEFAULT_TIME_TO_LIVE} defaults, and no background refresh.
+   * </p>
+   * 
+   * @param <K>
+   *          the cache key type
+   * @param properties
+   *          a function to look up property values, for example {@link System#getProperty(String)}
+   * @return the new cache
+   */
+  public static <K> CustomFieldCache<K> fromProperties(Function<String, String> properties) {
+    return new CustomFieldCache<>(
+        (int) Math.min(Integer.MAX_VALUE,
+            longProperty(properties, MAXIMUM_SIZE_PROPERTY, DEFAULT_MAXIMUM_SIZE)),
+        longProperty(properties, TIME_TO_LIVE_PROPERTY, DEFAULT_TIME_TO_LIVE),
+        longProperty(properties, REFRESH_AFTER_PROPERTY, 0));
+  }
+
+  private static long longProperty(Function<String, String> properties, String key,
+      long defaultValue) {
+    String value = properties.apply(key);
+    if (value != null) {
+      try {
+        return Long.parseLong(value.trim());
+      } catch (NumberFormatException e) {
+        // ignore and use default
+      }
+    }
+    return defaultValue;
+  }
+
+  private static final class CachedFields {
+
+    private final List<CustomField> fields;
+    private final long expires;
+    private final long refreshAt;
+
+    private CachedFields(List<CustomField> fields, long expires, long refreshAt) {
+      super();
+      this.fields = fields;
+      this.expires = expires;
+      this.refreshAt = refreshAt;
+    }
+
+    private boolean isExpired(long now) {
+      return now - expires >= 0;
+    }
+
+    private boolean isStale(long now, long refreshAfterNanos) {
+      return refreshAfterNanos > 0 && now - refreshAt >= 0;
+    }
+
+  }
+
+  /**
+   * Get the custom fields for a key, loading and caching them if not already cached.
+   * 
+   * @param key
+   *          the key of the fields to get
+   * @param loader
+   *          a function to load the fields if they are not cached
+   * @return the immutable custom fields, never {@literal null}
+   */
+  public List<CustomField> get(K key,
+      Function<? super K, ? extends List<? extends CustomField>> loader) {
+    return get(key, loader, null);
+  }
+
+  /**
+   * Get the custom fields for a key, loading and caching them if not already cached or being
+   * loaded by another caller.
+   * 
+   * @param key
+   *          the key of the fields to get
+   * @param loader
+   *          a function to load the fields if they are not cached
+   * @param listener
+   *          an optional listener for the outcome of the lookup
+   * @return the immutable custom fields, never {@literal null}
+   */
+  public List<CustomField> get(K key,
+      Function<? super K, ? extends List<? extends CustomField>> loader, Listener listener) {
+    return get(key, loader, listener, null);
+  }
+
+  /**
+   * Get the custom fields for a key, loading and caching them if not already cached or being
+   * loaded by another caller, refreshing stale fields with a given executor.
+   * 
+   * @param key
+   *          the key of the fields to get
+   * @param loader
+   *          a function to load the fields if they are not cached
+   * @param listener
+   *          an optional listener for the outcome of the lookup
+   * @param refreshExecutor
+   *          the executor to refresh stale fields with, or {@literal null} for the executor of
+   *          this cache; a rejected refresh leaves the stale fields cached
+   * @return the immutable custom fields, never {@literal null}
+   */
+  public List<CustomField> get(K key,
+      Function<? super K, ? extends List<? extends CustomField>> loader, Listener listener,
+      Executor refreshExecutor) {
+    final Function<Set<K>, Map<K, List<? extends CustomField>>> batchLoader = keys -> Collections
+        .singletonMap(key, loader.apply(key));
+    final Map<K, CompletableFuture<List<CustomField>>> flights = new LinkedHashMap<>(2);
+    final CompletableFuture<List<CustomField>> inFlight;
+    final List<CustomField> stale;
+    synchronized (entries) {
+      final long now = clock.getAsLong();
+      CachedFields entry = entries.get(key);
+      if (entry != null && !entry.isExpired(now)) {
+        hits.increment();
+        if (!entry.isStale(now, refreshAfterNanos)) {
+          if (listener != null) {
+            listener.hit();
+          }
+          return entry.fields;
+        }
+        stale = entry.fields;
+        inFlight = null;
+        if (!loading.containsKey(key)) {
+          startFlight(key, flights);
+        }
+      } else {
+        stale = null;
+        inFlight = loading.get(key);
+        if (inFlight == null) {
+          startFlight(key, flights);
+        }
+      }
+    }
+    if (stale != null) {
+      staleServed(1, listener);
+      if (listener != null) {
+        listener.hit();
+      }
+      if (!flights.isEmpty()) {
+        refresh(flights, batchLoader, Collections.singletonMap(key, stale), listener,
+            refreshExecutor);
+      }
+      return stale;
+    }
+    if (inFlight != null) {
+      return await(inFlight, listener);
+    }
+    misses.increment();
+    return load(flights, batchLoader).get(key);
+  }
+
+  private void startFlight(K key, Map<K, CompletableFuture<List<CustomField>>> flights) {
+    CompletableFuture<List<CustomField>> f = new CompletableFuture<>();
+    loading.put(key, f);
+    flights.put(key, f);
+  }
+
+  private void staleServed(int count, Listener listener) {
+    staleServes.add(count);
+    if (listener != null) {
+      listener.staleServed();
+    }
+  }
+
+  private Map<K, List<CustomField>> load(Map<K, CompletableFuture<List<CustomField>>> flights,
+      Function<? super Set<K>, ? extends Map<K, ? extends List<? extends CustomField>>> loader) {
+    final Map<K, ? extends List<? extends CustomField>> result;
+    try {
+      result = loader.apply(Collections.unmodifiableSet(flights.keySet()));
+    } catch (RuntimeException | Error e) {
+      synchronized (entries) {
+        for (Map.Entry<K, CompletableFuture<List<CustomField>>> me : flights.entrySet()) {
+          loading.remove(me.getKey(), me.getValue());
+        }
+      }
+      for (CompletableFuture<List<CustomField>> f : flights.values()) {
+        f.completeExceptionally(e);
+      }
+      throw e;
+    }
+    final Map<K, List<CustomField>> loaded = new LinkedHashMap<>(flights.size());
+    for (K key : flights.keySet()) {
+      loaded.put(key, immutableCopy(result != null ? result.get(key) : null));
+    }
+    synchronized (entries) {
+      final boolean cache = (maximumSize > 0 && timeToLiveNanos > 0);
+      final long now = clock.getAsLong();
+      for (Map.Entry<K, CompletableFuture<List<CustomField>>> me : flights.entrySet()) {
+        // a key invalidated during the load no longer maps to this flight, so is not cached
+        if (loading.remove(me.getKey(), me.getValue()) && cache) {
+          entries.put(me.getKey(), new CachedFields(loaded.get(me.getKey()),
+              now + timeToLiveNanos, now + refreshAfterNanos));
+        }
+      }
+    }
+    for (Map.Entry<K, CompletableFuture<List<CustomField>>> me : flights.entrySet()) {
+      me.getValue().complete(loaded.get(me.getKey()));
+    }
+    return loaded;
+  }
+
+  private void refresh(Map<K, CompletableFuture<List<CustomField>>> flights,
+      Function<? super Set<K>, ? extends Map<K, ? extends List<? extends CustomField>>> loader,
+      Map<K, List<CustomField>> stale, Listener listener, Executor executor) {
+    final Executor exec = (executor != null ? executor
+        : refreshExecutor != null ? refreshExecutor : AsyncCustomFieldFetcher.defaultExecutor());
+    try {
+      exec.execute(() -> {
+        try {
+          load(flights, loader);
+        } catch (RuntimeException e) {
+          refreshFailures.increment();
+          if (listener != null) {
+            listener.refreshFailed(e);
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      // leave the stale fields cached, for a later caller to refresh
+      synchronized (entries) {
+        for (Map.Entry<K, CompletableFuture<List<CustomField>>> me : flights.entrySet()) {
+          loading.remove(me.getKey(), me.getValue());
+        }
+      }
+      for (Map.Entry<K, CompletableFuture<List<CustomField>>> me : flights.entrySet()) {
+        me.getValue().complete(stale.get(me.getKey()));
+      }
+    }
+  }
+
+  private List<CustomField> await(CompletableFuture<List<CustomField>> flight,
+      Listener listener) {
+    coalesced.increment();
+    final long start = System.nanoTime();
+    try {
+      return flight.join();
+    } catch (CompletionException e) {
+      Throwable t = e.getCause();
+      if (t instanceof RuntimeException) {
+        throw (RuntimeException) t;
+      } else if (t instanceof Error) {
+        throw (Error) t;
+      }
+      throw e;
+    } finally {
+      if (listener != null) {
+        listener.coalesced(System.nanoTime() - start);
+      }
+    }
+  }
+
+  /**
+   * Get the custom fields for a set of keys, loading and caching any that are not already cached
+   * with a single call to a loader.
+   * 
+   * @param keys
+   *          the keys of the fields to get
+   * @param loader
+   *          a function to load the fields of the keys that are not cached, given those keys; keys
+   *          missing from the returned map are treated as having no fields
+   * @return the immutable custom fields for each key, in the iteration order of {@code keys}
+   */
+  public Map<K, List<CustomField>> getAll(Collection<? extends K> keys,
+      Function<? super Set<K>, ? extends Map<K, ? extends List<? extends CustomField>>> loader) {
+    return getAll(keys, loader, null);
+  }
+
+  /**
+   * Get the custom fields for a set of keys, loading and caching any that are not already cached
+   * or being loaded by another caller with a single call to a loader.
+   * 
+   * @param keys
+   *          the keys of the fields to get
+   * @param loader
+   *          a function to load the fields of the keys that are not cached, given those keys; keys
+   *          missing from the returned map are treated as having no fields
+   * @param listener
+   *          an optional listener for the outcome of the lookup
+   * @return the immutable custom fields for each key, in the iteration order of {@code keys}
+   */
+  public Map<K, List<CustomField>> getAll(Collection<? extends K> keys,
+      Function<? super Set<K>, ? extends Map<K, ? extends List<? extends CustomField>>> loader,
+      Listener listener) {
+    return getAll(keys, loader, listener, null);
+  }
+
+  /**
+   * Get the custom fields for a set of keys, loading and caching any that are not already cached
+   * or being loaded by another caller with a single call to a loader, refreshing stale fields with
+   * a given executor.
+   * 
+   * @param keys
+   *          the keys of the fields to get
+   * @param loader
+   *          a function to load the fields of the keys that are not cached, given those keys; keys
+   *          missing from the returned map are treated as having no fields
+   * @param listener
+   *          an optional listener for the outcome of the lookup
+   * @param refreshExecutor
+   *          the executor to refresh stale fields with, or {@literal null} for the executor of
+   *          this cache; a rejected refresh leaves the stale fields cached
+   * @return the immutable custom fields for each key, in the iteration order of {@code keys}
+   */
+  public Map<K, List<CustomField>> getAll(Collection<? extends K> keys,
+      Function<? super Set<K>, ? extends Map<K, ? extends List<? extends CustomField>>> loader,
+      Listener listener, Executor refreshExecutor) {
+    final Map<K, List<CustomField>> cached = new LinkedHashMap<>(keys.size());
+    final Map<K, List<CustomField>> stale = new LinkedHashMap<>();
+    final Map<K, CompletableFuture<List<CustomField>>> inFlight = new LinkedHashMap<>();
+    final Map<K, CompletableFuture<List<CustomField>>> flights = new LinkedHashMap<>();
+    final Map<K, CompletableFuture<List<CustomField>>> refreshFlights = new LinkedHashMap<>();
+    synchronized (entries) {
+      final long now = clock.getAsLong();
+      for (K key : keys) {
+        CachedFields entry = entries.get(key);
+        if (entry != null && !entry.isExpired(now)) {
+          hits.increment();
+          cached.put(key, entry.fields);
+          if (entry.isStale(now, refreshAfterNanos)) {
+            stale.put(key, entry.fields);
+            if (!loading.containsKey(key)) {
+              startFlight(key, refreshFlights);
+            }
+          }
+          continue;
+        }
+        CompletableFuture<List<CustomField>> f = loading.get(key);
+        if (f != null) {
+          inFlight.put(key, f);
+        } else if (!flights.containsKey(key)) {
+          startFlight(key, flights);
+        }
+      }
+    }
+    if (!stale.isEmpty()) {
+      staleServed(stale.size(), listener);
+      if (!refreshFlights.isEmpty()) {
+        refresh(refreshFlights, loader, stale, listener, refreshExecutor);
+      }
+    }
+    if (flights.isEmpty() && inFlight.isEmpty()) {
+      if (listener != null) {
+        listener.hit();
+      }
+      return cached;
+    }
+    final Map<K, List<CustomField>> loaded;
+    if (!flights.isEmpty()) {
+      misses.add(flights.size());
+      loaded = load(flights, loader);
+    } else {
+      loaded = new LinkedHashMap<>(inFlight.size());
+    }
+    // wait for other callers only after completing our own loads, so none wait on each other
+    for (Map.Entry<K, CompletableFuture<List<CustomField>>> me : inFlight.entrySet()) {
+      loaded.put(me.getKey(), await(me.getValue(), listener));
+    }
+    final Map<K, List<CustomField>> result = new LinkedHashMap<>(keys.size());
+    for (K key : keys) {
+      List<CustomField> fields = cached.get(key);
+      if (fields == null) {
+        fields = loaded.get(key);
+      }
+      result.put(key, fields);
+    }
+    return result;
+  }
+
+  /**
+   * Get the cached custom fields for a key, even if they have expired, without loading them.
+   * 
+   * @param key
+   *          the key of the fields to get
+   * @return the immutable custom fields, or {@literal null} if none are cached
+   */
+  public List<CustomField> getStale(K key) {
+    synchronized (entries) {
+      CachedFields entry = entries.get(key);
+      return (entry != null ? entry.fields : null);
+    }
+  }
+
+  private static List<CustomField> immutableCopy(List<? extends CustomField> fields) {
+    if (fields == null || fields.isEmpty()) {
+      return Collections.emptyList();
+    }
+    return Collections.unmodifiableList(new ArrayList<>(fields));
+  }
+
+  /**
+   * Remove the cached custom fields for a key.
+   * 
+   * @param key
+   *          the key of the fields to remove
+   */
+  public void invalidate(K key) {
+    synchronized (entries) {
+      entries.remove(key);
+      loading.remove(key);
+    }
+  }
+
+  /**
+   * Remove the cached custom fields for all keys matching a predicate.
+   * 
+   * @param filter
+   *          the predicate of the keys to remove
+   */
+  public void invalidateIf(Predicate<? super K> filter) {
+    synchronized (entries) {
+      for (Iterator<K> itr = entries.keySet().iterator(); itr.hasNext();) {
+        if (filter.test(itr.next())) {
+          itr.remove();
+        }
+      }
+      loading.keySet().removeIf(filter);
+    }
+  }
+
+  /**
+   * Remove all cached custom fields.
+   */
+  public void invalidateAll() {
+    synchronized (entries) {
+      entries.clear();
+      loading.clear();
+    }
+  }
+
+  /**
+   * Get the number of cached lists, including any that have expired but not yet been removed.
+   * 
+   * @return the number of cached lists
+   */
+  public int size() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+
+  /**
+   * Get the number of times cached fields were returned.
+   * 
+   * @return the hit count
+   */
+  public long getHitCount() {
+    return hits.sum();
+  }
+
+  /**
+   * Get the number of times fields had to be loaded.
+   * 
+   * @return the miss count
+   */
+  public long getMissCount() {
+    return misses.sum();
+  }
+
+  /**
+   * Get the number of times a caller waited for fields being loaded by another caller, rather than
+   * loading them itself.
+   * 
+   * @return the coalesced count
+   */
+  public long getCoalescedCount() {
+    return coalesced.sum();
+  }
+
+  /**
+   * Get the number of times stale fields were returned while being refreshed in the background.
+   * 
+   * @return the stale serve count
+   */
+  public long getStaleServeCount() {
+    return staleServes.sum();
+  }
+
+  /**
+   * Get the number of background refreshes that failed.
+   * 
+   * @return the refresh failure count
+   */
+  public long getRefreshFailureCount() {
+    return refreshFailures.sum();
+  }
+
+  /**
+   * Get the maximum number of lists to cache.
+   * 
+   * @return the maximum size
+   */
+  public int getMaximumSize() {
+    return maximumSize;
+  }
+
+  /**
+   * Get the maximum time to cache each list.
+   * 
+   * @return the time to live, in milliseconds
+   */
+  public long getTimeToLive() {
+    return TimeUnit.NANOSECONDS.toMillis(timeToLiveNanos);
+  }
+
+  /**
+   * Get the age after which lists are refreshed in the background.
+   * 
+   * @return the refresh age, in milliseconds, or {@literal 0} if background refresh is disabled
+   */
+  public long getRefreshAfter() {
+    return TimeUnit.NANOSECONDS.toMillis(refreshAfterNanos);
+  }
+
+}
@@ -0,0 +1,62 @@
+/*  Copyright 2020 SolarNetwork Foundation
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.solarnetwork.billing.killbill.invoice.core;
+
+import net.solarnetwork.billing.killbill.invoice.metrics.FormatterMetrics;
+
+/**
+ * A {@link CustomFieldCache.Listener} that records the outcome of cache lookups as formatter
+ * metrics.
+ * 
+ * @author matt
+ */
+public class CustomFieldCacheMetrics implements CustomFieldCache.Listener {
+
+  private final FormatterMetrics metrics;
+
+  /**
+   * Constructor.
+   * 
+   * @param metrics
+   *          the metrics to record to
+   */
+  public CustomFieldCacheMetrics(FormatterMetrics metrics) {
+    super();
+    this.metrics = (metrics != null ? metrics : FormatterMetrics.NONE);
+  }
+
+  @Override
+  public void hit() {
+    metrics.increment(FormatterMetrics.CUSTOM_FIELD_CACHE_HITS);
+  }
+
+  @Override
+  public void coalesced(long waitNanos) {
+    metrics.increment(FormatterMetrics.CUSTOM_FIELD_COALESCED);
+    metrics.recordTime(FormatterMetrics.CUSTOM_FIELD_COALESCE_WAIT, waitNanos);
+  }
+
+  @Override
+  public void staleServed() {
+    metrics.increment(FormatterMetrics.CUSTOM_FIELD_STALE);
+  }
+
+  @Override
+  public void refreshFailed(Throwable t) {
+    metrics.increment(FormatterMetrics.CUSTOM_FIELD_REFRESH_FAILURES);
+  }
+
+}
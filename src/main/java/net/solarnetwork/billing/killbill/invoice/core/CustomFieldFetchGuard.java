@@ -0,0 +1,306 @@
+/*  Copyright 2020 SolarNetwork Foundation
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.solarnetwork.billing.killbill.invoice.core;
+
+import static net.solarnetwork.billing.killbill.invoice.core.InvoiceFormatterProperties.PROPERTY_PREFIX;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import org.killbill.billing.util.customfield.CustomField;
+
+import net.solarnetwork.billing.killbill.invoice.util.MemoizingSupplier;
+
+/**
+ * A bulkhead and deadline guarding custom field fetches, so a slow custom field query cannot stall
+ * the thread rendering an invoice.
+ * 
+ * <p>
+ * At most {@code maxConcurrent} guarded fetches run at once. A caller waits at most
+ * {@code deadline} in total, first for one of those slots and then for the fetch to complete on a
+ * background thread. If the deadline passes first, the caller gets fallback fields instead, for
+ * example stale cached fields or an empty list, so the invoice renders in degraded mode rather
+ * than waiting any longer. A fetch that misses its deadline carries on in the background, still
+ * holding its slot, so it can populate a cache for later invoices while bounding the load on the
+ * database.
+ * </p>
+ * 
+ * <p>
+ * The shared fetch executor runs at most {@link #DEFAULT_EXECUTOR_MAXIMUM_THREADS} fetches at once
+ * across all guards. A fetch rejected because all of those threads are busy is treated like a
+ * missed deadline, so stalled queries can never tie up an unbounded number of threads.
+ * </p>
+ * 
+ * @author matt
+ */
+public final class CustomFieldFetchGuard {
+
+  /** The default maximum number of concurrent fetches. */
+  public static final int DEFAULT_MAX_CONCURRENT = 10;
+
+  /** The maximum number of threads of the shared fetch executor. */
+  public static final int DEFAULT_EXECUTOR_MAXIMUM_THREADS = 4 * DEFAULT_MAX_CONCURRENT;
+
+  /** The configuration property for the fetch deadline, in milliseconds. */
+  public static final String DEADLINE_PROPERTY = PROPERTY_PREFIX + "customFieldFetch.deadline";
+
+  /** The configuration property for the maximum number of concurrent fetches. */
+  public static final String MAX_CONCURRENT_PROPERTY =
+      PROPERTY_PREFIX + "customFieldFetch.maxConcurrent";
+
+  /** A guard that does nothing, so fetches run on the calling thread without any limits. */
+  public static final CustomFieldFetchGuard NONE = new CustomFieldFetchGuard(0, 0, null);
+
+  private static final class DefaultExecutorHolder {
+
+    private static final Executor EXECUTOR = createDefaultExecutor();
+
+  }
+
+  private final long deadlineNanos;
+  private final int maxConcurrent;
+  private final Semaphore permits;
+  private final Executor executor;
+
+  /**
+   * Constructor.
+   * 
+   * @param deadline
+   *          the deadline, in milliseconds
+   * @param maxConcurrent
+   *          the maximum number of concurrent fetches; anything less than {@literal 1} is replaced
+   *          by {@link #DEFAULT_MAX_CONCURRENT}
+   * @param executor
+   *          the executor to fetch with, or {@literal null} for a shared executor
+   */
+  CustomFieldFetchGuard(long deadline, int maxConcurrent, Executor executor) {
+    super();
+    this.deadlineNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, deadline));
+    this.maxConcurrent = (maxConcurrent > 0 ? maxConcurrent : DEFAULT_MAX_CONCURRENT);
+    this.permits = new Semaphore(this.maxConcurrent);
+    this.executor = executor;
+  }
+
+  private static Executor createDefaultExecutor() {
+    // fetches beyond the maximum threads are rejected, and treated as degraded by the guard
+    final AtomicInteger threadCounter = new AtomicInteger();
+    ThreadPoolExecutor pool = new ThreadPoolExecutor(0, DEFAULT_EXECUTOR_MAXIMUM_THREADS, 60L,
+        TimeUnit.SECONDS, new SynchronousQueue<>(), r -> {
+          Thread t = new Thread(r, "CustomFieldFetchGuard-" + threadCounter.incrementAndGet());
+          t.setDaemon(true);
+          return t;
+        }, new ThreadPoolExecutor.AbortPolicy());
+    return pool;
+  }
+
+  /**
+   * Create a guard.
+   * 
+   * @param deadline
+   *          the maximum time to wait for a fetch, in milliseconds, or {@literal 0} for no guard
+   * @param maxConcurrent
+   *          the maximum number of concurrent fetches; anything less than {@literal 1} is replaced
+   *          by {@link #DEFAULT_MAX_CONCURRENT}
+   * @return the guard
+   */
+  public static CustomFieldFetchGuard of(long deadline, int maxConcurrent) {
+    if (deadline < 1) {
+      return NONE;
+    }
+    return new CustomFieldFetchGuard(deadline, maxConcurrent, null);
+  }
+
+  /**
+   * Create a guard configured from the {@link #DEADLINE_PROPERTY} and
+   * {@link #MAX_CONCURRENT_PROPERTY} properties.
+   * 
+   * <p>
+   * Missing or invalid property values are replaced by no deadline, which disables the guard, and
+   * the {@link #DEFAULT_MAX_CONCURRENT}, which also replaces any maximum less than {@literal 1}.
+   * </p>
+   * 
+   * @param properties
+   *          a function to look up property values, for example {@link System#getProperty(String)}
+   * @return the guard
+   */
+  public static CustomFieldFetchGuard fromProperties(Function<String, String> properties) {
+    long deadline = 0;
+    String value = properties.apply(DEADLINE_PROPERTY);
+    if (value != null) {
+      try {
+        deadline = Long.parseLong(value.trim());
+      } catch (NumberFormatException e) {
+        // ignore and use default
+      }
+    }
+    int maxConcurrent = DEFAULT_MAX_CONCURRENT;
+    value = properties.apply(MAX_CONCURRENT_PROPERTY);
+    if (value != null) {
+      try {
+        maxConcurrent = Integer.parseInt(value.trim());
+      } catch (NumberFormatException e) {
+        // ignore and use default
+      }
+    }
+    return of(deadline, maxConcurrent);
+  }
+
+  /**
+   * Guard a custom field fetch.
+   * 
+   * <p>
+   * The fetch is not started until the returned supplier is first used.
+   * </p>
+   * 
+   * @param loader
+   *          the supplier that fetches the custom fields
+   * @param fallback
+   *          the supplier of the custom fields to use if the deadline passes
+   * @param degradedHandler
+   *          a callback to run if the deadline passes, or {@literal null}
+   * @return a supplier of the fetched custom fields, or the fallback fields if the deadline passes
+   */
+  public Supplier<List<CustomField>> guard(Supplier<List<CustomField>> loader,
+      Supplier<List<CustomField>> fallback, Runnable degradedHandler) {
+    if (!isEnabled()) {
+      return loader;
+    }
+    return MemoizingSupplier.of(() -> {
+      final long start = System.nanoTime();
+      try {
+        if (!permits.tryAcquire(deadlineNanos, TimeUnit.NANOSECONDS)) {
+          return degraded(fallback, degradedHandler);
+        }
+        final CompletableFuture<List<CustomField>> future;
+        try {
+          future = CompletableFuture.supplyAsync(() -> {
+            try {
+              return loader.get();
+            } finally {
+              permits.release();
+            }
+          }, executor != null ? executor : DefaultExecutorHolder.EXECUTOR);
+        } catch (RejectedExecutionException e) {
+          permits.release();
+          return degraded(fallback, degradedHandler);
+        }
+        final long remaining = deadlineNanos - (System.nanoTime() - start);
+        return future.get(Math.max(0, remaining), TimeUnit.NANOSECONDS);
+      } catch (TimeoutException | InterruptedException e) {
+        if (e instanceof InterruptedException) {
+          Thread.currentThread().interrupt();
+        }
+        return degraded(fallback, degradedHandler);
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof RuntimeException) {
+          throw (RuntimeException) cause;
+        } else if (cause instanceof Error) {
+          throw (Error) cause;
+        }
+        throw new IllegalStateException("Error fetching custom fields.", cause);
+      }
+    });
+  }
+
+  /**
+   * Get an executor for background custom field fetches, such as cache refreshes, that shares the
+   * concurrency limit of this guard.
+   * 
+   * <p>
+   * A task is rejected with a {@link RejectedExecutionException} if all of the
+   * {@code maxConcurrent} slots are in use, rather than waiting for one, so background fetches
+   * never add to the load on a database that is already slow.
+   * </p>
+   * 
+   * @return the executor, or {@literal null} if this guard is not enabled
+   */
+  public Executor getBackgroundExecutor() {
+    if (!isEnabled()) {
+      return null;
+    }
+    return task -> {
+      if (!permits.tryAcquire()) {
+        throw new RejectedExecutionException("All custom field fetch slots in use.");
+      }
+      try {
+        (executor != null ? executor : DefaultExecutorHolder.EXECUTOR).execute(() -> {
+          try {
+            task.run();
+          } finally {
+            permits.release();
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        permits.release();
+        throw e;
+      }
+    };
+  }
+
+  private static List<CustomField> degraded(Supplier<List<CustomField>> fallback,
+      Runnable degradedHandler) {
+    if (degradedHandler != null) {
+      degradedHandler.run();
+    }
+    return fallback.get();
+  }
+
+  /**
+   * Test if this guard is enabled.
+   * 
+   * @return {@literal true} if fetches are guarded by a deadline
+   */
+  public boolean isEnabled() {
+    return deadlineNanos > 0;
+  }
+
+  /**
+   * Get the deadline.
+   * 
+   * @return the maximum time to wait for a fetch, in milliseconds, or {@literal 0} if disabled
+   */
+  public long getDeadline() {
+    return TimeUnit.NANOSECONDS.toMillis(deadlineNanos);
+  }
+
+  /**
+   * Get the maximum number of concurrent fetches.
+   * 
+   * @return the maximum, always at least {@literal 1}
+   */
+  public int getMaxConcurrent() {
+    return maxConcurrent;
+  }
+
+  @Override
+  public String toString() {
+    return "CustomFieldFetchGuard{deadline=" + getDeadline() + ", maxConcurrent=" + maxConcurrent
+        + "}";
+  }
+
+}
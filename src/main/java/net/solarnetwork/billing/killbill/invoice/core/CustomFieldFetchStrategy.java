@@ -0,0 +1,423 @@
+/*  Copyright 2020 SolarNetwork Foundation
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.solarnetwork.billing.killbill.invoice.core;
+
+import static net.solarnetwork.billing.killbill.invoice.core.InvoiceFormatterProperties.PROPERTY_PREFIX;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+
+import org.killbill.billing.ObjectType;
+import org.killbill.billing.invoice.api.Invoice;
+import org.killbill.billing.invoice.api.InvoiceItem;
+import org.killbill.billing.util.customfield.CustomField;
+
+/**
+ * A strategy for fetching the custom fields needed to format an invoice.
+ * 
+ * <p>
+ * The {@link Scope#ACCOUNT} scope fetches every custom field of the account owning the invoice,
+ * including fields on bundles, payment methods, and subscriptions that are no longer on any
+ * invoice. The {@link Scope#INVOICE} scope fetches only the account-level fields and the fields of
+ * the subscriptions on the invoice, so the cost scales with the invoice rather than the history of
+ * the account. The objects are fetched together through
+ * {@link Source#getCustomFieldsForObjects(Map)}, which a {@link CustomFieldBatchQuery} can
+ * implement with a single query. The account-wide subscription query is never used, as its cost
+ * grows with every subscription the account has ever had.
+ * </p>
+ * 
+ * <p>
+ * With the {@link Scope#INVOICE} scope the fields of each object are cached individually, keyed
+ * by the object ID, so invoices that share subscriptions share cached fields.
+ * </p>
+ * 
+ * <p>
+ * With either scope, a {@link CustomFieldNameFilter} discards fields with names templates do not
+ * use as soon as they are loaded, so they are never converted, cached, or indexed.
+ * </p>
+ * 
+ * <p>
+ * Custom fields are normally fetched lazily, the first time a template uses them. A positive
+ * {@code asyncTimeout} instead starts fetching them in the background as soon as a formatter is
+ * created, and waits at most that long for the fetch when they are first used, rendering without
+ * custom fields if it has not completed by then. See {@link AsyncCustomFieldFetcher}.
+ * </p>
+ * 
+ * <p>
+ * A {@link CustomFieldFetchGuard} can bound the number of concurrent fetches and the time a caller
+ * waits for one, rendering with stale cached fields, or none, once its deadline passes.
+ * </p>
+ * 
+ * @author matt
+ */
+public final class CustomFieldFetchStrategy {
+
+  /**
+   * The set of custom fields to fetch.
+   */
+  public enum Scope {
+
+    /** All custom fields of the account owning the invoice. */
+    ACCOUNT,
+
+    /** The account-level custom fields and the fields of the subscriptions on the invoice. */
+    INVOICE;
+  }
+
+  /**
+   * API for fetching the custom fields of objects within an account.
+   */
+  public interface Source {
+
+    /**
+     * Get the custom fields of a single object.
+     * 
+     * @param objectId
+     *          the object ID
+     * @param objectType
+     *          the object type
+     * @return the custom fields
+     */
+    List<CustomField> getCustomFieldsForObject(UUID objectId, ObjectType objectType);
+
+    /**
+     * Get the custom fields of a set of objects.
+     * 
+     * <p>
+     * This default implementation calls {@link #getCustomFieldsForObject(UUID, ObjectType)} once
+     * for each object. Implementations should fetch all the objects with as few queries as
+     * possible instead, for example with a {@link CustomFieldBatchQuery}.
+     * </p>
+     * 
+     * @param objects
+     *          the types of the objects to get the custom fields of, by object ID
+     * @return the custom fields of each object that has any
+     */
+    default Map<UUID, List<CustomField>> getCustomFieldsForObjects(Map<UUID, ObjectType> objects) {
+      final Map<UUID, List<CustomField>> result = new LinkedHashMap<>(objects.size());
+      for (Map.Entry<UUID, ObjectType> me : objects.entrySet()) {
+        List<CustomField> fields = getCustomFieldsForObject(me.getKey(), me.getValue());
+        if (fields != null) {
+          result.put(me.getKey(), fields);
+        }
+      }
+      return result;
+    }
+
+  }
+
+  /** The configuration property for the scope, either {@literal account} or {@literal invoice}. */
+  public static final String SCOPE_PROPERTY = PROPERTY_PREFIX + "customFieldFetch.scope";
+
+  /** The configuration property for the asynchronous fetch timeout, in milliseconds. */
+  public static final String ASYNC_TIMEOUT_PROPERTY =
+      PROPERTY_PREFIX + "customFieldFetch.asyncTimeout";
+
+  /** A strategy that fetches all the custom fields of the account. */
+  public static final CustomFieldFetchStrategy ACCOUNT = new CustomFieldFetchStrategy(
+      Scope.ACCOUNT, CustomFieldNameFilter.ALLOW_ALL, 0, CustomFieldFetchGuard.NONE);
+
+  private final Scope scope;
+  private final CustomFieldNameFilter nameFilter;
+  private final long asyncTimeout;
+  private final CustomFieldFetchGuard guard;
+
+  private CustomFieldFetchStrategy(Scope scope, CustomFieldNameFilter nameFilter,
+      long asyncTimeout, CustomFieldFetchGuard guard) {
+    super();
+    this.scope = scope;
+    this.nameFilter = nameFilter;
+    this.asyncTimeout = asyncTimeout;
+    this.guard = guard;
+  }
+
+  /**
+   * Create a strategy.
+   * 
+   * @param scope
+   *          the scope, or {@literal null} for {@link Scope#ACCOUNT}
+   * @param nameFilter
+   *          the filter of custom field names to keep, or {@literal null} to keep all fields
+   * @param asyncTimeout
+   *          the asynchronous fetch timeout, in milliseconds, or {@literal 0} to fetch lazily
+   * @param guard
+   *          the guard for fetches, or {@literal null} for {@link CustomFieldFetchGuard#NONE}
+   * @return the strategy
+   */
+  public static CustomFieldFetchStrategy of(Scope scope, CustomFieldNameFilter nameFilter,
+      long asyncTimeout, CustomFieldFetchGuard guard) {
+    return new CustomFieldFetchStrategy(scope != null ? scope : Scope.ACCOUNT,
+        nameFilter != null ? nameFilter : CustomFieldNameFilter.ALLOW_ALL,
+        Math.max(0, asyncTimeout), guard != null ? guard : CustomFieldFetchGuard.NONE);
+  }
+
+  /**
+   * Create a strategy configured from the {@link #SCOPE_PROPERTY}, {@link #ASYNC_TIMEOUT_PROPERTY},
+   * {@link CustomFieldNameFilter#NAMES_PROPERTY}, {@link CustomFieldFetchGuard#DEADLINE_PROPERTY},
+   * and {@link CustomFieldFetchGuard#MAX_CONCURRENT_PROPERTY} properties.
+   * 
+   * <p>
+   * Missing or invalid property values are replaced by the {@link Scope#ACCOUNT} scope and lazy
+   * fetching.
+   * </p>
+   * 
+   * @param properties
+   *          a function to look up property values, for example {@link System#getProperty(String)}
+   * @return the strategy
+   */
+  public static CustomFieldFetchStrategy fromProperties(Function<String, String> properties) {
+    Scope scope = Scope.ACCOUNT;
+    String value = properties.apply(SCOPE_PROPERTY);
+    if (value != null) {
+      try {
+        scope = Scope.valueOf(value.trim().toUpperCase(Locale.ENGLISH));
+      } catch (IllegalArgumentException e) {
+        // ignore and use default
+      }
+    }
+    long asyncTimeout = 0;
+    value = properties.apply(ASYNC_TIMEOUT_PROPERTY);
+    if (value != null) {
+      try {
+        asyncTimeout = Long.parseLong(value.trim());
+      } catch (NumberFormatException e) {
+        // ignore and use default
+      }
+    }
+    return of(scope, CustomFieldNameFilter.fromProperties(properties), asyncTimeout,
+        CustomFieldFetchGuard.fromProperties(properties));
+  }
+
+  /**
+   * Get the IDs of the objects whose custom fields are needed for an invoice with the
+   * {@link Scope#INVOICE} scope.
+   * 
+   * @param invoice
+   *          the invoice
+   * @return the account ID followed by the distinct subscription IDs of the invoice items
+   */
+  public static Set<UUID> objectIds(Invoice invoice) {
+    final Set<UUID> ids = new LinkedHashSet<>();
+    if (invoice.getAccountId() != null) {
+      ids.add(invoice.getAccountId());
+    }
+    final List<InvoiceItem> items = invoice.getInvoiceItems();
+    if (items != null) {
+      for (InvoiceItem item : items) {
+        if (item != null && item.getSubscriptionId() != null) {
+          ids.add(item.getSubscriptionId());
+        }
+      }
+    }
+    return ids;
+  }
+
+  /**
+   * Fetch the custom fields for an invoice with the {@link Scope#INVOICE} scope.
+   * 
+   * @param <K>
+   *          the cache key type
+   * @param invoice
+   *          the invoice
+   * @param cache
+   *          the cache of object custom fields, or {@literal null} to not use a cache
+   * @param keys
+   *          a function to get the cache key for an object ID
+   * @param loader
+   *          a function to load the custom fields of a set of object IDs, typically by calling
+   *          {@link #load(UUID, Set, Source)}
+   * @return the account-level custom fields followed by the fields of each invoice subscription
+   */
+  public static <K> List<CustomField> fetch(Invoice invoice, CustomFieldCache<K> cache,
+      Function<UUID, K> keys, Function<Set<UUID>, Map<UUID, List<CustomField>>> loader) {
+    return fetch(invoice, cache, keys, loader, null, null);
+  }
+
+  /**
+   * Fetch the custom fields for an invoice with the {@link Scope#INVOICE} scope.
+   * 
+   * @param <K>
+   *          the cache key type
+   * @param invoice
+   *          the invoice
+   * @param cache
+   *          the cache of object custom fields, or {@literal null} to not use a cache
+   * @param keys
+   *          a function to get the cache key for an object ID
+   * @param loader
+   *          a function to load the custom fields of a set of object IDs, typically by calling
+   *          {@link #load(UUID, Set, Source)}
+   * @param listener
+   *          an optional listener for the outcome of the cache lookup
+   * @param refreshExecutor
+   *          the executor to refresh stale cached fields with, or {@literal null} for the executor
+   *          of the cache, for example {@link CustomFieldFetchGuard#getBackgroundExecutor()}
+   * @return the account-level custom fields followed by the fields of each invoice subscription
+   */
+  public static <K> List<CustomField> fetch(Invoice invoice, CustomFieldCache<K> cache,
+      Function<UUID, K> keys, Function<Set<UUID>, Map<UUID, List<CustomField>>> loader,
+      CustomFieldCache.Listener listener, Executor refreshExecutor) {
+    final Set<UUID> objectIds = objectIds(invoice);
+    final List<CustomField> result = new ArrayList<>();
+    if (cache == null) {
+      final Map<UUID, List<CustomField>> loaded = loader.apply(objectIds);
+      for (UUID id : objectIds) {
+        List<CustomField> fields = loaded.get(id);
+        if (fields != null) {
+          result.addAll(fields);
+        }
+      }
+      return result;
+    }
+    final Map<K, UUID> keyed = new LinkedHashMap<>(objectIds.size());
+    for (UUID id : objectIds) {
+      keyed.put(keys.apply(id), id);
+    }
+    final Map<K, List<CustomField>> fields = cache.getAll(keyed.keySet(), missing -> {
+      Set<UUID> ids = new LinkedHashSet<>(missing.size());
+      for (K key : missing) {
+        ids.add(keyed.get(key));
+      }
+      Map<UUID, List<CustomField>> loaded = loader.apply(ids);
+      Map<K, List<CustomField>> byKey = new LinkedHashMap<>(missing.size());
+      for (K key : missing) {
+        byKey.put(key, loaded.get(keyed.get(key)));
+      }
+      return byKey;
+    }, listener, refreshExecutor);
+    for (List<CustomField> l : fields.values()) {
+      result.addAll(l);
+    }
+    return result;
+  }
+
+  /**
+   * Get the cached custom fields for an invoice with the {@link Scope#INVOICE} scope, even if they
+   * have expired, without fetching anything.
+   * 
+   * @param <K>
+   *          the cache key type
+   * @param invoice
+   *          the invoice
+   * @param cache
+   *          the cache of object custom fields, or {@literal null}
+   * @param keys
+   *          a function to get the cache key for an object ID
+   * @return the cached account-level custom fields followed by the cached fields of each invoice
+   *         subscription, never {@literal null}
+   */
+  public static <K> List<CustomField> stale(Invoice invoice, CustomFieldCache<K> cache,
+      Function<UUID, K> keys) {
+    final List<CustomField> result = new ArrayList<>();
+    if (cache == null) {
+      return result;
+    }
+    for (UUID id : objectIds(invoice)) {
+      List<CustomField> fields = cache.getStale(keys.apply(id));
+      if (fields != null) {
+        result.addAll(fields);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Load the custom fields of a set of objects within an account.
+   * 
+   * <p>
+   * The account ID, if present in {@code objectIds}, is loaded as an {@link ObjectType#ACCOUNT}
+   * object and all other IDs as {@link ObjectType#SUBSCRIPTION} objects, all with a single call to
+   * {@link Source#getCustomFieldsForObjects(Map)}.
+   * </p>
+   * 
+   * @param accountId
+   *          the account ID
+   * @param objectIds
+   *          the IDs of the objects to load the custom fields for
+   * @param source
+   *          the source of custom fields
+   * @return the custom fields of each object that has any
+   */
+  public Map<UUID, List<CustomField>> load(UUID accountId, Set<UUID> objectIds, Source source) {
+    final Map<UUID, ObjectType> objects = new LinkedHashMap<>(objectIds.size());
+    for (UUID id : objectIds) {
+      objects.put(id, id.equals(accountId) ? ObjectType.ACCOUNT : ObjectType.SUBSCRIPTION);
+    }
+    final Map<UUID, List<CustomField>> loaded = (objects.isEmpty() ? null
+        : source.getCustomFieldsForObjects(objects));
+    final Map<UUID, List<CustomField>> result = new LinkedHashMap<>(objectIds.size());
+    if (loaded != null) {
+      for (UUID id : objects.keySet()) {
+        List<CustomField> fields = loaded.get(id);
+        if (fields != null && !fields.isEmpty()) {
+          result.put(id, fields);
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Get the scope.
+   * 
+   * @return the scope, never {@literal null}
+   */
+  public Scope getScope() {
+    return scope;
+  }
+
+  /**
+   * Get the custom field name filter.
+   * 
+   * @return the filter, never {@literal null}
+   */
+  public CustomFieldNameFilter getNameFilter() {
+    return nameFilter;
+  }
+
+  /**
+   * Get the asynchronous fetch timeout.
+   * 
+   * @return the timeout, in milliseconds, or {@literal 0} if custom fields are fetched lazily
+   */
+  public long getAsyncTimeout() {
+    return asyncTimeout;
+  }
+
+  /**
+   * Get the fetch guard.
+   * 
+   * @return the guard, never {@literal null}
+   */
+  public CustomFieldFetchGuard getGuard() {
+    return guard;
+  }
+
+  @Override
+  public String toString() {
+    return "CustomFieldFetchStrategy{scope=" + scope + ", asyncTimeout=" + asyncTimeout
+        + ", guard=" + guard + "}";
+  }
+
+}
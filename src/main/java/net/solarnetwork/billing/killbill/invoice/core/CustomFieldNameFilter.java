@@ -0,0 +1,168 @@
+/*  Copyright 2020 SolarNetwork Foundation
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.solarnetwork.billing.killbill.invoice.core;
+
+import static net.solarnetwork.billing.killbill.invoice.core.InvoiceFormatterProperties.PROPERTY_PREFIX;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+
+/**
+ * A per-tenant allow-list of custom field names, used to discard custom fields that templates do
+ * not use as soon as they are loaded.
+ * 
+ * <p>
+ * The allowed names of a tenant are configured with the {@link #NAMES_PROPERTY} property suffixed
+ * by a period and the tenant ID, falling back to the {@link #NAMES_PROPERTY} property itself.
+ * Each is a comma-delimited list of field names, compared case-insensitively. A missing or blank
+ * value allows all names. The names of each tenant are resolved once and then remembered.
+ * </p>
+ * 
+ * @author matt
+ */
+public final class CustomFieldNameFilter {
+
+  /** The configuration property for the comma-delimited list of allowed field names. */
+  public static final String NAMES_PROPERTY = PROPERTY_PREFIX + "customFieldNames";
+
+  /** A filter that allows all field names. */
+  public static final CustomFieldNameFilter ALLOW_ALL = new CustomFieldNameFilter(k -> null);
+
+  private static final Object NO_TENANT = new Object();
+
+  private final Function<String, String> properties;
+  private final ConcurrentMap<Object, Optional<Set<String>>> tenantNames = new ConcurrentHashMap<>(
+      8, 0.75f, 2);
+
+  private CustomFieldNameFilter(Function<String, String> properties) {
+    super();
+    this.properties = properties;
+  }
+
+  /**
+   * Create a filter configured from the {@link #NAMES_PROPERTY} properties.
+   * 
+   * @param properties
+   *          a function to look up property values, for example {@link System#getProperty(String)}
+   * @return the filter
+   */
+  public static CustomFieldNameFilter fromProperties(Function<String, String> properties) {
+    return new CustomFieldNameFilter(properties);
+  }
+
+  /**
+   * Create a filter that allows the same names for all tenants.
+   * 
+   * @param names
+   *          the allowed names, or {@literal null} or empty to allow all names
+   * @return the filter
+   */
+  public static CustomFieldNameFilter of(Collection<String> names) {
+    if (names == null || names.isEmpty()) {
+      return ALLOW_ALL;
+    }
+    final String value = String.join(",", names);
+    return new CustomFieldNameFilter(k -> (NAMES_PROPERTY.equals(k) ? value : null));
+  }
+
+  private static Set<String> parseNames(String value) {
+    if (value == null) {
+      return null;
+    }
+    Set<String> names = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+    for (String name : value.split(",")) {
+      name = name.trim();
+      if (!name.isEmpty()) {
+        names.add(name);
+      }
+    }
+    return (names.isEmpty() ? null : Collections.unmodifiableSet(names));
+  }
+
+  /**
+   * Get the allowed field names of a tenant.
+   * 
+   * @param tenantId
+   *          the tenant ID; may be {@literal null}
+   * @return the case-insensitive set of allowed names, or {@literal null} if all names are allowed
+   */
+  public Set<String> getFieldNames(Object tenantId) {
+    return tenantNames.computeIfAbsent(tenantId != null ? tenantId : NO_TENANT, k -> {
+      String value = null;
+      if (tenantId != null) {
+        value = properties.apply(NAMES_PROPERTY + "." + tenantId);
+      }
+      if (value == null) {
+        value = properties.apply(NAMES_PROPERTY);
+      }
+      return Optional.ofNullable(parseNames(value));
+    }).orElse(null);
+  }
+
+  /**
+   * Test if a field name is allowed for a tenant.
+   * 
+   * @param tenantId
+   *          the tenant ID; may be {@literal null}
+   * @param fieldName
+   *          the field name to test
+   * @return {@literal true} if the name is allowed
+   */
+  public boolean isAllowed(Object tenantId, String fieldName) {
+    Set<String> names = getFieldNames(tenantId);
+    return (names == null || (fieldName != null && names.contains(fieldName)));
+  }
+
+  /**
+   * Remove the fields whose names are not allowed for a tenant.
+   * 
+   * @param <T>
+   *          the field type
+   * @param tenantId
+   *          the tenant ID; may be {@literal null}
+   * @param fields
+   *          the fields to filter; may be {@literal null}
+   * @param nameFn
+   *          a function to get the name of a field
+   * @return {@code fields} if all names are allowed, otherwise a new list of just the allowed
+   *         fields
+   */
+  public <T> List<T> filter(Object tenantId, List<T> fields, Function<? super T, String> nameFn) {
+    final Set<String> names = getFieldNames(tenantId);
+    if (names == null || fields == null) {
+      return fields;
+    }
+    final List<T> result = new ArrayList<>();
+    for (T field : fields) {
+      if (field != null) {
+        String name = nameFn.apply(field);
+        if (name != null && names.contains(name)) {
+          result.add(field);
+        }
+      }
+    }
+    return result;
+  }
+
+}
@@ -0,0 +1,216 @@
+/*  Copyright 2020 SolarNetwork Foundation
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.solarnetwork.billing.killbill.invoice.core;
+
+import static net.solarnetwork.billing.killbill.invoice.core.InvoiceFormatterProperties.PROPERTY_PREFIX;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import org.killbill.billing.invoice.api.Invoice;
+import org.killbill.billing.util.customfield.CustomField;
+
+import net.solarnetwork.billing.killbill.invoice.util.MemoizingSupplier;
+
+/**
+ * Support for creating invoice formatters in bulk.
+ * 
+ * <p>
+ * The invoices of a batch are grouped by a prefetch key, typically their account, and the custom
+ * fields of each group are fetched just once, in parallel with the other groups. The formatters
+ * are then created in parallel with the prefetched fields, so they never fetch custom fields
+ * themselves. Invoices without a prefetch key fetch their custom fields lazily, as usual. If the
+ * prefetch of a group fails, the formatters of that group also fall back to fetching their custom
+ * fields lazily, so one failing account does not fail the whole batch.
+ * </p>
+ * 
+ * <p>
+ * All work is run on a caller-provided {@link Executor}, or a bounded pool of
+ * {@link #PARALLELISM_PROPERTY} threads created for the batch.
+ * </p>
+ * 
+ * @author matt
+ */
+public final class InvoiceFormatterBatch {
+
+  /** The configuration property for the number of threads to create formatters with. */
+  public static final String PARALLELISM_PROPERTY = PROPERTY_PREFIX + "batch.parallelism";
+
+  /**
+   * The minimum default parallelism, as fetching custom fields mostly waits on the database rather
+   * than using the CPU.
+   */
+  public static final int MINIMUM_DEFAULT_PARALLELISM = 4;
+
+  private static final AtomicInteger POOL_COUNTER = new AtomicInteger();
+
+  private InvoiceFormatterBatch() {
+    // not available
+  }
+
+  /**
+   * Get the configured parallelism.
+   * 
+   * @param properties
+   *          a function to look up property values, for example {@link System#getProperty(String)}
+   * @return the {@link #PARALLELISM_PROPERTY} value, or the larger of the number of available
+   *         processors and {@link #MINIMUM_DEFAULT_PARALLELISM} if that is missing or invalid
+   */
+  public static int parallelism(Function<String, String> properties) {
+    String value = properties.apply(PARALLELISM_PROPERTY);
+    if (value != null) {
+      try {
+        int n = Integer.parseInt(value.trim());
+        if (n > 0) {
+          return n;
+        }
+      } catch (NumberFormatException e) {
+        // ignore and use default
+      }
+    }
+    return Math.max(MINIMUM_DEFAULT_PARALLELISM, Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Create formatters for a batch of invoices on a new bounded thread pool.
+   * 
+   * <p>
+   * The pool is shut down before this method returns.
+   * </p>
+   * 
+   * @param <F>
+   *          the formatter type
+   * @param invoices
+   *          the invoices to create formatters for
+   * @param prefetchKey
+   *          a function to get the key of the custom fields an invoice needs, such as its account;
+   *          invoices with a {@literal null} key are not prefetched
+   * @param prefetch
+   *          a function to fetch the custom fields of an invoice; if this throws an exception the
+   *          invoices of that key are not prefetched
+   * @param creator
+   *          a function to create a formatter given an invoice and a supplier of its custom
+   *          fields, or {@literal null} if they were not prefetched
+   * @param parallelism
+   *          the maximum number of threads to use
+   * @return the formatters, in the same order as {@code invoices}
+   */
+  public static <F> List<F> create(List<? extends Invoice> invoices,
+      Function<? super Invoice, ?> prefetchKey,
+      Function<? super Invoice, List<CustomField>> prefetch,
+      BiFunction<? super Invoice, Supplier<List<CustomField>>, F> creator, int parallelism) {
+    if (invoices.isEmpty()) {
+      return new ArrayList<>(0);
+    }
+    final int poolSize = Math.max(1, Math.min(parallelism, invoices.size()));
+    final ExecutorService pool = Executors.newFixedThreadPool(poolSize, threadFactory());
+    try {
+      return create(invoices, prefetchKey, prefetch, creator, pool);
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  private static ThreadFactory threadFactory() {
+    final String prefix = "InvoiceFormatterBatch-" + POOL_COUNTER.incrementAndGet() + "-";
+    final AtomicInteger threadCounter = new AtomicInteger();
+    return r -> {
+      Thread t = new Thread(r, prefix + threadCounter.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    };
+  }
+
+  /**
+   * Create formatters for a batch of invoices.
+   * 
+   * @param <F>
+   *          the formatter type
+   * @param invoices
+   *          the invoices to create formatters for
+   * @param prefetchKey
+   *          a function to get the key of the custom fields an invoice needs, such as its account;
+   *          invoices with a {@literal null} key are not prefetched
+   * @param prefetch
+   *          a function to fetch the custom fields of an invoice; if this throws an exception the
+   *          invoices of that key are not prefetched
+   * @param creator
+   *          a function to create a formatter given an invoice and a supplier of its custom
+   *          fields, or {@literal null} if they were not prefetched
+   * @param executor
+   *          the executor to fetch custom fields and create formatters with
+   * @return the formatters, in the same order as {@code invoices}
+   */
+  public static <F> List<F> create(List<? extends Invoice> invoices,
+      Function<? super Invoice, ?> prefetchKey,
+      Function<? super Invoice, List<CustomField>> prefetch,
+      BiFunction<? super Invoice, Supplier<List<CustomField>>, F> creator, Executor executor) {
+    final Map<Object, CompletableFuture<Supplier<List<CustomField>>>> prefetches = new HashMap<>();
+    final List<CompletableFuture<F>> futures = new ArrayList<>(invoices.size());
+    for (Invoice invoice : invoices) {
+      final Object key = prefetchKey.apply(invoice);
+      final CompletableFuture<Supplier<List<CustomField>>> fields;
+      if (key == null) {
+        fields = CompletableFuture.completedFuture(null);
+      } else {
+        fields = prefetches.computeIfAbsent(key,
+            k -> CompletableFuture.supplyAsync(() -> prefetch(invoice, prefetch), executor));
+      }
+      futures.add(fields.thenApplyAsync(s -> creator.apply(invoice, s), executor));
+    }
+    final List<F> result = new ArrayList<>(futures.size());
+    try {
+      for (CompletableFuture<F> f : futures) {
+        result.add(f.join());
+      }
+    } catch (CompletionException e) {
+      for (CompletableFuture<F> f : futures) {
+        f.cancel(false);
+      }
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw e;
+    }
+    return result;
+  }
+
+  private static Supplier<List<CustomField>> prefetch(Invoice invoice,
+      Function<? super Invoice, List<CustomField>> prefetch) {
+    try {
+      return MemoizingSupplier.ofValue(prefetch.apply(invoice));
+    } catch (RuntimeException e) {
+      // fall back to fetching lazily, as if not prefetched
+      return null;
+    }
+  }
+
+}
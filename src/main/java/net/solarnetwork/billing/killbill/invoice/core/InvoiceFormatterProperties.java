@@ -0,0 +1,37 @@
+/*  Copyright 2020 SolarNetwork Foundation
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.solarnetwork.billing.killbill.invoice.core;
+
+/**
+ * Configuration property support for the invoice formatter.
+ * 
+ * <p>
+ * Every configuration property name starts with {@link #PROPERTY_PREFIX}. The properties are
+ * typically provided as JVM system properties.
+ * </p>
+ * 
+ * @author matt
+ */
+public final class InvoiceFormatterProperties {
+
+  /** The prefix of all invoice formatter configuration property names. */
+  public static final String PROPERTY_PREFIX = "net.solarnetwork.billing.killbill.invoice.";
+
+  private InvoiceFormatterProperties() {
+    // don't construct me
+  }
+
+}
@@ -0,0 +1,247 @@
+/*  Copyright 2020 SolarNetwork Foundation
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package net.solarnetwork.billing.killbill.invoice.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+
+import org.killbill.billing.invoice.api.InvoiceItem;
+import org.killbill.billing.invoice.api.InvoiceItemType;
+import org.killbill.billing.invoice.api.formatters.InvoiceItemFormatter;
+
+import net.solarnetwork.billing.killbill.invoice.api.ExtendedInvoiceFormatter;
+import net.solarnetwork.billing.killbill.invoice.api.ExtendedInvoiceItemFormatter;
+import net.solarnetwork.billing.killbill.invoice.util.AggregateInvoiceItem;
+import net.solarnetwork.billing.killbill.invoice.util.CustomFieldsThenDescriptionSortKey;
+
+/**
+ * An immutable, precomputed layout of the extended item views of an invoice.
+ * 
+ * <p>
+ * The layout captures the order of the non-tax items sorted by subscription custom fields and the
+ * grouping of the tax items by description as positions within the invoice item list, so that it
+ * does not depend on the locale or the item instances it was computed from. A formatter for the
+ * same invoice can then derive those views from its own items without sorting or grouping them
+ * again. The layout records the ID and description of every item and a fingerprint of the
+ * subscription custom fields of the non-tax items, and is only applied to an item list with the
+ * same IDs, descriptions, and custom fields in the same order, so a layout computed before an
+ * invoice or its custom fields changed, or from differently translated items, is simply ignored.
+ * </p>
+ * 
+ * @author matt
+ */
+public final class InvoiceItemLayout {
+
+  private final UUID invoiceId;
+  private final UUID accountId;
+  private final UUID[] itemIds;
+  private final String[] descriptions;
+  private final long customFieldsFingerprint;
+  private final int[] sortedNonTaxItems;
+  private final int[][] taxItemGroups;
+
+  private InvoiceItemLayout(UUID invoiceId, UUID accountId, UUID[] itemIds, String[] descriptions,
+      long customFieldsFingerprint, int[] sortedNonTaxItems, int[][] taxItemGroups) {
+    super();
+    this.invoiceId = invoiceId;
+    this.accountId = accountId;
+    this.itemIds = itemIds;
+    this.descriptions = descriptions;
+    this.customFieldsFingerprint = customFieldsFingerprint;
+    this.sortedNonTaxItems = sortedNonTaxItems;
+    this.taxItemGroups = taxItemGroups;
+  }
+
+  /**
+   * Compute the layout of a formatter.
+   * 
+   * <p>
+   * This computes the sorted non-tax items of the formatter, which loads its custom fields.
+   * </p>
+   * 
+   * @param formatter
+   *          the formatter to compute the layout of
+   * @return the layout, never {@literal null}
+   */
+  public static InvoiceItemLayout of(ExtendedInvoiceFormatter formatter) {
+    final List<InvoiceItem> items = formatter.getInvoiceItems();
+    final int len = (items != null ? items.size() : 0);
+    final UUID[] ids = new UUID[len];
+    final String[] descriptions = new String[len];
+    final Map<InvoiceItem, Integer> positions = new IdentityHashMap<>(len);
+    final Map<String, List<Integer>> groups = new LinkedHashMap<>();
+    for (int i = 0; i < len; i++) {
+      InvoiceItem item = items.get(i);
+      ids[i] = item.getId();
+      descriptions[i] = item.getDescription();
+      positions.put(item, i);
+      if (InvoiceItemType.TAX.equals(item.getInvoiceItemType())) {
+        groups.computeIfAbsent(item.getDescription(), k -> new ArrayList<>(4)).add(i);
+      }
+    }
+
+    final List<InvoiceItem> sorted = (len > 0
+        ? formatter.getNonTaxInvoiceItemsSortedBySubscriptionCustomFields()
+        : Collections.emptyList());
+    final int[] order = new int[sorted.size()];
+    for (int i = 0; i < order.length; i++) {
+      Integer pos = positions.get(sorted.get(i));
+      if (pos == null) {
+        throw new IllegalArgumentException(
+            "Sorted item " + sorted.get(i).getId() + " is not one of the invoice items.");
+      }
+      order[i] = pos;
+    }
+
+    final int[][] taxGroups = new int[groups.size()][];
+    int g = 0;
+    for (List<Integer> group : groups.values()) {
+      taxGroups[g++] = group.stream().mapToInt(Integer::intValue).toArray();
+    }
+    return new InvoiceItemLayout(formatter.getId(), formatter.getAccountId(), ids, descriptions,
+        customFieldsFingerprint(items), order, taxGroups);
+  }
+
+  /**
+   * Compute a fingerprint of the subscription custom fields of the non-tax items in a list.
+   * 
+   * @param items
+   *          the items; may be {@literal null}
+   * @return the fingerprint
+   */
+  private static long customFieldsFingerprint(List<? extends InvoiceItem> items) {
+    long result = 1;
+    if (items == null) {
+      return result;
+    }
+    for (InvoiceItem item : items) {
+      if (item instanceof InvoiceItemFormatter
+          && !InvoiceItemType.TAX.equals(item.getInvoiceItemType())) {
+        result = 31 * result
+            + new CustomFieldsThenDescriptionSortKey<>((InvoiceItemFormatter) item)
+                .customFieldsHashCode();
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Test if this layout applies to a list of invoice items.
+   * 
+   * <p>
+   * This loads the subscription custom fields of the non-tax items, so that a layout computed
+   * before those custom fields changed does not match.
+   * </p>
+   * 
+   * @param items
+   *          the items to test; may be {@literal null}
+   * @return {@literal true} if {@code items} have the same IDs, descriptions, and subscription
+   *         custom fields, in the same order, as the items this layout was computed from
+   */
+  public boolean matches(List<? extends InvoiceItem> items) {
+    final int len = (items != null ? items.size() : 0);
+    if (len != itemIds.length) {
+      return false;
+    }
+    for (int i = 0; i < len; i++) {
+      InvoiceItem item = items.get(i);
+      UUID id = item.getId();
+      if (id == null || !id.equals(itemIds[i])
+          || !Objects.equals(item.getDescription(), descriptions[i])) {
+        return false;
+      }
+    }
+    return (customFieldsFingerprint == customFieldsFingerprint(items));
+  }
+
+  /**
+   * Get the non-tax items sorted by subscription custom fields.
+   * 
+   * @param items
+   *          the items, which must {@link #matches(List)} this layout
+   * @return a new list of the sorted non-tax items
+   */
+  public List<InvoiceItem> sortedNonTaxItems(List<InvoiceItem> items) {
+    List<InvoiceItem> result = new ArrayList<>(sortedNonTaxItems.length);
+    for (int pos : sortedNonTaxItems) {
+      result.add(items.get(pos));
+    }
+    return result;
+  }
+
+  /**
+   * Get an aggregate of the tax items, grouped by their descriptions.
+   * 
+   * <p>
+   * The aggregates do not retain the items added to them, and are in the same order as
+   * {@link AggregateInvoiceItem#groupByDescription(Iterable, Locale, boolean)} returns them.
+   * </p>
+   * 
+   * @param items
+   *          the extended items, which must {@link #matches(List)} this layout
+   * @param locale
+   *          the locale of the aggregate items
+   * @return a new list of the aggregate items
+   */
+  public List<AggregateInvoiceItem> taxItemsGroupedByDescription(List<InvoiceItem> items,
+      Locale locale) {
+    List<AggregateInvoiceItem> result = new ArrayList<>(taxItemGroups.length);
+    for (int[] group : taxItemGroups) {
+      AggregateInvoiceItem agg = new AggregateInvoiceItem(locale, false);
+      for (int pos : group) {
+        agg.addItem((ExtendedInvoiceItemFormatter) items.get(pos));
+      }
+      result.add(agg);
+    }
+    return result;
+  }
+
+  /**
+   * Get the ID of the invoice this layout was computed from.
+   * 
+   * @return the invoice ID
+   */
+  public UUID getInvoiceId() {
+    return invoiceId;
+  }
+
+  /**
+   * Get the ID of the account owning the invoice this layout was computed from.
+   * 
+   * @return the account ID
+   */
+  public UUID getAccountId() {
+    return accountId;
+  }
+
+  /**
+   * Get the number of items this layout was computed from.
+   * 
+   * @return the item count
+   */
+  public int getItemCount() {
+    return itemIds.length;
+  }
+
+}
@@ -0,0 +1,262 @@
+/*  Copyright 2020 SolarNetwork Foundation
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package net.solarnetwork.billing.killbill.invoice.core;
+
+import static net.solarnetwork.billing.killbill.invoice.core.InvoiceFormatterProperties.PROPERTY_PREFIX;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+/**
+ * A short-lived, thread-safe cache of {@link InvoiceItemLayout} instances, keyed by invoice ID.
+ * 
+ * <p>
+ * Layouts are computed ahead of rendering an invoice, for example when Kill Bill reports the
+ * invoice was created, so that formatting the invoice soon after can reuse them. The cache holds at
+ * most a fixed number of layouts, evicting the least recently used ones first, each for a fixed
+ * time to live.
+ * </p>
+ * 
+ * @author matt
+ */
+public class InvoiceItemLayoutCache {
+
+  /** The default maximum number of layouts to cache. */
+  public static final int DEFAULT_MAXIMUM_SIZE = 200;
+
+  /** The default time to live, in milliseconds. */
+  public static final long DEFAULT_TIME_TO_LIVE = TimeUnit.MINUTES.toMillis(2);
+
+  /** The configuration property for the maximum number of layouts to cache. */
+  public static final String MAXIMUM_SIZE_PROPERTY = PROPERTY_PREFIX + "prewarm.maximumSize";
+
+  /** The configuration property for the time to live, in milliseconds. */
+  public static final String TIME_TO_LIVE_PROPERTY = PROPERTY_PREFIX + "prewarm.timeToLive";
+
+  private final int maximumSize;
+  private final long timeToLiveNanos;
+  private final LongSupplier clock;
+  private final Map<UUID, CachedLayout> entries;
+  private long hits;
+  private long misses;
+
+  /**
+   * Constructor.
+   * 
+   * @param maximumSize
+   *          the maximum number of layouts to cache; {@literal 0} disables caching
+   * @param timeToLive
+   *          the maximum time to cache each layout, in milliseconds; {@literal 0} disables caching
+   */
+  public InvoiceItemLayoutCache(int maximumSize, long timeToLive) {
+    this(maximumSize, timeToLive, System::nanoTime);
+  }
+
+  /**
+   * Constructor.
+   * 
+   * @param maximumSize
+   *          the maximum number of layouts to cache; {@literal 0} disables caching
+   * @param timeToLive
+   *          the maximum time to cache each layout, in milliseconds; {@literal 0} disables caching
+   * @param clock
+   *          the nanosecond time source
+   */
+  InvoiceItemLayoutCache(int maximumSize, long timeToLive, LongSupplier clock) {
+    super();
+    this.maximumSize = Math.max(0, maximumSize);
+    this.timeToLiveNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, timeToLive));
+    this.clock = clock;
+    this.entries = new LinkedHashMap<UUID, CachedLayout>(16, 0.75f, true) {
+
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<UUID, CachedLayout> eldest) {
+        return size() > InvoiceItemLayoutCache.this.maximumSize;
+      }
+
+    };
+  }
+
+  /**
+   * Create a cache configured from the {@link #MAXIMUM_SIZE_PROPERTY} and
+   * {@link #TIME_TO_LIVE_PROPERTY} properties.
+   * 
+   * <p>
+   * Missing or invalid property values are replaced by the {@link #DEFAULT_MAXIMUM_SIZE} and
+   * {@link #DEFAULT_TIME_TO_LIVE} defaults.
+   * </p>
+   * 
+   * @param properties
+   *          a function that returns a property value for a given property name, or
+   *          {@literal null} if not defined
+   * @return the new cache
+   */
+  public static InvoiceItemLayoutCache fromProperties(Function<String, String> properties) {
+    return new InvoiceItemLayoutCache(
+        (int) Math.min(Integer.MAX_VALUE,
+            longProperty(properties, MAXIMUM_SIZE_PROPERTY, DEFAULT_MAXIMUM_SIZE)),
+        longProperty(properties, TIME_TO_LIVE_PROPERTY, DEFAULT_TIME_TO_LIVE));
+  }
+
+  private static long longProperty(Function<String, String> properties, String key,
+      long defaultValue) {
+    String value = properties.apply(key);
+    if (value != null) {
+      try {
+        return Long.parseLong(value.trim());
+      } catch (NumberFormatException e) {
+        // ignore and use default
+      }
+    }
+    return defaultValue;
+  }
+
+  private static final class CachedLayout {
+
+    private final InvoiceItemLayout layout;
+    private final long expires;
+
+    private CachedLayout(InvoiceItemLayout layout, long expires) {
+      super();
+      this.layout = layout;
+      this.expires = expires;
+    }
+
+  }
+
+  /**
+   * Test if caching is enabled.
+   * 
+   * @return {@literal true} if layouts are cached
+   */
+  public boolean isEnabled() {
+    return (maximumSize > 0 && timeToLiveNanos > 0);
+  }
+
+  /**
+   * Cache a layout, replacing any layout cached for the same invoice.
+   * 
+   * @param layout
+   *          the layout to cache
+   */
+  public void put(InvoiceItemLayout layout) {
+    if (layout == null || layout.getInvoiceId() == null || !isEnabled()) {
+      return;
+    }
+    final CachedLayout cached = new CachedLayout(layout, clock.getAsLong() + timeToLiveNanos);
+    synchronized (entries) {
+      entries.put(layout.getInvoiceId(), cached);
+    }
+  }
+
+  /**
+   * Get a cached layout.
+   * 
+   * @param invoiceId
+   *          the ID of the invoice to get the layout of
+   * @return the layout, or {@literal null} if none is cached or it has expired
+   */
+  public InvoiceItemLayout get(UUID invoiceId) {
+    if (invoiceId == null || !isEnabled()) {
+      return null;
+    }
+    synchronized (entries) {
+      CachedLayout cached = entries.get(invoiceId);
+      if (cached != null && cached.expires - clock.getAsLong() > 0) {
+        hits++;
+        return cached.layout;
+      }
+      if (cached != null) {
+        entries.remove(invoiceId);
+      }
+      misses++;
+      return null;
+    }
+  }
+
+  /**
+   * Discard the cached layouts of all invoices of an account.
+   * 
+   * <p>
+   * The item order of a layout depends on the subscription custom fields of the account, so the
+   * layouts should be discarded when those change.
+   * </p>
+   * 
+   * @param accountId
+   *          the account ID
+   */
+  public void invalidateAccount(UUID accountId) {
+    synchronized (entries) {
+      for (Iterator<CachedLayout> itr = entries.values().iterator(); itr.hasNext();) {
+        UUID id = itr.next().layout.getAccountId();
+        if (id == null || id.equals(accountId)) {
+          itr.remove();
+        }
+      }
+    }
+  }
+
+  /**
+   * Discard all cached layouts.
+   */
+  public void invalidateAll() {
+    synchronized (entries) {
+      entries.clear();
+    }
+  }
+
+  /**
+   * Get the number of cached layouts, including any that have expired but not yet been removed.
+   * 
+   * @return the number of cached layouts
+   */
+  public int size() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+
+  /**
+   * Get the number of times a cached layout was returned.
+   * 
+   * @return the hit count
+   */
+  public long getHitCount() {
+    synchronized (entries) {
+      return hits;
+    }
+  }
+
+  /**
+   * Get the number of times no cached layout was available.
+   * 
+   * @return the miss count
+   */
+  public long getMissCount() {
+    synchronized (entries) {
+      return misses;
+    }
+  }
+
+}
@@ -0,0 +1,133 @@
+/*  Copyright 2020 SolarNetwork Foundation
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.solarnetwork.billing.killbill.invoice.core;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.killbill.billing.invoice.api.InvoiceItem;
+import org.killbill.billing.invoice.api.InvoiceItemType;
+
+/**
+ * An immutable partition of invoice items into tax and non-tax items, along with the total amount
+ * of each partition.
+ * 
+ * <p>
+ * The partition is computed in a single pass over the invoice items, so that all the tax-related
+ * attributes of an invoice can be derived without iterating over the items again.
+ * </p>
+ * 
+ * @author matt
+ */
+public final class InvoiceItemPartition {
+
+  /**
+   * An empty partition.
+   */
+  public static final InvoiceItemPartition EMPTY = new InvoiceItemPartition(
+      Collections.emptyList(), BigDecimal.ZERO, Collections.emptyList(), BigDecimal.ZERO);
+
+  private final List<InvoiceItem> taxItems;
+  private final BigDecimal taxAmount;
+  private final List<InvoiceItem> nonTaxItems;
+  private final BigDecimal nonTaxAmount;
+
+  private InvoiceItemPartition(List<InvoiceItem> taxItems, BigDecimal taxAmount,
+      List<InvoiceItem> nonTaxItems, BigDecimal nonTaxAmount) {
+    super();
+    this.taxItems = taxItems;
+    this.taxAmount = taxAmount;
+    this.nonTaxItems = nonTaxItems;
+    this.nonTaxAmount = nonTaxAmount;
+  }
+
+  /**
+   * Partition a list of invoice items.
+   * 
+   * <p>
+   * Items with a {@literal null} amount are included in the partition lists but do not contribute
+   * to the partition totals.
+   * </p>
+   * 
+   * @param items
+   *          the items to partition; may be {@literal null}
+   * @return the partition, never {@literal null}
+   */
+  public static InvoiceItemPartition partition(List<? extends InvoiceItem> items) {
+    if (items == null || items.isEmpty()) {
+      return EMPTY;
+    }
+    List<InvoiceItem> tax = new ArrayList<>();
+    List<InvoiceItem> nonTax = new ArrayList<>(items.size());
+    BigDecimal taxTotal = BigDecimal.ZERO;
+    BigDecimal nonTaxTotal = BigDecimal.ZERO;
+    for (InvoiceItem item : items) {
+      BigDecimal amount = item.getAmount();
+      if (InvoiceItemType.TAX.equals(item.getInvoiceItemType())) {
+        tax.add(item);
+        if (amount != null) {
+          taxTotal = taxTotal.add(amount);
+        }
+      } else {
+        nonTax.add(item);
+        if (amount != null) {
+          nonTaxTotal = nonTaxTotal.add(amount);
+        }
+      }
+    }
+    return new InvoiceItemPartition(Collections.unmodifiableList(tax), taxTotal,
+        Collections.unmodifiableList(nonTax), nonTaxTotal);
+  }
+
+  /**
+   * Get the tax items.
+   * 
+   * @return the tax items, in their original order, never {@literal null}
+   */
+  public List<InvoiceItem> getTaxItems() {
+    return taxItems;
+  }
+
+  /**
+   * Get the sum total of the tax item amounts.
+   * 
+   * @return the tax amount, never {@literal null}
+   */
+  public BigDecimal getTaxAmount() {
+    return taxAmount;
+  }
+
+  /**
+   * Get the non-tax items.
+   * 
+   * @return the non-tax items, in their original order, never {@literal null}
+   */
+  public List<InvoiceItem> getNonTaxItems() {
+    return nonTaxItems;
+  }
+
+  /**
+   * Get the sum total of the non-tax item amounts.
+   * 
+   * @return the non-tax amount, never {@literal null}
+   */
+  public BigDecimal getNonTaxAmount() {
+    return nonTaxAmount;
+  }
+
+}
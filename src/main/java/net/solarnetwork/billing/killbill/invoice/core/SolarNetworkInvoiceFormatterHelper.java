@@ -15,32 +15,31 @@
 
 package net.solarnetwork.billing.killbill.invoice.core;
 
-import static java.util.stream.Collector.of;
-import static java.util.stream.Collectors.groupingBy;
 import static java.util.stream.Collectors.toList;
-import static net.solarnetwork.billing.killbill.invoice.util.AggregateInvoiceItem.itemOfLocale;
 
 import java.math.BigDecimal;
-import java.text.NumberFormat;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
 import java.util.Locale;
-import java.util.UUID;
+import java.util.Map;
 import java.util.function.Supplier;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 import org.killbill.billing.invoice.api.InvoiceItem;
-import org.killbill.billing.invoice.api.InvoiceItemType;
 import org.killbill.billing.invoice.api.formatters.InvoiceFormatter;
 import org.killbill.billing.invoice.api.formatters.InvoiceItemFormatter;
 import org.killbill.billing.util.customfield.CustomField;
 
+import net.solarnetwork.billing.killbill.invoice.api.ExtendedAttributeMap;
 import net.solarnetwork.billing.killbill.invoice.api.ExtendedInvoiceFormatter;
-import net.solarnetwork.billing.killbill.invoice.api.ExtendedInvoiceItemFormatter;
 import net.solarnetwork.billing.killbill.invoice.api.InvoiceFormatterExtensions;
+import net.solarnetwork.billing.killbill.invoice.metrics.FlightRecorderEvents;
+import net.solarnetwork.billing.killbill.invoice.metrics.FormatterMetrics;
+import net.solarnetwork.billing.killbill.invoice.util.AggregateInvoiceItem;
+import net.solarnetwork.billing.killbill.invoice.util.CustomFieldIndex;
 import net.solarnetwork.billing.killbill.invoice.util.CustomFieldsThenDescriptionComparator;
+import net.solarnetwork.billing.killbill.invoice.util.CustomFieldsThenDescriptionSortKey;
+import net.solarnetwork.billing.killbill.invoice.util.MemoizingSupplier;
+import net.solarnetwork.billing.killbill.invoice.util.StringUtils;
 
 /**
  * Helper implementation of {@link ExtendedInvoiceFormatter} that delegates non-extended methods to
@@ -52,16 +51,62 @@ import net.solarnetwork.billing.killbill.invoice.util.CustomFieldsThenDescriptio
  * hierarchies.
  * </p>
  * 
+ * <p>
+ * The extended item attributes are derived from a single {@link InvoiceItemPartition} of the
+ * invoice items, which is computed the first time any of those attributes are accessed. The derived
+ * lists and formatted amounts are cached as well, and the lists are not modifiable. The
+ * {@link #getExtendedAttributes()} map is backed by these same cached values.
+ * </p>
+ * 
+ * <p>
+ * The time taken to wrap the items and compute each attribute is reported to a
+ * {@link FormatterMetrics}, using {@link FormatterMetrics#ATTRIBUTE_PREFIX} timer names. The
+ * attributes derived from the item partition are all reported as the
+ * {@literal invoiceItemPartition} attribute. The wrap, partition, sort, group, and format phases
+ * are also emitted as {@link FlightRecorderEvents} when a JFR recording has enabled them.
+ * </p>
+ * 
+ * <p>
+ * The custom fields can be provided by a {@link Supplier}, which is not invoked until the custom
+ * fields are first needed: when {@link #getCustomFields()} is called, or the subscription custom
+ * fields of an item are accessed, including when sorting items by custom fields. Templates that
+ * never use custom fields thus never load them.
+ * </p>
+ * 
  * @author matt
+ * @version 2
  */
 public class SolarNetworkInvoiceFormatterHelper implements InvoiceFormatterExtensions {
 
+  private static final String PARTITION_TIMER = FormatterMetrics.ATTRIBUTE_PREFIX
+      + "invoiceItemPartition";
+  private static final String SORTED_NON_TAX_ITEMS_TIMER = FormatterMetrics.ATTRIBUTE_PREFIX
+      + "nonTaxInvoiceItemsSortedBySubscriptionCustomFields";
+  private static final String GROUPED_TAX_ITEMS_TIMER = FormatterMetrics.ATTRIBUTE_PREFIX
+      + "taxInvoiceItemsGroupedByDescription";
+  private static final String CUSTOM_FIELD_INDEX_TIMER = FormatterMetrics.ATTRIBUTE_PREFIX
+      + "customFieldIndex";
+  private static final String FORMATTED_AMOUNT_TIMER = FormatterMetrics.ATTRIBUTE_PREFIX
+      + "formattedAmount";
+
   private final InvoiceFormatter delegate;
   private final Supplier<List<InvoiceItem>> itemsSupplier;
   private final Locale locale;
-  private final List<CustomField> customFields;
+  private final MemoizingSupplier<List<CustomField>> customFields;
+  private final FormatterMetrics metrics;
+  private final InvoiceItemLayout layout;
 
+  private CustomFieldIndex customFieldIndex;
   private List<InvoiceItem> invoiceItems;
+  private InvoiceItemPartition partition;
+  private List<InvoiceItem> nonTaxItemsSortedByCustomFields;
+  private List<InvoiceItem> taxItemsGroupedByDescription;
+  private Boolean layoutMatches;
+  private String formattedTaxAmount;
+  private String formattedNonTaxChargedAmount;
+  private String basicFormattedPaidAmount;
+  private String basicFormattedBalance;
+  private ExtendedAttributeMap extendedAttributes;
 
   /**
    * Constructor.
@@ -79,40 +124,146 @@ public class SolarNetworkInvoiceFormatterHelper implements InvoiceFormatterExten
    */
   public SolarNetworkInvoiceFormatterHelper(InvoiceFormatter delegate,
       Supplier<List<InvoiceItem>> itemsSupplier, Locale locale, List<CustomField> customFields) {
+    this(delegate, itemsSupplier, locale, MemoizingSupplier.ofValue(customFields), null);
+  }
+
+  /**
+   * Constructor.
+   * 
+   * @param delegate
+   *          the delegate
+   * @param itemsSupplier
+   *          the supplier of items; this is used rather than {@code delegate} to prevent
+   *          recursively calling {@link InvoiceFormatter#getInvoiceItems()} when
+   *          {@link #getExtendedInvoiceItems()} is invoked
+   * @param locale
+   *          the locale
+   * @param customFieldsSupplier
+   *          the supplier of the custom fields (optional), which will be invoked at most once, the
+   *          first time the custom fields are needed; it may return {@literal null}
+   * @param metrics
+   *          the metrics to record to (optional)
+   * @since 2
+   */
+  public SolarNetworkInvoiceFormatterHelper(InvoiceFormatter delegate,
+      Supplier<List<InvoiceItem>> itemsSupplier, Locale locale,
+      Supplier<List<CustomField>> customFieldsSupplier, FormatterMetrics metrics) {
+    this(delegate, itemsSupplier, locale, customFieldsSupplier, metrics, null);
+  }
+
+  /**
+   * Constructor.
+   * 
+   * @param delegate
+   *          the delegate
+   * @param itemsSupplier
+   *          the supplier of items; this is used rather than {@code delegate} to prevent
+   *          recursively calling {@link InvoiceFormatter#getInvoiceItems()} when
+   *          {@link #getExtendedInvoiceItems()} is invoked
+   * @param locale
+   *          the locale
+   * @param customFieldsSupplier
+   *          the supplier of the custom fields (optional), which will be invoked at most once, the
+   *          first time the custom fields are needed; it may return {@literal null}
+   * @param metrics
+   *          the metrics to record to (optional)
+   * @param layout
+   *          a layout computed ahead of time for the same invoice (optional)
+   * @since 2
+   */
+  public SolarNetworkInvoiceFormatterHelper(InvoiceFormatter delegate,
+      Supplier<List<InvoiceItem>> itemsSupplier, Locale locale,
+      Supplier<List<CustomField>> customFieldsSupplier, FormatterMetrics metrics,
+      InvoiceItemLayout layout) {
     super();
     this.delegate = delegate;
     this.itemsSupplier = itemsSupplier;
     this.locale = locale;
-    this.customFields = (customFields != null ? customFields : Collections.emptyList());
+    this.customFields = (customFieldsSupplier != null ? MemoizingSupplier.of(customFieldsSupplier)
+        : MemoizingSupplier.ofValue(null));
+    this.metrics = (metrics != null ? metrics : FormatterMetrics.NONE);
+    this.layout = layout;
+  }
+
+  /**
+   * Get the layout provided to the constructor, if it matches the extended invoice items.
+   * 
+   * @return the layout, or {@literal null} if none was provided or it does not match the items
+   */
+  private InvoiceItemLayout matchingLayout() {
+    if (layout == null) {
+      return null;
+    }
+    if (layoutMatches == null) {
+      layoutMatches = layout.matches(getExtendedInvoiceItems());
+      if (layoutMatches) {
+        metrics.increment(FormatterMetrics.ITEM_LAYOUT_HITS);
+      }
+    }
+    return (layoutMatches ? layout : null);
   }
 
-  private Stream<InvoiceItem> getNonTaxInvoiceItemStream() {
-    return getExtendedInvoiceItems().stream()
-        .filter(item -> !InvoiceItemType.TAX.equals(item.getInvoiceItemType()));
+  /**
+   * Get the partition of the extended invoice items into tax and non-tax items.
+   * 
+   * <p>
+   * The partition is computed the first time this method is called and cached for subsequent
+   * calls, so that all the tax and non-tax related attributes share a single pass over the items.
+   * </p>
+   * 
+   * @return the partition, never {@literal null}
+   * @since 2
+   */
+  public InvoiceItemPartition getInvoiceItemPartition() {
+    InvoiceItemPartition p = partition;
+    if (p == null) {
+      final List<InvoiceItem> items = getExtendedInvoiceItems();
+      final long start = metrics.startTimer();
+      final Object event = FlightRecorderEvents.begin();
+      p = InvoiceItemPartition.partition(items);
+      endPhase(PARTITION_TIMER, FlightRecorderEvents.PHASE_PARTITION, start, event);
+      partition = p; // cache for subsequent calls
+    }
+    return p;
   }
 
   @Override
   public List<InvoiceItem> getNonTaxInvoiceItems() {
-    return getNonTaxInvoiceItemStream().collect(Collectors.toList());
+    return getInvoiceItemPartition().getNonTaxItems();
   }
 
+  /**
+   * {@inheritDoc}
+   * 
+   * <p>
+   * The items are sorted via {@link CustomFieldsThenDescriptionSortKey} keys, which order the items
+   * the same as {@link CustomFieldsThenDescriptionComparator} but compute the sort criteria of each
+   * item just once. When a matching {@link InvoiceItemLayout} was provided, the items are
+   * returned in the order of the layout without sorting them again.
+   * </p>
+   */
   @Override
   public List<InvoiceItem> getNonTaxInvoiceItemsSortedBySubscriptionCustomFields() {
-    @SuppressWarnings({ "rawtypes", "unchecked" })
-    Stream<InvoiceItemFormatter> itemStream = (Stream) getNonTaxInvoiceItemStream();
-    return itemStream
-        .sorted(CustomFieldsThenDescriptionComparator.INVOICE_ITEM_SORT_BY_CUSTOM_FIELDS_THEN_DESC)
-        .collect(Collectors.toList());
-  }
-
-  private Stream<InvoiceItem> getTaxInvoiceItemsStream() {
-    return getExtendedInvoiceItems().stream()
-        .filter(item -> InvoiceItemType.TAX.equals(item.getInvoiceItemType()));
+    List<InvoiceItem> items = nonTaxItemsSortedByCustomFields;
+    if (items == null) {
+      final InvoiceItemLayout l = matchingLayout();
+      @SuppressWarnings({ "rawtypes", "unchecked" })
+      List<InvoiceItemFormatter> nonTaxItems = (List) getNonTaxInvoiceItems();
+      final long start = metrics.startTimer();
+      final Object event = FlightRecorderEvents.begin();
+      @SuppressWarnings({ "rawtypes", "unchecked" })
+      List<InvoiceItem> sorted = (l != null ? l.sortedNonTaxItems(getExtendedInvoiceItems())
+          : (List) CustomFieldsThenDescriptionSortKey.sort(nonTaxItems));
+      items = Collections.unmodifiableList(sorted);
+      endPhase(SORTED_NON_TAX_ITEMS_TIMER, FlightRecorderEvents.PHASE_SORT, start, event);
+      nonTaxItemsSortedByCustomFields = items; // cache for subsequent calls
+    }
+    return items;
   }
 
   @Override
   public List<InvoiceItem> getTaxInvoiceItems() {
-    return getTaxInvoiceItemsStream().collect(Collectors.toList());
+    return getInvoiceItemPartition().getTaxItems();
   }
 
   /**
@@ -127,60 +278,182 @@ public class SolarNetworkInvoiceFormatterHelper implements InvoiceFormatterExten
       // shortcut for a common case
       return taxItems;
     }
-    // maintain ordering based on original invoice items
-    List<UUID> ordering = taxItems.stream().map(item -> item.getId()).collect(toList());
+    List<InvoiceItem> groups = taxItemsGroupedByDescription;
+    if (groups != null) {
+      return groups;
+    }
 
-    // return list of AggregateInvoiceItem, grouped by InvoiceItem::getDescription
-    return taxItems.stream()
-        .collect(groupingBy(InvoiceItem::getDescription, of(itemOfLocale(locale),
-            (agg, item) -> agg.addItem((ExtendedInvoiceItemFormatter) item), (agg1, agg2) -> {
-              return agg1.addItems(agg2);
-            })))
-        .values().stream().sorted(Comparator.comparing(item -> ordering.indexOf(item.getId())))
-        .collect(toList());
+    // group in a single pass, maintaining ordering based on original invoice items; the grouped
+    // items themselves are not needed so are not retained by the aggregates
+    final InvoiceItemLayout l = matchingLayout();
+    final long start = metrics.startTimer();
+    final Object event = FlightRecorderEvents.begin();
+    groups = Collections.unmodifiableList(
+        l != null ? l.taxItemsGroupedByDescription(getExtendedInvoiceItems(), locale)
+            : AggregateInvoiceItem.groupByDescription(taxItems, locale, false));
+    endPhase(GROUPED_TAX_ITEMS_TIMER, FlightRecorderEvents.PHASE_GROUP, start, event);
+    taxItemsGroupedByDescription = groups; // cache for subsequent calls
+    return groups;
   }
 
   @Override
   public BigDecimal getTaxAmount() {
-    return getTaxInvoiceItemsStream().map(e -> e.getAmount()).reduce(BigDecimal.ZERO,
-        (l, r) -> l.add(r));
+    return getInvoiceItemPartition().getTaxAmount();
   }
 
   @Override
   public String getFormattedTaxAmount() {
-    return formattedCurrencyAmount(getTaxAmount());
+    String result = formattedTaxAmount;
+    if (result == null) {
+      result = formattedCurrencyAmount(getTaxAmount());
+      formattedTaxAmount = result; // cache for subsequent calls
+    }
+    return result;
   }
 
   @Override
   public BigDecimal getNonTaxChargedAmount() {
-    return getNonTaxInvoiceItemStream().map(e -> e.getAmount()).reduce(BigDecimal.ZERO,
-        (l, r) -> l.add(r));
+    return getInvoiceItemPartition().getNonTaxAmount();
   }
 
   @Override
   public String getFormattedNonTaxChargedAmount() {
-    return formattedCurrencyAmount(getNonTaxChargedAmount());
+    String result = formattedNonTaxChargedAmount;
+    if (result == null) {
+      result = formattedCurrencyAmount(getNonTaxChargedAmount());
+      formattedNonTaxChargedAmount = result; // cache for subsequent calls
+    }
+    return result;
   }
 
   @Override
   public String getBasicFormattedPaidAmount() {
-    return formattedCurrencyAmount(delegate.getPaidAmount());
+    String result = basicFormattedPaidAmount;
+    if (result == null) {
+      result = formattedCurrencyAmount(delegate.getPaidAmount());
+      basicFormattedPaidAmount = result; // cache for subsequent calls
+    }
+    return result;
   }
 
   @Override
   public String getBasicFormattedBalance() {
-    return formattedCurrencyAmount(delegate.getBalance());
+    String result = basicFormattedBalance;
+    if (result == null) {
+      result = formattedCurrencyAmount(delegate.getBalance());
+      basicFormattedBalance = result; // cache for subsequent calls
+    }
+    return result;
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * <p>
+   * The map is created the first time this method is called and the same instance is returned for
+   * subsequent calls. Looking up {@literal customFields}, or an attribute that needs the custom
+   * fields, loads the custom fields if they have not already been loaded.
+   * </p>
+   * 
+   * @since 2
+   */
+  @Override
+  public Map<String, Object> getExtendedAttributes() {
+    ExtendedAttributeMap map = extendedAttributes;
+    if (map == null) {
+      map = new ExtendedAttributeMap(this);
+      extendedAttributes = map; // cache for subsequent calls
+    }
+    return map;
   }
 
   private String formattedCurrencyAmount(final BigDecimal amount) {
-    final NumberFormat number = NumberFormat.getCurrencyInstance(locale);
-    number.setCurrency(java.util.Currency.getInstance(delegate.getCurrency().toString()));
-    return number.format(amount.doubleValue());
+    final long start = metrics.startTimer();
+    final Object event = FlightRecorderEvents.begin();
+    String result = StringUtils.formattedCurrencyAmountWithImplicitSymbol(amount,
+        delegate.getCurrency().toString(), locale);
+    endPhase(FORMATTED_AMOUNT_TIMER, FlightRecorderEvents.PHASE_FORMAT, start, event);
+    return result;
   }
 
+  /**
+   * Record the end of a phase to the metrics and the JFR event, if one was started.
+   * 
+   * @param timer
+   *          the metrics timer name
+   * @param phase
+   *          the JFR event phase name
+   * @param start
+   *          the metrics timer start
+   * @param event
+   *          the JFR event, or {@literal null}
+   */
+  private void endPhase(String timer, String phase, long start, Object event) {
+    metrics.stopTimer(timer, start);
+    if (event != null) {
+      final List<InvoiceItem> items = invoiceItems;
+      FlightRecorderEvents.commit(event, phase, delegate.getId(), delegate.getAccountId(),
+          items != null ? items.size() : 0,
+          customFields.isLoaded() ? getCustomFields().size() : -1);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * <p>
+   * The custom fields are loaded the first time this method is called.
+   * </p>
+   * 
+   * @return the custom fields, never {@literal null}
+   */
   @Override
   public List<CustomField> getCustomFields() {
-    return customFields;
+    List<CustomField> fields = customFields.get();
+    return (fields != null ? fields : Collections.emptyList());
+  }
+
+  /**
+   * Test if the custom fields have been loaded.
+   * 
+   * @return {@literal true} if the custom fields have been loaded
+   * @since 2
+   */
+  public boolean isCustomFieldsLoaded() {
+    return customFields.isLoaded();
+  }
+
+  /**
+   * Get the metrics.
+   * 
+   * @return the metrics, never {@literal null}
+   * @since 2
+   */
+  public FormatterMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Get an index of the custom fields.
+   * 
+   * <p>
+   * The index is created the first time this method is called and cached for subsequent calls,
+   * which will load the custom fields if they have not already been loaded.
+   * </p>
+   * 
+   * @return the index, never {@literal null}
+   * @since 2
+   */
+  public CustomFieldIndex getCustomFieldIndex() {
+    CustomFieldIndex index = customFieldIndex;
+    if (index == null) {
+      final List<CustomField> fields = getCustomFields();
+      final long start = metrics.startTimer();
+      index = CustomFieldIndex.of(fields);
+      metrics.stopTimer(CUSTOM_FIELD_INDEX_TIMER, start);
+      customFieldIndex = index; // cache for subsequent calls
+    }
+    return index;
   }
 
   /**
@@ -199,10 +472,15 @@ public class SolarNetworkInvoiceFormatterHelper implements InvoiceFormatterExten
     if (items == null) {
       items = itemsSupplier.get();
       if (items != null && !items.isEmpty()) {
+        final Supplier<CustomFieldIndex> index = this::getCustomFieldIndex;
+        final long start = metrics.startTimer();
+        final Object event = FlightRecorderEvents.begin();
         items = items.stream().map(item -> {
-          return new SolarNetworkInvoiceItemFormatter((InvoiceItemFormatter) item, customFields);
+          return new SolarNetworkInvoiceItemFormatter((InvoiceItemFormatter) item, index);
         }).collect(toList());
         invoiceItems = items; // cache for subsequent calls
+        endPhase(FormatterMetrics.WRAP_ITEMS, FlightRecorderEvents.PHASE_WRAP, start, event);
+        metrics.recordValue(FormatterMetrics.ITEM_COUNT, items.size());
       }
     }
     return items;
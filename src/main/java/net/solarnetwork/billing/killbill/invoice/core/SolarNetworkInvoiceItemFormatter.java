@@ -19,6 +19,7 @@ import java.math.BigDecimal;
 import java.util.Collections;
 import java.util.List;
 import java.util.UUID;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 import org.joda.time.DateTime;
@@ -30,17 +31,25 @@ import org.killbill.billing.invoice.api.formatters.InvoiceItemFormatter;
 import org.killbill.billing.util.customfield.CustomField;
 
 import net.solarnetwork.billing.killbill.invoice.api.ExtendedInvoiceItemFormatter;
+import net.solarnetwork.billing.killbill.invoice.util.CustomFieldIndex;
+import net.solarnetwork.billing.killbill.invoice.util.MemoizingSupplier;
 
 /**
  * Implementation of {@link ExtendedInvoiceItemFormatter}.
  * 
+ * <p>
+ * The subscription custom fields of the item are resolved once, either when the formatter is
+ * constructed or, when constructed with a custom field index supplier, the first time they are
+ * accessed.
+ * </p>
+ * 
  * @author matt
- * @version 2
+ * @version 3
  */
 public class SolarNetworkInvoiceItemFormatter implements ExtendedInvoiceItemFormatter {
 
   private final InvoiceItemFormatter item;
-  private final List<CustomField> customFields;
+  private final MemoizingSupplier<List<CustomField>> subscriptionCustomFields;
 
   /**
    * Construct out of another item formatter.
@@ -54,20 +63,82 @@ public class SolarNetworkInvoiceItemFormatter implements ExtendedInvoiceItemForm
       List<CustomField> customFields) {
     super();
     this.item = item;
-    this.customFields = customFields;
+    this.subscriptionCustomFields = MemoizingSupplier
+        .ofValue(subscriptionCustomFields(item.getSubscriptionId(), customFields));
   }
 
-  @Override
-  public List<CustomField> getSubscriptionCustomFields() {
-    if (customFields == null) {
-      return Collections.emptyList();
-    }
-    final UUID subscriptionId = getSubscriptionId();
-    if (subscriptionId == null) {
+  /**
+   * Construct out of another item formatter and a custom field index.
+   * 
+   * <p>
+   * This is more efficient than the {@link #SolarNetworkInvoiceItemFormatter(InvoiceItemFormatter,
+   * List)} constructor when many items are created from the same custom fields.
+   * </p>
+   * 
+   * @param item
+   *          the formatter to extend
+   * @param customFieldIndex
+   *          the index of custom fields to resolve the subscription custom fields from
+   * @since 3
+   */
+  public SolarNetworkInvoiceItemFormatter(InvoiceItemFormatter item,
+      CustomFieldIndex customFieldIndex) {
+    super();
+    this.item = item;
+    this.subscriptionCustomFields = MemoizingSupplier
+        .ofValue(subscriptionCustomFields(item.getSubscriptionId(), customFieldIndex));
+  }
+
+  /**
+   * Construct out of another item formatter and a custom field index supplier.
+   * 
+   * <p>
+   * The index is not requested from the supplier until the subscription custom fields are first
+   * accessed, so custom fields need not be loaded if they are never used.
+   * </p>
+   * 
+   * @param item
+   *          the formatter to extend
+   * @param customFieldIndexSupplier
+   *          the supplier of the index of custom fields to resolve the subscription custom fields
+   *          from
+   * @since 3
+   */
+  public SolarNetworkInvoiceItemFormatter(InvoiceItemFormatter item,
+      Supplier<CustomFieldIndex> customFieldIndexSupplier) {
+    super();
+    this.item = item;
+    this.subscriptionCustomFields = MemoizingSupplier
+        .of(() -> subscriptionCustomFields(item.getSubscriptionId(),
+            customFieldIndexSupplier != null ? customFieldIndexSupplier.get() : null));
+  }
+
+  private static List<CustomField> subscriptionCustomFields(UUID subscriptionId,
+      CustomFieldIndex customFieldIndex) {
+    return (customFieldIndex != null ? customFieldIndex.getSubscriptionCustomFields(subscriptionId)
+        : Collections.emptyList());
+  }
+
+  private static List<CustomField> subscriptionCustomFields(UUID subscriptionId,
+      List<CustomField> customFields) {
+    if (customFields == null || subscriptionId == null) {
       return Collections.emptyList();
     }
-    return customFields.stream().filter(f -> ObjectType.SUBSCRIPTION.equals(f.getObjectType())
-        && subscriptionId.equals(f.getObjectId())).collect(Collectors.toList());
+    return Collections.unmodifiableList(customFields.stream()
+        .filter(f -> ObjectType.SUBSCRIPTION.equals(f.getObjectType())
+            && subscriptionId.equals(f.getObjectId()))
+        .collect(Collectors.toList()));
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @return the subscription custom fields, never {@literal null}; the returned list is not
+   *         modifiable
+   */
+  @Override
+  public List<CustomField> getSubscriptionCustomFields() {
+    return subscriptionCustomFields.get();
   }
 
   @Override
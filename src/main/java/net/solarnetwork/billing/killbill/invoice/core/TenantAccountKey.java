@@ -0,0 +1,155 @@
+/*  Copyright 2020 SolarNetwork Foundation
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.solarnetwork.billing.killbill.invoice.core;
+
+import java.util.Objects;
+import java.util.UUID;
+
+/**
+ * An immutable cache key for an account within a tenant, optionally narrowed to a single object
+ * owned by the account, such as a subscription.
+ * 
+ * @param <T>
+ *          the identifier type, for example a record ID or a UUID
+ * @author matt
+ */
+public final class TenantAccountKey<T> {
+
+  private final T tenantId;
+  private final T accountId;
+  private final UUID objectId;
+
+  private TenantAccountKey(T tenantId, T accountId, UUID objectId) {
+    super();
+    this.tenantId = tenantId;
+    this.accountId = Objects.requireNonNull(accountId, "The account ID must be provided.");
+    this.objectId = objectId;
+  }
+
+  /**
+   * Create a new key.
+   * 
+   * @param <T>
+   *          the identifier type
+   * @param tenantId
+   *          the tenant ID; may be {@literal null}
+   * @param accountId
+   *          the account ID
+   * @return the new key
+   * @throws NullPointerException
+   *           if {@code accountId} is {@literal null}
+   */
+  public static <T> TenantAccountKey<T> of(T tenantId, T accountId) {
+    return new TenantAccountKey<>(tenantId, accountId, null);
+  }
+
+  /**
+   * Create a new key for an object owned by an account.
+   * 
+   * @param <T>
+   *          the identifier type
+   * @param tenantId
+   *          the tenant ID; may be {@literal null}
+   * @param accountId
+   *          the account ID
+   * @param objectId
+   *          the ID of the object owned by the account; may be {@literal null}
+   * @return the new key
+   * @throws NullPointerException
+   *           if {@code accountId} is {@literal null}
+   */
+  public static <T> TenantAccountKey<T> of(T tenantId, T accountId, UUID objectId) {
+    return new TenantAccountKey<>(tenantId, accountId, objectId);
+  }
+
+  /**
+   * Test if this key belongs to a given tenant.
+   * 
+   * @param tenantId
+   *          the tenant ID to test; may be {@literal null}
+   * @return {@literal true} if this key's tenant ID equals {@code tenantId}
+   */
+  public boolean isTenant(Object tenantId) {
+    return Objects.equals(this.tenantId, tenantId);
+  }
+
+  /**
+   * Test if this key belongs to a given account, including any object owned by the account.
+   * 
+   * @param tenantId
+   *          the tenant ID to test; may be {@literal null}
+   * @param accountId
+   *          the account ID to test
+   * @return {@literal true} if this key's tenant and account IDs equal {@code tenantId} and
+   *         {@code accountId}
+   */
+  public boolean isAccount(Object tenantId, Object accountId) {
+    return this.accountId.equals(accountId) && Objects.equals(this.tenantId, tenantId);
+  }
+
+  /**
+   * Get the tenant ID.
+   * 
+   * @return the tenant ID
+   */
+  public T getTenantId() {
+    return tenantId;
+  }
+
+  /**
+   * Get the account ID.
+   * 
+   * @return the account ID
+   */
+  public T getAccountId() {
+    return accountId;
+  }
+
+  /**
+   * Get the object ID.
+   * 
+   * @return the object ID, or {@literal null} if this key is for the account as a whole
+   */
+  public UUID getObjectId() {
+    return objectId;
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * (31 * Objects.hashCode(tenantId) + accountId.hashCode())
+        + Objects.hashCode(objectId);
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (!(obj instanceof TenantAccountKey)) {
+      return false;
+    }
+    TenantAccountKey<?> other = (TenantAccountKey<?>) obj;
+    return accountId.equals(other.accountId) && Objects.equals(tenantId, other.tenantId)
+        && Objects.equals(objectId, other.objectId);
+  }
+
+  @Override
+  public String toString() {
+    return "TenantAccountKey{tenantId=" + tenantId + ", accountId=" + accountId
+        + (objectId != null ? ", objectId=" + objectId : "") + "}";
+  }
+
+}
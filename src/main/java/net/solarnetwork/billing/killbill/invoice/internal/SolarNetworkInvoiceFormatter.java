@@ -18,6 +18,7 @@ package net.solarnetwork.billing.killbill.invoice.internal;
 import java.math.BigDecimal;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.function.Supplier;
 
 import org.killbill.billing.callcontext.InternalTenantContext;
@@ -31,12 +32,14 @@ import org.killbill.billing.util.template.translation.TranslatorConfig;
 
 import net.solarnetwork.billing.killbill.invoice.api.ExtendedInvoiceFormatter;
 import net.solarnetwork.billing.killbill.invoice.core.SolarNetworkInvoiceFormatterHelper;
+import net.solarnetwork.billing.killbill.invoice.metrics.FormatterMetrics;
+import net.solarnetwork.billing.killbill.invoice.util.MemoizingSupplier;
 
 /**
  * Implementation of {@link ExtendedInvoiceFormatter} for SolarNetwork.
  * 
  * @author matt
- * @version 2
+ * @version 3
  */
 public class SolarNetworkInvoiceFormatter extends DefaultInvoiceFormatter
     implements ExtendedInvoiceFormatter, Supplier<List<InvoiceItem>> {
@@ -64,8 +67,39 @@ public class SolarNetworkInvoiceFormatter extends DefaultInvoiceFormatter
   public SolarNetworkInvoiceFormatter(TranslatorConfig config, Invoice invoice, Locale locale,
       CurrencyConversionApi currencyConversionApi, ResourceBundleFactory bundleFactory,
       InternalTenantContext context, List<CustomField> customFields) {
+    this(config, invoice, locale, currencyConversionApi, bundleFactory, context,
+        MemoizingSupplier.ofValue(customFields), null);
+  }
+
+  /**
+   * Constructor.
+   * 
+   * @param config
+   *          the translator config
+   * @param invoice
+   *          the invoice
+   * @param locale
+   *          the locale
+   * @param currencyConversionApi
+   *          the currency conversion API
+   * @param bundleFactory
+   *          the bundle factory
+   * @param context
+   *          the context
+   * @param customFieldsSupplier
+   *          the supplier of the account custom fields (optional), which will not be invoked until
+   *          the custom fields are needed
+   * @param metrics
+   *          the metrics to record to (optional)
+   * @since 3
+   */
+  public SolarNetworkInvoiceFormatter(TranslatorConfig config, Invoice invoice, Locale locale,
+      CurrencyConversionApi currencyConversionApi, ResourceBundleFactory bundleFactory,
+      InternalTenantContext context, Supplier<List<CustomField>> customFieldsSupplier,
+      FormatterMetrics metrics) {
     super(config, invoice, locale, currencyConversionApi, bundleFactory, context);
-    this.delegate = new SolarNetworkInvoiceFormatterHelper(this, this, locale, customFields);
+    this.delegate = new SolarNetworkInvoiceFormatterHelper(this, this, locale,
+        customFieldsSupplier, metrics);
   }
 
   @Override
@@ -133,4 +167,9 @@ public class SolarNetworkInvoiceFormatter extends DefaultInvoiceFormatter
     return delegate.getCustomFields();
   }
 
+  @Override
+  public Map<String, Object> getExtendedAttributes() {
+    return delegate.getExtendedAttributes();
+  }
+
 }
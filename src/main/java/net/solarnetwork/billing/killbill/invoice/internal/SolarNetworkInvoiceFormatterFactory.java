@@ -17,11 +17,24 @@ package net.solarnetwork.billing.killbill.invoice.internal;
 
 import static java.util.stream.Collectors.toList;
 
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 import javax.inject.Inject;
+import javax.inject.Named;
+import javax.sql.DataSource;
 
+import org.killbill.billing.ObjectType;
 import org.killbill.billing.callcontext.InternalTenantContext;
 import org.killbill.billing.currency.api.CurrencyConversionApi;
 import org.killbill.billing.invoice.api.Invoice;
@@ -34,38 +47,577 @@ import org.killbill.billing.util.customfield.dao.CustomFieldDao;
 import org.killbill.billing.util.customfield.dao.CustomFieldModelDao;
 import org.killbill.billing.util.template.translation.TranslatorConfig;
 
+import net.solarnetwork.billing.killbill.invoice.core.AsyncCustomFieldFetcher;
+import net.solarnetwork.billing.killbill.invoice.core.CustomFieldBatchQuery;
+import net.solarnetwork.billing.killbill.invoice.core.CustomFieldCache;
+import net.solarnetwork.billing.killbill.invoice.core.CustomFieldCacheMetrics;
+import net.solarnetwork.billing.killbill.invoice.core.CustomFieldFetchGuard;
+import net.solarnetwork.billing.killbill.invoice.core.CustomFieldFetchStrategy;
+import net.solarnetwork.billing.killbill.invoice.core.CustomFieldNameFilter;
+import net.solarnetwork.billing.killbill.invoice.core.InvoiceFormatterBatch;
+import net.solarnetwork.billing.killbill.invoice.core.TenantAccountKey;
+import net.solarnetwork.billing.killbill.invoice.metrics.FlightRecorderEvents;
+import net.solarnetwork.billing.killbill.invoice.metrics.FormatterMetrics;
+
 /**
  * Factory for {@link SolarNetworkInvoiceFormatter} instances.
  * 
+ * <p>
+ * Account custom fields are cached per tenant and account, so formatting several invoices for the
+ * same account, or the same invoice several times, only queries the database once. The cache size
+ * and time to live can be configured with the {@link #CACHE_MAXIMUM_SIZE_PROPERTY} and
+ * {@link #CACHE_TIME_TO_LIVE_PROPERTY} system properties. The {@code invalidate*} methods can be
+ * used to discard cached fields that are known to have changed. Custom fields are not fetched
+ * until a template first uses them, so templates that do not use custom fields never fetch them.
+ * Setting the {@link #CACHE_REFRESH_AFTER_PROPERTY} system property to less than the time to live
+ * serves cached fields older than that immediately while refreshing them in the background.
+ * </p>
+ * 
+ * <p>
+ * Setting the {@link #FETCH_SCOPE_PROPERTY} system property to {@literal invoice} fetches only the
+ * account-level fields and the fields of the subscriptions on the invoice, rather than every
+ * custom field of the account, with a single {@link CustomFieldBatchQuery} on the
+ * {@link #DATA_SOURCE_NAME} data source. See {@link CustomFieldFetchStrategy} for details.
+ * Setting the {@link #FIELD_NAMES_PROPERTY} system property discards all but the named custom
+ * fields as soon as they are loaded. Setting the {@link #FETCH_ASYNC_TIMEOUT_PROPERTY} system
+ * property starts fetching custom fields in the background as soon as a formatter is created,
+ * rather than lazily, and waits at most that many milliseconds for them when they are first used.
+ * </p>
+ * 
+ * <p>
+ * Setting the {@link #FETCH_DEADLINE_PROPERTY} system property bounds the time rendering waits for
+ * custom fields, and the {@link #FETCH_MAX_CONCURRENT_PROPERTY} system property the number of
+ * custom field queries run at once. Once the deadline passes the invoice renders with any expired
+ * cached custom fields, or none. See {@link CustomFieldFetchGuard} for details.
+ * </p>
+ * 
+ * <p>
+ * Concurrent lookups of the same account custom fields, for example while formatting several
+ * invoices of a busy account at once, share a single fetch.
+ * </p>
+ * 
+ * <p>
+ * The {@code createInvoiceFormatters()} methods create formatters for many invoices at once,
+ * fetching the custom fields of each account just once and in parallel.
+ * </p>
+ * 
+ * <p>
+ * Formatter creation, custom field fetching, and the formatter attributes are all reported to a
+ * {@link FormatterMetrics}, which does nothing by default. Custom field fetches are also emitted
+ * as {@link FlightRecorderEvents}.
+ * </p>
+ * 
  * @author matt
+ * @version 2
  */
 public class SolarNetworkInvoiceFormatterFactory implements InvoiceFormatterFactory {
 
+  /**
+   * The system property for the maximum number of accounts to cache custom fields for.
+   * 
+   * @since 2
+   */
+  public static final String CACHE_MAXIMUM_SIZE_PROPERTY = CustomFieldCache.MAXIMUM_SIZE_PROPERTY;
+
+  /**
+   * The system property for the maximum time to cache account custom fields, in milliseconds.
+   * 
+   * @since 2
+   */
+  public static final String CACHE_TIME_TO_LIVE_PROPERTY = CustomFieldCache.TIME_TO_LIVE_PROPERTY;
+
+  /**
+   * The system property for the age after which cached account custom fields are refreshed in the
+   * background, in milliseconds.
+   * 
+   * @since 2
+   */
+  public static final String CACHE_REFRESH_AFTER_PROPERTY = CustomFieldCache.REFRESH_AFTER_PROPERTY;
+
+  /**
+   * The system property for the custom field fetch scope, either {@literal account} or
+   * {@literal invoice}.
+   * 
+   * @since 2
+   */
+  public static final String FETCH_SCOPE_PROPERTY = CustomFieldFetchStrategy.SCOPE_PROPERTY;
+
+  /**
+   * The system property for the comma-delimited list of custom field names to keep, which can be
+   * suffixed by a period and a tenant record ID to configure a single tenant.
+   * 
+   * @since 2
+   */
+  public static final String FIELD_NAMES_PROPERTY = CustomFieldNameFilter.NAMES_PROPERTY;
+
+  /**
+   * The system property for the asynchronous custom field fetch timeout, in milliseconds.
+   * 
+   * @since 2
+   */
+  public static final String FETCH_ASYNC_TIMEOUT_PROPERTY =
+      CustomFieldFetchStrategy.ASYNC_TIMEOUT_PROPERTY;
+
+  /**
+   * The system property for the custom field fetch deadline, in milliseconds.
+   * 
+   * @since 2
+   */
+  public static final String FETCH_DEADLINE_PROPERTY = CustomFieldFetchGuard.DEADLINE_PROPERTY;
+
+  /**
+   * The system property for the maximum number of concurrent custom field fetches.
+   * 
+   * @since 2
+   */
+  public static final String FETCH_MAX_CONCURRENT_PROPERTY =
+      CustomFieldFetchGuard.MAX_CONCURRENT_PROPERTY;
+
+  /**
+   * The system property for the number of threads to create batches of formatters with.
+   * 
+   * @since 2
+   */
+  public static final String BATCH_PARALLELISM_PROPERTY =
+      InvoiceFormatterBatch.PARALLELISM_PROPERTY;
+
+  /**
+   * The name of the Kill Bill data source to query the custom fields of many objects at once with.
+   * 
+   * @since 2
+   */
+  public static final String DATA_SOURCE_NAME = "main";
+
   private final CustomFieldDao customFieldDao;
+  private final CustomFieldBatchQuery batchQuery;
+  private final CustomFieldCache<TenantAccountKey<Long>> customFieldCache;
+  private final CustomFieldFetchStrategy fetchStrategy;
+  private final AsyncCustomFieldFetcher asyncFetcher;
+  private final FormatterMetrics metrics;
+  private final CustomFieldCache.Listener cacheListener;
 
   public SolarNetworkInvoiceFormatterFactory() {
     this(null);
   }
 
-  @Inject
   public SolarNetworkInvoiceFormatterFactory(CustomFieldDao customFieldDao) {
+    this(customFieldDao, (DataSource) null);
+  }
+
+  /**
+   * Constructor.
+   * 
+   * <p>
+   * A cache and fetch strategy configured from system properties will be used.
+   * </p>
+   * 
+   * @param customFieldDao
+   *          the custom field DAO
+   * @param dataSource
+   *          the Kill Bill data source to query the custom fields of many objects at once with, or
+   *          {@literal null} to query each object with {@code customFieldDao}
+   * @since 2
+   */
+  @Inject
+  public SolarNetworkInvoiceFormatterFactory(CustomFieldDao customFieldDao,
+      @Named(DATA_SOURCE_NAME) DataSource dataSource) {
+    this(customFieldDao, dataSource != null ? new CustomFieldBatchQuery(dataSource) : null,
+        CustomFieldCache.fromProperties(System::getProperty),
+        CustomFieldFetchStrategy.fromProperties(System::getProperty), null);
+  }
+
+  /**
+   * Constructor.
+   * 
+   * @param customFieldDao
+   *          the custom field DAO
+   * @param customFieldCache
+   *          the cache of account custom fields
+   * @since 2
+   */
+  public SolarNetworkInvoiceFormatterFactory(CustomFieldDao customFieldDao,
+      CustomFieldCache<TenantAccountKey<Long>> customFieldCache) {
+    this(customFieldDao, customFieldCache, null);
+  }
+
+  /**
+   * Constructor.
+   * 
+   * @param customFieldDao
+   *          the custom field DAO
+   * @param customFieldCache
+   *          the cache of account custom fields
+   * @param metrics
+   *          the metrics to record to, or {@literal null} to not record metrics
+   * @since 2
+   */
+  public SolarNetworkInvoiceFormatterFactory(CustomFieldDao customFieldDao,
+      CustomFieldCache<TenantAccountKey<Long>> customFieldCache, FormatterMetrics metrics) {
+    this(customFieldDao, customFieldCache, null, metrics);
+  }
+
+  /**
+   * Constructor.
+   * 
+   * @param customFieldDao
+   *          the custom field DAO
+   * @param customFieldCache
+   *          the cache of account custom fields
+   * @param fetchStrategy
+   *          the custom field fetch strategy, or {@literal null} to fetch all account custom
+   *          fields
+   * @param metrics
+   *          the metrics to record to, or {@literal null} to not record metrics
+   * @since 2
+   */
+  public SolarNetworkInvoiceFormatterFactory(CustomFieldDao customFieldDao,
+      CustomFieldCache<TenantAccountKey<Long>> customFieldCache,
+      CustomFieldFetchStrategy fetchStrategy, FormatterMetrics metrics) {
+    this(customFieldDao, null, customFieldCache, fetchStrategy, metrics);
+  }
+
+  /**
+   * Constructor.
+   * 
+   * @param customFieldDao
+   *          the custom field DAO
+   * @param batchQuery
+   *          the query for the custom fields of many objects at once, or {@literal null} to query
+   *          each object with {@code customFieldDao}
+   * @param customFieldCache
+   *          the cache of account custom fields
+   * @param fetchStrategy
+   *          the custom field fetch strategy, or {@literal null} to fetch all account custom
+   *          fields
+   * @param metrics
+   *          the metrics to record to, or {@literal null} to not record metrics
+   * @since 2
+   */
+  public SolarNetworkInvoiceFormatterFactory(CustomFieldDao customFieldDao,
+      CustomFieldBatchQuery batchQuery, CustomFieldCache<TenantAccountKey<Long>> customFieldCache,
+      CustomFieldFetchStrategy fetchStrategy, FormatterMetrics metrics) {
     super();
     this.customFieldDao = customFieldDao;
+    this.batchQuery = batchQuery;
+    this.customFieldCache = customFieldCache;
+    this.fetchStrategy = (fetchStrategy != null ? fetchStrategy
+        : CustomFieldFetchStrategy.ACCOUNT);
+    this.asyncFetcher = (this.fetchStrategy.getAsyncTimeout() > 0
+        ? new AsyncCustomFieldFetcher(AsyncCustomFieldFetcher.defaultExecutor(),
+            this.fetchStrategy.getAsyncTimeout())
+        : null);
+    this.metrics = (metrics != null ? metrics : FormatterMetrics.NONE);
+    this.cacheListener = new CustomFieldCacheMetrics(this.metrics);
   }
 
   @Override
   public InvoiceFormatter createInvoiceFormatter(TranslatorConfig config, Invoice invoice,
       Locale locale, CurrencyConversionApi currencyConversionApi,
       ResourceBundleFactory bundleFactory, InternalTenantContext context) {
-    List<CustomField> customFields = null;
-    if (this.customFieldDao != null) {
-      List<CustomFieldModelDao> fields = this.customFieldDao.getCustomFieldsForAccount(context);
-      if (fields != null) {
-        customFields = fields.stream().map(f -> new StringCustomField(f)).collect(toList());
+    return createFormatter(config, invoice, locale, currencyConversionApi, bundleFactory, context,
+        null);
+  }
+
+  private InvoiceFormatter createFormatter(TranslatorConfig config, Invoice invoice, Locale locale,
+      CurrencyConversionApi currencyConversionApi, ResourceBundleFactory bundleFactory,
+      InternalTenantContext context, Supplier<List<CustomField>> prefetched) {
+    final long start = metrics.startTimer();
+    final Supplier<List<CustomField>> customFields = (prefetched != null ? prefetched
+        : this.customFieldDao != null ? customFieldsSupplier(invoice, context) : null);
+    InvoiceFormatter result = new SolarNetworkInvoiceFormatter(config, invoice, locale,
+        currencyConversionApi, bundleFactory, context, customFields, metrics);
+    metrics.stopTimer(FormatterMetrics.CREATE_FORMATTER, start);
+    return result;
+  }
+
+  private Supplier<List<CustomField>> customFieldsSupplier(Invoice invoice,
+      InternalTenantContext context) {
+    final Supplier<List<CustomField>> loader = guardedCustomFields(invoice, context);
+    if (asyncFetcher == null) {
+      return loader;
+    }
+    return asyncFetcher.fetch(loader,
+        () -> metrics.increment(FormatterMetrics.CUSTOM_FIELD_TIMEOUTS));
+  }
+
+  private Supplier<List<CustomField>> guardedCustomFields(Invoice invoice,
+      InternalTenantContext context) {
+    return fetchStrategy.getGuard().guard(() -> customFields(invoice, context),
+        () -> staleCustomFields(invoice, context),
+        () -> metrics.increment(FormatterMetrics.CUSTOM_FIELD_DEGRADED));
+  }
+
+  /**
+   * Create formatters for a batch of invoices.
+   * 
+   * <p>
+   * The custom fields of each distinct account are fetched once, up front, in parallel, and the
+   * formatters are created in parallel, on a bounded pool of threads created for the batch. The
+   * pool size can be configured with the {@link #BATCH_PARALLELISM_PROPERTY} system property.
+   * </p>
+   * 
+   * @param config
+   *          the translator configuration
+   * @param invoices
+   *          the invoices to create formatters for
+   * @param locale
+   *          the locale to format the invoices with
+   * @param currencyConversionApi
+   *          the currency conversion API
+   * @param bundleFactory
+   *          the resource bundle factory
+   * @param contexts
+   *          a function to get the tenant context of each invoice
+   * @return the formatters, in the same order as {@code invoices}
+   * @since 2
+   */
+  public List<InvoiceFormatter> createInvoiceFormatters(TranslatorConfig config,
+      List<? extends Invoice> invoices, Locale locale,
+      CurrencyConversionApi currencyConversionApi, ResourceBundleFactory bundleFactory,
+      Function<? super Invoice, InternalTenantContext> contexts) {
+    return createInvoiceFormatters(config, invoices, locale, currencyConversionApi, bundleFactory,
+        contexts, null);
+  }
+
+  /**
+   * Create formatters for a batch of invoices.
+   * 
+   * <p>
+   * The custom fields of each distinct account are fetched once, up front, in parallel, and the
+   * formatters are created in parallel.
+   * </p>
+   * 
+   * @param config
+   *          the translator configuration
+   * @param invoices
+   *          the invoices to create formatters for
+   * @param locale
+   *          the locale to format the invoices with
+   * @param currencyConversionApi
+   *          the currency conversion API
+   * @param bundleFactory
+   *          the resource bundle factory
+   * @param contexts
+   *          a function to get the tenant context of each invoice
+   * @param executor
+   *          the executor to fetch custom fields and create formatters with, or {@literal null}
+   *          to use a bounded pool of threads created for the batch
+   * @return the formatters, in the same order as {@code invoices}
+   * @since 2
+   */
+  public List<InvoiceFormatter> createInvoiceFormatters(TranslatorConfig config,
+      List<? extends Invoice> invoices, Locale locale,
+      CurrencyConversionApi currencyConversionApi, ResourceBundleFactory bundleFactory,
+      Function<? super Invoice, InternalTenantContext> contexts, Executor executor) {
+    final long start = metrics.startTimer();
+    final Map<Invoice, InternalTenantContext> invoiceContexts = new IdentityHashMap<>(
+        invoices.size());
+    for (Invoice invoice : invoices) {
+      invoiceContexts.put(invoice, contexts.apply(invoice));
+    }
+    final Function<Invoice, Object> prefetchKey = invoice -> {
+      final InternalTenantContext context = invoiceContexts.get(invoice);
+      if (customFieldDao == null || context == null || context.getAccountRecordId() == null) {
+        return null;
+      }
+      return (fetchStrategy.getScope() == CustomFieldFetchStrategy.Scope.INVOICE ? invoice
+          : TenantAccountKey.of(context.getTenantRecordId(), context.getAccountRecordId()));
+    };
+    final Function<Invoice, List<CustomField>> prefetch = invoice -> guardedCustomFields(invoice,
+        invoiceContexts.get(invoice)).get();
+    final BiFunction<Invoice, Supplier<List<CustomField>>, InvoiceFormatter> creator = (invoice,
+        fields) -> createFormatter(config, invoice, locale, currencyConversionApi, bundleFactory,
+            invoiceContexts.get(invoice), fields);
+    final List<InvoiceFormatter> result = (executor != null
+        ? InvoiceFormatterBatch.create(invoices, prefetchKey, prefetch, creator, executor)
+        : InvoiceFormatterBatch.create(invoices, prefetchKey, prefetch, creator,
+            InvoiceFormatterBatch.parallelism(System::getProperty)));
+    metrics.stopTimer(FormatterMetrics.CREATE_BATCH, start);
+    return result;
+  }
+
+  private List<CustomField> customFields(Invoice invoice, InternalTenantContext context) {
+    List<CustomField> customFields;
+    final Long tenantRecordId = context.getTenantRecordId();
+    final Long accountRecordId = context.getAccountRecordId();
+    // the cache may run the loaders as background refreshes, so they must not hold on to the
+    // invoice; the internal context is an immutable holder of the tenant and account
+    final UUID invoiceId = invoice.getId();
+    final UUID accountId = invoice.getAccountId();
+    final int itemCount = invoice.getNumberOfItems();
+    final Executor refreshExecutor = fetchStrategy.getGuard().getBackgroundExecutor();
+    if (fetchStrategy.getScope() == CustomFieldFetchStrategy.Scope.INVOICE && accountId != null) {
+      final CustomFieldCache<TenantAccountKey<Long>> cache = (accountRecordId != null
+          ? customFieldCache
+          : null);
+      customFields = CustomFieldFetchStrategy.fetch(invoice, cache,
+          id -> TenantAccountKey.of(tenantRecordId, accountRecordId, id),
+          ids -> loadObjectCustomFields(invoiceId, accountId, itemCount, ids, context),
+          cacheListener, refreshExecutor);
+    } else if (customFieldCache != null && accountRecordId != null) {
+      customFields = customFieldCache.get(TenantAccountKey.of(tenantRecordId, accountRecordId),
+          k -> loadCustomFields(invoiceId, accountId, itemCount, context), cacheListener,
+          refreshExecutor);
+    } else {
+      customFields = loadCustomFields(invoiceId, accountId, itemCount, context);
+    }
+    metrics.recordValue(FormatterMetrics.CUSTOM_FIELD_COUNT,
+        customFields != null ? customFields.size() : 0);
+    return customFields;
+  }
+
+  private List<CustomField> staleCustomFields(Invoice invoice, InternalTenantContext context) {
+    final Long accountRecordId = context.getAccountRecordId();
+    if (accountRecordId == null) {
+      return Collections.emptyList();
+    }
+    if (fetchStrategy.getScope() == CustomFieldFetchStrategy.Scope.INVOICE
+        && invoice.getAccountId() != null) {
+      return CustomFieldFetchStrategy.stale(invoice, customFieldCache,
+          id -> TenantAccountKey.of(context.getTenantRecordId(), accountRecordId, id));
+    }
+    final List<CustomField> stale = (customFieldCache != null ? customFieldCache
+        .getStale(TenantAccountKey.of(context.getTenantRecordId(), accountRecordId)) : null);
+    return (stale != null ? stale : Collections.emptyList());
+  }
+
+  private List<CustomField> loadCustomFields(UUID invoiceId, UUID accountId, int itemCount,
+      InternalTenantContext context) {
+    final long start = metrics.startTimer();
+    final Object event = FlightRecorderEvents.begin();
+    List<CustomFieldModelDao> fields = null;
+    try {
+      fields = this.customFieldDao.getCustomFieldsForAccount(context);
+      if (fields == null) {
+        return null;
+      }
+      return customFields(fields, context);
+    } finally {
+      metrics.stopTimer(FormatterMetrics.FETCH_CUSTOM_FIELDS, start);
+      FlightRecorderEvents.commit(event, FlightRecorderEvents.PHASE_FETCH, invoiceId, accountId,
+          itemCount, fields != null ? fields.size() : 0);
+    }
+  }
+
+  private Map<UUID, List<CustomField>> loadObjectCustomFields(UUID invoiceId, UUID accountId,
+      int itemCount, Set<UUID> objectIds, InternalTenantContext context) {
+    final long start = metrics.startTimer();
+    final Object event = FlightRecorderEvents.begin();
+    Map<UUID, List<CustomField>> fields = null;
+    try {
+      fields = fetchStrategy.load(accountId, objectIds,
+          new CustomFieldFetchStrategy.Source() {
+
+            @Override
+            public List<CustomField> getCustomFieldsForObject(UUID objectId,
+                ObjectType objectType) {
+              return customFields(
+                  customFieldDao.getCustomFieldsForObject(objectId, objectType, context), context);
+            }
+
+            @Override
+            public Map<UUID, List<CustomField>> getCustomFieldsForObjects(
+                Map<UUID, ObjectType> objects) {
+              if (batchQuery == null) {
+                return CustomFieldFetchStrategy.Source.super.getCustomFieldsForObjects(objects);
+              }
+              final Map<UUID, List<CustomField>> result = new LinkedHashMap<>(objects.size());
+              batchQuery.getCustomFieldsForTenantRecordId(context.getTenantRecordId(), objects)
+                  .forEach((id, l) -> result.put(id, fetchStrategy.getNameFilter()
+                      .filter(context.getTenantRecordId(), l, CustomField::getFieldName)));
+              return result;
+            }
+
+          });
+      return fields;
+    } finally {
+      metrics.stopTimer(FormatterMetrics.FETCH_CUSTOM_FIELDS, start);
+      FlightRecorderEvents.commit(event, FlightRecorderEvents.PHASE_FETCH, invoiceId, accountId,
+          itemCount, fields != null ? fields.values().stream().mapToInt(List::size).sum() : 0);
+    }
+  }
+
+  private List<CustomField> customFields(List<CustomFieldModelDao> fields,
+      InternalTenantContext context) {
+    if (fields == null) {
+      return null;
+    }
+    return fetchStrategy.getNameFilter()
+        .filter(context.getTenantRecordId(), fields, CustomFieldModelDao::getFieldName).stream()
+        .map(f -> new StringCustomField(f)).collect(toList());
+  }
+
+  /**
+   * Discard any cached custom fields for an account.
+   * 
+   * @param tenantRecordId
+   *          the tenant record ID
+   * @param accountRecordId
+   *          the account record ID
+   * @since 2
+   */
+  public void invalidateCustomFields(Long tenantRecordId, Long accountRecordId) {
+    if (customFieldCache != null && accountRecordId != null) {
+      if (fetchStrategy.getScope() == CustomFieldFetchStrategy.Scope.INVOICE) {
+        customFieldCache.invalidateIf(k -> k.isAccount(tenantRecordId, accountRecordId));
+      } else {
+        customFieldCache.invalidate(TenantAccountKey.of(tenantRecordId, accountRecordId));
       }
     }
-    return new SolarNetworkInvoiceFormatter(config, invoice, locale, currencyConversionApi,
-        bundleFactory, context, customFields);
+  }
+
+  /**
+   * Discard any cached custom fields for all accounts of a tenant.
+   * 
+   * @param tenantRecordId
+   *          the tenant record ID
+   * @since 2
+   */
+  public void invalidateTenantCustomFields(Long tenantRecordId) {
+    if (customFieldCache != null) {
+      customFieldCache.invalidateIf(k -> k.isTenant(tenantRecordId));
+    }
+  }
+
+  /**
+   * Discard all cached custom fields.
+   * 
+   * @since 2
+   */
+  public void invalidateAllCustomFields() {
+    if (customFieldCache != null) {
+      customFieldCache.invalidateAll();
+    }
+  }
+
+  /**
+   * Get the account custom field cache.
+   * 
+   * @return the cache, or {@literal null} if caching is disabled
+   * @since 2
+   */
+  public CustomFieldCache<TenantAccountKey<Long>> getCustomFieldCache() {
+    return customFieldCache;
+  }
+
+  /**
+   * Get the custom field fetch strategy.
+   * 
+   * @return the strategy, never {@literal null}
+   * @since 2
+   */
+  public CustomFieldFetchStrategy getFetchStrategy() {
+    return fetchStrategy;
+  }
+
+  /**
+   * Get the metrics.
+   * 
+   * @return the metrics, never {@literal null}
+   * @since 2
+   */
+  public FormatterMetrics getMetrics() {
+    return metrics;
   }
 
 }
@@ -0,0 +1,150 @@
+/*  Copyright 2020 SolarNetwork Foundation
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.solarnetwork.billing.killbill.invoice.metrics;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A {@link FormatterMetrics} that accumulates simple statistics in memory.
+ * 
+ * <p>
+ * Timers, counters, and histograms are all kept as a count, total, and maximum value, using
+ * lock-free accumulators so that recording never blocks. This is useful for tests and load tests,
+ * or when no metrics registry is available.
+ * </p>
+ * 
+ * @author matt
+ */
+public class AccumulatingFormatterMetrics implements FormatterMetrics {
+
+  private final ConcurrentMap<String, Stats> stats = new ConcurrentHashMap<>(16, 0.75f, 4);
+
+  /**
+   * The accumulated statistics of a single metric.
+   */
+  public static final class Stats {
+
+    private final LongAdder count = new LongAdder();
+    private final LongAdder total = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, Long.MIN_VALUE);
+
+    private void add(long value) {
+      count.increment();
+      total.add(value);
+      max.accumulate(value);
+    }
+
+    /**
+     * Get the number of recorded values.
+     * 
+     * @return the count
+     */
+    public long getCount() {
+      return count.sum();
+    }
+
+    /**
+     * Get the sum of all recorded values.
+     * 
+     * @return the total; timers are in nanoseconds
+     */
+    public long getTotal() {
+      return total.sum();
+    }
+
+    /**
+     * Get the maximum recorded value.
+     * 
+     * @return the maximum, or {@literal 0} if nothing has been recorded
+     */
+    public long getMax() {
+      return (getCount() > 0 ? max.get() : 0);
+    }
+
+    /**
+     * Get the mean recorded value.
+     * 
+     * @return the mean, or {@literal 0} if nothing has been recorded
+     */
+    public double getMean() {
+      long n = getCount();
+      return (n > 0 ? (double) getTotal() / n : 0);
+    }
+
+    @Override
+    public String toString() {
+      return "Stats{count=" + getCount() + ",total=" + getTotal() + ",max=" + getMax() + "}";
+    }
+
+  }
+
+  private Stats stats(String name) {
+    Stats s = stats.get(name);
+    if (s == null) {
+      s = stats.computeIfAbsent(name, k -> new Stats());
+    }
+    return s;
+  }
+
+  @Override
+  public void recordTime(String name, long nanos) {
+    stats(name).add(nanos);
+  }
+
+  @Override
+  public void increment(String name) {
+    stats(name).add(1);
+  }
+
+  @Override
+  public void recordValue(String name, long value) {
+    stats(name).add(value);
+  }
+
+  /**
+   * Get the statistics of a metric.
+   * 
+   * @param name
+   *          the metric name
+   * @return the statistics, or {@literal null} if nothing has been recorded for {@code name}
+   */
+  public Stats getStats(String name) {
+    return stats.get(name);
+  }
+
+  /**
+   * Get the statistics of all metrics.
+   * 
+   * @return the statistics, sorted by name
+   */
+  public Map<String, Stats> getAllStats() {
+    return Collections.unmodifiableMap(new TreeMap<>(stats));
+  }
+
+  /**
+   * Discard all statistics.
+   */
+  public void clear() {
+    stats.clear();
+  }
+
+}
@@ -0,0 +1,115 @@
+/*  Copyright 2020 SolarNetwork Foundation
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.solarnetwork.billing.killbill.invoice.metrics;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+/**
+ * A {@link FormatterMetrics} that records to a Dropwizard {@link MetricRegistry}, like the one
+ * Kill Bill provides.
+ * 
+ * <p>
+ * Each metric is registered with the registry under its name prefixed by a configurable prefix.
+ * The registered metrics are cached, so recording does not look them up in the registry each time.
+ * </p>
+ * 
+ * @author matt
+ */
+public class DropwizardFormatterMetrics implements FormatterMetrics {
+
+  /** The default metric name prefix. */
+  public static final String DEFAULT_PREFIX = "net.solarnetwork.billing.killbill.invoice";
+
+  private final MetricRegistry registry;
+  private final String prefix;
+  private final ConcurrentMap<String, Timer> timers = new ConcurrentHashMap<>(16, 0.75f, 4);
+  private final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<>(4, 0.75f, 4);
+  private final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<>(4, 0.75f,
+      4);
+
+  /**
+   * Constructor.
+   * 
+   * <p>
+   * The {@link #DEFAULT_PREFIX} will be used.
+   * </p>
+   * 
+   * @param registry
+   *          the registry
+   */
+  public DropwizardFormatterMetrics(MetricRegistry registry) {
+    this(registry, DEFAULT_PREFIX);
+  }
+
+  /**
+   * Constructor.
+   * 
+   * @param registry
+   *          the registry
+   * @param prefix
+   *          the metric name prefix
+   */
+  public DropwizardFormatterMetrics(MetricRegistry registry, String prefix) {
+    super();
+    this.registry = registry;
+    this.prefix = prefix;
+  }
+
+  @Override
+  public void recordTime(String name, long nanos) {
+    Timer t = timers.get(name);
+    if (t == null) {
+      t = timers.computeIfAbsent(name, k -> registry.timer(MetricRegistry.name(prefix, k)));
+    }
+    t.update(nanos, TimeUnit.NANOSECONDS);
+  }
+
+  @Override
+  public void increment(String name) {
+    Counter c = counters.get(name);
+    if (c == null) {
+      c = counters.computeIfAbsent(name, k -> registry.counter(MetricRegistry.name(prefix, k)));
+    }
+    c.inc();
+  }
+
+  @Override
+  public void recordValue(String name, long value) {
+    Histogram h = histograms.get(name);
+    if (h == null) {
+      h = histograms.computeIfAbsent(name,
+          k -> registry.histogram(MetricRegistry.name(prefix, k)));
+    }
+    h.update(value);
+  }
+
+  /**
+   * Get the registry.
+   * 
+   * @return the registry
+   */
+  public MetricRegistry getRegistry() {
+    return registry;
+  }
+
+}
@@ -0,0 +1,263 @@
+/*  Copyright 2020 SolarNetwork Foundation
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.solarnetwork.billing.killbill.invoice.metrics;
+
+import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Emit Java Flight Recorder (JFR) events for invoice formatting phases.
+ * 
+ * <p>
+ * Each event records the phase name and duration along with the invoice ID, account ID, item
+ * count, and custom field count of the invoice being formatted, so latency can be correlated with
+ * the shape of invoices. The events are named {@link #EVENT_NAME} and can be enabled like any other
+ * JFR event.
+ * </p>
+ * 
+ * <p>
+ * This plugin targets Java 8, so the event type is defined at runtime via the
+ * {@code jdk.jfr.EventFactory} API, accessed through method handles. On runtimes without that API
+ * all methods do nothing. When the API is available but no recording has enabled the event,
+ * {@link #begin()} returns {@literal null} after a single check, and nothing else is done.
+ * </p>
+ * 
+ * @author matt
+ */
+public final class FlightRecorderEvents {
+
+  /** The JFR event name. */
+  public static final String EVENT_NAME =
+      "net.solarnetwork.billing.killbill.invoice.FormatterPhase";
+
+  /** The phase for fetching account custom fields. */
+  public static final String PHASE_FETCH = "fetch";
+
+  /** The phase for wrapping invoice items with extended items. */
+  public static final String PHASE_WRAP = "wrap";
+
+  /** The phase for partitioning invoice items into tax and non-tax items. */
+  public static final String PHASE_PARTITION = "partition";
+
+  /** The phase for sorting invoice items. */
+  public static final String PHASE_SORT = "sort";
+
+  /** The phase for grouping invoice items. */
+  public static final String PHASE_GROUP = "group";
+
+  /** The phase for formatting currency amounts. */
+  public static final String PHASE_FORMAT = "format";
+
+  // the event field indexes, in the order the fields are defined
+  private static final int PHASE_FIELD = 0;
+  private static final int INVOICE_ID_FIELD = 1;
+  private static final int ACCOUNT_ID_FIELD = 2;
+  private static final int ITEM_COUNT_FIELD = 3;
+  private static final int CUSTOM_FIELD_COUNT_FIELD = 4;
+
+  private static final Support SUPPORT = Support.create();
+
+  private FlightRecorderEvents() {
+    // not available
+  }
+
+  /**
+   * The method handles to the JFR API.
+   */
+  private static final class Support {
+
+    private final MethodHandle isEnabled;
+    private final MethodHandle newEvent;
+    private final MethodHandle begin;
+    private final MethodHandle end;
+    private final MethodHandle shouldCommit;
+    private final MethodHandle set;
+    private final MethodHandle commit;
+
+    private Support(MethodHandle isEnabled, MethodHandle newEvent, MethodHandle begin,
+        MethodHandle end, MethodHandle shouldCommit, MethodHandle set, MethodHandle commit) {
+      super();
+      this.isEnabled = isEnabled;
+      this.newEvent = newEvent;
+      this.begin = begin;
+      this.end = end;
+      this.shouldCommit = shouldCommit;
+      this.set = set;
+      this.commit = commit;
+    }
+
+    private static Support create() {
+      try {
+        final Class<?> eventClass = Class.forName("jdk.jfr.Event");
+        final Class<?> eventTypeClass = Class.forName("jdk.jfr.EventType");
+        final Class<?> factoryClass = Class.forName("jdk.jfr.EventFactory");
+        final Constructor<?> annotation = Class.forName("jdk.jfr.AnnotationElement")
+            .getConstructor(Class.class, Object.class);
+        final Constructor<?> field = Class.forName("jdk.jfr.ValueDescriptor")
+            .getConstructor(Class.class, String.class, List.class);
+        final Class<? extends Annotation> name = annotationClass("jdk.jfr.Name");
+        final Class<? extends Annotation> label = annotationClass("jdk.jfr.Label");
+        final Class<? extends Annotation> category = annotationClass("jdk.jfr.Category");
+        final Class<? extends Annotation> description = annotationClass("jdk.jfr.Description");
+
+        final List<Object> eventAnnotations = Arrays.asList(
+            annotation.newInstance(name, EVENT_NAME),
+            annotation.newInstance(label, "Invoice Formatter Phase"),
+            annotation.newInstance(category, new String[] { "SolarNetwork", "Kill Bill" }),
+            annotation.newInstance(description,
+                "A phase of formatting an invoice, such as fetching custom fields."));
+        final List<Object> fields = Arrays.asList(
+            field.newInstance(String.class, "phase",
+                Collections.singletonList(annotation.newInstance(label, "Phase"))),
+            field.newInstance(String.class, "invoiceId",
+                Collections.singletonList(annotation.newInstance(label, "Invoice ID"))),
+            field.newInstance(String.class, "accountId",
+                Collections.singletonList(annotation.newInstance(label, "Account ID"))),
+            field.newInstance(int.class, "itemCount",
+                Collections.singletonList(annotation.newInstance(label, "Item Count"))),
+            field.newInstance(int.class, "customFieldCount",
+                Collections.singletonList(annotation.newInstance(label, "Custom Field Count"))));
+
+        final Object factory = factoryClass.getMethod("create", List.class, List.class)
+            .invoke(null, eventAnnotations, fields);
+        final Object eventType = factoryClass.getMethod("getEventType").invoke(factory);
+
+        final MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+        final MethodType voidEvent = MethodType.methodType(void.class, Object.class);
+        return new Support(
+            lookup.findVirtual(eventTypeClass, "isEnabled", MethodType.methodType(boolean.class))
+                .bindTo(eventType),
+            lookup.findVirtual(factoryClass, "newEvent", MethodType.methodType(eventClass))
+                .bindTo(factory).asType(MethodType.methodType(Object.class)),
+            lookup.findVirtual(eventClass, "begin", MethodType.methodType(void.class))
+                .asType(voidEvent),
+            lookup.findVirtual(eventClass, "end", MethodType.methodType(void.class))
+                .asType(voidEvent),
+            lookup.findVirtual(eventClass, "shouldCommit", MethodType.methodType(boolean.class))
+                .asType(MethodType.methodType(boolean.class, Object.class)),
+            lookup
+                .findVirtual(eventClass, "set",
+                    MethodType.methodType(void.class, int.class, Object.class))
+                .asType(MethodType.methodType(void.class, Object.class, int.class, Object.class)),
+            lookup.findVirtual(eventClass, "commit", MethodType.methodType(void.class))
+                .asType(voidEvent));
+      } catch (Throwable t) {
+        // JFR not available
+        return null;
+      }
+    }
+
+    private static Class<? extends Annotation> annotationClass(String name)
+        throws ClassNotFoundException {
+      return Class.forName(name).asSubclass(Annotation.class);
+    }
+
+  }
+
+  /**
+   * Test if the JFR event API is available in this runtime.
+   * 
+   * @return {@literal true} if events can be emitted
+   */
+  public static boolean isAvailable() {
+    return SUPPORT != null;
+  }
+
+  /**
+   * Test if the phase event is enabled in any running recording.
+   * 
+   * @return {@literal true} if events will be recorded
+   */
+  public static boolean isEnabled() {
+    final Support s = SUPPORT;
+    if (s == null) {
+      return false;
+    }
+    try {
+      return (boolean) s.isEnabled.invokeExact();
+    } catch (Throwable t) {
+      return false;
+    }
+  }
+
+  /**
+   * Begin a phase event.
+   * 
+   * @return the event, to pass to
+   *         {@link #commit(Object, String, UUID, UUID, int, int)}, or {@literal null} if events
+   *         are not enabled
+   */
+  public static Object begin() {
+    if (!isEnabled()) {
+      return null;
+    }
+    final Support s = SUPPORT;
+    try {
+      Object event = s.newEvent.invokeExact();
+      s.begin.invokeExact(event);
+      return event;
+    } catch (Throwable t) {
+      return null;
+    }
+  }
+
+  /**
+   * End and commit a phase event.
+   * 
+   * @param event
+   *          the event returned from {@link #begin()}; if {@literal null} nothing will be done
+   * @param phase
+   *          the phase name, for example {@link #PHASE_FETCH}
+   * @param invoiceId
+   *          the invoice ID
+   * @param accountId
+   *          the account ID
+   * @param itemCount
+   *          the number of invoice items
+   * @param customFieldCount
+   *          the number of account custom fields, or {@literal -1} if they have not been loaded
+   */
+  public static void commit(Object event, String phase, UUID invoiceId, UUID accountId,
+      int itemCount, int customFieldCount) {
+    if (event == null) {
+      return;
+    }
+    final Support s = SUPPORT;
+    try {
+      s.end.invokeExact(event);
+      if ((boolean) s.shouldCommit.invokeExact(event)) {
+        s.set.invokeExact(event, PHASE_FIELD, (Object) phase);
+        s.set.invokeExact(event, INVOICE_ID_FIELD,
+            (Object) (invoiceId != null ? invoiceId.toString() : null));
+        s.set.invokeExact(event, ACCOUNT_ID_FIELD,
+            (Object) (accountId != null ? accountId.toString() : null));
+        s.set.invokeExact(event, ITEM_COUNT_FIELD, (Object) itemCount);
+        s.set.invokeExact(event, CUSTOM_FIELD_COUNT_FIELD, (Object) customFieldCount);
+        s.commit.invokeExact(event);
+      }
+    } catch (Throwable t) {
+      // ignore, events are best effort
+    }
+  }
+
+}
@@ -0,0 +1,205 @@
+/*  Copyright 2020 SolarNetwork Foundation
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.solarnetwork.billing.killbill.invoice.metrics;
+
+/**
+ * API for recording invoice formatter metrics.
+ * 
+ * <p>
+ * The factories and formatter helper report the time spent creating formatters, fetching custom
+ * fields, wrapping invoice items, and computing each extended attribute, along with the number of
+ * custom fields and items involved. The metric names are defined by the constants in this
+ * interface. Implementations must be thread-safe, and should be cheap enough to call for every
+ * formatted invoice.
+ * </p>
+ * 
+ * @author matt
+ */
+public interface FormatterMetrics {
+
+  /**
+   * The timer for creating a formatter, which does not include fetching custom fields as they are
+   * loaded lazily.
+   */
+  String CREATE_FORMATTER = "formatter.create";
+
+  /**
+   * The timer for creating a batch of formatters, including prefetching their custom fields.
+   */
+  String CREATE_BATCH = "formatter.createBatch";
+
+  /**
+   * The timer for fetching account custom fields, which happens only on a cache miss when custom
+   * fields are first used.
+   */
+  String FETCH_CUSTOM_FIELDS = "customFields.fetch";
+
+  /**
+   * The counter for asynchronous custom field fetches that timed out, so the invoice was rendered
+   * without custom fields.
+   */
+  String CUSTOM_FIELD_TIMEOUTS = "customFields.timeouts";
+
+  /**
+   * The counter for custom field lookups that waited for the same fields being fetched by another
+   * thread, rather than fetching them again.
+   */
+  String CUSTOM_FIELD_COALESCED = "customFields.coalesced";
+
+  /**
+   * The timer for waiting on custom fields being fetched by another thread.
+   */
+  String CUSTOM_FIELD_COALESCE_WAIT = "customFields.coalesceWait";
+
+  /**
+   * The counter for custom field fetches that missed the fetch guard deadline, so the invoice was
+   * rendered with stale cached custom fields, or none.
+   */
+  String CUSTOM_FIELD_DEGRADED = "customFields.degraded";
+
+  /**
+   * The counter for custom fields served stale from cache while being refreshed in the background.
+   */
+  String CUSTOM_FIELD_STALE = "customFields.stale";
+
+  /**
+   * The counter for background custom field refreshes that failed.
+   */
+  String CUSTOM_FIELD_REFRESH_FAILURES = "customFields.refreshFailures";
+
+  /** The counter for account custom fields served from cache. */
+  String CUSTOM_FIELD_CACHE_HITS = "customFields.cacheHits";
+
+  /** The histogram of the number of custom fields per formatter. */
+  String CUSTOM_FIELD_COUNT = "customFields.count";
+
+  /** The timer for wrapping the invoice items as extended items. */
+  String WRAP_ITEMS = "items.wrap";
+
+  /** The histogram of the number of items per invoice. */
+  String ITEM_COUNT = "items.count";
+
+  /**
+   * The counter for formatters that derived their sorted and grouped items from an invoice item
+   * layout computed ahead of time.
+   */
+  String ITEM_LAYOUT_HITS = "items.layoutHits";
+
+  /**
+   * The timer for preparing the custom fields and item layout of an invoice ahead of rendering it.
+   */
+  String PREWARM = "formatter.prewarm";
+
+  /**
+   * The counter for failures preparing an invoice ahead of rendering it.
+   */
+  String PREWARM_FAILURES = "formatter.prewarmFailures";
+
+  /**
+   * The timer for rendering the first synthetic invoice of a warm-up.
+   */
+  String WARMUP_FIRST_RENDER = "warmup.firstRender";
+
+  /**
+   * The timer for the mean time to render a synthetic invoice at the end of a warm-up.
+   */
+  String WARMUP_WARM_RENDER = "warmup.warmRender";
+
+  /** The timer name prefix for computing extended attributes. */
+  String ATTRIBUTE_PREFIX = "attribute.";
+
+  /**
+   * Metrics that do nothing.
+   */
+  FormatterMetrics NONE = new FormatterMetrics() {
+
+    @Override
+    public long startTimer() {
+      return 0;
+    }
+
+    @Override
+    public void stopTimer(String name, long start) {
+      // nothing
+    }
+
+    @Override
+    public void recordTime(String name, long nanos) {
+      // nothing
+    }
+
+    @Override
+    public void increment(String name) {
+      // nothing
+    }
+
+    @Override
+    public void recordValue(String name, long value) {
+      // nothing
+    }
+
+  };
+
+  /**
+   * Record a duration to a timer.
+   * 
+   * @param name
+   *          the timer name
+   * @param nanos
+   *          the duration, in nanoseconds
+   */
+  void recordTime(String name, long nanos);
+
+  /**
+   * Increment a counter.
+   * 
+   * @param name
+   *          the counter name
+   */
+  void increment(String name);
+
+  /**
+   * Record a value to a histogram.
+   * 
+   * @param name
+   *          the histogram name
+   * @param value
+   *          the value
+   */
+  void recordValue(String name, long value);
+
+  /**
+   * Start timing something.
+   * 
+   * @return the start time, to pass to {@link #stopTimer(String, long)}
+   */
+  default long startTimer() {
+    return System.nanoTime();
+  }
+
+  /**
+   * Record the time elapsed since {@link #startTimer()} to a timer.
+   * 
+   * @param name
+   *          the timer name
+   * @param start
+   *          the start time returned from {@link #startTimer()}
+   */
+  default void stopTimer(String name, long start) {
+    recordTime(name, System.nanoTime() - start);
+  }
+
+}
@@ -17,34 +17,102 @@ package net.solarnetwork.billing.killbill.invoice.notification;
 
 import java.util.Hashtable;
 
+import javax.sql.DataSource;
+
 import org.killbill.billing.osgi.libs.killbill.KillbillActivatorBase;
 import org.killbill.billing.plugin.notification.api.InvoiceFormatterFactory;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.ServiceRegistration;
 
+import com.codahale.metrics.MetricRegistry;
+
+import net.solarnetwork.billing.killbill.invoice.core.AsyncCustomFieldFetcher;
+import net.solarnetwork.billing.killbill.invoice.core.CustomFieldBatchQuery;
+import net.solarnetwork.billing.killbill.invoice.core.CustomFieldCache;
+import net.solarnetwork.billing.killbill.invoice.core.CustomFieldFetchStrategy;
+import net.solarnetwork.billing.killbill.invoice.core.InvoiceItemLayoutCache;
+import net.solarnetwork.billing.killbill.invoice.metrics.DropwizardFormatterMetrics;
+import net.solarnetwork.billing.killbill.invoice.metrics.FormatterMetrics;
+
 /**
  * OSGi plugin activator.
  * 
+ * <p>
+ * Formatter metrics are recorded to the Kill Bill metric registry, when one is available. When
+ * the {@link InvoicePrewarmEventHandler#ENABLED_PROPERTY} configuration property is
+ * {@literal true}, new invoices are prepared for rendering as soon as Kill Bill creates them.
+ * </p>
+ * 
+ * <p>
+ * When the {@link FormatterWarmup#ENABLED_PROPERTY} configuration property is {@literal true}, a
+ * {@link FormatterWarmup} is run on a background thread after the factory is registered, so the
+ * first invoices rendered after starting are not slowed down by loading and compiling the
+ * formatter code.
+ * </p>
+ * 
  * @author matt
  */
 public class Activator extends KillbillActivatorBase {
 
   private SolarNetworkInvoiceFormatterFactory factory;
   private ServiceRegistration<InvoiceFormatterFactory> registration = null;
+  private Thread warmupThread = null;
 
   @Override
   public void start(final BundleContext context) throws Exception {
     super.start(context);
 
-    factory = new SolarNetworkInvoiceFormatterFactory(killbillAPI.getCustomFieldUserApi());
+    final boolean prewarm = InvoicePrewarmEventHandler.isEnabled(configProperties::getString);
+    factory = new SolarNetworkInvoiceFormatterFactory(killbillAPI.getCustomFieldUserApi(),
+        createBatchQuery(), CustomFieldCache.fromProperties(configProperties::getString),
+        CustomFieldFetchStrategy.fromProperties(configProperties::getString), createMetrics(),
+        prewarm ? InvoiceItemLayoutCache.fromProperties(configProperties::getString) : null);
+    if (prewarm) {
+      dispatcher.registerEventHandlers(new CustomFieldCacheEventHandler(factory),
+          new InvoicePrewarmEventHandler(factory, killbillAPI.getInvoiceUserApi(),
+              AsyncCustomFieldFetcher.defaultExecutor()));
+    } else {
+      dispatcher.registerEventHandlers(new CustomFieldCacheEventHandler(factory));
+    }
 
     Hashtable<String, Object> properties = new Hashtable<>();
     registration = context.registerService(InvoiceFormatterFactory.class, factory, properties);
+
+    if (FormatterWarmup.isEnabled(configProperties::getString)) {
+      warmupThread = new Thread(
+          FormatterWarmup.fromProperties(configProperties::getString, factory.getMetrics()),
+          "InvoiceFormatterWarmup");
+      warmupThread.setDaemon(true);
+      warmupThread.setPriority(Thread.MIN_PRIORITY);
+      warmupThread.start();
+    }
+  }
+
+  private CustomFieldBatchQuery createBatchQuery() {
+    final DataSource ds = (dataSource != null ? dataSource.getDataSource() : null);
+    return (ds != null ? new CustomFieldBatchQuery(ds) : null);
+  }
+
+  private FormatterMetrics createMetrics() {
+    try {
+      MetricRegistry registry = (metricRegistry != null ? metricRegistry.getMetricRegistry()
+          : null);
+      if (registry != null) {
+        return new DropwizardFormatterMetrics(registry);
+      }
+    } catch (NoClassDefFoundError e) {
+      // the metrics API is an optional import, so might not be available
+    }
+    return FormatterMetrics.NONE;
   }
 
   @Override
   public void stop(BundleContext context) throws Exception {
     super.stop(context);
+    if (warmupThread != null) {
+      warmupThread.interrupt();
+      warmupThread = null;
+    }
     if (registration != null) {
       registration.unregister();
       registration = null;
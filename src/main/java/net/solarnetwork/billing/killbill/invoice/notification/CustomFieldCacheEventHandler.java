@@ -0,0 +1,66 @@
+/*  Copyright 2020 SolarNetwork Foundation
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.solarnetwork.billing.killbill.invoice.notification;
+
+import org.killbill.billing.notification.plugin.api.ExtBusEvent;
+import org.killbill.billing.notification.plugin.api.ExtBusEventType;
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillEventDispatcher.OSGIKillbillEventHandler;
+
+/**
+ * Kill Bill event handler that discards cached account custom fields when custom fields change.
+ * 
+ * <p>
+ * Kill Bill publishes {@link ExtBusEventType#CUSTOM_FIELD_CREATION} and
+ * {@link ExtBusEventType#CUSTOM_FIELD_DELETION} events, but no event when a custom field value is
+ * updated in place, so the cache time to live remains the upper bound on how long an updated
+ * value can go unnoticed.
+ * </p>
+ * 
+ * @author matt
+ */
+public class CustomFieldCacheEventHandler implements OSGIKillbillEventHandler {
+
+  private final SolarNetworkInvoiceFormatterFactory factory;
+
+  /**
+   * Constructor.
+   * 
+   * @param factory
+   *          the factory whose cache should be invalidated
+   */
+  public CustomFieldCacheEventHandler(SolarNetworkInvoiceFormatterFactory factory) {
+    super();
+    this.factory = factory;
+  }
+
+  @Override
+  public void handleKillbillEvent(ExtBusEvent event) {
+    if (event == null || !isCustomFieldEvent(event.getEventType())) {
+      return;
+    }
+    if (event.getAccountId() != null) {
+      factory.invalidateCustomFields(event.getTenantId(), event.getAccountId());
+    } else {
+      factory.invalidateTenantCustomFields(event.getTenantId());
+    }
+  }
+
+  private static boolean isCustomFieldEvent(ExtBusEventType type) {
+    return (type == ExtBusEventType.CUSTOM_FIELD_CREATION
+        || type == ExtBusEventType.CUSTOM_FIELD_DELETION);
+  }
+
+}
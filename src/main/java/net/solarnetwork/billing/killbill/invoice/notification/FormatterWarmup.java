@@ -0,0 +1,777 @@
+/*  Copyright 2020 SolarNetwork Foundation
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package net.solarnetwork.billing.killbill.invoice.notification;
+
+import static net.solarnetwork.billing.killbill.invoice.core.InvoiceFormatterProperties.PROPERTY_PREFIX;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.UUID;
+import java.util.function.Function;
+
+import org.joda.time.DateTime;
+import org.joda.time.LocalDate;
+import org.killbill.billing.ObjectType;
+import org.killbill.billing.catalog.api.Currency;
+import org.killbill.billing.invoice.api.Invoice;
+import org.killbill.billing.invoice.api.InvoiceItem;
+import org.killbill.billing.invoice.api.InvoiceItemType;
+import org.killbill.billing.invoice.api.InvoicePayment;
+import org.killbill.billing.invoice.api.InvoiceStatus;
+import org.killbill.billing.util.customfield.CustomField;
+import org.killbill.billing.util.customfield.StringCustomField;
+
+import net.solarnetwork.billing.killbill.invoice.api.ExtendedInvoiceItemFormatter;
+import net.solarnetwork.billing.killbill.invoice.metrics.FormatterMetrics;
+
+/**
+ * Warm up the formatter code paths by rendering synthetic invoices.
+ * 
+ * <p>
+ * The first invoices formatted after Kill Bill starts are much slower than later ones, because the
+ * locale and currency data, the formatter classes, and the item sorting and grouping code have not
+ * been loaded or compiled yet. This class renders a fixed number of synthetic invoices, cycling
+ * through every configured locale and currency, and accessing all the extended attributes like a
+ * template would. The synthetic invoices never reach Kill Bill or the custom field cache, but the
+ * currency formats they use are cached for real invoices.
+ * </p>
+ * 
+ * <p>
+ * The time taken by the first render and the mean time of the last tenth of the renders are
+ * reported as the {@link FormatterMetrics#WARMUP_FIRST_RENDER} and
+ * {@link FormatterMetrics#WARMUP_WARM_RENDER} timers, so the benefit of the warm-up can be seen.
+ * </p>
+ * 
+ * @author matt
+ */
+public class FormatterWarmup implements Runnable {
+
+  /** The configuration property to enable the warm-up, as {@literal true} or {@literal false}. */
+  public static final String ENABLED_PROPERTY = PROPERTY_PREFIX + "warmup.enabled";
+
+  /** The configuration property for a comma-delimited list of locale language tags. */
+  public static final String LOCALES_PROPERTY = PROPERTY_PREFIX + "warmup.locales";
+
+  /** The configuration property for a comma-delimited list of currency codes. */
+  public static final String CURRENCIES_PROPERTY = PROPERTY_PREFIX + "warmup.currencies";
+
+  /** The configuration property for the number of invoices to render. */
+  public static final String RENDERS_PROPERTY = PROPERTY_PREFIX + "warmup.renders";
+
+  /** The configuration property for the number of items per invoice. */
+  public static final String ITEM_COUNT_PROPERTY = PROPERTY_PREFIX + "warmup.itemCount";
+
+  /** The default locales. */
+  public static final String DEFAULT_LOCALES = "en-US";
+
+  /** The default currencies. */
+  public static final String DEFAULT_CURRENCIES = "USD";
+
+  /** The default number of invoices to render. */
+  public static final int DEFAULT_RENDERS = 500;
+
+  /** The default number of items per invoice. */
+  public static final int DEFAULT_ITEM_COUNT = 50;
+
+  private static final String[] TAX_DESCRIPTIONS = new String[] { "GST", "VAT", "State Tax" };
+  private static final int SUBSCRIPTION_COUNT = 5;
+
+  private final List<Locale> locales;
+  private final List<Currency> currencies;
+  private final int renders;
+  private final int itemCount;
+  private final FormatterMetrics metrics;
+  private volatile long sink;
+
+  /**
+   * The outcome of a warm-up.
+   */
+  public static final class Result {
+
+    private final int renders;
+    private final long firstRenderNanos;
+    private final long warmRenderNanos;
+
+    private Result(int renders, long firstRenderNanos, long warmRenderNanos) {
+      super();
+      this.renders = renders;
+      this.firstRenderNanos = firstRenderNanos;
+      this.warmRenderNanos = warmRenderNanos;
+    }
+
+    /**
+     * Get the number of invoices rendered.
+     * 
+     * @return the render count, which is less than requested if the warm-up was interrupted
+     */
+    public int getRenders() {
+      return renders;
+    }
+
+    /**
+     * Get the time taken to render the first invoice.
+     * 
+     * @return the time, in nanoseconds
+     */
+    public long getFirstRenderNanos() {
+      return firstRenderNanos;
+    }
+
+    /**
+     * Get the mean time taken to render each of the last tenth of the invoices.
+     * 
+     * @return the time, in nanoseconds
+     */
+    public long getWarmRenderNanos() {
+      return warmRenderNanos;
+    }
+
+  }
+
+  /**
+   * Constructor.
+   * 
+   * @param locales
+   *          the locales to render invoices with
+   * @param currencies
+   *          the currencies of the invoices to render
+   * @param renders
+   *          the number of invoices to render
+   * @param itemCount
+   *          the number of items per invoice
+   * @param metrics
+   *          the metrics to report the render times to, or {@literal null}
+   * @throws IllegalArgumentException
+   *           if {@code locales} or {@code currencies} is empty
+   */
+  public FormatterWarmup(List<Locale> locales, List<Currency> currencies, int renders,
+      int itemCount, FormatterMetrics metrics) {
+    super();
+    if (locales == null || locales.isEmpty()) {
+      throw new IllegalArgumentException("At least one locale is required.");
+    }
+    if (currencies == null || currencies.isEmpty()) {
+      throw new IllegalArgumentException("At least one currency is required.");
+    }
+    this.locales = Collections.unmodifiableList(new ArrayList<>(locales));
+    this.currencies = Collections.unmodifiableList(new ArrayList<>(currencies));
+    this.renders = Math.max(1, renders);
+    this.itemCount = Math.max(1, itemCount);
+    this.metrics = (metrics != null ? metrics : FormatterMetrics.NONE);
+  }
+
+  /**
+   * Test if the warm-up is enabled by the {@link #ENABLED_PROPERTY} configuration property.
+   * 
+   * @param properties
+   *          a function that returns a property value for a given property name, or
+   *          {@literal null} if not defined
+   * @return {@literal true} if the warm-up is enabled
+   */
+  public static boolean isEnabled(Function<String, String> properties) {
+    String value = properties.apply(ENABLED_PROPERTY);
+    return (value != null && Boolean.parseBoolean(value.trim()));
+  }
+
+  /**
+   * Create a warm-up configured from the {@link #LOCALES_PROPERTY},
+   * {@link #CURRENCIES_PROPERTY}, {@link #RENDERS_PROPERTY}, and {@link #ITEM_COUNT_PROPERTY}
+   * properties.
+   * 
+   * <p>
+   * Missing or invalid property values are replaced by their defaults. Unknown currency codes are
+   * ignored.
+   * </p>
+   * 
+   * @param properties
+   *          a function that returns a property value for a given property name, or
+   *          {@literal null} if not defined
+   * @param metrics
+   *          the metrics to report the render times to, or {@literal null}
+   * @return the new warm-up
+   */
+  public static FormatterWarmup fromProperties(Function<String, String> properties,
+      FormatterMetrics metrics) {
+    List<Locale> locales = new ArrayList<>();
+    for (String tag : list(properties.apply(LOCALES_PROPERTY), DEFAULT_LOCALES)) {
+      locales.add(Locale.forLanguageTag(tag.replace('_', '-')));
+    }
+    List<Currency> currencies = new ArrayList<>();
+    for (String code : list(properties.apply(CURRENCIES_PROPERTY), DEFAULT_CURRENCIES)) {
+      try {
+        currencies.add(Currency.fromCode(code));
+      } catch (IllegalArgumentException e) {
+        // ignore unsupported currency
+      }
+    }
+    if (currencies.isEmpty()) {
+      currencies.add(Currency.fromCode(DEFAULT_CURRENCIES));
+    }
+    return new FormatterWarmup(locales, currencies,
+        intProperty(properties, RENDERS_PROPERTY, DEFAULT_RENDERS),
+        intProperty(properties, ITEM_COUNT_PROPERTY, DEFAULT_ITEM_COUNT), metrics);
+  }
+
+  private static List<String> list(String value, String defaultValue) {
+    List<String> result = new ArrayList<>();
+    if (value != null) {
+      for (String s : value.split(",")) {
+        s = s.trim();
+        if (!s.isEmpty()) {
+          result.add(s);
+        }
+      }
+    }
+    if (result.isEmpty()) {
+      result.add(defaultValue);
+    }
+    return result;
+  }
+
+  private static int intProperty(Function<String, String> properties, String key,
+      int defaultValue) {
+    String value = properties.apply(key);
+    if (value != null) {
+      try {
+        return Integer.parseInt(value.trim());
+      } catch (NumberFormatException e) {
+        // ignore and use default
+      }
+    }
+    return defaultValue;
+  }
+
+  @Override
+  public void run() {
+    warmUp();
+  }
+
+  /**
+   * Render the synthetic invoices.
+   * 
+   * <p>
+   * The warm-up stops early if the calling thread is interrupted.
+   * </p>
+   * 
+   * @return the result
+   */
+  public Result warmUp() {
+    final int combinations = locales.size() * currencies.size();
+    final List<Invoice> invoices = new ArrayList<>(currencies.size());
+    final List<CustomField> customFields = new ArrayList<>();
+    final UUID accountId = new UUID(0L, 1L);
+    for (int i = 0; i < currencies.size(); i++) {
+      invoices.add(invoice(accountId, i, currencies.get(i), customFields));
+    }
+    final int warmFrom = renders - Math.max(1, renders / 10);
+    long firstRender = 0;
+    long warmTotal = 0;
+    int count = 0;
+    for (; count < renders && !Thread.currentThread().isInterrupted(); count++) {
+      final int combination = count % combinations;
+      final Locale locale = locales.get(combination / currencies.size());
+      final Invoice invoice = invoices.get(combination % currencies.size());
+      final long start = System.nanoTime();
+      render(new SolarNetworkInvoiceFormatter(Collections.emptyMap(), invoice, locale,
+          customFields));
+      final long elapsed = System.nanoTime() - start;
+      if (count == 0) {
+        firstRender = elapsed;
+        metrics.recordTime(FormatterMetrics.WARMUP_FIRST_RENDER, elapsed);
+      } else if (count >= warmFrom) {
+        warmTotal += elapsed;
+      }
+    }
+    final int warmCount = count - warmFrom;
+    final long warmRender = (warmCount > 0 ? warmTotal / warmCount : firstRender);
+    if (warmCount > 0) {
+      metrics.recordTime(FormatterMetrics.WARMUP_WARM_RENDER, warmRender);
+    }
+    return new Result(count, firstRender, warmRender);
+  }
+
+  /**
+   * Access all the attributes of a formatter, as a template would.
+   * 
+   * @param formatter
+   *          the formatter to render
+   */
+  private void render(SolarNetworkInvoiceFormatter formatter) {
+    long h = 0;
+    for (InvoiceItem item : formatter.getInvoiceItems()) {
+      h += hash(((ExtendedInvoiceItemFormatter) item).getFormattedAmount());
+      h += ((ExtendedInvoiceItemFormatter) item).getSubscriptionCustomFields().size();
+    }
+    for (InvoiceItem item : formatter.getNonTaxInvoiceItemsSortedBySubscriptionCustomFields()) {
+      h += hash(item.getDescription());
+    }
+    for (InvoiceItem item : formatter.getTaxInvoiceItemsGroupedByDescription()) {
+      h += hash(((ExtendedInvoiceItemFormatter) item).getFormattedAmount());
+    }
+    h += hash(formatter.getFormattedTaxAmount());
+    h += hash(formatter.getFormattedNonTaxChargedAmount());
+    h += hash(formatter.getBasicFormattedBalance());
+    h += hash(formatter.getBasicFormattedPaidAmount());
+    h += hash(formatter.getFormattedBalance());
+    h += formatter.getCustomFields().size();
+    sink += h;
+  }
+
+  /**
+   * Get the locales to render invoices with.
+   * 
+   * @return the locales
+   */
+  public List<Locale> getLocales() {
+    return locales;
+  }
+
+  /**
+   * Get the currencies of the invoices to render.
+   * 
+   * @return the currencies
+   */
+  public List<Currency> getCurrencies() {
+    return currencies;
+  }
+
+  /**
+   * Get the number of invoices to render.
+   * 
+   * @return the render count
+   */
+  public int getRenders() {
+    return renders;
+  }
+
+  /**
+   * Get the number of items per invoice.
+   * 
+   * @return the item count
+   */
+  public int getItemCount() {
+    return itemCount;
+  }
+
+  private static int hash(String s) {
+    return (s != null ? s.hashCode() : 0);
+  }
+
+  private Invoice invoice(UUID accountId, int index, Currency currency,
+      List<CustomField> customFields) {
+    final Random rng = new Random(index);
+    final UUID invoiceId = new UUID(1L, index);
+    final DateTime now = new DateTime(0L);
+    final LocalDate date = new LocalDate(2020, 1, 1);
+    final List<UUID> subscriptionIds = new ArrayList<>(SUBSCRIPTION_COUNT);
+    for (int i = 0; i < SUBSCRIPTION_COUNT; i++) {
+      UUID subscriptionId = new UUID(2L, i);
+      subscriptionIds.add(subscriptionId);
+      if (index == 0) {
+        customFields.add(new StringCustomField("node", String.valueOf(i),
+            ObjectType.SUBSCRIPTION, subscriptionId, now));
+        customFields.add(new StringCustomField("source", "Source " + (SUBSCRIPTION_COUNT - i),
+            ObjectType.SUBSCRIPTION, subscriptionId, now));
+      }
+    }
+
+    final List<InvoiceItem> items = new ArrayList<>(itemCount);
+    BigDecimal total = BigDecimal.ZERO;
+    for (int i = 0; i < itemCount; i++) {
+      final BigDecimal amount = BigDecimal.valueOf(rng.nextInt(100000), 2);
+      total = total.add(amount);
+      final WarmupInvoiceItem item;
+      if (i % 10 == 9) {
+        item = new WarmupInvoiceItem(new UUID(3L, i), invoiceId, accountId, now, date,
+            InvoiceItemType.TAX, TAX_DESCRIPTIONS[rng.nextInt(TAX_DESCRIPTIONS.length)], null,
+            amount, currency);
+      } else {
+        item = new WarmupInvoiceItem(new UUID(3L, i), invoiceId, accountId, now, date,
+            InvoiceItemType.USAGE, "Usage " + rng.nextInt(10),
+            subscriptionIds.get(rng.nextInt(SUBSCRIPTION_COUNT)), amount, currency);
+      }
+      items.add(item);
+    }
+    return new WarmupInvoice(invoiceId, accountId, index + 1, now, date, currency,
+        Collections.unmodifiableList(items), total);
+  }
+
+  /**
+   * A synthetic invoice.
+   * 
+   * <p>
+   * This is a plain class, rather than a dynamic proxy or mock, so the formatter code compiled
+   * during the warm-up sees the same kind of concrete invoice classes Kill Bill provides.
+   * </p>
+   */
+  private static final class WarmupInvoice implements Invoice {
+
+    private final UUID id;
+    private final UUID accountId;
+    private final Integer invoiceNumber;
+    private final DateTime created;
+    private final LocalDate date;
+    private final Currency currency;
+    private final List<InvoiceItem> items;
+    private final BigDecimal total;
+
+    private WarmupInvoice(UUID id, UUID accountId, Integer invoiceNumber, DateTime created,
+        LocalDate date, Currency currency, List<InvoiceItem> items, BigDecimal total) {
+      super();
+      this.id = id;
+      this.accountId = accountId;
+      this.invoiceNumber = invoiceNumber;
+      this.created = created;
+      this.date = date;
+      this.currency = currency;
+      this.items = items;
+      this.total = total;
+    }
+
+    @Override
+    public UUID getId() {
+      return id;
+    }
+
+    @Override
+    public DateTime getCreatedDate() {
+      return created;
+    }
+
+    @Override
+    public DateTime getUpdatedDate() {
+      return created;
+    }
+
+    @Override
+    public boolean addInvoiceItem(InvoiceItem item) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean addInvoiceItems(Collection<InvoiceItem> items) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public List<InvoiceItem> getInvoiceItems() {
+      return items;
+    }
+
+    @Override
+    public <T extends InvoiceItem> List<InvoiceItem> getInvoiceItems(Class<T> clazz) {
+      List<InvoiceItem> result = new ArrayList<>(items.size());
+      for (InvoiceItem item : items) {
+        if (clazz.isInstance(item)) {
+          result.add(item);
+        }
+      }
+      return result;
+    }
+
+    @Override
+    public int getNumberOfItems() {
+      return items.size();
+    }
+
+    @Override
+    public boolean addPayment(InvoicePayment payment) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean addPayments(Collection<InvoicePayment> payments) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public List<InvoicePayment> getPayments() {
+      return Collections.emptyList();
+    }
+
+    @Override
+    public int getNumberOfPayments() {
+      return 0;
+    }
+
+    @Override
+    public UUID getAccountId() {
+      return accountId;
+    }
+
+    @Override
+    public Integer getInvoiceNumber() {
+      return invoiceNumber;
+    }
+
+    @Override
+    public LocalDate getInvoiceDate() {
+      return date;
+    }
+
+    @Override
+    public LocalDate getTargetDate() {
+      return date;
+    }
+
+    @Override
+    public Currency getCurrency() {
+      return currency;
+    }
+
+    @Override
+    public BigDecimal getPaidAmount() {
+      return BigDecimal.ZERO;
+    }
+
+    @Override
+    public BigDecimal getOriginalChargedAmount() {
+      return total;
+    }
+
+    @Override
+    public BigDecimal getChargedAmount() {
+      return total;
+    }
+
+    @Override
+    public BigDecimal getCreditedAmount() {
+      return BigDecimal.ZERO;
+    }
+
+    @Override
+    public BigDecimal getRefundedAmount() {
+      return BigDecimal.ZERO;
+    }
+
+    @Override
+    public BigDecimal getBalance() {
+      return total;
+    }
+
+    @Override
+    public boolean isMigrationInvoice() {
+      return false;
+    }
+
+    @Override
+    public InvoiceStatus getStatus() {
+      return InvoiceStatus.COMMITTED;
+    }
+
+    @Override
+    public boolean isParentInvoice() {
+      return false;
+    }
+
+    @Override
+    public UUID getParentAccountId() {
+      return null;
+    }
+
+    @Override
+    public UUID getParentInvoiceId() {
+      return null;
+    }
+
+    @Override
+    public List<String> getTrackingIds() {
+      return Collections.emptyList();
+    }
+
+  }
+
+  /**
+   * A synthetic invoice item.
+   */
+  private static final class WarmupInvoiceItem implements InvoiceItem {
+
+    private final UUID id;
+    private final UUID invoiceId;
+    private final UUID accountId;
+    private final DateTime created;
+    private final LocalDate startDate;
+    private final InvoiceItemType type;
+    private final String description;
+    private final UUID subscriptionId;
+    private final BigDecimal amount;
+    private final Currency currency;
+
+    private WarmupInvoiceItem(UUID id, UUID invoiceId, UUID accountId, DateTime created,
+        LocalDate startDate, InvoiceItemType type, String description, UUID subscriptionId,
+        BigDecimal amount, Currency currency) {
+      super();
+      this.id = id;
+      this.invoiceId = invoiceId;
+      this.accountId = accountId;
+      this.created = created;
+      this.startDate = startDate;
+      this.type = type;
+      this.description = description;
+      this.subscriptionId = subscriptionId;
+      this.amount = amount;
+      this.currency = currency;
+    }
+
+    @Override
+    public UUID getId() {
+      return id;
+    }
+
+    @Override
+    public DateTime getCreatedDate() {
+      return created;
+    }
+
+    @Override
+    public DateTime getUpdatedDate() {
+      return created;
+    }
+
+    @Override
+    public InvoiceItemType getInvoiceItemType() {
+      return type;
+    }
+
+    @Override
+    public UUID getInvoiceId() {
+      return invoiceId;
+    }
+
+    @Override
+    public UUID getAccountId() {
+      return accountId;
+    }
+
+    @Override
+    public UUID getChildAccountId() {
+      return null;
+    }
+
+    @Override
+    public LocalDate getStartDate() {
+      return startDate;
+    }
+
+    @Override
+    public LocalDate getEndDate() {
+      return startDate.plusMonths(1);
+    }
+
+    @Override
+    public BigDecimal getAmount() {
+      return amount;
+    }
+
+    @Override
+    public Currency getCurrency() {
+      return currency;
+    }
+
+    @Override
+    public String getDescription() {
+      return description;
+    }
+
+    @Override
+    public UUID getBundleId() {
+      return null;
+    }
+
+    @Override
+    public UUID getSubscriptionId() {
+      return subscriptionId;
+    }
+
+    @Override
+    public String getProductName() {
+      return null;
+    }
+
+    @Override
+    public String getPrettyProductName() {
+      return null;
+    }
+
+    @Override
+    public String getPlanName() {
+      return null;
+    }
+
+    @Override
+    public String getPrettyPlanName() {
+      return null;
+    }
+
+    @Override
+    public String getPhaseName() {
+      return null;
+    }
+
+    @Override
+    public String getPrettyPhaseName() {
+      return null;
+    }
+
+    @Override
+    public String getUsageName() {
+      return null;
+    }
+
+    @Override
+    public String getPrettyUsageName() {
+      return null;
+    }
+
+    @Override
+    public BigDecimal getRate() {
+      return null;
+    }
+
+    @Override
+    public UUID getLinkedItemId() {
+      return null;
+    }
+
+    @Override
+    public Integer getQuantity() {
+      return null;
+    }
+
+    @Override
+    public String getItemDetails() {
+      return null;
+    }
+
+    @Override
+    public DateTime getCatalogEffectiveDate() {
+      return null;
+    }
+
+    @Override
+    public boolean matches(Object other) {
+      return equals(other);
+    }
+
+  }
+
+}
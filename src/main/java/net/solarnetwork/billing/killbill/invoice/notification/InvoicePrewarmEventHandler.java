@@ -0,0 +1,138 @@
+/*  Copyright 2020 SolarNetwork Foundation
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package net.solarnetwork.billing.killbill.invoice.notification;
+
+import static net.solarnetwork.billing.killbill.invoice.core.InvoiceFormatterProperties.PROPERTY_PREFIX;
+
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
+
+import org.killbill.billing.invoice.api.Invoice;
+import org.killbill.billing.invoice.api.InvoiceApiException;
+import org.killbill.billing.invoice.api.InvoiceUserApi;
+import org.killbill.billing.notification.plugin.api.ExtBusEvent;
+import org.killbill.billing.notification.plugin.api.ExtBusEventType;
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillEventDispatcher.OSGIKillbillEventHandler;
+import org.killbill.billing.util.callcontext.TenantContext;
+
+import net.solarnetwork.billing.killbill.invoice.metrics.FormatterMetrics;
+
+/**
+ * Kill Bill event handler that prepares invoices for rendering as soon as they are created.
+ * 
+ * <p>
+ * Kill Bill publishes an {@link ExtBusEventType#INVOICE_CREATION} event before the email
+ * notifications plugin renders the new invoice. This handler reacts to that event by fetching the
+ * invoice and passing it to {@link SolarNetworkInvoiceFormatterFactory#prewarm(Invoice,
+ * TenantContext)} on an {@link Executor}, so the custom fields and item layout of the invoice are
+ * likely to be cached by the time the email is rendered. Failures are counted as
+ * {@link FormatterMetrics#PREWARM_FAILURES} and otherwise ignored, as rendering the invoice simply
+ * falls back to loading everything itself.
+ * </p>
+ * 
+ * @author matt
+ */
+public class InvoicePrewarmEventHandler implements OSGIKillbillEventHandler {
+
+  /** The configuration property to enable the handler, as {@literal true} or {@literal false}. */
+  public static final String ENABLED_PROPERTY = PROPERTY_PREFIX + "prewarm.enabled";
+
+  private final SolarNetworkInvoiceFormatterFactory factory;
+  private final InvoiceUserApi invoiceApi;
+  private final Executor executor;
+
+  /**
+   * Constructor.
+   * 
+   * @param factory
+   *          the factory to prepare invoices with
+   * @param invoiceApi
+   *          the invoice API to fetch invoices with
+   * @param executor
+   *          the executor to prepare invoices with
+   */
+  public InvoicePrewarmEventHandler(SolarNetworkInvoiceFormatterFactory factory,
+      InvoiceUserApi invoiceApi, Executor executor) {
+    super();
+    this.factory = factory;
+    this.invoiceApi = invoiceApi;
+    this.executor = executor;
+  }
+
+  /**
+   * Test if the handler is enabled by the {@link #ENABLED_PROPERTY} configuration property.
+   * 
+   * @param properties
+   *          a function that returns a property value for a given property name, or
+   *          {@literal null} if not defined
+   * @return {@literal true} if the handler is enabled
+   */
+  public static boolean isEnabled(Function<String, String> properties) {
+    String value = properties.apply(ENABLED_PROPERTY);
+    return (value != null && Boolean.parseBoolean(value.trim()));
+  }
+
+  @Override
+  public void handleKillbillEvent(ExtBusEvent event) {
+    if (event == null || event.getEventType() != ExtBusEventType.INVOICE_CREATION
+        || event.getObjectId() == null) {
+      return;
+    }
+    final EventTenantContext context = new EventTenantContext(event.getAccountId(),
+        event.getTenantId());
+    final UUID invoiceId = event.getObjectId();
+    try {
+      executor.execute(() -> prewarm(invoiceId, context));
+    } catch (RejectedExecutionException e) {
+      factory.getMetrics().increment(FormatterMetrics.PREWARM_FAILURES);
+    }
+  }
+
+  private void prewarm(UUID invoiceId, TenantContext context) {
+    try {
+      factory.prewarm(invoiceApi.getInvoice(invoiceId, context), context);
+    } catch (InvoiceApiException | RuntimeException e) {
+      factory.getMetrics().increment(FormatterMetrics.PREWARM_FAILURES);
+    }
+  }
+
+  private static final class EventTenantContext implements TenantContext {
+
+    private final UUID accountId;
+    private final UUID tenantId;
+
+    private EventTenantContext(UUID accountId, UUID tenantId) {
+      super();
+      this.accountId = accountId;
+      this.tenantId = tenantId;
+    }
+
+    @Override
+    public UUID getAccountId() {
+      return accountId;
+    }
+
+    @Override
+    public UUID getTenantId() {
+      return tenantId;
+    }
+
+  }
+
+}
@@ -27,12 +27,16 @@ import org.killbill.billing.plugin.notification.generator.formatters.DefaultInvo
 import org.killbill.billing.util.customfield.CustomField;
 
 import net.solarnetwork.billing.killbill.invoice.api.ExtendedInvoiceFormatter;
+import net.solarnetwork.billing.killbill.invoice.core.InvoiceItemLayout;
 import net.solarnetwork.billing.killbill.invoice.core.SolarNetworkInvoiceFormatterHelper;
+import net.solarnetwork.billing.killbill.invoice.metrics.FormatterMetrics;
+import net.solarnetwork.billing.killbill.invoice.util.MemoizingSupplier;
 
 /**
  * {@link ExtendedInvoiceFormatter} for use in the Kill Bill email notifications plugin.
  * 
  * @author matt
+ * @version 2
  */
 public class SolarNetworkInvoiceFormatter extends DefaultInvoiceFormatter
     implements ExtendedInvoiceFormatter, Supplier<List<InvoiceItem>> {
@@ -53,8 +57,54 @@ public class SolarNetworkInvoiceFormatter extends DefaultInvoiceFormatter
    */
   public SolarNetworkInvoiceFormatter(Map<String, String> translator, Invoice invoice,
       Locale locale, List<CustomField> customFields) {
+    this(translator, invoice, locale, MemoizingSupplier.ofValue(customFields), null);
+  }
+
+  /**
+   * Constructor.
+   * 
+   * @param translator
+   *          the available translations
+   * @param invoice
+   *          the invoice
+   * @param locale
+   *          the desired locale
+   * @param customFieldsSupplier
+   *          the supplier of the account custom fields (optional), which will not be invoked until
+   *          the custom fields are needed
+   * @param metrics
+   *          the metrics to record to (optional)
+   * @since 2
+   */
+  public SolarNetworkInvoiceFormatter(Map<String, String> translator, Invoice invoice,
+      Locale locale, Supplier<List<CustomField>> customFieldsSupplier, FormatterMetrics metrics) {
+    this(translator, invoice, locale, customFieldsSupplier, metrics, null);
+  }
+
+  /**
+   * Constructor.
+   * 
+   * @param translator
+   *          the available translations
+   * @param invoice
+   *          the invoice
+   * @param locale
+   *          the desired locale
+   * @param customFieldsSupplier
+   *          the supplier of the account custom fields (optional), which will not be invoked until
+   *          the custom fields are needed
+   * @param metrics
+   *          the metrics to record to (optional)
+   * @param layout
+   *          an item layout computed ahead of time for the invoice (optional)
+   * @since 2
+   */
+  public SolarNetworkInvoiceFormatter(Map<String, String> translator, Invoice invoice,
+      Locale locale, Supplier<List<CustomField>> customFieldsSupplier, FormatterMetrics metrics,
+      InvoiceItemLayout layout) {
     super(translator, invoice, locale);
-    this.delegate = new SolarNetworkInvoiceFormatterHelper(this, this, locale, customFields);
+    this.delegate = new SolarNetworkInvoiceFormatterHelper(this, this, locale,
+        customFieldsSupplier, metrics, layout);
   }
 
   @Override
@@ -122,4 +172,9 @@ public class SolarNetworkInvoiceFormatter extends DefaultInvoiceFormatter
     return delegate.getCustomFields();
   }
 
+  @Override
+  public Map<String, Object> getExtendedAttributes() {
+    return delegate.getExtendedAttributes();
+  }
+
 }
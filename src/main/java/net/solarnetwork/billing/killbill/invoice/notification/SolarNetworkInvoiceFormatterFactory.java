@@ -1,4 +1,4 @@
-/*  Copyright 2020 SolarNetwork Foundation
+/*  Copyright 2017 SolarNetwork Foundation
  *  
  *  Licensed under the Apache License, Version 2.0 (the "License");
  *  you may not use this file except in compliance with the License.
@@ -15,10 +15,19 @@
 
 package net.solarnetwork.billing.killbill.invoice.notification;
 
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
+import org.killbill.billing.ObjectType;
 import org.killbill.billing.invoice.api.Invoice;
 import org.killbill.billing.invoice.api.formatters.InvoiceFormatter;
 import org.killbill.billing.plugin.notification.api.InvoiceFormatterFactory;
@@ -26,34 +35,561 @@ import org.killbill.billing.util.api.CustomFieldUserApi;
 import org.killbill.billing.util.callcontext.TenantContext;
 import org.killbill.billing.util.customfield.CustomField;
 
+import net.solarnetwork.billing.killbill.invoice.core.AsyncCustomFieldFetcher;
+import net.solarnetwork.billing.killbill.invoice.core.CustomFieldBatchQuery;
+import net.solarnetwork.billing.killbill.invoice.core.CustomFieldCache;
+import net.solarnetwork.billing.killbill.invoice.core.CustomFieldCacheMetrics;
+import net.solarnetwork.billing.killbill.invoice.core.CustomFieldFetchStrategy;
+import net.solarnetwork.billing.killbill.invoice.core.InvoiceFormatterBatch;
+import net.solarnetwork.billing.killbill.invoice.core.InvoiceItemLayout;
+import net.solarnetwork.billing.killbill.invoice.core.InvoiceItemLayoutCache;
+import net.solarnetwork.billing.killbill.invoice.core.TenantAccountKey;
+import net.solarnetwork.billing.killbill.invoice.metrics.FlightRecorderEvents;
+import net.solarnetwork.billing.killbill.invoice.metrics.FormatterMetrics;
+import net.solarnetwork.billing.killbill.invoice.util.MemoizingSupplier;
+
 /**
  * Extended {@link InvoiceFormatterFactory} implementation.
  * 
+ * <p>
+ * Account custom fields are cached per tenant and account, so that sending many invoice emails
+ * for the same account only calls the {@link CustomFieldUserApi} once. Use a
+ * {@link CustomFieldCacheEventHandler} to discard cached fields when Kill Bill reports custom
+ * field changes. Custom fields are not fetched until a template first uses them, so templates that
+ * do not use custom fields never fetch them.
+ * </p>
+ * 
+ * <p>
+ * A {@link CustomFieldFetchStrategy} with the {@code INVOICE} scope can be configured to fetch only
+ * the account-level fields and the fields of the subscriptions on the invoice, rather than every
+ * custom field of the account, with a single query when a {@link CustomFieldBatchQuery} is
+ * configured. The strategy can also discard all but the named custom fields,
+ * configured per tenant, as soon as they are loaded, or fetch them in the background as soon as a
+ * formatter is created, with a timeout. A fetch deadline and concurrency limit can bound the time
+ * rendering waits for custom fields, rendering with any expired cached fields, or none, once the
+ * deadline passes.
+ * </p>
+ * 
+ * <p>
+ * The {@code createInvoiceFormatters()} methods create formatters for many invoices at once,
+ * fetching the custom fields of each account just once and in parallel.
+ * </p>
+ * 
+ * <p>
+ * The {@link #prewarm(Invoice, TenantContext)} method prepares an invoice ahead of rendering it,
+ * for example from an {@link InvoicePrewarmEventHandler} when the invoice is created. It loads the
+ * custom fields into the cache and, when an {@link InvoiceItemLayoutCache} is configured, caches
+ * the {@link InvoiceItemLayout} of the invoice so that formatters created for it soon after do not
+ * sort or group the items again.
+ * </p>
+ * 
+ * <p>
+ * Formatter creation, custom field fetching, and the formatter attributes are all reported to a
+ * {@link FormatterMetrics}, which does nothing by default. Custom field fetches are also emitted
+ * as {@link FlightRecorderEvents}.
+ * </p>
+ * 
  * @author matt
+ * @version 2
  */
 public class SolarNetworkInvoiceFormatterFactory implements InvoiceFormatterFactory {
 
   private final CustomFieldUserApi customFieldApi;
+  private final CustomFieldBatchQuery batchQuery;
+  private final CustomFieldCache<TenantAccountKey<UUID>> customFieldCache;
+  private final CustomFieldFetchStrategy fetchStrategy;
+  private final AsyncCustomFieldFetcher asyncFetcher;
+  private final FormatterMetrics metrics;
+  private final CustomFieldCache.Listener cacheListener;
+  private final InvoiceItemLayoutCache layoutCache;
 
   /**
    * Constructor.
    * 
+   * <p>
+   * A cache and fetch strategy configured from system properties will be used.
+   * </p>
+   * 
    * @param customFieldUserApi
    *          the custom field API to use
    */
   public SolarNetworkInvoiceFormatterFactory(CustomFieldUserApi customFieldUserApi) {
+    this(customFieldUserApi, CustomFieldCache.fromProperties(System::getProperty),
+        CustomFieldFetchStrategy.fromProperties(System::getProperty), null);
+  }
+
+  /**
+   * Constructor.
+   * 
+   * @param customFieldUserApi
+   *          the custom field API to use
+   * @param customFieldCache
+   *          the cache of account custom fields, or {@literal null} to disable caching
+   * @since 2
+   */
+  public SolarNetworkInvoiceFormatterFactory(CustomFieldUserApi customFieldUserApi,
+      CustomFieldCache<TenantAccountKey<UUID>> customFieldCache) {
+    this(customFieldUserApi, customFieldCache, null);
+  }
+
+  /**
+   * Constructor.
+   * 
+   * @param customFieldUserApi
+   *          the custom field API to use
+   * @param customFieldCache
+   *          the cache of account custom fields, or {@literal null} to disable caching
+   * @param metrics
+   *          the metrics to record to, or {@literal null} to not record metrics
+   * @since 2
+   */
+  public SolarNetworkInvoiceFormatterFactory(CustomFieldUserApi customFieldUserApi,
+      CustomFieldCache<TenantAccountKey<UUID>> customFieldCache, FormatterMetrics metrics) {
+    this(customFieldUserApi, customFieldCache, null, metrics);
+  }
+
+  /**
+   * Constructor.
+   * 
+   * @param customFieldUserApi
+   *          the custom field API to use
+   * @param customFieldCache
+   *          the cache of account custom fields, or {@literal null} to disable caching
+   * @param fetchStrategy
+   *          the custom field fetch strategy, or {@literal null} to fetch all account custom
+   *          fields
+   * @param metrics
+   *          the metrics to record to, or {@literal null} to not record metrics
+   * @since 2
+   */
+  public SolarNetworkInvoiceFormatterFactory(CustomFieldUserApi customFieldUserApi,
+      CustomFieldCache<TenantAccountKey<UUID>> customFieldCache,
+      CustomFieldFetchStrategy fetchStrategy, FormatterMetrics metrics) {
+    this(customFieldUserApi, customFieldCache, fetchStrategy, metrics, null);
+  }
+
+  /**
+   * Constructor.
+   * 
+   * @param customFieldUserApi
+   *          the custom field API to use
+   * @param customFieldCache
+   *          the cache of account custom fields, or {@literal null} to disable caching
+   * @param fetchStrategy
+   *          the custom field fetch strategy, or {@literal null} to fetch all account custom
+   *          fields
+   * @param metrics
+   *          the metrics to record to, or {@literal null} to not record metrics
+   * @param layoutCache
+   *          the cache of invoice item layouts computed by
+   *          {@link #prewarm(Invoice, TenantContext)}, or {@literal null} to not compute layouts
+   * @since 2
+   */
+  public SolarNetworkInvoiceFormatterFactory(CustomFieldUserApi customFieldUserApi,
+      CustomFieldCache<TenantAccountKey<UUID>> customFieldCache,
+      CustomFieldFetchStrategy fetchStrategy, FormatterMetrics metrics,
+      InvoiceItemLayoutCache layoutCache) {
+    this(customFieldUserApi, null, customFieldCache, fetchStrategy, metrics, layoutCache);
+  }
+
+  /**
+   * Constructor.
+   * 
+   * @param customFieldUserApi
+   *          the custom field API to use
+   * @param batchQuery
+   *          the query for the custom fields of many objects at once, or {@literal null} to query
+   *          each object with {@code customFieldUserApi}
+   * @param customFieldCache
+   *          the cache of account custom fields, or {@literal null} to disable caching
+   * @param fetchStrategy
+   *          the custom field fetch strategy, or {@literal null} to fetch all account custom
+   *          fields
+   * @param metrics
+   *          the metrics to record to, or {@literal null} to not record metrics
+   * @param layoutCache
+   *          the cache of invoice item layouts computed by
+   *          {@link #prewarm(Invoice, TenantContext)}, or {@literal null} to not compute layouts
+   * @since 2
+   */
+  public SolarNetworkInvoiceFormatterFactory(CustomFieldUserApi customFieldUserApi,
+      CustomFieldBatchQuery batchQuery, CustomFieldCache<TenantAccountKey<UUID>> customFieldCache,
+      CustomFieldFetchStrategy fetchStrategy, FormatterMetrics metrics,
+      InvoiceItemLayoutCache layoutCache) {
     super();
     this.customFieldApi = customFieldUserApi;
+    this.batchQuery = batchQuery;
+    this.customFieldCache = customFieldCache;
+    this.fetchStrategy = (fetchStrategy != null ? fetchStrategy
+        : CustomFieldFetchStrategy.ACCOUNT);
+    this.asyncFetcher = (this.fetchStrategy.getAsyncTimeout() > 0
+        ? new AsyncCustomFieldFetcher(AsyncCustomFieldFetcher.defaultExecutor(),
+            this.fetchStrategy.getAsyncTimeout())
+        : null);
+    this.metrics = (metrics != null ? metrics : FormatterMetrics.NONE);
+    this.cacheListener = new CustomFieldCacheMetrics(this.metrics);
+    this.layoutCache = layoutCache;
   }
 
   @Override
   public InvoiceFormatter createInvoiceFormatter(Map<String, String> translator, Invoice invoice,
       Locale locale, TenantContext context) {
-    List<CustomField> customFields = null;
-    if (customFieldApi != null) {
-      customFields = customFieldApi.getCustomFieldsForAccount(invoice.getAccountId(), context);
+    return createFormatter(translator, invoice, locale, context, null);
+  }
+
+  private InvoiceFormatter createFormatter(Map<String, String> translator, Invoice invoice,
+      Locale locale, TenantContext context, Supplier<List<CustomField>> prefetched) {
+    final long start = metrics.startTimer();
+    final Supplier<List<CustomField>> customFields = (prefetched != null ? prefetched
+        : customFieldApi != null ? customFieldsSupplier(invoice, context) : null);
+    final InvoiceItemLayout layout = (layoutCache != null ? layoutCache.get(invoice.getId())
+        : null);
+    InvoiceFormatter result = new SolarNetworkInvoiceFormatter(translator, invoice, locale,
+        customFields, metrics, layout);
+    metrics.stopTimer(FormatterMetrics.CREATE_FORMATTER, start);
+    return result;
+  }
+
+  private Supplier<List<CustomField>> customFieldsSupplier(Invoice invoice,
+      TenantContext context) {
+    final Supplier<List<CustomField>> loader = guardedCustomFields(invoice, context);
+    if (asyncFetcher == null) {
+      return loader;
+    }
+    return asyncFetcher.fetch(loader,
+        () -> metrics.increment(FormatterMetrics.CUSTOM_FIELD_TIMEOUTS));
+  }
+
+  private Supplier<List<CustomField>> guardedCustomFields(Invoice invoice, TenantContext context) {
+    return fetchStrategy.getGuard().guard(() -> customFields(invoice, context),
+        () -> staleCustomFields(invoice, context),
+        () -> metrics.increment(FormatterMetrics.CUSTOM_FIELD_DEGRADED));
+  }
+
+  /**
+   * Create formatters for a batch of invoices.
+   * 
+   * <p>
+   * The custom fields of each distinct account are fetched once, up front, in parallel, and the
+   * formatters are created in parallel, on a bounded pool of threads created for the batch. The
+   * pool size can be configured with the {@link InvoiceFormatterBatch#PARALLELISM_PROPERTY}
+   * system property.
+   * </p>
+   * 
+   * @param translator
+   *          the translations to use
+   * @param invoices
+   *          the invoices to create formatters for
+   * @param locale
+   *          the locale to format the invoices with
+   * @param context
+   *          the tenant context of the invoices
+   * @return the formatters, in the same order as {@code invoices}
+   * @since 2
+   */
+  public List<InvoiceFormatter> createInvoiceFormatters(Map<String, String> translator,
+      List<? extends Invoice> invoices, Locale locale, TenantContext context) {
+    return createInvoiceFormatters(translator, invoices, locale, context, null);
+  }
+
+  /**
+   * Create formatters for a batch of invoices.
+   * 
+   * <p>
+   * The custom fields of each distinct account are fetched once, up front, in parallel, and the
+   * formatters are created in parallel.
+   * </p>
+   * 
+   * @param translator
+   *          the translations to use
+   * @param invoices
+   *          the invoices to create formatters for
+   * @param locale
+   *          the locale to format the invoices with
+   * @param context
+   *          the tenant context of the invoices
+   * @param executor
+   *          the executor to fetch custom fields and create formatters with, or {@literal null}
+   *          to use a bounded pool of threads created for the batch
+   * @return the formatters, in the same order as {@code invoices}
+   * @since 2
+   */
+  public List<InvoiceFormatter> createInvoiceFormatters(Map<String, String> translator,
+      List<? extends Invoice> invoices, Locale locale, TenantContext context, Executor executor) {
+    final long start = metrics.startTimer();
+    final Function<Invoice, Object> prefetchKey = invoice -> {
+      if (customFieldApi == null || invoice.getAccountId() == null) {
+        return null;
+      }
+      return (fetchStrategy.getScope() == CustomFieldFetchStrategy.Scope.INVOICE ? invoice
+          : invoice.getAccountId());
+    };
+    final Function<Invoice, List<CustomField>> prefetch = invoice -> guardedCustomFields(invoice,
+        context).get();
+    final BiFunction<Invoice, Supplier<List<CustomField>>, InvoiceFormatter> creator = (invoice,
+        fields) -> createFormatter(translator, invoice, locale, context, fields);
+    final List<InvoiceFormatter> result = (executor != null
+        ? InvoiceFormatterBatch.create(invoices, prefetchKey, prefetch, creator, executor)
+        : InvoiceFormatterBatch.create(invoices, prefetchKey, prefetch, creator,
+            InvoiceFormatterBatch.parallelism(System::getProperty)));
+    metrics.stopTimer(FormatterMetrics.CREATE_BATCH, start);
+    return result;
+  }
+
+  /**
+   * Prepare an invoice ahead of rendering it.
+   * 
+   * <p>
+   * This loads the custom fields of the invoice into the custom field cache, and when a layout
+   * cache is configured computes and caches the {@link InvoiceItemLayout} of the invoice. The
+   * layout is computed from the untranslated invoice items, so formatters whose translations change
+   * the item descriptions sort and group the items themselves.
+   * </p>
+   * 
+   * @param invoice
+   *          the invoice to prepare
+   * @param context
+   *          the tenant context of the invoice
+   * @since 2
+   */
+  public void prewarm(Invoice invoice, TenantContext context) {
+    if (invoice == null) {
+      return;
     }
-    return new SolarNetworkInvoiceFormatter(translator, invoice, locale, customFields);
+    final long start = metrics.startTimer();
+    try {
+      final List<CustomField> fields = (customFieldApi != null ? customFields(invoice, context)
+          : null);
+      if (layoutCache != null && layoutCache.isEnabled() && invoice.getId() != null) {
+        SolarNetworkInvoiceFormatter formatter = new SolarNetworkInvoiceFormatter(
+            Collections.emptyMap(), invoice, Locale.getDefault(),
+            MemoizingSupplier.ofValue(fields), FormatterMetrics.NONE);
+        layoutCache.put(InvoiceItemLayout.of(formatter));
+      }
+    } finally {
+      metrics.stopTimer(FormatterMetrics.PREWARM, start);
+    }
+  }
+
+  private List<CustomField> customFields(Invoice invoice, TenantContext context) {
+    List<CustomField> customFields;
+    final UUID tenantId = context.getTenantId();
+    // the cache may run the loaders as background refreshes, so they must not hold on to the
+    // invoice or the caller's context
+    final UUID invoiceId = invoice.getId();
+    final UUID accountId = invoice.getAccountId();
+    final int itemCount = invoice.getNumberOfItems();
+    final TenantContext loadContext = new LoadContext(accountId, tenantId);
+    final Executor refreshExecutor = fetchStrategy.getGuard().getBackgroundExecutor();
+    if (fetchStrategy.getScope() == CustomFieldFetchStrategy.Scope.INVOICE && accountId != null) {
+      customFields = CustomFieldFetchStrategy.fetch(invoice, customFieldCache,
+          id -> TenantAccountKey.of(tenantId, accountId, id),
+          ids -> loadObjectCustomFields(invoiceId, accountId, itemCount, ids, loadContext),
+          cacheListener, refreshExecutor);
+    } else if (customFieldCache != null && accountId != null) {
+      customFields = customFieldCache.get(TenantAccountKey.of(tenantId, accountId),
+          k -> loadCustomFields(invoiceId, accountId, itemCount, loadContext), cacheListener,
+          refreshExecutor);
+    } else {
+      customFields = loadCustomFields(invoiceId, accountId, itemCount, context);
+    }
+    metrics.recordValue(FormatterMetrics.CUSTOM_FIELD_COUNT,
+        customFields != null ? customFields.size() : 0);
+    return customFields;
+  }
+
+  private List<CustomField> staleCustomFields(Invoice invoice, TenantContext context) {
+    final UUID accountId = invoice.getAccountId();
+    if (accountId == null) {
+      return Collections.emptyList();
+    }
+    if (fetchStrategy.getScope() == CustomFieldFetchStrategy.Scope.INVOICE) {
+      return CustomFieldFetchStrategy.stale(invoice, customFieldCache,
+          id -> TenantAccountKey.of(context.getTenantId(), accountId, id));
+    }
+    final List<CustomField> stale = (customFieldCache != null
+        ? customFieldCache.getStale(TenantAccountKey.of(context.getTenantId(), accountId))
+        : null);
+    return (stale != null ? stale : Collections.emptyList());
+  }
+
+  private List<CustomField> loadCustomFields(UUID invoiceId, UUID accountId, int itemCount,
+      TenantContext context) {
+    final long start = metrics.startTimer();
+    final Object event = FlightRecorderEvents.begin();
+    List<CustomField> fields = null;
+    try {
+      fields = allowedFields(
+          customFieldApi.getCustomFieldsForAccount(accountId, context), context);
+      return fields;
+    } finally {
+      metrics.stopTimer(FormatterMetrics.FETCH_CUSTOM_FIELDS, start);
+      FlightRecorderEvents.commit(event, FlightRecorderEvents.PHASE_FETCH, invoiceId, accountId,
+          itemCount, fields != null ? fields.size() : 0);
+    }
+  }
+
+  private List<CustomField> allowedFields(List<CustomField> fields, TenantContext context) {
+    return fetchStrategy.getNameFilter().filter(context.getTenantId(), fields,
+        CustomField::getFieldName);
+  }
+
+  private Map<UUID, List<CustomField>> loadObjectCustomFields(UUID invoiceId, UUID accountId,
+      int itemCount, Set<UUID> objectIds, TenantContext context) {
+    final long start = metrics.startTimer();
+    final Object event = FlightRecorderEvents.begin();
+    Map<UUID, List<CustomField>> fields = null;
+    try {
+      fields = fetchStrategy.load(accountId, objectIds,
+          new CustomFieldFetchStrategy.Source() {
+
+            @Override
+            public List<CustomField> getCustomFieldsForObject(UUID objectId,
+                ObjectType objectType) {
+              return allowedFields(
+                  customFieldApi.getCustomFieldsForObject(objectId, objectType, context),
+                  context);
+            }
+
+            @Override
+            public Map<UUID, List<CustomField>> getCustomFieldsForObjects(
+                Map<UUID, ObjectType> objects) {
+              if (batchQuery == null) {
+                return CustomFieldFetchStrategy.Source.super.getCustomFieldsForObjects(objects);
+              }
+              final Map<UUID, List<CustomField>> result = new LinkedHashMap<>(objects.size());
+              batchQuery.getCustomFieldsForTenantId(context.getTenantId(), objects)
+                  .forEach((id, l) -> result.put(id, allowedFields(l, context)));
+              return result;
+            }
+
+          });
+      return fields;
+    } finally {
+      metrics.stopTimer(FormatterMetrics.FETCH_CUSTOM_FIELDS, start);
+      FlightRecorderEvents.commit(event, FlightRecorderEvents.PHASE_FETCH, invoiceId, accountId,
+          itemCount, fields != null ? fields.values().stream().mapToInt(List::size).sum() : 0);
+    }
+  }
+
+  /**
+   * Discard any cached custom fields for an account.
+   * 
+   * @param tenantId
+   *          the tenant ID
+   * @param accountId
+   *          the account ID
+   * @since 2
+   */
+  public void invalidateCustomFields(UUID tenantId, UUID accountId) {
+    if (customFieldCache != null && accountId != null) {
+      if (fetchStrategy.getScope() == CustomFieldFetchStrategy.Scope.INVOICE) {
+        customFieldCache.invalidateIf(k -> k.isAccount(tenantId, accountId));
+      } else {
+        customFieldCache.invalidate(TenantAccountKey.of(tenantId, accountId));
+      }
+    }
+    if (layoutCache != null && accountId != null) {
+      layoutCache.invalidateAccount(accountId);
+    }
+  }
+
+  /**
+   * Discard any cached custom fields for all accounts of a tenant.
+   * 
+   * @param tenantId
+   *          the tenant ID
+   * @since 2
+   */
+  public void invalidateTenantCustomFields(UUID tenantId) {
+    if (customFieldCache != null) {
+      customFieldCache.invalidateIf(k -> k.isTenant(tenantId));
+    }
+    if (layoutCache != null) {
+      // layouts are not keyed by tenant
+      layoutCache.invalidateAll();
+    }
+  }
+
+  /**
+   * Discard all cached custom fields.
+   * 
+   * @since 2
+   */
+  public void invalidateAllCustomFields() {
+    if (customFieldCache != null) {
+      customFieldCache.invalidateAll();
+    }
+    if (layoutCache != null) {
+      layoutCache.invalidateAll();
+    }
+  }
+
+  /**
+   * Get the account custom field cache.
+   * 
+   * @return the cache, or {@literal null} if caching is disabled
+   * @since 2
+   */
+  public CustomFieldCache<TenantAccountKey<UUID>> getCustomFieldCache() {
+    return customFieldCache;
+  }
+
+  /**
+   * Get the invoice item layout cache.
+   * 
+   * @return the cache, or {@literal null} if layouts are not computed
+   * @since 2
+   */
+  public InvoiceItemLayoutCache getLayoutCache() {
+    return layoutCache;
+  }
+
+  /**
+   * Get the custom field fetch strategy.
+   * 
+   * @return the strategy, never {@literal null}
+   * @since 2
+   */
+  public CustomFieldFetchStrategy getFetchStrategy() {
+    return fetchStrategy;
+  }
+
+  /**
+   * Get the metrics.
+   * 
+   * @return the metrics, never {@literal null}
+   * @since 2
+   */
+  public FormatterMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * A minimal tenant context to load custom fields with, without holding on to the context of the
+   * caller that triggered the load.
+   */
+  private static final class LoadContext implements TenantContext {
+
+    private final UUID accountId;
+    private final UUID tenantId;
+
+    private LoadContext(UUID accountId, UUID tenantId) {
+      super();
+      this.accountId = accountId;
+      this.tenantId = tenantId;
+    }
+
+    @Override
+    public UUID getAccountId() {
+      return accountId;
+    }
+
+    @Override
+    public UUID getTenantId() {
+      return tenantId;
+    }
+
   }
 
 }
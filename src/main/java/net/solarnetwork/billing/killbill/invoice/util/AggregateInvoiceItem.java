@@ -17,14 +17,18 @@ package net.solarnetwork.billing.killbill.invoice.util;
 
 import java.math.BigDecimal;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.UUID;
 import java.util.function.Supplier;
 
 import org.joda.time.DateTime;
 import org.joda.time.LocalDate;
 import org.killbill.billing.catalog.api.Currency;
+import org.killbill.billing.invoice.api.InvoiceItem;
 import org.killbill.billing.invoice.api.InvoiceItemType;
 import org.killbill.billing.util.customfield.CustomField;
 
@@ -44,41 +48,95 @@ import net.solarnetwork.billing.killbill.invoice.api.ExtendedInvoiceItemFormatte
  * {@link #getAmount()} return an aggregate value derived from all invoice items added.
  * </p>
  * 
+ * <p>
+ * The aggregate values are maintained as running totals as items are added, so reading them does
+ * not depend on the number of items added. By default the added items are also retained, and
+ * available via {@link #getItems()}. Aggregates created with {@code retainItems} set to
+ * {@literal false} only retain the first item, so they use a constant amount of memory no matter
+ * how many items are added.
+ * </p>
+ * 
  * @author matt
- * @version 2
+ * @version 3
  */
 public class AggregateInvoiceItem implements ExtendedInvoiceItemFormatter {
 
   private final Locale locale;
-  private List<ExtendedInvoiceItemFormatter> items = new ArrayList<>(4);
+  private final List<ExtendedInvoiceItemFormatter> items;
   private ExtendedInvoiceItemFormatter firstItem;
+  private int itemCount;
+  private BigDecimal amount = BigDecimal.ZERO;
+  private BigDecimal minAmount;
+  private BigDecimal maxAmount;
+  private String formattedAmount;
 
   /**
    * Constructor.
    * 
+   * <p>
+   * All added items will be retained.
+   * </p>
+   * 
    * @param locale
    *          the desired locale
    */
   public AggregateInvoiceItem(Locale locale) {
+    this(locale, true);
+  }
+
+  /**
+   * Constructor.
+   * 
+   * @param locale
+   *          the desired locale
+   * @param retainItems
+   *          {@literal true} to retain all added items, {@literal false} to only maintain the
+   *          aggregate values
+   * @since 3
+   */
+  public AggregateInvoiceItem(Locale locale, boolean retainItems) {
     super();
     this.locale = locale;
+    this.items = (retainItems ? new ArrayList<>(4) : null);
   }
 
   /**
    * Add an invoice item.
    * 
+   * <p>
+   * Items with a {@literal null} amount are counted, but do not contribute to the aggregate
+   * amounts.
+   * </p>
+   * 
    * @param item
    *          the item to add
    * @return this object
    */
   public AggregateInvoiceItem addItem(ExtendedInvoiceItemFormatter item) {
-    items.add(item);
+    if (items != null) {
+      items.add(item);
+    }
     if (firstItem == null) {
       firstItem = item;
     }
+    itemCount++;
+    addAmounts(item.getAmount(), item.getAmount(), item.getAmount());
     return this;
   }
 
+  private void addAmounts(BigDecimal sum, BigDecimal min, BigDecimal max) {
+    if (sum != null) {
+      amount = amount.add(sum);
+    }
+    if (min != null && (minAmount == null || min.compareTo(minAmount) < 0)) {
+      minAmount = min;
+    }
+    if (max != null && (maxAmount == null || max.compareTo(maxAmount) > 0)) {
+      maxAmount = max;
+    }
+    formattedAmount = null;
+  }
+
   /**
    * Get a supplier of aggregate items for a specific locale.
    * 
@@ -97,18 +155,138 @@ public class AggregateInvoiceItem implements ExtendedInvoiceItemFormatter {
     };
   }
 
+  /**
+   * Get a supplier of aggregate items for a specific locale.
+   * 
+   * @param locale
+   *          the locale to use for all supplied items
+   * @param retainItems
+   *          {@literal true} for the supplied items to retain all added items
+   * @return the supplier
+   * @since 3
+   */
+  public static Supplier<AggregateInvoiceItem> itemOfLocale(Locale locale, boolean retainItems) {
+    return () -> new AggregateInvoiceItem(locale, retainItems);
+  }
+
+  /**
+   * Group invoice items into aggregates by their descriptions.
+   * 
+   * <p>
+   * The returned aggregates retain all grouped items.
+   * </p>
+   * 
+   * @param items
+   *          the items to group; all items must implement {@link ExtendedInvoiceItemFormatter}
+   * @param locale
+   *          the locale to use for the aggregate items
+   * @return the aggregate items, never {@literal null}
+   * @see #groupByDescription(Iterable, Locale, boolean)
+   * @since 3
+   */
+  public static List<AggregateInvoiceItem> groupByDescription(
+      Iterable<? extends InvoiceItem> items, Locale locale) {
+    return groupByDescription(items, locale, true);
+  }
+
+  /**
+   * Group invoice items into aggregates by their descriptions.
+   * 
+   * <p>
+   * The items are grouped in a single pass, and the returned aggregates are ordered by the first
+   * appearance of their description in {@code items}. The ID (and other delegated attributes) of
+   * each aggregate is therefore that of the first item with that description.
+   * </p>
+   * 
+   * @param items
+   *          the items to group; all items must implement {@link ExtendedInvoiceItemFormatter}
+   * @param locale
+   *          the locale to use for the aggregate items
+   * @param retainItems
+   *          {@literal true} for the aggregates to retain all grouped items, {@literal false} to
+   *          only maintain the aggregate values
+   * @return the aggregate items, never {@literal null}
+   * @since 3
+   */
+  public static List<AggregateInvoiceItem> groupByDescription(
+      Iterable<? extends InvoiceItem> items, Locale locale, boolean retainItems) {
+    Map<String, AggregateInvoiceItem> groups = new LinkedHashMap<>();
+    for (InvoiceItem item : items) {
+      AggregateInvoiceItem agg = groups.get(item.getDescription());
+      if (agg == null) {
+        agg = new AggregateInvoiceItem(locale, retainItems);
+        groups.put(item.getDescription(), agg);
+      }
+      agg.addItem((ExtendedInvoiceItemFormatter) item);
+    }
+    return new ArrayList<>(groups.values());
+  }
+
   /**
    * Add items from another aggregate.
    * 
+   * <p>
+   * The aggregate values of {@code agg} are combined with this aggregate. If this aggregate retains
+   * its items, the items retained by {@code agg} are added to this aggregate's items.
+   * </p>
+   * 
    * @param agg
    *          the aggregate
    * @return this object
    */
   public AggregateInvoiceItem addItems(AggregateInvoiceItem agg) {
-    items.addAll(agg.items);
+    if (items != null && agg.items != null) {
+      items.addAll(agg.items);
+    }
+    if (firstItem == null) {
+      firstItem = agg.firstItem;
+    }
+    itemCount += agg.itemCount;
+    addAmounts(agg.amount, agg.minAmount, agg.maxAmount);
     return this;
   }
 
+  /**
+   * Get the items added to this aggregate.
+   * 
+   * @return the added items, or an empty list if items are not retained; the list is not
+   *         modifiable
+   * @since 3
+   */
+  public List<ExtendedInvoiceItemFormatter> getItems() {
+    return (items != null ? Collections.unmodifiableList(items) : Collections.emptyList());
+  }
+
+  /**
+   * Get the number of items added to this aggregate.
+   * 
+   * @return the item count
+   * @since 3
+   */
+  public int getItemCount() {
+    return itemCount;
+  }
+
+  /**
+   * Get the smallest amount of all items added to this aggregate.
+   * 
+   * @return the minimum amount, or {@literal null} if no items with an amount have been added
+   * @since 3
+   */
+  public BigDecimal getMinAmount() {
+    return minAmount;
+  }
+
+  /**
+   * Get the largest amount of all items added to this aggregate.
+   * 
+   * @return the maximum amount, or {@literal null} if no items with an amount have been added
+   * @since 3
+   */
+  public BigDecimal getMaxAmount() {
+    return maxAmount;
+  }
+
   @Override
   public UUID getId() {
     return firstItem.getId();
@@ -136,8 +314,13 @@ public class AggregateInvoiceItem implements ExtendedInvoiceItemFormatter {
    */
   @Override
   public String getFormattedAmount() {
-    return StringUtils.formattedCurrencyAmountWithImplicitSymbol(getAmount(),
-        getCurrency().toString(), locale);
+    String result = formattedAmount;
+    if (result == null) {
+      result = StringUtils.formattedCurrencyAmountWithImplicitSymbol(getAmount(),
+          getCurrency().toString(), locale);
+      formattedAmount = result; // cache until another item added
+    }
+    return result;
   }
 
   @Override
@@ -192,7 +375,7 @@ public class AggregateInvoiceItem implements ExtendedInvoiceItemFormatter {
    */
   @Override
   public BigDecimal getAmount() {
-    return items.stream().map(item -> item.getAmount()).reduce(BigDecimal.ZERO, (l, r) -> l.add(r));
+    return amount;
   }
 
   @Override
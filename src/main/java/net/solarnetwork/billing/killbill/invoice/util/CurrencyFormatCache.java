@@ -0,0 +1,210 @@
+/*  Copyright 2020 SolarNetwork Foundation
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.solarnetwork.billing.killbill.invoice.util;
+
+import java.math.BigDecimal;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.text.NumberFormat;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A thread-safe cache of currency number formats.
+ * 
+ * <p>
+ * Creating a currency {@link NumberFormat} requires looking up locale and currency data, which is
+ * expensive compared to formatting an amount. This cache creates the format for each combination
+ * of locale, currency, and symbol style just once, as an immutable {@link MoneyFormat} that can be
+ * shared by concurrent callers and that formats {@link BigDecimal} amounts exactly.
+ * </p>
+ * 
+ * @author matt
+ */
+public final class CurrencyFormatCache {
+
+  /**
+   * The style of currency symbol to format amounts with.
+   */
+  public enum SymbolStyle {
+
+    /**
+     * Use the default JDK currency symbol, which omits the country when the locale and currency
+     * permit it, for example {@literal $1.99}.
+     */
+    IMPLICIT,
+
+    /**
+     * Always include an explicit currency symbol, for example {@literal US$1.99}.
+     */
+    EXPLICIT;
+  }
+
+  /**
+   * A shared cache instance.
+   */
+  public static final CurrencyFormatCache SHARED = new CurrencyFormatCache();
+
+  private final ConcurrentMap<Key, MoneyFormat> entries = new ConcurrentHashMap<>(16, 0.75f, 4);
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  /**
+   * Format a currency amount.
+   * 
+   * @param amount
+   *          the amount to format
+   * @param currencyCode
+   *          the currency code, e.g. {@literal USD}
+   * @param locale
+   *          the desired locale
+   * @param style
+   *          the symbol style
+   * @return the formatted amount
+   */
+  public String format(BigDecimal amount, String currencyCode, Locale locale,
+      SymbolStyle style) {
+    return moneyFormat(currencyCode, locale, style).format(amount);
+  }
+
+  /**
+   * Get a formatter.
+   * 
+   * @param currencyCode
+   *          the currency code, e.g. {@literal USD}
+   * @param locale
+   *          the desired locale
+   * @param style
+   *          the symbol style
+   * @return the formatter
+   */
+  public MoneyFormat moneyFormat(String currencyCode, Locale locale, SymbolStyle style) {
+    final Key key = new Key(locale, currencyCode, style);
+    MoneyFormat format = entries.get(key);
+    if (format != null) {
+      hits.increment();
+      return format;
+    }
+    final boolean[] created = new boolean[1];
+    format = entries.computeIfAbsent(key, k -> {
+      created[0] = true;
+      return MoneyFormat.of(createFormat(k));
+    });
+    // another thread may have created the format since the initial lookup
+    if (created[0]) {
+      misses.increment();
+    } else {
+      hits.increment();
+    }
+    return format;
+  }
+
+  private static DecimalFormat createFormat(Key key) {
+    if (key.style == SymbolStyle.EXPLICIT) {
+      return createExplicitSymbolFormat(key.currencyCode, key.locale);
+    }
+    final DecimalFormat number = (DecimalFormat) NumberFormat.getCurrencyInstance(key.locale);
+    number.setCurrency(java.util.Currency.getInstance(key.currencyCode));
+    return number;
+  }
+
+  private static DecimalFormat createExplicitSymbolFormat(String currencyCode, Locale locale) {
+    final java.util.Currency jdkCurrency = java.util.Currency.getInstance(currencyCode);
+    final DecimalFormat numberFormatter = (DecimalFormat) DecimalFormat.getCurrencyInstance(locale);
+
+    final DecimalFormatSymbols dfs = numberFormatter.getDecimalFormatSymbols();
+    dfs.setInternationalCurrencySymbol(jdkCurrency.getCurrencyCode());
+
+    // override the JDK currency symbol with the Kill Bill version, e.g. US$ instead of USD
+    final String symbol = CurrencySymbols.symbol(currencyCode);
+    dfs.setCurrencySymbol(symbol != null ? symbol : jdkCurrency.getSymbol(locale));
+
+    numberFormatter.setDecimalFormatSymbols(dfs);
+    return numberFormatter;
+  }
+
+  /**
+   * Get the number of times a cached format was used.
+   * 
+   * @return the hit count
+   */
+  public long getHitCount() {
+    return hits.sum();
+  }
+
+  /**
+   * Get the number of times a format had to be created.
+   * 
+   * @return the miss count
+   */
+  public long getMissCount() {
+    return misses.sum();
+  }
+
+  /**
+   * Get the number of cached formats.
+   * 
+   * @return the number of locale, currency, and symbol style combinations cached
+   */
+  public int size() {
+    return entries.size();
+  }
+
+  /**
+   * Remove all cached formats and reset the hit and miss counts.
+   */
+  public void clear() {
+    entries.clear();
+    hits.reset();
+    misses.reset();
+  }
+
+  private static final class Key {
+
+    private final Locale locale;
+    private final String currencyCode;
+    private final SymbolStyle style;
+
+    private Key(Locale locale, String currencyCode, SymbolStyle style) {
+      super();
+      this.locale = locale;
+      this.currencyCode = currencyCode;
+      this.style = style;
+    }
+
+    @Override
+    public int hashCode() {
+      return (31 * (31 * locale.hashCode() + currencyCode.hashCode())) + style.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) obj;
+      return style == other.style && currencyCode.equals(other.currencyCode)
+          && locale.equals(other.locale);
+    }
+
+  }
+
+}
@@ -0,0 +1,122 @@
+/*  Copyright 2020 SolarNetwork Foundation
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package net.solarnetwork.billing.killbill.invoice.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.killbill.billing.catalog.api.Currency;
+
+/**
+ * An immutable table of the Kill Bill {@link Currency} symbols, keyed by currency code.
+ * 
+ * <p>
+ * The table is generated at build time as the {@link #RESOURCE_NAME} properties resource, so
+ * looking up a symbol does not need to scan the Kill Bill currency enumeration. If the resource is
+ * not available, for example when running from an IDE that does not run the build step, the same
+ * table is computed from the enumeration instead.
+ * </p>
+ * 
+ * @author matt
+ */
+public final class CurrencySymbols {
+
+  /** The name of the generated symbol table resource, relative to this class. */
+  public static final String RESOURCE_NAME = "currency-symbols.properties";
+
+  private static final class TableHolder {
+
+    private static final Map<String, String> TABLE = loadTable();
+
+  }
+
+  private CurrencySymbols() {
+    // don't construct me
+  }
+
+  /**
+   * Get the Kill Bill symbol of a currency.
+   * 
+   * @param currencyCode
+   *          the currency code, e.g. {@literal USD}
+   * @return the symbol, e.g. {@literal US$}, or {@literal null} if Kill Bill does not support the
+   *         currency
+   */
+  public static String symbol(String currencyCode) {
+    return (currencyCode != null ? TableHolder.TABLE.get(currencyCode) : null);
+  }
+
+  /**
+   * Get the number of currencies in the table.
+   * 
+   * @return the currency count
+   */
+  public static int size() {
+    return TableHolder.TABLE.size();
+  }
+
+  private static Map<String, String> loadTable() {
+    try (InputStream in = CurrencySymbols.class.getResourceAsStream(RESOURCE_NAME)) {
+      if (in != null) {
+        return parse(in);
+      }
+    } catch (IOException e) {
+      // fall back to computing the table
+    }
+    return computeTable();
+  }
+
+  /**
+   * Parse a generated symbol table.
+   * 
+   * @param in
+   *          the UTF-8 encoded table properties resource
+   * @return the immutable table
+   * @throws IOException
+   *           if an IO error occurs
+   */
+  static Map<String, String> parse(InputStream in) throws IOException {
+    Properties props = new Properties();
+    props.load(new InputStreamReader(in, StandardCharsets.UTF_8));
+    Map<String, String> table = new HashMap<>(props.size() * 2);
+    for (String code : props.stringPropertyNames()) {
+      table.put(code, props.getProperty(code));
+    }
+    return Collections.unmodifiableMap(table);
+  }
+
+  /**
+   * Compute the symbol table from the Kill Bill currency enumeration.
+   * 
+   * @return the immutable table
+   */
+  static Map<String, String> computeTable() {
+    Currency[] currencies = Currency.values();
+    Map<String, String> table = new HashMap<>(currencies.length * 2);
+    for (Currency currency : currencies) {
+      table.put(currency.name(), currency.getSymbol());
+    }
+    return Collections.unmodifiableMap(table);
+  }
+
+}
@@ -0,0 +1,118 @@
+/*  Copyright 2020 SolarNetwork Foundation
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.solarnetwork.billing.killbill.invoice.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.killbill.billing.ObjectType;
+import org.killbill.billing.util.customfield.CustomField;
+
+/**
+ * An immutable index of custom fields, keyed by the type and ID of the object they are associated
+ * with.
+ * 
+ * <p>
+ * This is designed to be built once per invoice from all the custom fields of the account owning
+ * the invoice, so that the fields associated with any given object, for example a subscription, can
+ * be looked up without scanning all the account custom fields.
+ * </p>
+ * 
+ * @author matt
+ */
+public final class CustomFieldIndex {
+
+  /**
+   * An empty index.
+   */
+  public static final CustomFieldIndex EMPTY = new CustomFieldIndex(
+      new EnumMap<>(ObjectType.class));
+
+  private final Map<ObjectType, Map<UUID, List<CustomField>>> index;
+
+  private CustomFieldIndex(Map<ObjectType, Map<UUID, List<CustomField>>> index) {
+    super();
+    this.index = index;
+  }
+
+  /**
+   * Create an index out of a list of custom fields.
+   * 
+   * <p>
+   * Fields without an object type or object ID are not included in the index. The relative order of
+   * the fields associated with each object is preserved.
+   * </p>
+   * 
+   * @param fields
+   *          the fields to index; may be {@literal null}
+   * @return the index, never {@literal null}
+   */
+  public static CustomFieldIndex of(List<? extends CustomField> fields) {
+    if (fields == null || fields.isEmpty()) {
+      return EMPTY;
+    }
+    Map<ObjectType, Map<UUID, List<CustomField>>> index = new EnumMap<>(ObjectType.class);
+    for (CustomField field : fields) {
+      if (field == null || field.getObjectType() == null || field.getObjectId() == null) {
+        continue;
+      }
+      index.computeIfAbsent(field.getObjectType(), k -> new HashMap<>())
+          .computeIfAbsent(field.getObjectId(), k -> new ArrayList<>(2)).add(field);
+    }
+    for (Map<UUID, List<CustomField>> objectFields : index.values()) {
+      objectFields.replaceAll((k, v) -> Collections.unmodifiableList(v));
+    }
+    return new CustomFieldIndex(index);
+  }
+
+  /**
+   * Get the custom fields associated with a specific object.
+   * 
+   * @param objectType
+   *          the type of the object
+   * @param objectId
+   *          the ID of the object
+   * @return the fields, never {@literal null}
+   */
+  public List<CustomField> getCustomFields(ObjectType objectType, UUID objectId) {
+    if (objectType == null || objectId == null) {
+      return Collections.emptyList();
+    }
+    Map<UUID, List<CustomField>> objectFields = index.get(objectType);
+    if (objectFields == null) {
+      return Collections.emptyList();
+    }
+    List<CustomField> result = objectFields.get(objectId);
+    return (result != null ? result : Collections.emptyList());
+  }
+
+  /**
+   * Get the custom fields associated with a specific subscription.
+   * 
+   * @param subscriptionId
+   *          the ID of the subscription
+   * @return the fields, never {@literal null}
+   */
+  public List<CustomField> getSubscriptionCustomFields(UUID subscriptionId) {
+    return getCustomFields(ObjectType.SUBSCRIPTION, subscriptionId);
+  }
+
+}
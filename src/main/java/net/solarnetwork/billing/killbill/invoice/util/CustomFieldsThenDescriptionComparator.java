@@ -15,6 +15,7 @@
 
 package net.solarnetwork.billing.killbill.invoice.util;
 
+import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.List;
 
@@ -24,7 +25,14 @@ import org.killbill.billing.util.customfield.CustomField;
 import net.solarnetwork.billing.killbill.invoice.api.ExtendedInvoiceItemFormatter;
 
 /**
- * A comparator to sort custom fields by their names in a case-insensitive manner.
+ * A comparator to sort invoice items by their subscription custom field values and then their
+ * descriptions, in a case-insensitive manner.
+ * 
+ * <p>
+ * This comparator computes the sort criteria of both items on every comparison. When sorting many
+ * items, {@link CustomFieldsThenDescriptionSortKey#sort(java.util.Collection)} produces the same
+ * ordering more efficiently.
+ * </p>
  * 
  * @author matt
  * @since 0.2
@@ -57,8 +65,8 @@ public class CustomFieldsThenDescriptionComparator implements Comparator<Invoice
         return 1;
       } else if (fields1 != null && !fields1.isEmpty() && fields2 != null && !fields2.isEmpty()) {
         // sort fields by name, then compare each in turn
-        fields1.sort(CaseInsensitiveCustomFieldNameComparator.CUSTOM_FIELD_SORT_BY_NAME);
-        fields2.sort(CaseInsensitiveCustomFieldNameComparator.CUSTOM_FIELD_SORT_BY_NAME);
+        fields1 = sortedByName(fields1);
+        fields2 = sortedByName(fields2);
         int max = Math.min(fields1.size(), fields2.size());
         for (int i = 0; i < max; i++) {
           CustomField f1 = fields1.get(i);
@@ -99,4 +107,11 @@ public class CustomFieldsThenDescriptionComparator implements Comparator<Invoice
     return 0;
   }
 
+  private static List<CustomField> sortedByName(List<CustomField> fields) {
+    // sort a copy, as the given list might not be modifiable
+    List<CustomField> sorted = new ArrayList<>(fields);
+    sorted.sort(CaseInsensitiveCustomFieldNameComparator.CUSTOM_FIELD_SORT_BY_NAME);
+    return sorted;
+  }
+
 }
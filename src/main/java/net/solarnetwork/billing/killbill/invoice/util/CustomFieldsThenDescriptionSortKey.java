@@ -0,0 +1,213 @@
+/*  Copyright 2020 SolarNetwork Foundation
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.solarnetwork.billing.killbill.invoice.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import org.killbill.billing.invoice.api.formatters.InvoiceItemFormatter;
+import org.killbill.billing.util.customfield.CustomField;
+
+import net.solarnetwork.billing.killbill.invoice.api.ExtendedInvoiceItemFormatter;
+
+/**
+ * A precomputed sort key for an invoice item that orders items exactly like
+ * {@link CustomFieldsThenDescriptionComparator}.
+ * 
+ * <p>
+ * The key captures the item's description and subscription custom fields (sorted by name) once,
+ * with all values case-folded up front. Comparing two keys is then a matter of simple string
+ * comparisons, without fetching or sorting custom fields or allocating anything. Use
+ * {@link #sort(Collection)} to sort a collection of items via their keys.
+ * </p>
+ * 
+ * @param <T>
+ *          the invoice item type
+ * @author matt
+ */
+public final class CustomFieldsThenDescriptionSortKey<T extends InvoiceItemFormatter>
+    implements Comparable<CustomFieldsThenDescriptionSortKey<?>> {
+
+  private static final String[] NO_FIELDS = new String[0];
+
+  private final T item;
+  private final String[] fieldNames;
+  private final String[] fieldValues;
+  private final String description;
+
+  /**
+   * Constructor.
+   * 
+   * @param item
+   *          the item to create the key for; may be {@literal null}
+   */
+  public CustomFieldsThenDescriptionSortKey(T item) {
+    super();
+    this.item = item;
+    if (item instanceof ExtendedInvoiceItemFormatter) {
+      List<CustomField> fields = ((ExtendedInvoiceItemFormatter) item)
+          .getSubscriptionCustomFields();
+      if (fields == null || fields.isEmpty()) {
+        this.fieldNames = NO_FIELDS;
+        this.fieldValues = NO_FIELDS;
+      } else {
+        List<CustomField> sorted = new ArrayList<>(fields);
+        sorted.sort(CaseInsensitiveCustomFieldNameComparator.CUSTOM_FIELD_SORT_BY_NAME);
+        final int len = sorted.size();
+        this.fieldNames = new String[len];
+        this.fieldValues = new String[len];
+        for (int i = 0; i < len; i++) {
+          CustomField f = sorted.get(i);
+          if (f != null) {
+            fieldNames[i] = fold(f.getFieldName());
+            fieldValues[i] = fold(f.getFieldValue());
+          }
+        }
+      }
+    } else {
+      // custom fields only considered when both items are extended
+      this.fieldNames = null;
+      this.fieldValues = null;
+    }
+    this.description = (item != null ? fold(item.getDescription()) : null);
+  }
+
+  /**
+   * Sort a collection of items, in the same order as
+   * {@link CustomFieldsThenDescriptionComparator} would.
+   * 
+   * @param <T>
+   *          the invoice item type
+   * @param items
+   *          the items to sort
+   * @return a new list of the sorted items
+   */
+  public static <T extends InvoiceItemFormatter> List<T> sort(Collection<? extends T> items) {
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    CustomFieldsThenDescriptionSortKey<T>[] keys = new CustomFieldsThenDescriptionSortKey[items
+        .size()];
+    int i = 0;
+    for (T item : items) {
+      keys[i++] = new CustomFieldsThenDescriptionSortKey<>(item);
+    }
+    Arrays.sort(keys);
+    List<T> result = new ArrayList<>(keys.length);
+    for (CustomFieldsThenDescriptionSortKey<T> key : keys) {
+      result.add(key.item);
+    }
+    return result;
+  }
+
+  /**
+   * Fold a string so that comparing folded strings with {@link String#compareTo(String)} gives
+   * the same result as comparing the original strings with
+   * {@link String#compareToIgnoreCase(String)}.
+   * 
+   * @param s
+   *          the string to fold
+   * @return the folded string
+   */
+  private static String fold(String s) {
+    if (s == null) {
+      return null;
+    }
+    char[] folded = null;
+    for (int i = 0, len = s.length(); i < len; i++) {
+      char c = s.charAt(i);
+      char f = Character.toLowerCase(Character.toUpperCase(c));
+      if (f != c) {
+        if (folded == null) {
+          folded = s.toCharArray();
+        }
+        folded[i] = f;
+      }
+    }
+    return (folded != null ? new String(folded) : s);
+  }
+
+  private static int compareNullsFirst(String s1, String s2) {
+    if (s1 == null) {
+      return (s2 == null ? 0 : -1);
+    } else if (s2 == null) {
+      return 1;
+    }
+    return s1.compareTo(s2);
+  }
+
+  @Override
+  public int compareTo(CustomFieldsThenDescriptionSortKey<?> o) {
+    if (item == null && o.item != null) {
+      return -1;
+    } else if (item != null && o.item == null) {
+      return 1;
+    } else if (item == o.item) {
+      return 0;
+    }
+    if (fieldNames != null && o.fieldNames != null) {
+      final int len1 = fieldNames.length;
+      final int len2 = o.fieldNames.length;
+      if (len1 == 0 && len2 != 0) {
+        return -1;
+      } else if (len1 != 0 && len2 == 0) {
+        return 1;
+      }
+      final int max = Math.min(len1, len2);
+      for (int i = 0; i < max; i++) {
+        String n1 = fieldNames[i];
+        String n2 = o.fieldNames[i];
+        if (n1 == null ? n2 != null : !n1.equals(n2)) {
+          // stop comparing fields if their names differ
+          break;
+        }
+        int order = compareNullsFirst(fieldValues[i], o.fieldValues[i]);
+        if (order != 0) {
+          return order;
+        }
+      }
+    }
+    return compareNullsFirst(description, o.description);
+  }
+
+  /**
+   * Get a hash code of the case-folded subscription custom fields of the item.
+   * 
+   * <p>
+   * Keys with equal custom fields have equal hash codes, so this can be used to detect a change
+   * in the custom fields that determine the order of an item.
+   * </p>
+   * 
+   * @return the hash code, or {@literal 0} if the item is not an
+   *         {@link ExtendedInvoiceItemFormatter}
+   */
+  public int customFieldsHashCode() {
+    if (fieldNames == null) {
+      return 0;
+    }
+    return 31 * Arrays.hashCode(fieldNames) + Arrays.hashCode(fieldValues);
+  }
+
+  /**
+   * Get the item this key was created for.
+   * 
+   * @return the item
+   */
+  public T getItem() {
+    return item;
+  }
+
+}
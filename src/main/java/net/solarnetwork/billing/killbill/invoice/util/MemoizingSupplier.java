@@ -0,0 +1,106 @@
+/*  Copyright 2020 SolarNetwork Foundation
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.solarnetwork.billing.killbill.invoice.util;
+
+import java.util.function.Supplier;
+
+/**
+ * A thread-safe {@link Supplier} that invokes another supplier at most once, the first time a
+ * value is requested, and returns that same value from then on.
+ * 
+ * <p>
+ * This allows expensive values, such as custom fields that must be fetched from the database, to be
+ * loaded only if they are actually used. If the delegate supplier throws an exception, no value is
+ * memoized and the next call to {@link #get()} will try again.
+ * </p>
+ * 
+ * @param <T>
+ *          the value type
+ * @author matt
+ */
+public final class MemoizingSupplier<T> implements Supplier<T> {
+
+  private Supplier<? extends T> delegate;
+  private volatile boolean loaded;
+  private T value;
+
+  private MemoizingSupplier(Supplier<? extends T> delegate, boolean loaded, T value) {
+    super();
+    this.delegate = delegate;
+    this.loaded = loaded;
+    this.value = value;
+  }
+
+  /**
+   * Create a memoizing supplier.
+   * 
+   * @param <T>
+   *          the value type
+   * @param supplier
+   *          the supplier to invoke the first time a value is requested; if this is already a
+   *          {@code MemoizingSupplier} it is returned as-is
+   * @return the memoizing supplier
+   * @throws IllegalArgumentException
+   *           if {@code supplier} is {@literal null}
+   */
+  @SuppressWarnings("unchecked")
+  public static <T> MemoizingSupplier<T> of(Supplier<? extends T> supplier) {
+    if (supplier == null) {
+      throw new IllegalArgumentException("The supplier argument must not be null.");
+    }
+    if (supplier instanceof MemoizingSupplier) {
+      return (MemoizingSupplier<T>) supplier;
+    }
+    return new MemoizingSupplier<>(supplier, false, null);
+  }
+
+  /**
+   * Create a memoizing supplier for a value that has already been loaded.
+   * 
+   * @param <T>
+   *          the value type
+   * @param value
+   *          the value
+   * @return the memoizing supplier
+   */
+  public static <T> MemoizingSupplier<T> ofValue(T value) {
+    return new MemoizingSupplier<>(null, true, value);
+  }
+
+  @Override
+  public T get() {
+    if (!loaded) {
+      synchronized (this) {
+        if (!loaded) {
+          value = delegate.get();
+          loaded = true;
+          delegate = null; // release for GC
+        }
+      }
+    }
+    return value;
+  }
+
+  /**
+   * Test if the value has been loaded.
+   * 
+   * @return {@literal true} if the value has been loaded
+   */
+  public boolean isLoaded() {
+    return loaded;
+  }
+
+}
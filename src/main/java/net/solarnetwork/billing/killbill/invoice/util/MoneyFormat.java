@@ -0,0 +1,211 @@
+/*  Copyright 2020 SolarNetwork Foundation
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.solarnetwork.billing.killbill.invoice.util;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+
+/**
+ * An immutable and thread-safe currency amount formatter.
+ * 
+ * <p>
+ * This formatter produces the same output as the currency {@link DecimalFormat} it is created
+ * from, but formats {@link BigDecimal} amounts directly from their unscaled value and scale rather
+ * than converting them to {@code double} first. That means large amounts are formatted exactly,
+ * and formatting does not need to synchronize on or copy a {@link DecimalFormat}. All the locale
+ * data needed (affixes, separators, grouping size, and fraction digits) is captured once when the
+ * formatter is created.
+ * </p>
+ * 
+ * @author matt
+ */
+public final class MoneyFormat {
+
+  /** The maximum number of decimal digits in a {@code long} value. */
+  private static final int MAX_LONG_DIGITS = 19;
+
+  /**
+   * Java 15 added a monetary grouping separator that currency formats use, so use that when it is
+   * available.
+   */
+  private static final MethodHandle MONETARY_GROUPING_SEPARATOR = monetaryGroupingSeparator();
+
+  private final String positivePrefix;
+  private final String positiveSuffix;
+  private final String negativePrefix;
+  private final String negativeSuffix;
+  private final char zeroDigit;
+  private final char groupingSeparator;
+  private final char decimalSeparator;
+  private final int groupingSize;
+  private final int minimumIntegerDigits;
+  private final int minimumFractionDigits;
+  private final int maximumFractionDigits;
+  private final RoundingMode roundingMode;
+
+  private MoneyFormat(DecimalFormat format) {
+    super();
+    final DecimalFormatSymbols dfs = format.getDecimalFormatSymbols();
+    this.positivePrefix = format.getPositivePrefix();
+    this.positiveSuffix = format.getPositiveSuffix();
+    this.negativePrefix = format.getNegativePrefix();
+    this.negativeSuffix = format.getNegativeSuffix();
+    this.zeroDigit = dfs.getZeroDigit();
+    this.groupingSeparator = groupingSeparator(dfs);
+    this.decimalSeparator = dfs.getMonetaryDecimalSeparator();
+    this.groupingSize = (format.isGroupingUsed() ? format.getGroupingSize() : 0);
+    this.minimumIntegerDigits = format.getMinimumIntegerDigits();
+    this.minimumFractionDigits = format.getMinimumFractionDigits();
+    this.maximumFractionDigits = format.getMaximumFractionDigits();
+    this.roundingMode = format.getRoundingMode();
+  }
+
+  private static MethodHandle monetaryGroupingSeparator() {
+    try {
+      return MethodHandles.publicLookup().findVirtual(DecimalFormatSymbols.class,
+          "getMonetaryGroupingSeparator", MethodType.methodType(char.class));
+    } catch (NoSuchMethodException | IllegalAccessException e) {
+      return null;
+    }
+  }
+
+  private static char groupingSeparator(DecimalFormatSymbols dfs) {
+    if (MONETARY_GROUPING_SEPARATOR != null) {
+      try {
+        return (char) MONETARY_GROUPING_SEPARATOR.invokeExact(dfs);
+      } catch (Throwable t) {
+        // fall back to the standard grouping separator
+      }
+    }
+    return dfs.getGroupingSeparator();
+  }
+
+  /**
+   * Create a formatter from a currency {@link DecimalFormat}.
+   * 
+   * <p>
+   * The given format is not retained, so changes made to it afterwards do not affect the returned
+   * formatter.
+   * </p>
+   * 
+   * @param format
+   *          the format to copy the formatting rules from
+   * @return the new formatter
+   * @throws IllegalArgumentException
+   *           if the format uses a multiplier, which currency formats never do
+   */
+  public static MoneyFormat of(DecimalFormat format) {
+    if (format.getMultiplier() != 1) {
+      throw new IllegalArgumentException("Formats with a multiplier are not supported.");
+    }
+    return new MoneyFormat(format);
+  }
+
+  /**
+   * Format an amount.
+   * 
+   * @param amount
+   *          the amount to format
+   * @return the formatted amount
+   */
+  public String format(BigDecimal amount) {
+    return format(amount, new StringBuilder(32)).toString();
+  }
+
+  /**
+   * Format an amount, appending the result to a buffer.
+   * 
+   * <p>
+   * This method allows callers to reuse a single buffer to format many amounts.
+   * </p>
+   * 
+   * @param amount
+   *          the amount to format
+   * @param buf
+   *          the buffer to append to
+   * @return {@code buf}
+   */
+  public StringBuilder format(BigDecimal amount, StringBuilder buf) {
+    // like DecimalFormat, the sign of the original amount is kept even if it rounds to zero
+    final boolean negative = amount.signum() < 0;
+    final BigInteger unscaled = amount.setScale(maximumFractionDigits, roundingMode)
+        .unscaledValue();
+
+    final char[] digits;
+    final int digitCount;
+    if (unscaled.bitLength() < 63) {
+      digits = new char[MAX_LONG_DIGITS];
+      long v = Math.abs(unscaled.longValue());
+      int i = MAX_LONG_DIGITS;
+      while (v != 0) {
+        digits[--i] = (char) ('0' + (int) (v % 10));
+        v /= 10;
+      }
+      digitCount = MAX_LONG_DIGITS - i;
+      if (i > 0) {
+        System.arraycopy(digits, i, digits, 0, digitCount);
+      }
+    } else {
+      digits = unscaled.abs().toString().toCharArray();
+      digitCount = digits.length;
+    }
+
+    buf.append(negative ? negativePrefix : positivePrefix);
+
+    // integer part, padded with leading zeros to the minimum integer digits
+    final int intDigitCount = digitCount - maximumFractionDigits;
+    final int intLength = Math.max(intDigitCount, minimumIntegerDigits);
+    for (int pos = intLength - 1; pos >= 0; pos--) {
+      final int idx = intDigitCount - 1 - pos;
+      buf.append(idx >= 0 ? digit(digits[idx]) : zeroDigit);
+      if (pos > 0 && groupingSize > 0 && pos % groupingSize == 0) {
+        buf.append(groupingSeparator);
+      }
+    }
+
+    // fraction part, omitting trailing zeros beyond the minimum fraction digits
+    int fractionLength = maximumFractionDigits;
+    while (fractionLength > minimumFractionDigits
+        && fractionDigit(digits, digitCount, fractionLength - 1) == '0') {
+      fractionLength--;
+    }
+    if (fractionLength > 0) {
+      buf.append(decimalSeparator);
+      for (int i = 0; i < fractionLength; i++) {
+        buf.append(digit(fractionDigit(digits, digitCount, i)));
+      }
+    }
+
+    buf.append(negative ? negativeSuffix : positiveSuffix);
+    return buf;
+  }
+
+  private char fractionDigit(char[] digits, int digitCount, int fractionIndex) {
+    final int idx = digitCount - maximumFractionDigits + fractionIndex;
+    return (idx >= 0 ? digits[idx] : '0');
+  }
+
+  private char digit(char c) {
+    return (char) (c - '0' + zeroDigit);
+  }
+
+}
@@ -16,17 +16,20 @@
 package net.solarnetwork.billing.killbill.invoice.util;
 
 import java.math.BigDecimal;
-import java.text.DecimalFormat;
-import java.text.DecimalFormatSymbols;
-import java.text.NumberFormat;
 import java.util.Locale;
 
-import org.joda.money.CurrencyUnit;
 import org.killbill.billing.catalog.api.Currency;
 
+import net.solarnetwork.billing.killbill.invoice.util.CurrencyFormatCache.SymbolStyle;
+
 /**
  * String utilities for invoice formatting.
  * 
+ * <p>
+ * The currency formatting methods use the {@link CurrencyFormatCache#SHARED} cache, and are
+ * thread-safe.
+ * </p>
+ * 
  * @author matt
  */
 public final class StringUtils {
@@ -48,9 +51,7 @@ public final class StringUtils {
    */
   public static String formattedCurrencyAmountWithImplicitSymbol(BigDecimal amount,
       String currencyCode, Locale locale) {
-    final NumberFormat number = NumberFormat.getCurrencyInstance(locale);
-    number.setCurrency(java.util.Currency.getInstance(currencyCode));
-    return number.format(amount.doubleValue());
+    return CurrencyFormatCache.SHARED.format(amount, currencyCode, locale, SymbolStyle.IMPLICIT);
   }
 
   /**
@@ -74,23 +75,7 @@ public final class StringUtils {
    */
   public static String formattedCurrencyAmountWithExplicitSymbol(BigDecimal amount,
       String currencyCode, Locale locale) {
-    final CurrencyUnit currencyUnit = CurrencyUnit.of(currencyCode);
-    final DecimalFormat numberFormatter = (DecimalFormat) DecimalFormat.getCurrencyInstance(locale);
-  
-    final DecimalFormatSymbols dfs = numberFormatter.getDecimalFormatSymbols();
-    dfs.setInternationalCurrencySymbol(currencyUnit.getCurrencyCode());
-  
-    // override the JDK currency symbol with the Kill Bill version, e.g. US$ instead of USD
-    try {
-      Currency currency = Currency.fromCode(currencyCode);
-      dfs.setCurrencySymbol(currency.getSymbol());
-    } catch (final IllegalArgumentException e) {
-      dfs.setCurrencySymbol(currencyUnit.getSymbol(locale));
-    }
-  
-    numberFormatter.setDecimalFormatSymbols(dfs);
-  
-    return numberFormatter.format(amount.doubleValue());
+    return CurrencyFormatCache.SHARED.format(amount, currencyCode, locale, SymbolStyle.EXPLICIT);
   }
 
 }
@@ -0,0 +1,159 @@
+/*  Copyright 2020 SolarNetwork Foundation
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package net.solarnetwork.billing.killbill.invoice.api;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+/**
+ * Test cases for the {@link ExtendedAttributeMap} class.
+ * 
+ * @author matt
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class ExtendedAttributeMapTests {
+
+  private static final BigDecimal TAX = new BigDecimal("1.99");
+
+  @Mock
+  private InvoiceFormatterExtensions source;
+
+  private ExtendedAttributeMap map;
+
+  @Before
+  public void setup() {
+    map = new ExtendedAttributeMap(source);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void nullSource() {
+    new ExtendedAttributeMap(null);
+  }
+
+  @Test
+  public void valueComputedOnce() {
+    // given
+    given(source.getFormattedTaxAmount()).willReturn("$1.99");
+
+    // when
+    Object v1 = map.get(ExtendedAttributeMap.FORMATTED_TAX_AMOUNT);
+    Object v2 = map.get(ExtendedAttributeMap.FORMATTED_TAX_AMOUNT);
+
+    // then
+    assertThat("Value", v1, equalTo("$1.99"));
+    assertThat("Cached value", v2, equalTo(v1));
+    assertThat("Computed", map.isComputed(ExtendedAttributeMap.FORMATTED_TAX_AMOUNT), is(true));
+    verify(source, times(1)).getFormattedTaxAmount();
+    verifyNoMoreInteractions(source);
+  }
+
+  @Test
+  public void nullValueComputedOnce() {
+    // when
+    Object v1 = map.get(ExtendedAttributeMap.TAX_AMOUNT);
+    Object v2 = map.get(ExtendedAttributeMap.TAX_AMOUNT);
+
+    // then
+    assertThat("Value", v1, nullValue());
+    assertThat("Cached value", v2, nullValue());
+    verify(source, times(1)).getTaxAmount();
+  }
+
+  @Test
+  public void keysWithoutComputingValues() {
+    // then
+    assertThat("Size", map.size(), equalTo(ExtendedAttributeMap.ATTRIBUTE_NAMES.size()));
+    assertThat("Not empty", map.isEmpty(), is(false));
+    for (String name : ExtendedAttributeMap.ATTRIBUTE_NAMES) {
+      assertThat("Contains " + name, map.containsKey(name), is(true));
+      assertThat("Not computed " + name, map.isComputed(name), is(false));
+    }
+    assertThat("Unknown key", map.containsKey("foo"), is(false));
+    assertThat("Unknown value", map.get("foo"), nullValue());
+    verifyNoMoreInteractions(source);
+  }
+
+  @Test
+  public void entriesInAttributeOrder() {
+    // given
+    given(source.getTaxAmount()).willReturn(TAX);
+
+    // when
+    List<String> keys = new ArrayList<>();
+    for (Map.Entry<String, Object> e : map.entrySet()) {
+      keys.add(e.getKey());
+      if (ExtendedAttributeMap.TAX_AMOUNT.equals(e.getKey())) {
+        assertThat("Tax amount entry", e.getValue(), equalTo(TAX));
+      }
+    }
+
+    // then
+    assertThat("Entry order", keys,
+        contains(ExtendedAttributeMap.ATTRIBUTE_NAMES.toArray(new String[0])));
+  }
+
+  @Test
+  public void keysInAttributeOrder() {
+    assertThat("Key order", new ArrayList<>(map.keySet()),
+        contains(ExtendedAttributeMap.ATTRIBUTE_NAMES.toArray(new String[0])));
+  }
+
+  @Test
+  public void keySetImmutable() {
+    try {
+      map.keySet().remove(ExtendedAttributeMap.TAX_AMOUNT);
+      fail("Key set should not be modifiable");
+    } catch (UnsupportedOperationException e) {
+      // expected
+    }
+    try {
+      map.keySet().clear();
+      fail("Key set should not be modifiable");
+    } catch (UnsupportedOperationException e) {
+      // expected
+    }
+    assertThat("Keys unchanged", new ExtendedAttributeMap(source)
+        .containsKey(ExtendedAttributeMap.TAX_AMOUNT), is(true));
+    assertThat("Size unchanged", map.keySet().size(),
+        equalTo(ExtendedAttributeMap.ATTRIBUTE_NAMES.size()));
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void immutable() {
+    map.put(ExtendedAttributeMap.TAX_AMOUNT, TAX);
+  }
+
+}
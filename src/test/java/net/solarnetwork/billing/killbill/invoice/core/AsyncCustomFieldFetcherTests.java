@@ -0,0 +1,115 @@
+/*  Copyright 2020 SolarNetwork Foundation
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.solarnetwork.billing.killbill.invoice.core;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.junit.Test;
+import org.killbill.billing.ObjectType;
+import org.killbill.billing.util.customfield.CustomField;
+import org.killbill.billing.util.customfield.StringCustomField;
+
+/**
+ * Test cases for the {@link AsyncCustomFieldFetcher} class.
+ * 
+ * @author matt
+ */
+public class AsyncCustomFieldFetcherTests {
+
+  private static CustomField field() {
+    return new StringCustomField("node", "1", ObjectType.ACCOUNT, UUID.randomUUID(), null);
+  }
+
+  @Test
+  public void fetchStartedImmediately() throws InterruptedException {
+    final CustomField f = field();
+    final CountDownLatch started = new CountDownLatch(1);
+    AsyncCustomFieldFetcher fetcher = new AsyncCustomFieldFetcher(
+        AsyncCustomFieldFetcher.defaultExecutor(), 5000L);
+
+    Supplier<List<CustomField>> result = fetcher.fetch(() -> {
+      started.countDown();
+      return Collections.singletonList(f);
+    }, null);
+
+    assertThat("Fetch started before use", started.await(5, TimeUnit.SECONDS), equalTo(true));
+    assertThat("Fetched fields", result.get(), contains(f));
+  }
+
+  @Test
+  public void timeout() {
+    final CountDownLatch release = new CountDownLatch(1);
+    final AtomicInteger timeouts = new AtomicInteger();
+    AsyncCustomFieldFetcher fetcher = new AsyncCustomFieldFetcher(
+        AsyncCustomFieldFetcher.defaultExecutor(), 50L);
+
+    Supplier<List<CustomField>> result = fetcher.fetch(() -> {
+      try {
+        release.await(5, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return Collections.singletonList(field());
+    }, timeouts::incrementAndGet);
+
+    try {
+      assertThat("Empty fields on timeout", result.get(), empty());
+      assertThat("Timeout result memoized", result.get(), empty());
+      assertThat("Timeout handled once", timeouts.get(), equalTo(1));
+    } finally {
+      release.countDown();
+    }
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void fetchExceptionPropagated() {
+    AsyncCustomFieldFetcher fetcher = new AsyncCustomFieldFetcher(
+        AsyncCustomFieldFetcher.defaultExecutor(), 5000L);
+    fetcher.fetch(() -> {
+      throw new IllegalStateException("boom");
+    }, null).get();
+  }
+
+  @Test
+  public void rejectedFetchedLazily() {
+    final AtomicInteger calls = new AtomicInteger();
+    AsyncCustomFieldFetcher fetcher = new AsyncCustomFieldFetcher(r -> {
+      throw new RejectedExecutionException();
+    }, 5000L);
+
+    Supplier<List<CustomField>> result = fetcher.fetch(() -> {
+      calls.incrementAndGet();
+      return Collections.emptyList();
+    }, null);
+
+    assertThat("Not fetched until used", calls.get(), equalTo(0));
+    result.get();
+    assertThat("Fetched by caller", calls.get(), equalTo(1));
+  }
+
+}
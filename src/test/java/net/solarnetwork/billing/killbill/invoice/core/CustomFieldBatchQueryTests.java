@@ -0,0 +1,193 @@
+/*  Copyright 2020 SolarNetwork Foundation
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.solarnetwork.billing.killbill.invoice.core;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasSize;
+import static org.junit.Assert.assertThat;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import javax.sql.DataSource;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.killbill.billing.ObjectType;
+import org.killbill.billing.util.customfield.CustomField;
+import org.mockito.ArgumentCaptor;
+
+/**
+ * Test cases for the {@link CustomFieldBatchQuery} class.
+ * 
+ * @author matt
+ */
+public class CustomFieldBatchQueryTests {
+
+  private DataSource dataSource;
+  private Connection conn;
+  private PreparedStatement stmt;
+  private ResultSet rs;
+
+  @Before
+  public void setup() throws SQLException {
+    dataSource = mock(DataSource.class);
+    conn = mock(Connection.class);
+    stmt = mock(PreparedStatement.class);
+    rs = mock(ResultSet.class);
+    given(dataSource.getConnection()).willReturn(conn);
+    given(conn.prepareStatement(anyString())).willReturn(stmt);
+    given(stmt.executeQuery()).willReturn(rs);
+  }
+
+  private void givenRows(Object[]... rows) throws SQLException {
+    Boolean[] more = new Boolean[rows.length];
+    Arrays.fill(more, Boolean.TRUE);
+    if (rows.length > 0) {
+      given(rs.next()).willReturn(Boolean.TRUE, appendFalse(more, 1));
+    } else {
+      given(rs.next()).willReturn(Boolean.FALSE);
+    }
+    for (int col = 1; col <= 4 && rows.length > 0; col++) {
+      String[] values = new String[rows.length];
+      for (int i = 0; i < rows.length; i++) {
+        values[i] = String.valueOf(rows[i][col - 1]);
+      }
+      given(rs.getString(col)).willReturn(values[0],
+          Arrays.copyOfRange(values, 1, values.length));
+    }
+  }
+
+  private static Boolean[] appendFalse(Boolean[] values, int from) {
+    Boolean[] result = Arrays.copyOfRange(values, from, values.length + 1);
+    result[result.length - 1] = Boolean.FALSE;
+    return result;
+  }
+
+  private static Map<UUID, ObjectType> objects(UUID accountId, UUID... subscriptionIds) {
+    Map<UUID, ObjectType> result = new LinkedHashMap<>();
+    result.put(accountId, ObjectType.ACCOUNT);
+    for (UUID id : subscriptionIds) {
+      result.put(id, ObjectType.SUBSCRIPTION);
+    }
+    return result;
+  }
+
+  @Test
+  public void singleQueryForAllObjects() throws SQLException {
+    UUID accountId = UUID.randomUUID();
+    UUID sub1 = UUID.randomUUID();
+    UUID sub2 = UUID.randomUUID();
+    givenRows(new Object[] { sub2, "SUBSCRIPTION", "node", "2" },
+        new Object[] { accountId, "ACCOUNT", "node", "a" },
+        new Object[] { sub1, "SUBSCRIPTION", "node", "1" });
+    CustomFieldBatchQuery query = new CustomFieldBatchQuery(dataSource);
+
+    Map<UUID, List<CustomField>> fields = query.getCustomFieldsForTenantRecordId(1L,
+        objects(accountId, sub1, sub2));
+
+    ArgumentCaptor<String> sql = ArgumentCaptor.forClass(String.class);
+    verify(conn, times(1)).prepareStatement(sql.capture());
+    assertThat("Object IDs queried together", sql.getValue(),
+        containsString("object_id IN (?,?,?)"));
+    verify(stmt).setLong(2, 1L);
+    verify(stmt).setString(3, accountId.toString());
+    verify(stmt).setString(4, sub1.toString());
+    verify(stmt).setString(5, sub2.toString());
+    verify(conn).close();
+    assertThat("Fields in requested object order", fields.keySet(),
+        contains(accountId, sub1, sub2));
+    assertThat("Subscription field", fields.get(sub1).get(0).getFieldValue(), equalTo("1"));
+    assertThat("Subscription field type", fields.get(sub1).get(0).getObjectType(),
+        equalTo(ObjectType.SUBSCRIPTION));
+  }
+
+  @Test
+  public void chunkedQueries() throws SQLException {
+    UUID accountId = UUID.randomUUID();
+    UUID[] subs = new UUID[4];
+    for (int i = 0; i < subs.length; i++) {
+      subs[i] = UUID.randomUUID();
+    }
+    givenRows();
+    CustomFieldBatchQuery query = new CustomFieldBatchQuery(dataSource, 2);
+
+    Map<UUID, List<CustomField>> fields = query.getCustomFieldsForTenantRecordId(1L,
+        objects(accountId, subs));
+
+    ArgumentCaptor<String> sql = ArgumentCaptor.forClass(String.class);
+    verify(conn, times(3)).prepareStatement(sql.capture());
+    assertThat("Chunk sizes", sql.getAllValues().stream()
+        .map(s -> s.substring(s.indexOf("IN (")).replaceAll("[^?]", "").length())
+        .collect(Collectors.toList()), contains(2, 2, 1));
+    verify(dataSource, times(1)).getConnection();
+    assertThat("No fields", fields.keySet(), hasSize(0));
+  }
+
+  @Test
+  public void byTenantId() throws SQLException {
+    UUID tenantId = UUID.randomUUID();
+    UUID accountId = UUID.randomUUID();
+    givenRows(new Object[] { accountId, "ACCOUNT", "node", "a" },
+        new Object[] { accountId, "BUNDLE", "node", "b" });
+    CustomFieldBatchQuery query = new CustomFieldBatchQuery(dataSource);
+
+    Map<UUID, List<CustomField>> fields = query.getCustomFieldsForTenantId(tenantId,
+        objects(accountId));
+
+    ArgumentCaptor<String> sql = ArgumentCaptor.forClass(String.class);
+    verify(conn, times(1)).prepareStatement(sql.capture());
+    assertThat("Tenant looked up by ID", sql.getValue(),
+        containsString("(SELECT record_id FROM tenants WHERE id = ?)"));
+    verify(stmt).setString(2, tenantId.toString());
+    assertThat("Fields of other object types ignored", fields.get(accountId), hasSize(1));
+  }
+
+  @Test
+  public void noObjects() throws SQLException {
+    CustomFieldBatchQuery query = new CustomFieldBatchQuery(dataSource);
+
+    Map<UUID, List<CustomField>> fields = query.getCustomFieldsForTenantRecordId(1L,
+        new LinkedHashMap<>());
+
+    verify(dataSource, never()).getConnection();
+    assertThat("No fields", fields.keySet(), hasSize(0));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void queryFailure() throws SQLException {
+    given(stmt.executeQuery()).willThrow(new SQLException("Boom"));
+    new CustomFieldBatchQuery(dataSource).getCustomFieldsForTenantRecordId(1L,
+        objects(UUID.randomUUID()));
+  }
+
+}
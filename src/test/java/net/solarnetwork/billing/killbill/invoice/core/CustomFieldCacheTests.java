@@ -0,0 +1,611 @@
+/*  Copyright 2020 SolarNetwork Foundation
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.solarnetwork.billing.killbill.invoice.core;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.killbill.billing.ObjectType;
+import org.killbill.billing.util.customfield.CustomField;
+import org.killbill.billing.util.customfield.StringCustomField;
+
+/**
+ * Test cases for the {@link CustomFieldCache} class.
+ * 
+ * @author matt
+ */
+public class CustomFieldCacheTests {
+
+  private static final long TTL = 1000L;
+
+  private AtomicLong clock;
+  private AtomicInteger loadCount;
+  private CustomFieldCache<String> cache;
+
+  @Before
+  public void setup() {
+    clock = new AtomicLong();
+    loadCount = new AtomicInteger();
+    cache = new CustomFieldCache<>(2, TTL, clock::get);
+  }
+
+  private static CustomField field(String name, String value) {
+    return new StringCustomField(name, value, ObjectType.ACCOUNT, UUID.randomUUID(), null);
+  }
+
+  private Function<String, List<CustomField>> loader(CustomField... fields) {
+    return k -> {
+      loadCount.incrementAndGet();
+      return new ArrayList<>(Arrays.asList(fields));
+    };
+  }
+
+  @Test
+  public void loadThenHit() {
+    CustomField f = field("a", "1");
+    List<CustomField> result1 = cache.get("foo", loader(f));
+    List<CustomField> result2 = cache.get("foo", loader(f));
+    assertThat("Fields loaded", result1, contains(f));
+    assertThat("Cached fields returned", result2, sameInstance(result1));
+    assertThat("Load count", loadCount.get(), equalTo(1));
+    assertThat("Miss count", cache.getMissCount(), equalTo(1L));
+    assertThat("Hit count", cache.getHitCount(), equalTo(1L));
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void immutable() {
+    List<CustomField> result = cache.get("foo", loader(field("a", "1")));
+    result.add(field("b", "2"));
+  }
+
+  @Test
+  public void nullLoadResult() {
+    List<CustomField> result = cache.get("foo", k -> null);
+    assertThat("Empty list returned", result, empty());
+  }
+
+  @Test
+  public void expires() {
+    cache.get("foo", loader(field("a", "1")));
+    clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(TTL) - 1);
+    cache.get("foo", loader(field("a", "1")));
+    assertThat("Not expired before TTL", loadCount.get(), equalTo(1));
+    clock.incrementAndGet();
+    cache.get("foo", loader(field("a", "1")));
+    assertThat("Expired at TTL", loadCount.get(), equalTo(2));
+  }
+
+  @Test
+  public void staleAfterExpiry() {
+    CustomField f = field("a", "1");
+    assertThat("Nothing stale before load", cache.getStale("foo"), nullValue());
+    List<CustomField> result = cache.get("foo", loader(f));
+    clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(TTL));
+    assertThat("Expired fields available", cache.getStale("foo"), sameInstance(result));
+    cache.invalidate("foo");
+    assertThat("Invalidated fields not available", cache.getStale("foo"), nullValue());
+  }
+
+  @Test
+  public void staleReplacedByReload() {
+    CustomField f1 = field("a", "1");
+    CustomField f2 = field("a", "2");
+    cache.get("foo", loader(f1));
+    clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(TTL));
+    List<CustomField> result = cache.get("foo", loader(f2));
+    assertThat("Expired fields reloaded", result, contains(f2));
+    assertThat("Reloaded fields replace stale", cache.getStale("foo"), sameInstance(result));
+  }
+
+  @Test
+  public void evictsLeastRecentlyUsed() {
+    cache.get("a", loader());
+    cache.get("b", loader());
+    cache.get("a", loader());
+    cache.get("c", loader());
+    assertThat("Size bounded", cache.size(), equalTo(2));
+    assertThat("Load count", loadCount.get(), equalTo(3));
+
+    cache.get("a", loader());
+    assertThat("Recently used retained", loadCount.get(), equalTo(3));
+    cache.get("b", loader());
+    assertThat("Least recently used evicted", loadCount.get(), equalTo(4));
+  }
+
+  @Test
+  public void invalidate() {
+    List<CustomField> result1 = cache.get("foo", loader(field("a", "1")));
+    cache.invalidate("foo");
+    List<CustomField> result2 = cache.get("foo", loader(field("a", "1")));
+    assertThat("Reloaded after invalidation", result2, not(sameInstance(result1)));
+    assertThat("Load count", loadCount.get(), equalTo(2));
+  }
+
+  @Test
+  public void invalidateIf() {
+    cache.get("a1", loader());
+    cache.get("b1", loader());
+    cache.invalidateIf(k -> k.startsWith("a"));
+    assertThat("Matching key removed", cache.size(), equalTo(1));
+    cache.get("b1", loader());
+    assertThat("Other key retained", loadCount.get(), equalTo(2));
+  }
+
+  @Test
+  public void invalidateAll() {
+    cache.get("a", loader());
+    cache.get("b", loader());
+    cache.invalidateAll();
+    assertThat("All removed", cache.size(), equalTo(0));
+  }
+
+  @Test
+  public void invalidateDuringLoadNotCached() {
+    CustomField f = field("a", "1");
+    List<CustomField> result = cache.get("foo", k -> {
+      cache.invalidate("foo");
+      return Arrays.asList(f);
+    });
+    assertThat("Loaded fields returned", result, contains(f));
+    assertThat("Stale fields not cached", cache.size(), equalTo(0));
+  }
+
+  @Test
+  public void invalidateOtherKeyDuringLoadCached() {
+    CustomField f = field("a", "1");
+    List<CustomField> result = cache.get("foo", k -> {
+      cache.invalidate("bar");
+      cache.invalidateIf("bim"::equals);
+      return Arrays.asList(f);
+    });
+    assertThat("Loaded fields returned", result, contains(f));
+    assertThat("Fields cached", cache.size(), equalTo(1));
+    assertThat("Cached fields used", cache.get("foo", loader()), contains(f));
+    assertThat("Loaded once", loadCount.get(), equalTo(0));
+  }
+
+  @Test
+  public void getAllInvalidateOneKeyDuringLoad() {
+    CustomField f1 = field("a", "1");
+    CustomField f2 = field("a", "2");
+    Map<String, List<CustomField>> result = cache.getAll(Arrays.asList("foo", "bar"), keys -> {
+      cache.invalidate("bar");
+      Map<String, List<CustomField>> m = new HashMap<>();
+      m.put("foo", Arrays.asList(f1));
+      m.put("bar", Arrays.asList(f2));
+      return m;
+    });
+    assertThat("Loaded fields returned", result.get("bar"), contains(f2));
+    assertThat("Other key cached", cache.getStale("foo"), contains(f1));
+    assertThat("Invalidated key not cached", cache.getStale("bar"), nullValue());
+  }
+
+  @Test
+  public void invalidateAllDuringLoadNotCached() {
+    List<CustomField> result = cache.get("foo", k -> {
+      cache.invalidateAll();
+      return Arrays.asList(field("a", "1"));
+    });
+    assertThat("Loaded fields returned", result, hasSize(1));
+    assertThat("Stale fields not cached", cache.size(), equalTo(0));
+  }
+
+  @Test
+  public void disabled() {
+    cache = new CustomFieldCache<>(0, TTL, clock::get);
+    cache.get("foo", loader());
+    cache.get("foo", loader());
+    assertThat("Nothing cached", cache.size(), equalTo(0));
+    assertThat("Load count", loadCount.get(), equalTo(2));
+  }
+
+  @Test
+  public void fromProperties() {
+    Map<String, String> props = new HashMap<>();
+    props.put(CustomFieldCache.MAXIMUM_SIZE_PROPERTY, "5");
+    props.put(CustomFieldCache.TIME_TO_LIVE_PROPERTY, " 2000 ");
+    cache = CustomFieldCache.fromProperties(props::get);
+    assertThat("Maximum size", cache.getMaximumSize(), equalTo(5));
+    assertThat("Time to live", cache.getTimeToLive(), equalTo(2000L));
+  }
+
+  @Test
+  public void fromPropertiesDefaults() {
+    Map<String, String> props = new HashMap<>();
+    props.put(CustomFieldCache.MAXIMUM_SIZE_PROPERTY, "lots");
+    cache = CustomFieldCache.fromProperties(props::get);
+    assertThat("Maximum size", cache.getMaximumSize(),
+        equalTo(CustomFieldCache.DEFAULT_MAXIMUM_SIZE));
+    assertThat("Time to live", cache.getTimeToLive(),
+        equalTo(CustomFieldCache.DEFAULT_TIME_TO_LIVE));
+  }
+
+  @Test
+  public void getAllLoadsMissingOnce() {
+    CustomField a = field("a", "1");
+    CustomField b = field("b", "2");
+    cache.get("a", loader(a));
+    List<Set<String>> requested = new ArrayList<>();
+    Map<String, List<CustomField>> result = cache.getAll(Arrays.asList("a", "b"), keys -> {
+      requested.add(new HashSet<>(keys));
+      Map<String, List<CustomField>> m = new HashMap<>();
+      m.put("b", Arrays.asList(b));
+      return m;
+    });
+
+    assertThat("Only missing keys loaded", requested, contains(Collections.singleton("b")));
+    assertThat("Result keys in request order", result.keySet(), contains("a", "b"));
+    assertThat("Cached fields", result.get("a"), contains(a));
+    assertThat("Loaded fields", result.get("b"), contains(b));
+    assertThat("Hit count", cache.getHitCount(), equalTo(1L));
+    assertThat("Miss count", cache.getMissCount(), equalTo(2L));
+
+    Map<String, List<CustomField>> result2 = cache.getAll(Arrays.asList("a", "b"), keys -> {
+      throw new AssertionError("Should not load");
+    });
+    assertThat("Loaded fields cached", result2.get("b"), sameInstance(result.get("b")));
+  }
+
+  @Test
+  public void getAllMissingFromLoaderIsEmpty() {
+    Map<String, List<CustomField>> result = cache.getAll(Arrays.asList("a"), keys -> null);
+    assertThat("Empty list returned", result.get("a"), empty());
+  }
+
+  private void awaitCoalesced(long count) {
+    final long deadline = System.currentTimeMillis() + 5000L;
+    while (cache.getCoalescedCount() < count && System.currentTimeMillis() < deadline) {
+      Thread.yield();
+    }
+  }
+
+  @Test
+  public void coalesceConcurrentLoads() throws Exception {
+    final int threads = 16;
+    final int rounds = 20;
+    // disable caching so each round is a new fetch window
+    cache = new CustomFieldCache<>(0, TTL, clock::get);
+    final ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      for (int round = 1; round <= rounds; round++) {
+        final long expectedCoalesced = (long) round * (threads - 1);
+        final CyclicBarrier start = new CyclicBarrier(threads);
+        final List<Future<List<CustomField>>> results = new ArrayList<>(threads);
+        for (int i = 0; i < threads; i++) {
+          results.add(executor.submit(() -> {
+            start.await(5, TimeUnit.SECONDS);
+            return cache.get("foo", k -> {
+              loadCount.incrementAndGet();
+              // hold the load open until every other thread is waiting on it
+              awaitCoalesced(expectedCoalesced);
+              return Arrays.asList(field("a", "1"));
+            });
+          }));
+        }
+        List<CustomField> first = results.get(0).get(5, TimeUnit.SECONDS);
+        for (Future<List<CustomField>> f : results) {
+          assertThat("Result shared", f.get(5, TimeUnit.SECONDS), sameInstance(first));
+        }
+        assertThat("One load per round", loadCount.get(), equalTo(round));
+        assertThat("Other threads coalesced", cache.getCoalescedCount(),
+            equalTo(expectedCoalesced));
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    assertThat("Miss count", cache.getMissCount(), equalTo((long) rounds));
+  }
+
+  @Test
+  public void coalescedLoadFailureShared() throws Exception {
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<List<CustomField>> loader = executor.submit(() -> cache.get("foo", k -> {
+        awaitCoalesced(1);
+        throw new IllegalStateException("boom");
+      }));
+      while (loadCount.get() == 0 && cache.getMissCount() == 0) {
+        Thread.yield();
+      }
+      try {
+        cache.get("foo", loader(field("a", "1")));
+        fail("Expected shared failure");
+      } catch (IllegalStateException e) {
+        assertThat("Shared failure", e.getMessage(), equalTo("boom"));
+      }
+      try {
+        loader.get(5, TimeUnit.SECONDS);
+        fail("Expected loader failure");
+      } catch (ExecutionException e) {
+        assertThat("Loader failure", e.getCause(), instanceOf(IllegalStateException.class));
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    assertThat("Waiting caller did not load", loadCount.get(), equalTo(0));
+    cache.get("foo", loader(field("a", "1")));
+    assertThat("Failed load not cached", loadCount.get(), equalTo(1));
+  }
+
+  @Test
+  public void invalidateDuringLoadStartsNewLoad() throws Exception {
+    final CountDownLatch loading = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final CustomField stale = field("a", "1");
+    final CustomField fresh = field("a", "2");
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<List<CustomField>> first = executor.submit(() -> cache.get("foo", k -> {
+        loading.countDown();
+        try {
+          release.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        return Arrays.asList(stale);
+      }));
+      assertThat("Load started", loading.await(5, TimeUnit.SECONDS), equalTo(true));
+      cache.invalidate("foo");
+
+      assertThat("New load after invalidation", cache.get("foo", loader(fresh)), contains(fresh));
+      release.countDown();
+      assertThat("Original load", first.get(5, TimeUnit.SECONDS), contains(stale));
+    } finally {
+      release.countDown();
+      executor.shutdownNow();
+    }
+    assertThat("Not coalesced", cache.getCoalescedCount(), equalTo(0L));
+    assertThat("Fresh fields cached", cache.get("foo", loader()), contains(fresh));
+  }
+
+  @Test
+  public void getAllCoalescesWithGet() throws Exception {
+    final CountDownLatch loading = new CountDownLatch(1);
+    final CustomField a = field("a", "1");
+    final CustomField b = field("b", "2");
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+    final List<Long> waits = new ArrayList<>();
+    try {
+      Future<List<CustomField>> first = executor.submit(() -> cache.get("a", k -> {
+        loading.countDown();
+        awaitCoalesced(1);
+        return Arrays.asList(a);
+      }));
+      assertThat("Load started", loading.await(5, TimeUnit.SECONDS), equalTo(true));
+
+      List<Set<String>> requested = new ArrayList<>();
+      Map<String, List<CustomField>> result = cache.getAll(Arrays.asList("a", "b"), keys -> {
+        requested.add(new HashSet<>(keys));
+        return Collections.singletonMap("b", Arrays.asList(b));
+      }, new CustomFieldCache.Listener() {
+
+        @Override
+        public void coalesced(long waitNanos) {
+          waits.add(waitNanos);
+        }
+
+      });
+
+      assertThat("Only keys not in flight loaded", requested,
+          contains(Collections.singleton("b")));
+      assertThat("Coalesced fields", result.get("a"), sameInstance(first.get(5, TimeUnit.SECONDS)));
+      assertThat("Loaded fields", result.get("b"), contains(b));
+      assertThat("Wait reported", waits, hasSize(1));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private static final long REFRESH = 400L;
+
+  private static class RecordingListener implements CustomFieldCache.Listener {
+
+    private int hits;
+    private int staleServes;
+    private final List<Throwable> refreshFailures = new ArrayList<>();
+
+    @Override
+    public void hit() {
+      hits++;
+    }
+
+    @Override
+    public void staleServed() {
+      staleServes++;
+    }
+
+    @Override
+    public void refreshFailed(Throwable t) {
+      refreshFailures.add(t);
+    }
+
+  }
+
+  @Test
+  public void refreshAfterServesStaleAndRefreshes() {
+    cache = new CustomFieldCache<>(2, TTL, REFRESH, clock::get, Runnable::run);
+    CustomField f1 = field("a", "1");
+    CustomField f2 = field("a", "2");
+    RecordingListener listener = new RecordingListener();
+    List<CustomField> result1 = cache.get("foo", loader(f1), listener);
+    clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(REFRESH));
+
+    List<CustomField> result2 = cache.get("foo", loader(f2), listener);
+    assertThat("Stale fields served", result2, sameInstance(result1));
+    assertThat("Refreshed in background", loadCount.get(), equalTo(2));
+    assertThat("Stale serve counted", cache.getStaleServeCount(), equalTo(1L));
+    assertThat("Listener stale serve", listener.staleServes, equalTo(1));
+    assertThat("Stale serve is a hit", listener.hits, equalTo(1));
+
+    assertThat("Refreshed fields cached", cache.get("foo", loader()), contains(f2));
+    assertThat("No further load", loadCount.get(), equalTo(2));
+  }
+
+  @Test
+  public void refreshAfterHardExpiryBlocks() {
+    cache = new CustomFieldCache<>(2, TTL, REFRESH, clock::get, r -> {
+      throw new AssertionError("Should not refresh in background");
+    });
+    CustomField f2 = field("a", "2");
+    cache.get("foo", loader(field("a", "1")));
+    clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(TTL));
+    assertThat("Expired fields loaded by caller", cache.get("foo", loader(f2)), contains(f2));
+    assertThat("No stale serve", cache.getStaleServeCount(), equalTo(0L));
+  }
+
+  @Test
+  public void refreshOncePerKey() {
+    final List<Runnable> tasks = new ArrayList<>();
+    cache = new CustomFieldCache<>(2, TTL, REFRESH, clock::get, tasks::add);
+    CustomField f1 = field("a", "1");
+    cache.get("foo", loader(f1));
+    clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(REFRESH));
+
+    cache.get("foo", loader(field("a", "2")));
+    cache.get("foo", loader(field("a", "2")));
+    assertThat("Single refresh started", tasks, hasSize(1));
+    assertThat("Stale serves counted", cache.getStaleServeCount(), equalTo(2L));
+
+    tasks.get(0).run();
+    assertThat("Refreshed", loadCount.get(), equalTo(2));
+    cache.get("foo", loader());
+    assertThat("Fresh after refresh", cache.getStaleServeCount(), equalTo(2L));
+  }
+
+  @Test
+  public void refreshFailureKeepsStale() {
+    cache = new CustomFieldCache<>(2, TTL, REFRESH, clock::get, Runnable::run);
+    RecordingListener listener = new RecordingListener();
+    List<CustomField> result1 = cache.get("foo", loader(field("a", "1")));
+    clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(REFRESH));
+
+    List<CustomField> result2 = cache.get("foo", k -> {
+      throw new IllegalStateException("boom");
+    }, listener);
+    assertThat("Stale fields served", result2, sameInstance(result1));
+    assertThat("Refresh failure counted", cache.getRefreshFailureCount(), equalTo(1L));
+    assertThat("Listener refresh failure", listener.refreshFailures, hasSize(1));
+
+    CustomField f2 = field("a", "2");
+    cache.get("foo", loader(f2));
+    assertThat("Refresh retried", cache.get("foo", loader()), contains(f2));
+  }
+
+  @Test
+  public void refreshRejectedKeepsStale() {
+    final AtomicInteger rejections = new AtomicInteger();
+    cache = new CustomFieldCache<>(2, TTL, REFRESH, clock::get, r -> {
+      rejections.incrementAndGet();
+      throw new RejectedExecutionException();
+    });
+    List<CustomField> result1 = cache.get("foo", loader(field("a", "1")));
+    clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(REFRESH));
+    assertThat("Stale served", cache.get("foo", loader()), sameInstance(result1));
+    assertThat("Stale served again", cache.get("foo", loader()), sameInstance(result1));
+    assertThat("Refresh retried after rejection", rejections.get(), equalTo(2));
+    assertThat("Nothing loaded", loadCount.get(), equalTo(1));
+  }
+
+  @Test
+  public void refreshWithGivenExecutor() {
+    cache = new CustomFieldCache<>(2, TTL, REFRESH, clock::get, r -> {
+      throw new AssertionError("Should refresh with the given executor");
+    });
+    final List<Runnable> tasks = new ArrayList<>();
+    List<CustomField> result1 = cache.get("foo", loader(field("a", "1")));
+    clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(REFRESH));
+
+    CustomField f2 = field("a", "2");
+    assertThat("Stale served", cache.get("foo", loader(f2), null, tasks::add),
+        sameInstance(result1));
+    assertThat("Refresh given to executor", tasks, hasSize(1));
+    tasks.get(0).run();
+    assertThat("Refreshed fields cached", cache.get("foo", loader()), contains(f2));
+  }
+
+  @Test
+  public void getAllRefreshesStaleKeys() {
+    cache = new CustomFieldCache<>(4, TTL, REFRESH, clock::get, Runnable::run);
+    CustomField a = field("a", "1");
+    cache.get("a", loader(a));
+    clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(REFRESH));
+    CustomField b = field("b", "2");
+    CustomField a2 = field("a", "3");
+    List<Set<String>> requested = new ArrayList<>();
+    Map<String, List<CustomField>> result = cache.getAll(Arrays.asList("a", "b"), keys -> {
+      requested.add(new HashSet<>(keys));
+      Map<String, List<CustomField>> m = new HashMap<>();
+      m.put("a", Arrays.asList(a2));
+      m.put("b", Arrays.asList(b));
+      return m;
+    });
+
+    assertThat("Stale fields served", result.get("a"), contains(a));
+    assertThat("Missing fields loaded", result.get("b"), contains(b));
+    assertThat("Stale and missing keys loaded separately", requested,
+        contains(Collections.singleton("a"), Collections.singleton("b")));
+    assertThat("Stale key refreshed", cache.get("a", loader()), contains(a2));
+  }
+
+  @Test
+  public void refreshAfterDisabledWhenNotBeforeTimeToLive() {
+    assertThat("Refresh at TTL disabled",
+        new CustomFieldCache<>(2, TTL, TTL, clock::get, null).getRefreshAfter(), equalTo(0L));
+    assertThat("Refresh before TTL enabled",
+        new CustomFieldCache<>(2, TTL, REFRESH, clock::get, null).getRefreshAfter(),
+        equalTo(REFRESH));
+  }
+
+  @Test
+  public void fromPropertiesRefreshAfter() {
+    Map<String, String> props = new HashMap<>();
+    props.put(CustomFieldCache.REFRESH_AFTER_PROPERTY, "60000");
+    cache = CustomFieldCache.fromProperties(props::get);
+    assertThat("Refresh after", cache.getRefreshAfter(), equalTo(60000L));
+  }
+
+}
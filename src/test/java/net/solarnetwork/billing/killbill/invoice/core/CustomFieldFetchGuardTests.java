@@ -0,0 +1,236 @@
+/*  Copyright 2020 SolarNetwork Foundation
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.solarnetwork.billing.killbill.invoice.core;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.killbill.billing.ObjectType;
+import org.killbill.billing.util.customfield.CustomField;
+import org.killbill.billing.util.customfield.StringCustomField;
+
+/**
+ * Test cases for the {@link CustomFieldFetchGuard} class.
+ * 
+ * @author matt
+ */
+public class CustomFieldFetchGuardTests {
+
+  private ExecutorService executor;
+  private CountDownLatch release;
+  private AtomicInteger degraded;
+  private AtomicInteger loads;
+
+  @Before
+  public void setup() {
+    executor = Executors.newCachedThreadPool();
+    release = new CountDownLatch(1);
+    degraded = new AtomicInteger();
+    loads = new AtomicInteger();
+  }
+
+  @After
+  public void teardown() {
+    release.countDown();
+    executor.shutdownNow();
+  }
+
+  private static CustomField field(String value) {
+    return new StringCustomField("node", value, ObjectType.ACCOUNT, UUID.randomUUID(), null);
+  }
+
+  private Supplier<List<CustomField>> slowLoader(CustomField field) {
+    return () -> {
+      loads.incrementAndGet();
+      try {
+        release.await(5, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return Collections.singletonList(field);
+    };
+  }
+
+  @Test
+  public void disabled() {
+    Supplier<List<CustomField>> loader = Collections::emptyList;
+    assertThat("Disabled guard returns loader", CustomFieldFetchGuard.of(0, 10).guard(loader,
+        Collections::emptyList, degraded::incrementAndGet), sameInstance(loader));
+    assertThat("No deadline disables guard", CustomFieldFetchGuard.of(0, 10),
+        sameInstance(CustomFieldFetchGuard.NONE));
+  }
+
+  @Test
+  public void withinDeadline() {
+    final CustomField f = field("1");
+    CustomFieldFetchGuard guard = new CustomFieldFetchGuard(5000L, 1, executor);
+    Supplier<List<CustomField>> result = guard.guard(() -> Collections.singletonList(f),
+        Collections::emptyList, degraded::incrementAndGet);
+    assertThat("Fetched fields", result.get(), contains(f));
+    assertThat("Not degraded", degraded.get(), equalTo(0));
+  }
+
+  @Test
+  public void deadlinePassedUsesFallback() {
+    final CustomField stale = field("stale");
+    CustomFieldFetchGuard guard = new CustomFieldFetchGuard(50L, 1, executor);
+    Supplier<List<CustomField>> result = guard.guard(slowLoader(field("fresh")),
+        () -> Collections.singletonList(stale), degraded::incrementAndGet);
+
+    final long start = System.nanoTime();
+    assertThat("Fallback fields", result.get(), contains(stale));
+    assertThat("Latency bounded by deadline",
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), lessThan(2000L));
+    assertThat("Fallback memoized", result.get(), contains(stale));
+    assertThat("Degraded once", degraded.get(), equalTo(1));
+  }
+
+  @Test
+  public void bulkheadFullUsesFallback() throws InterruptedException {
+    CustomFieldFetchGuard guard = new CustomFieldFetchGuard(50L, 1, executor);
+    // occupy the only slot with a fetch that outlives its deadline
+    guard.guard(slowLoader(field("1")), Collections::emptyList, degraded::incrementAndGet).get();
+    assertThat("First fetch degraded", degraded.get(), equalTo(1));
+
+    guard.guard(slowLoader(field("2")), Collections::emptyList, degraded::incrementAndGet).get();
+    assertThat("Second fetch degraded", degraded.get(), equalTo(2));
+    assertThat("Second fetch not started while slot busy", loads.get(), equalTo(1));
+
+    release.countDown();
+    final long deadline = System.currentTimeMillis() + 5000L;
+    List<CustomField> fields = Collections.emptyList();
+    while (fields.isEmpty() && System.currentTimeMillis() < deadline) {
+      fields = guard.guard(() -> Collections.singletonList(field("3")), Collections::emptyList,
+          null).get();
+    }
+    assertThat("Slot released when slow fetch completes", fields.size(), equalTo(1));
+  }
+
+  @Test
+  public void noConcurrencyLimitUsesDefault() {
+    assertThat("Zero max concurrent", CustomFieldFetchGuard.of(100, 0).getMaxConcurrent(),
+        equalTo(CustomFieldFetchGuard.DEFAULT_MAX_CONCURRENT));
+    assertThat("Negative max concurrent", CustomFieldFetchGuard.of(100, -1).getMaxConcurrent(),
+        equalTo(CustomFieldFetchGuard.DEFAULT_MAX_CONCURRENT));
+  }
+
+  @Test
+  public void executorRejectionUsesFallback() {
+    final CustomField stale = field("stale");
+    CustomFieldFetchGuard guard = new CustomFieldFetchGuard(5000L, 1, r -> {
+      throw new RejectedExecutionException("full");
+    });
+    Supplier<List<CustomField>> result = guard.guard(slowLoader(field("fresh")),
+        () -> Collections.singletonList(stale), degraded::incrementAndGet);
+    assertThat("Fallback fields", result.get(), contains(stale));
+    assertThat("Degraded", degraded.get(), equalTo(1));
+    assertThat("Fetch not started", loads.get(), equalTo(0));
+
+    // the slot taken by the rejected fetch was released
+    CustomFieldFetchGuard next = new CustomFieldFetchGuard(5000L, 1, executor);
+    assertThat("Guard still usable", next.guard(() -> Collections.singletonList(stale),
+        Collections::emptyList, degraded::incrementAndGet).get(), contains(stale));
+  }
+
+  @Test
+  public void backgroundExecutorDisabled() {
+    assertThat("No background executor without guard",
+        CustomFieldFetchGuard.NONE.getBackgroundExecutor(), nullValue());
+  }
+
+  @Test
+  public void backgroundExecutorSharesBulkhead() throws InterruptedException {
+    CustomFieldFetchGuard guard = new CustomFieldFetchGuard(50L, 1, executor);
+    final Executor background = guard.getBackgroundExecutor();
+    // occupy the only slot with a fetch that outlives its deadline
+    guard.guard(slowLoader(field("1")), Collections::emptyList, degraded::incrementAndGet).get();
+
+    try {
+      background.execute(loads::incrementAndGet);
+      fail("Background task should be rejected while slot busy");
+    } catch (RejectedExecutionException e) {
+      // expected
+    }
+
+    release.countDown();
+    final CountDownLatch ran = new CountDownLatch(1);
+    final long deadline = System.currentTimeMillis() + 5000L;
+    boolean accepted = false;
+    while (!accepted && System.currentTimeMillis() < deadline) {
+      try {
+        background.execute(ran::countDown);
+        accepted = true;
+      } catch (RejectedExecutionException e) {
+        Thread.sleep(10L);
+      }
+    }
+    assertThat("Background task run when slot free", ran.await(5, TimeUnit.SECONDS),
+        equalTo(true));
+    assertThat("Slot released after background task", guard.guard(
+        () -> Collections.singletonList(field("2")), Collections::emptyList, null).get().size(),
+        equalTo(1));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void fetchExceptionPropagated() {
+    CustomFieldFetchGuard guard = new CustomFieldFetchGuard(5000L, 1, executor);
+    guard.guard(() -> {
+      throw new IllegalStateException("boom");
+    }, Collections::emptyList, degraded::incrementAndGet).get();
+  }
+
+  @Test
+  public void fromProperties() {
+    Map<String, String> props = new HashMap<>();
+    props.put(CustomFieldFetchGuard.DEADLINE_PROPERTY, " 100 ");
+    CustomFieldFetchGuard guard = CustomFieldFetchGuard.fromProperties(props::get);
+    assertThat("Enabled", guard.isEnabled(), equalTo(true));
+    assertThat("Deadline", guard.getDeadline(), equalTo(100L));
+    assertThat("Default max concurrent", guard.getMaxConcurrent(),
+        equalTo(CustomFieldFetchGuard.DEFAULT_MAX_CONCURRENT));
+  }
+
+  @Test
+  public void fromPropertiesDefaults() {
+    Map<String, String> props = new HashMap<>();
+    props.put(CustomFieldFetchGuard.DEADLINE_PROPERTY, "soon");
+    CustomFieldFetchGuard guard = CustomFieldFetchGuard.fromProperties(props::get);
+    assertThat("Disabled", guard, sameInstance(CustomFieldFetchGuard.NONE));
+  }
+
+}
@@ -0,0 +1,170 @@
+/*  Copyright 2020 SolarNetwork Foundation
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.solarnetwork.billing.killbill.invoice.core;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.mock;
+
+import java.util.AbstractMap.SimpleEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.junit.Test;
+import org.killbill.billing.ObjectType;
+import org.killbill.billing.invoice.api.Invoice;
+import org.killbill.billing.invoice.api.InvoiceItem;
+import org.killbill.billing.util.customfield.CustomField;
+import org.killbill.billing.util.customfield.StringCustomField;
+
+/**
+ * Test cases for the {@link CustomFieldFetchStrategy} class.
+ * 
+ * @author matt
+ */
+public class CustomFieldFetchStrategyTests {
+
+  @Test
+  public void fromPropertiesDefaults() {
+    CustomFieldFetchStrategy s = CustomFieldFetchStrategy.fromProperties(k -> null);
+    assertThat("Default scope", s.getScope(), equalTo(CustomFieldFetchStrategy.Scope.ACCOUNT));
+    assertThat("Lazy by default", s.getAsyncTimeout(), equalTo(0L));
+  }
+
+  @Test
+  public void fromProperties() {
+    Map<String, String> props = new HashMap<>();
+    props.put(CustomFieldFetchStrategy.SCOPE_PROPERTY, " Invoice ");
+    props.put(CustomFieldFetchStrategy.ASYNC_TIMEOUT_PROPERTY, "5");
+    CustomFieldFetchStrategy s = CustomFieldFetchStrategy.fromProperties(props::get);
+    assertThat("Scope", s.getScope(), equalTo(CustomFieldFetchStrategy.Scope.INVOICE));
+    assertThat("Async timeout", s.getAsyncTimeout(), equalTo(5L));
+    assertThat("No guard by default", s.getGuard(), sameInstance(CustomFieldFetchGuard.NONE));
+  }
+
+  @Test
+  public void fromPropertiesGuard() {
+    Map<String, String> props = new HashMap<>();
+    props.put(CustomFieldFetchGuard.DEADLINE_PROPERTY, "250");
+    props.put(CustomFieldFetchGuard.MAX_CONCURRENT_PROPERTY, "3");
+    CustomFieldFetchStrategy s = CustomFieldFetchStrategy.fromProperties(props::get);
+    assertThat("Guard enabled", s.getGuard().isEnabled(), equalTo(true));
+    assertThat("Deadline", s.getGuard().getDeadline(), equalTo(250L));
+    assertThat("Max concurrent", s.getGuard().getMaxConcurrent(), equalTo(3));
+  }
+
+  @Test
+  public void fromPropertiesInvalid() {
+    Map<String, String> props = new HashMap<>();
+    props.put(CustomFieldFetchStrategy.SCOPE_PROPERTY, "bundle");
+    props.put(CustomFieldFetchStrategy.ASYNC_TIMEOUT_PROPERTY, "soon");
+    CustomFieldFetchStrategy s = CustomFieldFetchStrategy.fromProperties(props::get);
+    assertThat("Default scope", s.getScope(), equalTo(CustomFieldFetchStrategy.Scope.ACCOUNT));
+    assertThat("Lazy by default", s.getAsyncTimeout(), equalTo(0L));
+  }
+
+  @Test
+  public void objectIds() {
+    UUID accountId = UUID.randomUUID();
+    UUID sub1 = UUID.randomUUID();
+    UUID sub2 = UUID.randomUUID();
+    List<InvoiceItem> items = new ArrayList<>();
+    for (UUID subId : Arrays.asList(sub2, null, sub1, sub2)) {
+      InvoiceItem item = mock(InvoiceItem.class);
+      given(item.getSubscriptionId()).willReturn(subId);
+      items.add(item);
+    }
+    Invoice invoice = mock(Invoice.class);
+    given(invoice.getAccountId()).willReturn(accountId);
+    given(invoice.getInvoiceItems()).willReturn(items);
+
+    assertThat("Account then distinct subscriptions", CustomFieldFetchStrategy.objectIds(invoice),
+        contains(accountId, sub2, sub1));
+  }
+
+  private static CustomField field(UUID objectId, ObjectType type, String value) {
+    return new StringCustomField("node", value, type, objectId, null);
+  }
+
+  @Test
+  public void loadFetchesAllObjectsAtOnce() {
+    UUID accountId = UUID.randomUUID();
+    UUID sub1 = UUID.randomUUID();
+    UUID sub2 = UUID.randomUUID();
+    List<Map<UUID, ObjectType>> requests = new ArrayList<>();
+    CustomFieldFetchStrategy.Source source = new CustomFieldFetchStrategy.Source() {
+
+      @Override
+      public List<CustomField> getCustomFieldsForObject(UUID objectId, ObjectType objectType) {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public Map<UUID, List<CustomField>> getCustomFieldsForObjects(
+          Map<UUID, ObjectType> objects) {
+        requests.add(objects);
+        Map<UUID, List<CustomField>> result = new LinkedHashMap<>();
+        result.put(sub2, Collections.singletonList(field(sub2, ObjectType.SUBSCRIPTION, "2")));
+        result.put(accountId, Collections.emptyList());
+        result.put(sub1, Collections.singletonList(field(sub1, ObjectType.SUBSCRIPTION, "1")));
+        return result;
+      }
+
+    };
+
+    Map<UUID, List<CustomField>> fields = CustomFieldFetchStrategy.fromProperties(k -> null)
+        .load(accountId, new LinkedHashSet<>(Arrays.asList(accountId, sub1, sub2)), source);
+
+    assertThat("One request", requests, hasSize(1));
+    assertThat("Object types", new ArrayList<>(requests.get(0).entrySet()),
+        contains(new SimpleEntry<>(accountId, ObjectType.ACCOUNT),
+            new SimpleEntry<>(sub1, ObjectType.SUBSCRIPTION),
+            new SimpleEntry<>(sub2, ObjectType.SUBSCRIPTION)));
+    assertThat("Objects with fields, in requested order", fields.keySet(), contains(sub1, sub2));
+  }
+
+  @Test
+  public void loadDefaultsToEachObject() {
+    UUID accountId = UUID.randomUUID();
+    UUID sub1 = UUID.randomUUID();
+    List<UUID> queried = new ArrayList<>();
+    CustomFieldFetchStrategy.Source source = (objectId, objectType) -> {
+      queried.add(objectId);
+      return Collections.singletonList(field(objectId, objectType, objectType.name()));
+    };
+
+    Map<UUID, List<CustomField>> fields = CustomFieldFetchStrategy.fromProperties(k -> null)
+        .load(accountId, new LinkedHashSet<>(Arrays.asList(accountId, sub1)), source);
+
+    assertThat("Each object queried", queried, contains(accountId, sub1));
+    assertThat("Account fields", fields.get(accountId).get(0).getFieldValue(),
+        equalTo("ACCOUNT"));
+    assertThat("Subscription fields", fields.get(sub1).get(0).getFieldValue(),
+        equalTo("SUBSCRIPTION"));
+  }
+
+}
@@ -0,0 +1,88 @@
+/*  Copyright 2020 SolarNetwork Foundation
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.solarnetwork.billing.killbill.invoice.core;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.junit.Test;
+
+/**
+ * Test cases for the {@link CustomFieldNameFilter} class.
+ * 
+ * @author matt
+ */
+public class CustomFieldNameFilterTests {
+
+  @Test
+  public void allowAll() {
+    List<String> names = Arrays.asList("a", "b");
+    assertThat("No names configured", CustomFieldNameFilter.ALLOW_ALL.getFieldNames(null),
+        nullValue());
+    assertThat("Allowed", CustomFieldNameFilter.ALLOW_ALL.isAllowed(null, "foo"), equalTo(true));
+    assertThat("Input returned",
+        CustomFieldNameFilter.ALLOW_ALL.filter(null, names, Function.identity()),
+        sameInstance(names));
+  }
+
+  @Test
+  public void filterCaseInsensitive() {
+    CustomFieldNameFilter filter = CustomFieldNameFilter.of(Arrays.asList("Node", "site"));
+    assertThat("Filtered", filter.filter(null, Arrays.asList("node", "other", "SITE", null),
+        Function.identity()), contains("node", "SITE"));
+    assertThat("Null name not allowed", filter.isAllowed(null, null), equalTo(false));
+  }
+
+  @Test
+  public void tenantOverride() {
+    UUID tenantId = UUID.randomUUID();
+    Map<String, String> props = new HashMap<>();
+    props.put(CustomFieldNameFilter.NAMES_PROPERTY, "a, b");
+    props.put(CustomFieldNameFilter.NAMES_PROPERTY + "." + tenantId, "c");
+    props.put(CustomFieldNameFilter.NAMES_PROPERTY + ".2", " ");
+    CustomFieldNameFilter filter = CustomFieldNameFilter.fromProperties(props::get);
+
+    assertThat("Default names", filter.isAllowed(null, "a"), equalTo(true));
+    assertThat("Default names for other tenant", filter.isAllowed(1L, "b"), equalTo(true));
+    assertThat("Tenant names", filter.isAllowed(tenantId, "c"), equalTo(true));
+    assertThat("Tenant names replace default", filter.isAllowed(tenantId, "a"), equalTo(false));
+    assertThat("Blank tenant names allow all", filter.getFieldNames(2L), nullValue());
+  }
+
+  @Test
+  public void tenantNamesResolvedOnce() {
+    AtomicInteger lookups = new AtomicInteger();
+    CustomFieldNameFilter filter = CustomFieldNameFilter.fromProperties(k -> {
+      lookups.incrementAndGet();
+      return null;
+    });
+    filter.isAllowed(1L, "a");
+    filter.isAllowed(1L, "b");
+    assertThat("Tenant and default property looked up once", lookups.get(), equalTo(2));
+  }
+
+}
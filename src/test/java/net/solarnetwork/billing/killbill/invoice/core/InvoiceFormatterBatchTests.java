@@ -0,0 +1,157 @@
+/*  Copyright 2020 SolarNetwork Foundation
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.solarnetwork.billing.killbill.invoice.core;
+
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.mock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.junit.Test;
+import org.killbill.billing.ObjectType;
+import org.killbill.billing.invoice.api.Invoice;
+import org.killbill.billing.util.customfield.CustomField;
+import org.killbill.billing.util.customfield.StringCustomField;
+
+/**
+ * Test cases for the {@link InvoiceFormatterBatch} class.
+ * 
+ * @author matt
+ */
+public class InvoiceFormatterBatchTests {
+
+  private static final class Created {
+
+    private final Invoice invoice;
+    private final Supplier<List<CustomField>> fields;
+
+    private Created(Invoice invoice, Supplier<List<CustomField>> fields) {
+      super();
+      this.invoice = invoice;
+      this.fields = fields;
+    }
+
+  }
+
+  private static Invoice invoice(UUID accountId) {
+    Invoice invoice = mock(Invoice.class);
+    given(invoice.getAccountId()).willReturn(accountId);
+    return invoice;
+  }
+
+  @Test
+  public void prefetchOncePerKeyInOrder() {
+    UUID account1 = UUID.randomUUID();
+    UUID account2 = UUID.randomUUID();
+    List<Invoice> invoices = new ArrayList<>();
+    for (int i = 0; i < 50; i++) {
+      invoices.add(invoice(i % 2 == 0 ? account1 : account2));
+    }
+    Map<UUID, AtomicInteger> fetches = new ConcurrentHashMap<>();
+
+    List<Created> result = InvoiceFormatterBatch.create(invoices, Invoice::getAccountId, inv -> {
+      fetches.computeIfAbsent(inv.getAccountId(), k -> new AtomicInteger()).incrementAndGet();
+      return Collections.singletonList(new StringCustomField("node", inv.getAccountId().toString(),
+          ObjectType.ACCOUNT, inv.getAccountId(), null));
+    }, Created::new, 4);
+
+    assertThat("Result count", result.size(), equalTo(invoices.size()));
+    for (int i = 0; i < invoices.size(); i++) {
+      Created c = result.get(i);
+      assertThat("Input order preserved", c.invoice, sameInstance(invoices.get(i)));
+      assertThat("Prefetched account fields", c.fields.get().get(0).getFieldValue(),
+          equalTo(c.invoice.getAccountId().toString()));
+    }
+    assertThat("Each account fetched once", fetches.get(account1).get(), equalTo(1));
+    assertThat("Each account fetched once", fetches.get(account2).get(), equalTo(1));
+  }
+
+  @Test
+  public void noPrefetchWithoutKey() {
+    List<Invoice> invoices = Collections.singletonList(invoice(null));
+    List<Created> result = InvoiceFormatterBatch.create(invoices, Invoice::getAccountId, inv -> {
+      throw new AssertionError("Should not prefetch");
+    }, Created::new, 2);
+
+    assertThat("Not prefetched", result.get(0).fields, nullValue());
+  }
+
+  @Test
+  public void emptyBatch() {
+    List<Created> result = InvoiceFormatterBatch.create(Collections.emptyList(),
+        Invoice::getAccountId, inv -> null, Created::new, 2);
+    assertThat("Empty result", result, empty());
+  }
+
+  @Test
+  public void prefetchFailureFallsBackToLazy() {
+    UUID goodAccount = UUID.randomUUID();
+    UUID badAccount = UUID.randomUUID();
+    List<Invoice> invoices = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      invoices.add(invoice(i % 2 == 0 ? goodAccount : badAccount));
+    }
+
+    List<Created> result = InvoiceFormatterBatch.create(invoices, Invoice::getAccountId, inv -> {
+      if (badAccount.equals(inv.getAccountId())) {
+        throw new IllegalStateException("boom");
+      }
+      return Collections.singletonList(new StringCustomField("node", "good", ObjectType.ACCOUNT,
+          inv.getAccountId(), null));
+    }, Created::new, 2);
+
+    assertThat("Result count", result.size(), equalTo(invoices.size()));
+    for (Created c : result) {
+      if (badAccount.equals(c.invoice.getAccountId())) {
+        assertThat("Failed account not prefetched", c.fields, nullValue());
+      } else {
+        assertThat("Other account prefetched", c.fields.get().get(0).getFieldValue(),
+            equalTo("good"));
+      }
+    }
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void createExceptionPropagated() {
+    InvoiceFormatterBatch.create(Collections.singletonList(invoice(UUID.randomUUID())),
+        Invoice::getAccountId, inv -> Collections.emptyList(), (inv, fields) -> {
+          throw new IllegalStateException("boom");
+        }, 2);
+  }
+
+  @Test
+  public void parallelism() {
+    assertThat("Configured", InvoiceFormatterBatch
+        .parallelism(k -> InvoiceFormatterBatch.PARALLELISM_PROPERTY.equals(k) ? "3" : null),
+        equalTo(3));
+    assertThat("Default", InvoiceFormatterBatch.parallelism(k -> "0"),
+        equalTo(Math.max(InvoiceFormatterBatch.MINIMUM_DEFAULT_PARALLELISM,
+            Runtime.getRuntime().availableProcessors())));
+  }
+
+}
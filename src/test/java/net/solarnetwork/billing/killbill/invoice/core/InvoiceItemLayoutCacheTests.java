@@ -0,0 +1,134 @@
+/*  Copyright 2020 SolarNetwork Foundation
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package net.solarnetwork.billing.killbill.invoice.core;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.mock;
+
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import net.solarnetwork.billing.killbill.invoice.api.ExtendedInvoiceFormatter;
+
+/**
+ * Test cases for the {@link InvoiceItemLayoutCache} class.
+ * 
+ * @author matt
+ */
+public class InvoiceItemLayoutCacheTests {
+
+  private static final long TTL = 1000L;
+
+  private AtomicLong clock;
+  private InvoiceItemLayoutCache cache;
+
+  @Before
+  public void setup() {
+    clock = new AtomicLong();
+    cache = new InvoiceItemLayoutCache(2, TTL, clock::get);
+  }
+
+  private static InvoiceItemLayout layout(UUID accountId) {
+    ExtendedInvoiceFormatter formatter = mock(ExtendedInvoiceFormatter.class);
+    given(formatter.getId()).willReturn(UUID.randomUUID());
+    given(formatter.getAccountId()).willReturn(accountId);
+    given(formatter.getInvoiceItems()).willReturn(Collections.emptyList());
+    return InvoiceItemLayout.of(formatter);
+  }
+
+  @Test
+  public void putGet() {
+    InvoiceItemLayout layout = layout(UUID.randomUUID());
+    cache.put(layout);
+
+    assertThat("Cached layout", cache.get(layout.getInvoiceId()), sameInstance(layout));
+    assertThat("Other invoice", cache.get(UUID.randomUUID()), nullValue());
+    assertThat("Hits", cache.getHitCount(), equalTo(1L));
+    assertThat("Misses", cache.getMissCount(), equalTo(1L));
+  }
+
+  @Test
+  public void expires() {
+    InvoiceItemLayout layout = layout(UUID.randomUUID());
+    cache.put(layout);
+    clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(TTL));
+
+    assertThat("Expired layout", cache.get(layout.getInvoiceId()), nullValue());
+    assertThat("Expired layout removed", cache.size(), equalTo(0));
+  }
+
+  @Test
+  public void evictsLeastRecentlyUsed() {
+    InvoiceItemLayout l1 = layout(UUID.randomUUID());
+    InvoiceItemLayout l2 = layout(UUID.randomUUID());
+    InvoiceItemLayout l3 = layout(UUID.randomUUID());
+    cache.put(l1);
+    cache.put(l2);
+    cache.get(l1.getInvoiceId());
+    cache.put(l3);
+
+    assertThat("Size bounded", cache.size(), equalTo(2));
+    assertThat("Recently used kept", cache.get(l1.getInvoiceId()), sameInstance(l1));
+    assertThat("Least recently used evicted", cache.get(l2.getInvoiceId()), nullValue());
+    assertThat("Newest kept", cache.get(l3.getInvoiceId()), sameInstance(l3));
+  }
+
+  @Test
+  public void invalidateAccount() {
+    UUID accountId = UUID.randomUUID();
+    InvoiceItemLayout l1 = layout(accountId);
+    InvoiceItemLayout l2 = layout(UUID.randomUUID());
+    cache.put(l1);
+    cache.put(l2);
+
+    cache.invalidateAccount(accountId);
+
+    assertThat("Account layout discarded", cache.get(l1.getInvoiceId()), nullValue());
+    assertThat("Other account layout kept", cache.get(l2.getInvoiceId()), sameInstance(l2));
+  }
+
+  @Test
+  public void disabled() {
+    cache = new InvoiceItemLayoutCache(0, TTL, clock::get);
+    InvoiceItemLayout layout = layout(UUID.randomUUID());
+    cache.put(layout);
+
+    assertThat("Disabled", cache.isEnabled(), equalTo(false));
+    assertThat("Not cached", cache.get(layout.getInvoiceId()), nullValue());
+  }
+
+  @Test
+  public void fromProperties() {
+    cache = InvoiceItemLayoutCache.fromProperties(k -> {
+      return (InvoiceItemLayoutCache.MAXIMUM_SIZE_PROPERTY.equals(k) ? "0" : null);
+    });
+
+    assertThat("Disabled by property", cache.isEnabled(), equalTo(false));
+    assertThat("Enabled by default",
+        InvoiceItemLayoutCache.fromProperties(k -> null).isEnabled(), equalTo(true));
+  }
+
+}
@@ -0,0 +1,206 @@
+/*  Copyright 2020 SolarNetwork Foundation
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package net.solarnetwork.billing.killbill.invoice.core;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasSize;
+import static org.junit.Assert.assertThat;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.mock;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.killbill.billing.invoice.api.InvoiceItem;
+import org.killbill.billing.invoice.api.InvoiceItemType;
+import org.killbill.billing.util.customfield.CustomField;
+
+import net.solarnetwork.billing.killbill.invoice.api.ExtendedInvoiceFormatter;
+import net.solarnetwork.billing.killbill.invoice.api.ExtendedInvoiceItemFormatter;
+import net.solarnetwork.billing.killbill.invoice.util.AggregateInvoiceItem;
+
+/**
+ * Test cases for the {@link InvoiceItemLayout} class.
+ * 
+ * @author matt
+ */
+public class InvoiceItemLayoutTests {
+
+  private UUID invoiceId;
+  private UUID accountId;
+
+  @Before
+  public void setup() {
+    invoiceId = UUID.randomUUID();
+    accountId = UUID.randomUUID();
+  }
+
+  private static InvoiceItem item(UUID id, InvoiceItemType type, String description,
+      String amount) {
+    ExtendedInvoiceItemFormatter item = mock(ExtendedInvoiceItemFormatter.class);
+    given(item.getId()).willReturn(id);
+    given(item.getInvoiceItemType()).willReturn(type);
+    given(item.getDescription()).willReturn(description);
+    given(item.getAmount()).willReturn(new BigDecimal(amount));
+    return item;
+  }
+
+  private static InvoiceItem item(InvoiceItemType type, String description, String amount) {
+    return item(UUID.randomUUID(), type, description, amount);
+  }
+
+  private static List<InvoiceItem> copy(List<InvoiceItem> items) {
+    List<InvoiceItem> result = new ArrayList<>(items.size());
+    for (InvoiceItem item : items) {
+      result.add(item(item.getId(), item.getInvoiceItemType(), item.getDescription(),
+          item.getAmount().toPlainString()));
+    }
+    return result;
+  }
+
+  private ExtendedInvoiceFormatter formatter(List<InvoiceItem> items, List<InvoiceItem> sorted) {
+    ExtendedInvoiceFormatter formatter = mock(ExtendedInvoiceFormatter.class);
+    given(formatter.getId()).willReturn(invoiceId);
+    given(formatter.getAccountId()).willReturn(accountId);
+    given(formatter.getInvoiceItems()).willReturn(items);
+    given(formatter.getNonTaxInvoiceItemsSortedBySubscriptionCustomFields()).willReturn(sorted);
+    return formatter;
+  }
+
+  @Test
+  public void layoutOfFormatter() {
+    // given
+    InvoiceItem a = item(InvoiceItemType.USAGE, "b", "1.00");
+    InvoiceItem gst1 = item(InvoiceItemType.TAX, "GST", "0.15");
+    InvoiceItem b = item(InvoiceItemType.USAGE, "a", "2.00");
+    InvoiceItem vat = item(InvoiceItemType.TAX, "VAT", "0.20");
+    InvoiceItem gst2 = item(InvoiceItemType.TAX, "GST", "0.30");
+    List<InvoiceItem> items = Arrays.asList(a, gst1, b, vat, gst2);
+
+    // when
+    InvoiceItemLayout layout = InvoiceItemLayout.of(formatter(items, Arrays.asList(b, a)));
+
+    // then
+    assertThat("Invoice ID", layout.getInvoiceId(), equalTo(invoiceId));
+    assertThat("Account ID", layout.getAccountId(), equalTo(accountId));
+    assertThat("Item count", layout.getItemCount(), equalTo(5));
+    assertThat("Matches own items", layout.matches(items), equalTo(true));
+    assertThat("Sorted non-tax items", layout.sortedNonTaxItems(items), contains(b, a));
+
+    List<AggregateInvoiceItem> groups = layout.taxItemsGroupedByDescription(items, Locale.US);
+    assertThat("Tax groups", groups, hasSize(2));
+    assertThat("GST group first", groups.get(0).getDescription(), equalTo("GST"));
+    assertThat("GST group count", groups.get(0).getItemCount(), equalTo(2));
+    assertThat("GST group amount", groups.get(0).getAmount(), equalTo(new BigDecimal("0.45")));
+    assertThat("VAT group", groups.get(1).getDescription(), equalTo("VAT"));
+    assertThat("VAT group amount", groups.get(1).getAmount(), equalTo(new BigDecimal("0.20")));
+  }
+
+  @Test
+  public void appliesToOtherInstancesOfSameItems() {
+    // given
+    InvoiceItem a = item(InvoiceItemType.USAGE, "b", "1.00");
+    InvoiceItem b = item(InvoiceItemType.USAGE, "a", "2.00");
+    InvoiceItem gst = item(InvoiceItemType.TAX, "GST", "0.45");
+    List<InvoiceItem> items = Arrays.asList(a, b, gst);
+    InvoiceItemLayout layout = InvoiceItemLayout.of(formatter(items, Arrays.asList(b, a)));
+
+    // when
+    List<InvoiceItem> others = copy(items);
+
+    // then
+    assertThat("Matches copies", layout.matches(others), equalTo(true));
+    assertThat("Sorted copies", layout.sortedNonTaxItems(others),
+        contains(others.get(1), others.get(0)));
+    List<AggregateInvoiceItem> groups = layout.taxItemsGroupedByDescription(others, Locale.US);
+    assertThat("Tax groups", groups, hasSize(1));
+    assertThat("GST group amount", groups.get(0).getAmount(), equalTo(new BigDecimal("0.45")));
+  }
+
+  @Test
+  public void doesNotMatchChangedItems() {
+    // given
+    InvoiceItem a = item(InvoiceItemType.USAGE, "b", "1.00");
+    InvoiceItem b = item(InvoiceItemType.USAGE, "a", "2.00");
+    List<InvoiceItem> items = Arrays.asList(a, b);
+    InvoiceItemLayout layout = InvoiceItemLayout.of(formatter(items, Arrays.asList(b, a)));
+
+    // then
+    assertThat("Reordered items", layout.matches(Arrays.asList(b, a)), equalTo(false));
+    assertThat("Added item", layout.matches(
+        Arrays.asList(a, b, item(InvoiceItemType.ITEM_ADJ, "adj", "-1.00"))), equalTo(false));
+    assertThat("Removed item", layout.matches(Collections.singletonList(a)), equalTo(false));
+    assertThat("No items", layout.matches(null), equalTo(false));
+    assertThat("Changed description", layout.matches(
+        Arrays.asList(a, item(b.getId(), InvoiceItemType.USAGE, "z", "2.00"))), equalTo(false));
+  }
+
+  @Test
+  public void doesNotMatchChangedCustomFields() {
+    // given
+    InvoiceItem a = item(InvoiceItemType.USAGE, "b", "1.00");
+    InvoiceItem b = item(InvoiceItemType.USAGE, "a", "2.00");
+    givenCustomField(a, "Order", "2");
+    givenCustomField(b, "Order", "1");
+    List<InvoiceItem> items = Arrays.asList(a, b);
+    InvoiceItemLayout layout = InvoiceItemLayout.of(formatter(items, Arrays.asList(b, a)));
+
+    // when
+    List<InvoiceItem> same = copy(items);
+    givenCustomField(same.get(0), "order", "2");
+    givenCustomField(same.get(1), "ORDER", "1");
+    List<InvoiceItem> changed = copy(items);
+    givenCustomField(changed.get(0), "Order", "2");
+    givenCustomField(changed.get(1), "Order", "3");
+    List<InvoiceItem> removed = copy(items);
+    givenCustomField(removed.get(0), "Order", "2");
+
+    // then
+    assertThat("Same custom fields, case-insensitive", layout.matches(same), equalTo(true));
+    assertThat("Changed custom field value", layout.matches(changed), equalTo(false));
+    assertThat("Removed custom field", layout.matches(removed), equalTo(false));
+  }
+
+  private static void givenCustomField(InvoiceItem item, String name, String value) {
+    CustomField field = mock(CustomField.class);
+    given(field.getFieldName()).willReturn(name);
+    given(field.getFieldValue()).willReturn(value);
+    given(((ExtendedInvoiceItemFormatter) item).getSubscriptionCustomFields())
+        .willReturn(Collections.singletonList(field));
+  }
+
+  @Test
+  public void emptyInvoice() {
+    // when
+    InvoiceItemLayout layout = InvoiceItemLayout
+        .of(formatter(Collections.emptyList(), Collections.emptyList()));
+
+    // then
+    assertThat("Item count", layout.getItemCount(), equalTo(0));
+    assertThat("Matches no items", layout.matches(null), equalTo(true));
+    assertThat("Matches empty items", layout.matches(Collections.emptyList()), equalTo(true));
+  }
+
+}
@@ -0,0 +1,120 @@
+/*  Copyright 2020 SolarNetwork Foundation
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.solarnetwork.billing.killbill.invoice.core;
+
+import static java.util.Arrays.asList;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.mockito.BDDMockito.given;
+
+import java.math.BigDecimal;
+import java.util.Collections;
+
+import org.junit.Test;
+import org.killbill.billing.invoice.api.InvoiceItem;
+import org.killbill.billing.invoice.api.InvoiceItemType;
+import org.mockito.Mockito;
+
+/**
+ * Test cases for the {@link InvoiceItemPartition} class.
+ * 
+ * @author matt
+ */
+public class InvoiceItemPartitionTests {
+
+  private static final BigDecimal AMOUNT_1 = new BigDecimal("1.99");
+  private static final BigDecimal AMOUNT_2 = new BigDecimal("2.99");
+  private static final BigDecimal AMOUNT_3 = new BigDecimal("3.99");
+  private static final BigDecimal AMOUNT_4 = new BigDecimal("4.99");
+
+  private static InvoiceItem createInvoiceItem(InvoiceItemType type, BigDecimal amount) {
+    InvoiceItem item = Mockito.mock(InvoiceItem.class);
+    given(item.getInvoiceItemType()).willReturn(type);
+    given(item.getAmount()).willReturn(amount);
+    return item;
+  }
+
+  @Test
+  public void nullItems() {
+    // when
+    InvoiceItemPartition p = InvoiceItemPartition.partition(null);
+
+    // then
+    assertThat("Empty partition", p, sameInstance(InvoiceItemPartition.EMPTY));
+  }
+
+  @Test
+  public void emptyItems() {
+    // when
+    InvoiceItemPartition p = InvoiceItemPartition.partition(Collections.emptyList());
+
+    // then
+    assertThat("Empty partition", p, sameInstance(InvoiceItemPartition.EMPTY));
+    assertThat("Tax items", p.getTaxItems(), hasSize(0));
+    assertThat("Tax amount", p.getTaxAmount(), equalTo(BigDecimal.ZERO));
+    assertThat("Non-tax items", p.getNonTaxItems(), hasSize(0));
+    assertThat("Non-tax amount", p.getNonTaxAmount(), equalTo(BigDecimal.ZERO));
+  }
+
+  @Test
+  public void mixedItems() {
+    // given
+    InvoiceItem item1 = createInvoiceItem(InvoiceItemType.USAGE, AMOUNT_1);
+    InvoiceItem tax1 = createInvoiceItem(InvoiceItemType.TAX, AMOUNT_2);
+    InvoiceItem item2 = createInvoiceItem(InvoiceItemType.RECURRING, AMOUNT_3);
+    InvoiceItem tax2 = createInvoiceItem(InvoiceItemType.TAX, AMOUNT_4);
+
+    // when
+    InvoiceItemPartition p = InvoiceItemPartition.partition(asList(item1, tax1, item2, tax2));
+
+    // then
+    assertThat("Tax items in order", p.getTaxItems(), contains(tax1, tax2));
+    assertThat("Tax amount", p.getTaxAmount(), equalTo(AMOUNT_2.add(AMOUNT_4)));
+    assertThat("Non-tax items in order", p.getNonTaxItems(), contains(item1, item2));
+    assertThat("Non-tax amount", p.getNonTaxAmount(), equalTo(AMOUNT_1.add(AMOUNT_3)));
+  }
+
+  @Test
+  public void nullAmountsAndTypes() {
+    // given
+    InvoiceItem item1 = createInvoiceItem(null, AMOUNT_1);
+    InvoiceItem item2 = createInvoiceItem(InvoiceItemType.USAGE, null);
+    InvoiceItem tax1 = createInvoiceItem(InvoiceItemType.TAX, null);
+
+    // when
+    InvoiceItemPartition p = InvoiceItemPartition.partition(asList(item1, item2, tax1));
+
+    // then
+    assertThat("Tax items", p.getTaxItems(), contains(tax1));
+    assertThat("Tax amount", p.getTaxAmount(), equalTo(BigDecimal.ZERO));
+    assertThat("Non-tax items", p.getNonTaxItems(), contains(item1, item2));
+    assertThat("Non-tax amount", p.getNonTaxAmount(), equalTo(AMOUNT_1));
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void itemsNotModifiable() {
+    // given
+    InvoiceItem item1 = createInvoiceItem(InvoiceItemType.USAGE, AMOUNT_1);
+    InvoiceItemPartition p = InvoiceItemPartition.partition(asList(item1));
+
+    // when
+    p.getNonTaxItems().clear();
+  }
+
+}
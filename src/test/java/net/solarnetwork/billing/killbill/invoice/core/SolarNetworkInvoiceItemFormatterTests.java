@@ -19,9 +19,16 @@ import static org.hamcrest.Matchers.hasSize;
 import static org.junit.Assert.assertThat;
 import static org.mockito.BDDMockito.given;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.hamcrest.Matchers;
 import org.junit.Test;
@@ -30,6 +37,8 @@ import org.killbill.billing.invoice.api.formatters.InvoiceItemFormatter;
 import org.killbill.billing.util.customfield.CustomField;
 import org.mockito.Mockito;
 
+import net.solarnetwork.billing.killbill.invoice.util.CustomFieldIndex;
+
 /**
  * Test cases for the {@link SolarNetworkInvoiceItemFormatter} class.
  * 
@@ -94,4 +103,112 @@ public class SolarNetworkInvoiceItemFormatterTests {
     assertThat("Field count", fields, hasSize(1));
     assertThat("Sub field", fields.get(0), Matchers.sameInstance(field2));
   }
+
+  @Test
+  public void subscriptionCustomFieldFromIndex() {
+    // given
+    CustomField field1 = Mockito.mock(CustomField.class);
+    given(field1.getObjectId()).willReturn(UUID.randomUUID());
+    given(field1.getObjectType()).willReturn(ObjectType.SUBSCRIPTION);
+
+    UUID subId = UUID.randomUUID();
+    CustomField field2 = Mockito.mock(CustomField.class);
+    given(field2.getObjectId()).willReturn(subId);
+    given(field2.getObjectType()).willReturn(ObjectType.SUBSCRIPTION);
+
+    InvoiceItemFormatter item = Mockito.mock(InvoiceItemFormatter.class);
+    given(item.getSubscriptionId()).willReturn(subId);
+
+    CustomFieldIndex index = CustomFieldIndex.of(Arrays.asList(field1, field2));
+
+    // when
+    SolarNetworkInvoiceItemFormatter fmt = new SolarNetworkInvoiceItemFormatter(item, index);
+    List<CustomField> fields = fmt.getSubscriptionCustomFields();
+    assertThat("Field count", fields, hasSize(1));
+    assertThat("Sub field", fields.get(0), Matchers.sameInstance(field2));
+    assertThat("Fields resolved once", fmt.getSubscriptionCustomFields(),
+        Matchers.sameInstance(fields));
+  }
+
+  @Test
+  public void subscriptionCustomFieldsNullIndex() {
+    // given
+    InvoiceItemFormatter item = Mockito.mock(InvoiceItemFormatter.class);
+    given(item.getSubscriptionId()).willReturn(UUID.randomUUID());
+
+    // when
+    SolarNetworkInvoiceItemFormatter fmt = new SolarNetworkInvoiceItemFormatter(item,
+        (CustomFieldIndex) null);
+    List<CustomField> fields = fmt.getSubscriptionCustomFields();
+    assertThat("Field count", fields, hasSize(0));
+  }
+
+  @Test
+  public void subscriptionCustomFieldsResolvedLazily() {
+    // given
+    UUID subId = UUID.randomUUID();
+    CustomField field1 = Mockito.mock(CustomField.class);
+    given(field1.getObjectId()).willReturn(subId);
+    given(field1.getObjectType()).willReturn(ObjectType.SUBSCRIPTION);
+
+    InvoiceItemFormatter item = Mockito.mock(InvoiceItemFormatter.class);
+    given(item.getSubscriptionId()).willReturn(subId);
+
+    AtomicInteger indexRequests = new AtomicInteger();
+
+    // when
+    SolarNetworkInvoiceItemFormatter fmt = new SolarNetworkInvoiceItemFormatter(item, () -> {
+      indexRequests.incrementAndGet();
+      return CustomFieldIndex.of(Arrays.asList(field1));
+    });
+
+    // then
+    assertThat("Index not requested until needed", indexRequests.get(), Matchers.equalTo(0));
+    assertThat("Field count", fmt.getSubscriptionCustomFields(), hasSize(1));
+    assertThat("Field count", fmt.getSubscriptionCustomFields(), hasSize(1));
+    assertThat("Index requested once", indexRequests.get(), Matchers.equalTo(1));
+  }
+
+  @Test
+  public void subscriptionCustomFieldsResolvedLazilyAcrossThreads() throws Exception {
+    // given
+    UUID subId = UUID.randomUUID();
+    CustomField field1 = Mockito.mock(CustomField.class);
+    given(field1.getObjectId()).willReturn(subId);
+    given(field1.getObjectType()).willReturn(ObjectType.SUBSCRIPTION);
+
+    InvoiceItemFormatter item = Mockito.mock(InvoiceItemFormatter.class);
+    given(item.getSubscriptionId()).willReturn(subId);
+
+    AtomicInteger indexRequests = new AtomicInteger();
+    final int threads = 8;
+    final CountDownLatch start = new CountDownLatch(1);
+    SolarNetworkInvoiceItemFormatter fmt = new SolarNetworkInvoiceItemFormatter(item, () -> {
+      indexRequests.incrementAndGet();
+      return CustomFieldIndex.of(Arrays.asList(field1));
+    });
+
+    // when
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<List<CustomField>>> results = new ArrayList<>(threads);
+      for (int i = 0; i < threads; i++) {
+        results.add(executor.submit(() -> {
+          start.await();
+          return fmt.getSubscriptionCustomFields();
+        }));
+      }
+      start.countDown();
+
+      // then
+      for (Future<List<CustomField>> result : results) {
+        assertThat("Field count seen by every thread", result.get(10, TimeUnit.SECONDS),
+            hasSize(1));
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    assertThat("Index requested once", indexRequests.get(), Matchers.equalTo(1));
+  }
+
 }
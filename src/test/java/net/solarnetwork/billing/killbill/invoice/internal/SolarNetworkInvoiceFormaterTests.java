@@ -20,6 +20,7 @@ import static java.util.Collections.emptyList;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.hasSize;
 import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.sameInstance;
 import static org.junit.Assert.assertThat;
 import static org.mockito.BDDMockito.given;
 
@@ -27,6 +28,7 @@ import java.math.BigDecimal;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.UUID;
 
 import org.joda.time.DateTime;
@@ -48,6 +50,7 @@ import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.runners.MockitoJUnitRunner;
 
+import net.solarnetwork.billing.killbill.invoice.api.ExtendedAttributeMap;
 import net.solarnetwork.billing.killbill.invoice.api.ExtendedInvoiceItemFormatter;
 import net.solarnetwork.billing.killbill.invoice.core.SolarNetworkInvoiceItemFormatter;
 
@@ -222,4 +225,21 @@ public class SolarNetworkInvoiceFormaterTests {
     assertThat("VAT amount", vat.getAmount(), equalTo(AMOUNT_3.add(AMOUNT_4)));
   }
 
+  @Test
+  public void extendedAttributesCached() {
+    InvoiceItem item1 = createInvoiceItem(InvoiceItemType.USAGE, null, null);
+    InvoiceItem tax1 = createInvoiceItem(InvoiceItemType.TAX, GST, AMOUNT_1);
+
+    // when
+    SolarNetworkInvoiceFormatter fmt = createDefaultFormatter(createInvoice(asList(item1, tax1)),
+        EN_NZ);
+    Map<String, Object> attrs = fmt.getExtendedAttributes();
+
+    // then
+    assertThat("Same map returned", fmt.getExtendedAttributes(), sameInstance(attrs));
+    assertThat("Tax items", attrs.get(ExtendedAttributeMap.TAX_INVOICE_ITEMS),
+        sameInstance(attrs.get(ExtendedAttributeMap.TAX_INVOICE_ITEMS)));
+    assertThat("Tax amount", attrs.get(ExtendedAttributeMap.TAX_AMOUNT), equalTo(AMOUNT_1));
+  }
+
 }
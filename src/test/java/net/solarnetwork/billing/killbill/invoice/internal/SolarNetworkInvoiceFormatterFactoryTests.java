@@ -15,16 +15,31 @@
 
 package net.solarnetwork.billing.killbill.invoice.internal;
 
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.lessThan;
 import static org.hamcrest.Matchers.not;
 import static org.hamcrest.Matchers.sameInstance;
 import static org.junit.Assert.assertThat;
 import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 import org.joda.time.DateTime;
 import org.junit.Before;
@@ -36,12 +51,20 @@ import org.killbill.billing.currency.api.CurrencyConversionApi;
 import org.killbill.billing.invoice.api.Invoice;
 import org.killbill.billing.invoice.api.formatters.InvoiceFormatter;
 import org.killbill.billing.invoice.api.formatters.ResourceBundleFactory;
+import org.killbill.billing.util.customfield.CustomField;
 import org.killbill.billing.util.customfield.dao.CustomFieldDao;
 import org.killbill.billing.util.customfield.dao.CustomFieldModelDao;
 import org.killbill.billing.util.template.translation.TranslatorConfig;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 
+import net.solarnetwork.billing.killbill.invoice.core.CustomFieldCache;
+import net.solarnetwork.billing.killbill.invoice.core.CustomFieldFetchGuard;
+import net.solarnetwork.billing.killbill.invoice.core.CustomFieldFetchStrategy;
+import net.solarnetwork.billing.killbill.invoice.core.TenantAccountKey;
+import net.solarnetwork.billing.killbill.invoice.metrics.AccumulatingFormatterMetrics;
+import net.solarnetwork.billing.killbill.invoice.metrics.FormatterMetrics;
+
 /**
  * Test cases for the {@link SolarNetworkInvoiceFormatterFactory} class.
  * 
@@ -68,6 +91,9 @@ public class SolarNetworkInvoiceFormatterFactoryTests {
   @Mock
   InternalTenantContext context;
 
+  @Mock
+  InternalTenantContext otherContext;
+
   @Mock
   private CustomFieldDao customFieldDao;
 
@@ -117,4 +143,294 @@ public class SolarNetworkInvoiceFormatterFactoryTests {
     assertThat("SolarNetworkInvoiceFormatter created", formatter1, not(sameInstance(formatter2)));
   }
 
+  private List<CustomFieldModelDao> givenAccountFields(InternalTenantContext ctx) {
+    List<CustomFieldModelDao> daoCustomFields = Arrays.asList(
+        new CustomFieldModelDao(now, ACCOUNT_FIELD, "acc", accountId, ObjectType.ACCOUNT),
+        new CustomFieldModelDao(now, SUBSCRIPTION_FIELD, "sub", subscriptionId,
+            ObjectType.SUBSCRIPTION));
+    given(customFieldDao.getCustomFieldsForAccount(ctx)).willReturn(daoCustomFields);
+    return daoCustomFields;
+  }
+
+  private List<CustomField> customFields(InvoiceFormatter formatter) {
+    return ((SolarNetworkInvoiceFormatter) formatter).getCustomFields();
+  }
+
+  private List<CustomField> useCustomFields(InternalTenantContext ctx) {
+    return customFields(factory.createInvoiceFormatter(config, invoice, Locale.US,
+        currencyConversionApi, bundleFactory, ctx));
+  }
+
+  @Test
+  public void cacheAccountFields() {
+    factory = new SolarNetworkInvoiceFormatterFactory(customFieldDao);
+    given(context.getTenantRecordId()).willReturn(1L);
+    given(context.getAccountRecordId()).willReturn(2L);
+    givenAccountFields(context);
+
+    InvoiceFormatter formatter1 = factory.createInvoiceFormatter(config, invoice, Locale.US,
+        currencyConversionApi, bundleFactory, context);
+    InvoiceFormatter formatter2 = factory.createInvoiceFormatter(config, invoice, Locale.US,
+        currencyConversionApi, bundleFactory, context);
+
+    assertThat("Custom fields shared", customFields(formatter2),
+        sameInstance(customFields(formatter1)));
+    assertThat("Converted fields", customFields(formatter1).size(), equalTo(2));
+    verify(customFieldDao, times(1)).getCustomFieldsForAccount(context);
+  }
+
+  @Test
+  public void customFieldsLoadedLazily() {
+    factory = new SolarNetworkInvoiceFormatterFactory(customFieldDao);
+    given(context.getTenantRecordId()).willReturn(1L);
+    given(context.getAccountRecordId()).willReturn(2L);
+    givenAccountFields(context);
+
+    InvoiceFormatter formatter = factory.createInvoiceFormatter(config, invoice, Locale.US,
+        currencyConversionApi, bundleFactory, context);
+    verify(customFieldDao, never()).getCustomFieldsForAccount(context);
+
+    assertThat("Fields loaded on demand", customFields(formatter).size(), equalTo(2));
+    assertThat("Fields loaded once", customFields(formatter).size(), equalTo(2));
+    verify(customFieldDao, times(1)).getCustomFieldsForAccount(context);
+  }
+
+  @Test
+  public void cacheIsTenantAware() {
+    factory = new SolarNetworkInvoiceFormatterFactory(customFieldDao);
+    given(context.getTenantRecordId()).willReturn(1L);
+    given(context.getAccountRecordId()).willReturn(2L);
+    givenAccountFields(context);
+    given(otherContext.getTenantRecordId()).willReturn(3L);
+    given(otherContext.getAccountRecordId()).willReturn(2L);
+    givenAccountFields(otherContext);
+
+    useCustomFields(context);
+    useCustomFields(otherContext);
+
+    verify(customFieldDao, times(1)).getCustomFieldsForAccount(context);
+    verify(customFieldDao, times(1)).getCustomFieldsForAccount(otherContext);
+  }
+
+  @Test
+  public void invalidateAccountFields() {
+    factory = new SolarNetworkInvoiceFormatterFactory(customFieldDao);
+    given(context.getTenantRecordId()).willReturn(1L);
+    given(context.getAccountRecordId()).willReturn(2L);
+    givenAccountFields(context);
+
+    useCustomFields(context);
+    factory.invalidateCustomFields(1L, 2L);
+    useCustomFields(context);
+    factory.invalidateTenantCustomFields(1L);
+    useCustomFields(context);
+
+    verify(customFieldDao, times(3)).getCustomFieldsForAccount(context);
+  }
+
+  @Test
+  public void noCacheWithoutAccount() {
+    factory = new SolarNetworkInvoiceFormatterFactory(customFieldDao);
+    given(context.getTenantRecordId()).willReturn(1L);
+    given(context.getAccountRecordId()).willReturn(null);
+    givenAccountFields(context);
+
+    useCustomFields(context);
+    useCustomFields(context);
+
+    verify(customFieldDao, times(2)).getCustomFieldsForAccount(context);
+  }
+
+  @Test
+  public void cacheDisabled() {
+    factory = new SolarNetworkInvoiceFormatterFactory(customFieldDao,
+        (CustomFieldCache<TenantAccountKey<Long>>) null);
+    given(context.getTenantRecordId()).willReturn(1L);
+    given(context.getAccountRecordId()).willReturn(2L);
+    givenAccountFields(context);
+
+    useCustomFields(context);
+    useCustomFields(context);
+
+    verify(customFieldDao, times(2)).getCustomFieldsForAccount(context);
+  }
+
+  @Test
+  public void customCache() {
+    CustomFieldCache<TenantAccountKey<Long>> cache = new CustomFieldCache<>(10, 60000L);
+    factory = new SolarNetworkInvoiceFormatterFactory(customFieldDao, cache);
+    given(context.getTenantRecordId()).willReturn(1L);
+    given(context.getAccountRecordId()).willReturn(2L);
+    givenAccountFields(context);
+
+    useCustomFields(context);
+
+    assertThat("Custom cache used", factory.getCustomFieldCache(), sameInstance(cache));
+    assertThat("Account cached", cache.size(), equalTo(1));
+  }
+
+  @Test
+  public void pruneFieldNamesPerTenant() {
+    Map<String, String> props = new HashMap<>();
+    props.put(SolarNetworkInvoiceFormatterFactory.FIELD_NAMES_PROPERTY, ACCOUNT_FIELD);
+    props.put(SolarNetworkInvoiceFormatterFactory.FIELD_NAMES_PROPERTY + ".1",
+        SUBSCRIPTION_FIELD.toUpperCase() + ", other");
+    factory = new SolarNetworkInvoiceFormatterFactory(customFieldDao,
+        new CustomFieldCache<>(10, 60000L), CustomFieldFetchStrategy.fromProperties(props::get),
+        null);
+    given(context.getTenantRecordId()).willReturn(1L);
+    given(context.getAccountRecordId()).willReturn(2L);
+    givenAccountFields(context);
+    given(otherContext.getTenantRecordId()).willReturn(3L);
+    given(otherContext.getAccountRecordId()).willReturn(2L);
+    givenAccountFields(otherContext);
+
+    List<CustomField> fields = useCustomFields(context);
+    List<CustomField> otherFields = useCustomFields(otherContext);
+
+    assertThat("Tenant fields pruned", fields.stream().map(CustomField::getFieldName)
+        .collect(Collectors.toList()), contains(SUBSCRIPTION_FIELD));
+    assertThat("Default fields pruned", otherFields.stream().map(CustomField::getFieldName)
+        .collect(Collectors.toList()), contains(ACCOUNT_FIELD));
+  }
+
+  @Test
+  public void asyncFetchStartedOnCreate() {
+    factory = new SolarNetworkInvoiceFormatterFactory(customFieldDao,
+        new CustomFieldCache<>(10, 60000L),
+        CustomFieldFetchStrategy.of(null, null, 5000L, null), null);
+    given(context.getTenantRecordId()).willReturn(1L);
+    given(context.getAccountRecordId()).willReturn(2L);
+    givenAccountFields(context);
+
+    InvoiceFormatter formatter = factory.createInvoiceFormatter(config, invoice, Locale.US,
+        currencyConversionApi, bundleFactory, context);
+    verify(customFieldDao, timeout(5000).times(1)).getCustomFieldsForAccount(context);
+
+    assertThat("Fetched fields", customFields(formatter).size(), equalTo(2));
+    verify(customFieldDao, times(1)).getCustomFieldsForAccount(context);
+  }
+
+  @Test
+  public void asyncFetchTimeout() {
+    AccumulatingFormatterMetrics metrics = new AccumulatingFormatterMetrics();
+    factory = new SolarNetworkInvoiceFormatterFactory(customFieldDao,
+        new CustomFieldCache<>(10, 60000L), CustomFieldFetchStrategy.of(null, null, 20L, null),
+        metrics);
+    given(context.getTenantRecordId()).willReturn(1L);
+    given(context.getAccountRecordId()).willReturn(2L);
+    final CountDownLatch release = new CountDownLatch(1);
+    given(customFieldDao.getCustomFieldsForAccount(context)).willAnswer(invocation -> {
+      release.await(5, TimeUnit.SECONDS);
+      return Collections.emptyList();
+    });
+
+    try {
+      List<CustomField> fields = useCustomFields(context);
+      assertThat("Rendered without fields", fields.size(), equalTo(0));
+      assertThat("Timeout counted",
+          metrics.getStats(FormatterMetrics.CUSTOM_FIELD_TIMEOUTS).getCount(), equalTo(1L));
+    } finally {
+      release.countDown();
+    }
+  }
+
+  @Test
+  public void deadlineWithSlowDao() {
+    AccumulatingFormatterMetrics metrics = new AccumulatingFormatterMetrics();
+    factory = new SolarNetworkInvoiceFormatterFactory(customFieldDao,
+        new CustomFieldCache<>(10, 60000L),
+        CustomFieldFetchStrategy.of(null, null, 0, CustomFieldFetchGuard.of(50L, 1)), metrics);
+    given(context.getTenantRecordId()).willReturn(1L);
+    given(context.getAccountRecordId()).willReturn(2L);
+    final CountDownLatch release = new CountDownLatch(1);
+    given(customFieldDao.getCustomFieldsForAccount(context)).willAnswer(invocation -> {
+      // simulate a database under pressure
+      release.await(5, TimeUnit.SECONDS);
+      return Collections.emptyList();
+    });
+
+    try {
+      final long start = System.nanoTime();
+      List<CustomField> fields = useCustomFields(context);
+      assertThat("Latency bounded by deadline",
+          TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), lessThan(1000L));
+      assertThat("Rendered without fields", fields.size(), equalTo(0));
+      assertThat("Degraded counted",
+          metrics.getStats(FormatterMetrics.CUSTOM_FIELD_DEGRADED).getCount(), equalTo(1L));
+    } finally {
+      release.countDown();
+    }
+  }
+
+  private List<Invoice> invoices(int count) {
+    List<Invoice> invoices = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      invoices.add(mock(Invoice.class));
+    }
+    return invoices;
+  }
+
+  @Test
+  public void batchPrefetchesEachAccountOnce() {
+    AccumulatingFormatterMetrics metrics = new AccumulatingFormatterMetrics();
+    factory = new SolarNetworkInvoiceFormatterFactory(customFieldDao,
+        new CustomFieldCache<>(10, 60000L), CustomFieldFetchStrategy.ACCOUNT, metrics);
+    given(context.getTenantRecordId()).willReturn(1L);
+    given(context.getAccountRecordId()).willReturn(2L);
+    given(otherContext.getTenantRecordId()).willReturn(1L);
+    given(otherContext.getAccountRecordId()).willReturn(3L);
+    givenAccountFields(context);
+    given(customFieldDao.getCustomFieldsForAccount(otherContext)).willReturn(Collections
+        .singletonList(new CustomFieldModelDao(now, ACCOUNT_FIELD, "other", accountId,
+            ObjectType.ACCOUNT)));
+    List<Invoice> invoices = invoices(10);
+
+    List<InvoiceFormatter> formatters = factory.createInvoiceFormatters(config, invoices,
+        Locale.US, currencyConversionApi, bundleFactory,
+        inv -> (invoices.indexOf(inv) % 2 == 0 ? context : otherContext));
+
+    verify(customFieldDao, times(1)).getCustomFieldsForAccount(context);
+    verify(customFieldDao, times(1)).getCustomFieldsForAccount(otherContext);
+    assertThat("Formatter per invoice", formatters.size(), equalTo(invoices.size()));
+    for (int i = 0; i < formatters.size(); i++) {
+      assertThat("Account fields in input order", customFields(formatters.get(i)).size(),
+          equalTo(i % 2 == 0 ? 2 : 1));
+    }
+    assertThat("Batch timed", metrics.getStats(FormatterMetrics.CREATE_BATCH).getCount(),
+        equalTo(1L));
+  }
+
+  @Test
+  public void batchPrefetchBoundedByDeadline() {
+    AccumulatingFormatterMetrics metrics = new AccumulatingFormatterMetrics();
+    factory = new SolarNetworkInvoiceFormatterFactory(customFieldDao,
+        new CustomFieldCache<>(10, 60000L),
+        CustomFieldFetchStrategy.of(null, null, 0, CustomFieldFetchGuard.of(50L, 1)), metrics);
+    given(context.getTenantRecordId()).willReturn(1L);
+    given(context.getAccountRecordId()).willReturn(2L);
+    final CountDownLatch release = new CountDownLatch(1);
+    given(customFieldDao.getCustomFieldsForAccount(context)).willAnswer(invocation -> {
+      // simulate a database under pressure
+      release.await(5, TimeUnit.SECONDS);
+      return Collections.emptyList();
+    });
+    List<Invoice> invoices = invoices(4);
+
+    try {
+      final long start = System.nanoTime();
+      List<InvoiceFormatter> formatters = factory.createInvoiceFormatters(config, invoices,
+          Locale.US, currencyConversionApi, bundleFactory, inv -> context);
+      assertThat("Latency bounded by deadline",
+          TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), lessThan(1000L));
+      for (InvoiceFormatter formatter : formatters) {
+        assertThat("Rendered without fields", customFields(formatter).size(), equalTo(0));
+      }
+      assertThat("Degraded counted once for the account",
+          metrics.getStats(FormatterMetrics.CUSTOM_FIELD_DEGRADED).getCount(), equalTo(1L));
+    } finally {
+      release.countDown();
+    }
+  }
+
 }
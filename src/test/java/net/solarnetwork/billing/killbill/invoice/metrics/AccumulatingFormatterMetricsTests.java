@@ -0,0 +1,130 @@
+/*  Copyright 2020 SolarNetwork Foundation
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.solarnetwork.billing.killbill.invoice.metrics;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import net.solarnetwork.billing.killbill.invoice.metrics.AccumulatingFormatterMetrics.Stats;
+
+/**
+ * Test cases for the {@link AccumulatingFormatterMetrics} class.
+ * 
+ * @author matt
+ */
+public class AccumulatingFormatterMetricsTests {
+
+  private AccumulatingFormatterMetrics metrics;
+
+  @Before
+  public void setup() {
+    metrics = new AccumulatingFormatterMetrics();
+  }
+
+  @Test
+  public void noStats() {
+    assertThat("No stats", metrics.getStats("foo"), nullValue());
+    assertThat("No stats", metrics.getAllStats().isEmpty(), equalTo(true));
+  }
+
+  @Test
+  public void recordValues() {
+    metrics.recordValue("foo", 3);
+    metrics.recordValue("foo", 7);
+    metrics.recordValue("foo", 2);
+
+    Stats s = metrics.getStats("foo");
+    assertThat("Count", s.getCount(), equalTo(3L));
+    assertThat("Total", s.getTotal(), equalTo(12L));
+    assertThat("Max", s.getMax(), equalTo(7L));
+    assertThat("Mean", s.getMean(), equalTo(4.0));
+  }
+
+  @Test
+  public void negativeMax() {
+    metrics.recordValue("foo", -3);
+    assertThat("Max", metrics.getStats("foo").getMax(), equalTo(-3L));
+  }
+
+  @Test
+  public void increment() {
+    metrics.increment("foo");
+    metrics.increment("foo");
+    assertThat("Count", metrics.getStats("foo").getCount(), equalTo(2L));
+    assertThat("Total", metrics.getStats("foo").getTotal(), equalTo(2L));
+  }
+
+  @Test
+  public void timer() throws InterruptedException {
+    long start = metrics.startTimer();
+    Thread.sleep(5);
+    metrics.stopTimer("foo", start);
+
+    Stats s = metrics.getStats("foo");
+    assertThat("Count", s.getCount(), equalTo(1L));
+    assertThat("Time", s.getTotal(), greaterThanOrEqualTo(5_000_000L));
+  }
+
+  @Test
+  public void allStatsSorted() {
+    metrics.increment("c");
+    metrics.increment("a");
+    metrics.increment("b");
+    assertThat("Sorted names", new ArrayList<>(metrics.getAllStats().keySet()),
+        contains("a", "b", "c"));
+  }
+
+  @Test
+  public void clear() {
+    metrics.increment("foo");
+    metrics.clear();
+    assertThat("Cleared", metrics.getStats("foo"), nullValue());
+  }
+
+  @Test
+  public void concurrent() throws InterruptedException {
+    final int threadCount = 4;
+    final int iterations = 10000;
+    List<Thread> threads = new ArrayList<>(threadCount);
+    for (int i = 0; i < threadCount; i++) {
+      Thread t = new Thread(() -> {
+        for (int j = 0; j < iterations; j++) {
+          metrics.recordValue("foo", j);
+        }
+      });
+      threads.add(t);
+      t.start();
+    }
+    for (Thread t : threads) {
+      t.join();
+    }
+    Stats s = metrics.getStats("foo");
+    assertThat("Count", s.getCount(), equalTo((long) threadCount * iterations));
+    assertThat("Total", s.getTotal(),
+        equalTo((long) threadCount * ((long) iterations * (iterations - 1) / 2)));
+    assertThat("Max", s.getMax(), equalTo(iterations - 1L));
+  }
+
+}
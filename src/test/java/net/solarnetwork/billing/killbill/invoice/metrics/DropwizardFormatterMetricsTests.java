@@ -0,0 +1,94 @@
+/*  Copyright 2020 SolarNetwork Foundation
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.solarnetwork.billing.killbill.invoice.metrics;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+/**
+ * Test cases for the {@link DropwizardFormatterMetrics} class.
+ * 
+ * @author matt
+ */
+public class DropwizardFormatterMetricsTests {
+
+  private MetricRegistry registry;
+  private DropwizardFormatterMetrics metrics;
+
+  @Before
+  public void setup() {
+    registry = new MetricRegistry();
+    metrics = new DropwizardFormatterMetrics(registry, "test");
+  }
+
+  @Test
+  public void timer() {
+    metrics.recordTime(FormatterMetrics.CREATE_FORMATTER, TimeUnit.MILLISECONDS.toNanos(2));
+    metrics.recordTime(FormatterMetrics.CREATE_FORMATTER, TimeUnit.MILLISECONDS.toNanos(4));
+
+    Timer t = registry.getTimers().get("test.formatter.create");
+    assertThat("Timer count", t.getCount(), equalTo(2L));
+    assertThat("Timer max", t.getSnapshot().getMax(), equalTo(TimeUnit.MILLISECONDS.toNanos(4)));
+  }
+
+  @Test
+  public void counter() {
+    metrics.increment(FormatterMetrics.CUSTOM_FIELD_CACHE_HITS);
+    metrics.increment(FormatterMetrics.CUSTOM_FIELD_CACHE_HITS);
+
+    assertThat("Counter", registry.getCounters().get("test.customFields.cacheHits").getCount(),
+        equalTo(2L));
+  }
+
+  @Test
+  public void histogram() {
+    metrics.recordValue(FormatterMetrics.ITEM_COUNT, 10);
+    metrics.recordValue(FormatterMetrics.ITEM_COUNT, 20);
+
+    assertThat("Histogram count", registry.getHistograms().get("test.items.count").getCount(),
+        equalTo(2L));
+    assertThat("Histogram max",
+        registry.getHistograms().get("test.items.count").getSnapshot().getMax(), equalTo(20L));
+  }
+
+  @Test
+  public void sharesRegisteredMetrics() {
+    Timer t = registry.timer("test.items.wrap");
+    metrics.recordTime(FormatterMetrics.WRAP_ITEMS, 1);
+    assertThat("Existing timer used", registry.getTimers().get("test.items.wrap"),
+        sameInstance(t));
+    assertThat("Timer count", t.getCount(), equalTo(1L));
+  }
+
+  @Test
+  public void defaultPrefix() {
+    metrics = new DropwizardFormatterMetrics(registry);
+    metrics.increment("foo");
+    assertThat("Default prefix",
+        registry.getCounters().containsKey(DropwizardFormatterMetrics.DEFAULT_PREFIX + ".foo"),
+        equalTo(true));
+  }
+
+}
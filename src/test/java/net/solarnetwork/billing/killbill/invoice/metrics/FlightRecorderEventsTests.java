@@ -0,0 +1,112 @@
+/*  Copyright 2020 SolarNetwork Foundation
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.solarnetwork.billing.killbill.invoice.metrics;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.junit.Test;
+
+/**
+ * Test cases for the {@link FlightRecorderEvents} class.
+ * 
+ * <p>
+ * The JFR API is accessed via reflection, as this project is compiled for Java 8.
+ * </p>
+ * 
+ * @author matt
+ */
+public class FlightRecorderEventsTests {
+
+  @Test
+  public void notEnabledWithoutRecording() {
+    assertThat("Not enabled", FlightRecorderEvents.isEnabled(), equalTo(false));
+    assertThat("No event", FlightRecorderEvents.begin(), nullValue());
+  }
+
+  @Test
+  public void commitNullEvent() {
+    // should do nothing
+    FlightRecorderEvents.commit(null, FlightRecorderEvents.PHASE_FETCH, null, null, 0, 0);
+  }
+
+  @Test
+  public void recordEvent() throws Exception {
+    assumeTrue(FlightRecorderEvents.isAvailable());
+
+    final UUID invoiceId = UUID.randomUUID();
+    final UUID accountId = UUID.randomUUID();
+    final File file = File.createTempFile("formatter-", ".jfr");
+    try {
+      Class<?> recordingClass = Class.forName("jdk.jfr.Recording");
+      Object recording = recordingClass.getConstructor().newInstance();
+      try {
+        recordingClass.getMethod("enable", String.class).invoke(recording,
+            FlightRecorderEvents.EVENT_NAME);
+        recordingClass.getMethod("start").invoke(recording);
+
+        assertThat("Enabled", FlightRecorderEvents.isEnabled(), equalTo(true));
+        Object event = FlightRecorderEvents.begin();
+        assertThat("Event", event, notNullValue());
+        FlightRecorderEvents.commit(event, FlightRecorderEvents.PHASE_SORT, invoiceId, accountId,
+            12, 3);
+
+        recordingClass.getMethod("stop").invoke(recording);
+        recordingClass.getMethod("dump", java.nio.file.Path.class).invoke(recording,
+            file.toPath());
+      } finally {
+        recordingClass.getMethod("close").invoke(recording);
+      }
+
+      List<?> events = (List<?>) Class.forName("jdk.jfr.consumer.RecordingFile")
+          .getMethod("readAllEvents", java.nio.file.Path.class).invoke(null, file.toPath());
+      List<Object> phaseEvents = new ArrayList<>();
+      Method getEventType = Class.forName("jdk.jfr.consumer.RecordedEvent")
+          .getMethod("getEventType");
+      Method getName = Class.forName("jdk.jfr.EventType").getMethod("getName");
+      for (Object e : events) {
+        if (FlightRecorderEvents.EVENT_NAME.equals(getName.invoke(getEventType.invoke(e)))) {
+          phaseEvents.add(e);
+        }
+      }
+      assertThat("Event recorded", phaseEvents, hasSize(1));
+
+      Object e = phaseEvents.get(0);
+      Method getValue = e.getClass().getMethod("getValue", String.class);
+      assertThat("Phase", getValue.invoke(e, "phase"),
+          equalTo(FlightRecorderEvents.PHASE_SORT));
+      assertThat("Invoice ID", getValue.invoke(e, "invoiceId"), equalTo(invoiceId.toString()));
+      assertThat("Account ID", getValue.invoke(e, "accountId"), equalTo(accountId.toString()));
+      assertThat("Item count", getValue.invoke(e, "itemCount"), equalTo(12));
+      assertThat("Custom field count", getValue.invoke(e, "customFieldCount"), equalTo(3));
+    } finally {
+      file.delete();
+    }
+
+    assertThat("Not enabled after recording", FlightRecorderEvents.isEnabled(), equalTo(false));
+  }
+
+}
@@ -0,0 +1,106 @@
+/*  Copyright 2020 SolarNetwork Foundation
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package net.solarnetwork.billing.killbill.invoice.notification;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.junit.Assert.assertThat;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.junit.Test;
+import org.killbill.billing.catalog.api.Currency;
+
+import net.solarnetwork.billing.killbill.invoice.metrics.AccumulatingFormatterMetrics;
+import net.solarnetwork.billing.killbill.invoice.metrics.FormatterMetrics;
+
+/**
+ * Test cases for the {@link FormatterWarmup} class.
+ * 
+ * @author matt
+ */
+public class FormatterWarmupTests {
+
+  @Test
+  public void warmUp() {
+    // given
+    AccumulatingFormatterMetrics metrics = new AccumulatingFormatterMetrics();
+    FormatterWarmup warmup = new FormatterWarmup(Arrays.asList(Locale.US, Locale.GERMANY),
+        Arrays.asList(Currency.USD, Currency.EUR), 40, 20, metrics);
+
+    // when
+    FormatterWarmup.Result result = warmup.warmUp();
+
+    // then
+    assertThat("All rendered", result.getRenders(), equalTo(40));
+    assertThat("First render timed", result.getFirstRenderNanos(), greaterThan(0L));
+    assertThat("Warm render timed", result.getWarmRenderNanos(), greaterThan(0L));
+    assertThat("First render recorded",
+        metrics.getStats(FormatterMetrics.WARMUP_FIRST_RENDER).getCount(), equalTo(1L));
+    assertThat("Warm render recorded",
+        metrics.getStats(FormatterMetrics.WARMUP_WARM_RENDER).getCount(), equalTo(1L));
+  }
+
+  @Test
+  public void interruptStopsWarmUp() {
+    FormatterWarmup warmup = new FormatterWarmup(Collections.singletonList(Locale.US),
+        Collections.singletonList(Currency.USD), 100, 5, null);
+
+    Thread.currentThread().interrupt();
+    FormatterWarmup.Result result;
+    try {
+      result = warmup.warmUp();
+    } finally {
+      Thread.interrupted();
+    }
+
+    assertThat("Nothing rendered", result.getRenders(), equalTo(0));
+  }
+
+  @Test
+  public void fromProperties() {
+    Map<String, String> props = new HashMap<>();
+    props.put(FormatterWarmup.LOCALES_PROPERTY, "en-NZ, de_DE,");
+    props.put(FormatterWarmup.CURRENCIES_PROPERTY, "NZD,XXX,eur");
+
+    FormatterWarmup warmup = FormatterWarmup.fromProperties(props::get, null);
+
+    assertThat("Locales", warmup.getLocales(),
+        contains(new Locale("en", "NZ"), Locale.GERMANY));
+    assertThat("Unknown currency ignored", warmup.getCurrencies(),
+        contains(Currency.NZD, Currency.EUR));
+  }
+
+  @Test
+  public void fromPropertiesDefaults() {
+    FormatterWarmup warmup = FormatterWarmup.fromProperties(k -> null, null);
+
+    assertThat("Default locale", warmup.getLocales(), contains(Locale.US));
+    assertThat("Default currency", warmup.getCurrencies(), contains(Currency.USD));
+    assertThat("Default renders", warmup.getRenders(),
+        equalTo(FormatterWarmup.DEFAULT_RENDERS));
+    assertThat("Default item count", warmup.getItemCount(),
+        equalTo(FormatterWarmup.DEFAULT_ITEM_COUNT));
+    assertThat("Disabled by default", FormatterWarmup.isEnabled(k -> null), equalTo(false));
+  }
+
+}
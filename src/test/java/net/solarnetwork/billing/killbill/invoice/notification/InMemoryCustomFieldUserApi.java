@@ -0,0 +1,172 @@
+/*  Copyright 2020 SolarNetwork Foundation
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.solarnetwork.billing.killbill.invoice.notification;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import org.killbill.billing.util.api.CustomFieldUserApi;
+import org.killbill.billing.util.customfield.CustomField;
+
+/**
+ * An in-memory fake {@link CustomFieldUserApi} for tests.
+ * 
+ * <p>
+ * Only {@code getCustomFieldsForAccount()}, {@code getCustomFieldsForAccountType()}, and
+ * {@code getCustomFieldsForObject()} are supported; all other API methods throw
+ * {@link UnsupportedOperationException}. Each call returns a new copy of the stored fields, like
+ * the real API does.
+ * </p>
+ * 
+ * @author matt
+ */
+public class InMemoryCustomFieldUserApi {
+
+  private final Map<UUID, List<CustomField>> accountFields = new ConcurrentHashMap<>();
+  private final AtomicInteger accountQueryCount = new AtomicInteger();
+  private final AtomicInteger accountTypeQueryCount = new AtomicInteger();
+  private final AtomicInteger objectQueryCount = new AtomicInteger();
+  private final CustomFieldUserApi api;
+  private volatile long queryDelay;
+
+  /**
+   * Constructor.
+   */
+  public InMemoryCustomFieldUserApi() {
+    super();
+    this.api = (CustomFieldUserApi) Proxy.newProxyInstance(getClass().getClassLoader(),
+        new Class<?>[] { CustomFieldUserApi.class }, (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "getCustomFieldsForAccount":
+              delay();
+              accountQueryCount.incrementAndGet();
+              return new ArrayList<>(fieldsFor((UUID) args[0]));
+
+            case "getCustomFieldsForAccountType":
+              delay();
+              accountTypeQueryCount.incrementAndGet();
+              return fieldsFor((UUID) args[0]).stream()
+                  .filter(f -> f.getObjectType() == args[1]).collect(Collectors.toList());
+
+            case "getCustomFieldsForObject":
+              delay();
+              objectQueryCount.incrementAndGet();
+              return accountFields.values().stream().flatMap(List::stream)
+                  .filter(f -> f.getObjectType() == args[1] && args[0].equals(f.getObjectId()))
+                  .collect(Collectors.toList());
+
+            case "hashCode":
+              return System.identityHashCode(proxy);
+
+            case "equals":
+              return proxy == args[0];
+
+            case "toString":
+              return "InMemoryCustomFieldUserApi";
+
+            default:
+              throw new UnsupportedOperationException(method.getName());
+          }
+        });
+  }
+
+  private void delay() throws InterruptedException {
+    final long ms = queryDelay;
+    if (ms > 0) {
+      Thread.sleep(ms);
+    }
+  }
+
+  /**
+   * Set a simulated query latency.
+   * 
+   * @param queryDelay
+   *          the time each query takes, in milliseconds
+   */
+  public void setQueryDelay(long queryDelay) {
+    this.queryDelay = queryDelay;
+  }
+
+  private List<CustomField> fieldsFor(UUID accountId) {
+    return accountFields.computeIfAbsent(accountId, k -> new CopyOnWriteArrayList<>());
+  }
+
+  /**
+   * Get the API.
+   * 
+   * @return the API
+   */
+  public CustomFieldUserApi getApi() {
+    return api;
+  }
+
+  /**
+   * Add a custom field to an account.
+   * 
+   * @param accountId
+   *          the account ID
+   * @param field
+   *          the field to add
+   */
+  public void addCustomField(UUID accountId, CustomField field) {
+    fieldsFor(accountId).add(field);
+  }
+
+  /**
+   * Remove all custom fields from an account.
+   * 
+   * @param accountId
+   *          the account ID
+   */
+  public void removeCustomFields(UUID accountId) {
+    fieldsFor(accountId).clear();
+  }
+
+  /**
+   * Get the number of times {@code getCustomFieldsForAccount()} has been called.
+   * 
+   * @return the count
+   */
+  public int getAccountQueryCount() {
+    return accountQueryCount.get();
+  }
+
+  /**
+   * Get the number of times {@code getCustomFieldsForAccountType()} has been called.
+   * 
+   * @return the count
+   */
+  public int getAccountTypeQueryCount() {
+    return accountTypeQueryCount.get();
+  }
+
+  /**
+   * Get the number of times {@code getCustomFieldsForObject()} has been called.
+   * 
+   * @return the count
+   */
+  public int getObjectQueryCount() {
+    return objectQueryCount.get();
+  }
+
+}
@@ -0,0 +1,246 @@
+/*  Copyright 2020 SolarNetwork Foundation
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package net.solarnetwork.billing.killbill.invoice.notification;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.stream.Collectors;
+
+import org.joda.time.DateTime;
+import org.junit.Before;
+import org.junit.Test;
+import org.killbill.billing.ObjectType;
+import org.killbill.billing.invoice.api.Invoice;
+import org.killbill.billing.invoice.api.InvoiceApiException;
+import org.killbill.billing.invoice.api.InvoiceItem;
+import org.killbill.billing.invoice.api.InvoiceItemType;
+import org.killbill.billing.invoice.api.InvoiceUserApi;
+import org.killbill.billing.notification.plugin.api.ExtBusEvent;
+import org.killbill.billing.notification.plugin.api.ExtBusEventType;
+import org.killbill.billing.util.callcontext.TenantContext;
+import org.killbill.billing.util.customfield.StringCustomField;
+
+import net.solarnetwork.billing.killbill.invoice.core.CustomFieldCache;
+import net.solarnetwork.billing.killbill.invoice.core.InvoiceItemLayoutCache;
+import net.solarnetwork.billing.killbill.invoice.metrics.AccumulatingFormatterMetrics;
+import net.solarnetwork.billing.killbill.invoice.metrics.FormatterMetrics;
+
+/**
+ * Test cases for the {@link InvoicePrewarmEventHandler} class.
+ * 
+ * @author matt
+ */
+public class InvoicePrewarmEventHandlerTests {
+
+  private InMemoryCustomFieldUserApi customFieldApi;
+  private InvoiceUserApi invoiceApi;
+  private AccumulatingFormatterMetrics metrics;
+  private SolarNetworkInvoiceFormatterFactory factory;
+  private InvoicePrewarmEventHandler handler;
+  private UUID tenantId;
+  private UUID accountId;
+  private UUID invoiceId;
+  private TenantContext context;
+  private List<InvoiceItem> items;
+  private Invoice invoice;
+
+  @Before
+  public void setup() throws InvoiceApiException {
+    customFieldApi = new InMemoryCustomFieldUserApi();
+    invoiceApi = mock(InvoiceUserApi.class);
+    metrics = new AccumulatingFormatterMetrics();
+    factory = new SolarNetworkInvoiceFormatterFactory(customFieldApi.getApi(),
+        new CustomFieldCache<>(100, 60000L), null, metrics,
+        new InvoiceItemLayoutCache(100, 60000L));
+    handler = new InvoicePrewarmEventHandler(factory, invoiceApi, Runnable::run);
+    tenantId = UUID.randomUUID();
+    accountId = UUID.randomUUID();
+    invoiceId = UUID.randomUUID();
+    context = mock(TenantContext.class);
+    given(context.getTenantId()).willReturn(tenantId);
+
+    // subscription fields order the items in reverse
+    items = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      UUID subscriptionId = UUID.randomUUID();
+      items.add(item(InvoiceItemType.USAGE, "Use", subscriptionId));
+      customFieldApi.addCustomField(accountId, new StringCustomField("node",
+          String.valueOf(9 - i), ObjectType.SUBSCRIPTION, subscriptionId, new DateTime()));
+    }
+    items.add(item(InvoiceItemType.TAX, "GST", null));
+    items.add(item(InvoiceItemType.TAX, "GST", null));
+    invoice = invoice(items);
+    given(invoiceApi.getInvoice(eq(invoiceId), any(TenantContext.class))).willReturn(invoice);
+  }
+
+  private static InvoiceItem item(InvoiceItemType type, String description,
+      UUID subscriptionId) {
+    InvoiceItem item = mock(InvoiceItem.class);
+    given(item.getId()).willReturn(UUID.randomUUID());
+    given(item.getInvoiceItemType()).willReturn(type);
+    given(item.getDescription()).willReturn(description);
+    given(item.getAmount()).willReturn(BigDecimal.ONE);
+    given(item.getSubscriptionId()).willReturn(subscriptionId);
+    return item;
+  }
+
+  private Invoice invoice(List<InvoiceItem> invoiceItems) {
+    Invoice inv = mock(Invoice.class);
+    given(inv.getId()).willReturn(invoiceId);
+    given(inv.getAccountId()).willReturn(accountId);
+    given(inv.getInvoiceItems()).willReturn(invoiceItems);
+    given(inv.getNumberOfItems()).willReturn(invoiceItems.size());
+    return inv;
+  }
+
+  private ExtBusEvent event(ExtBusEventType type, ObjectType objectType) {
+    ExtBusEvent event = mock(ExtBusEvent.class);
+    given(event.getEventType()).willReturn(type);
+    given(event.getObjectType()).willReturn(objectType);
+    given(event.getObjectId()).willReturn(invoiceId);
+    given(event.getAccountId()).willReturn(accountId);
+    given(event.getTenantId()).willReturn(tenantId);
+    return event;
+  }
+
+  private SolarNetworkInvoiceFormatter format(Invoice inv) {
+    return (SolarNetworkInvoiceFormatter) factory
+        .createInvoiceFormatter(Collections.emptyMap(), inv, Locale.US, context);
+  }
+
+  private static List<UUID> ids(List<InvoiceItem> list) {
+    return list.stream().map(InvoiceItem::getId).collect(Collectors.toList());
+  }
+
+  private static long count(AccumulatingFormatterMetrics metrics, String name) {
+    AccumulatingFormatterMetrics.Stats stats = metrics.getStats(name);
+    return (stats != null ? stats.getCount() : 0L);
+  }
+
+  @Test
+  public void creationEventPrewarmsInvoice() {
+    // when
+    handler.handleKillbillEvent(event(ExtBusEventType.INVOICE_CREATION, ObjectType.INVOICE));
+
+    // then
+    assertThat("Custom fields fetched", customFieldApi.getAccountQueryCount(), equalTo(1));
+    assertThat("Layout cached", factory.getLayoutCache().get(invoiceId), notNullValue());
+    assertThat("Prewarm timed", count(metrics, FormatterMetrics.PREWARM), equalTo(1L));
+
+    SolarNetworkInvoiceFormatter formatter = format(invoice);
+    List<InvoiceItem> sorted = formatter.getNonTaxInvoiceItemsSortedBySubscriptionCustomFields();
+    assertThat("Sorted by layout", ids(sorted), contains(items.get(3).getId(),
+        items.get(2).getId(), items.get(1).getId(), items.get(0).getId()));
+    assertThat("Tax grouped by layout", formatter.getTaxInvoiceItemsGroupedByDescription(),
+        hasSize(1));
+    assertThat("Tax group amount",
+        formatter.getTaxInvoiceItemsGroupedByDescription().get(0).getAmount(),
+        equalTo(new BigDecimal("2")));
+    assertThat("Layout used", count(metrics, FormatterMetrics.ITEM_LAYOUT_HITS), equalTo(1L));
+    assertThat("Custom fields cached", customFieldApi.getAccountQueryCount(), equalTo(1));
+  }
+
+  @Test
+  public void otherEventsIgnored() throws InvoiceApiException {
+    handler.handleKillbillEvent(event(ExtBusEventType.INVOICE_ADJUSTMENT, ObjectType.INVOICE));
+    handler.handleKillbillEvent(null);
+
+    assertThat("Custom fields not fetched", customFieldApi.getAccountQueryCount(), equalTo(0));
+    assertThat("No layout", factory.getLayoutCache().get(invoiceId), nullValue());
+  }
+
+  @Test
+  public void changedInvoiceSortedAgain() {
+    // given
+    handler.handleKillbillEvent(event(ExtBusEventType.INVOICE_CREATION, ObjectType.INVOICE));
+    List<InvoiceItem> changed = new ArrayList<>(items);
+    changed.add(item(InvoiceItemType.ITEM_ADJ, "Adjustment", null));
+
+    // when
+    List<InvoiceItem> sorted = format(invoice(changed))
+        .getNonTaxInvoiceItemsSortedBySubscriptionCustomFields();
+
+    // then
+    assertThat("All non-tax items sorted", sorted, hasSize(5));
+    assertThat("Layout not used", count(metrics, FormatterMetrics.ITEM_LAYOUT_HITS),
+        equalTo(0L));
+  }
+
+  @Test
+  public void customFieldEventDiscardsLayout() {
+    // given
+    handler.handleKillbillEvent(event(ExtBusEventType.INVOICE_CREATION, ObjectType.INVOICE));
+
+    // when
+    new CustomFieldCacheEventHandler(factory).handleKillbillEvent(
+        event(ExtBusEventType.CUSTOM_FIELD_CREATION, ObjectType.CUSTOM_FIELD));
+
+    // then
+    assertThat("Layout discarded", factory.getLayoutCache().get(invoiceId), nullValue());
+  }
+
+  @Test
+  public void fetchFailureCounted() throws InvoiceApiException {
+    given(invoiceApi.getInvoice(eq(invoiceId), any(TenantContext.class)))
+        .willThrow(new InvoiceApiException("Not found"));
+
+    handler.handleKillbillEvent(event(ExtBusEventType.INVOICE_CREATION, ObjectType.INVOICE));
+
+    assertThat("Failure counted", count(metrics, FormatterMetrics.PREWARM_FAILURES),
+        equalTo(1L));
+    assertThat("No layout", factory.getLayoutCache().get(invoiceId), nullValue());
+  }
+
+  @Test
+  public void rejectedPrewarmCounted() {
+    handler = new InvoicePrewarmEventHandler(factory, invoiceApi, r -> {
+      throw new RejectedExecutionException();
+    });
+
+    handler.handleKillbillEvent(event(ExtBusEventType.INVOICE_CREATION, ObjectType.INVOICE));
+
+    assertThat("Failure counted", count(metrics, FormatterMetrics.PREWARM_FAILURES),
+        equalTo(1L));
+  }
+
+  @Test
+  public void enabledProperty() {
+    assertThat("Disabled by default", InvoicePrewarmEventHandler.isEnabled(k -> null),
+        equalTo(false));
+    assertThat("Enabled",
+        InvoicePrewarmEventHandler.isEnabled(
+            k -> InvoicePrewarmEventHandler.ENABLED_PROPERTY.equals(k) ? " true" : null),
+        equalTo(true));
+  }
+
+}
@@ -0,0 +1,535 @@
+/*  Copyright 2020 SolarNetwork Foundation
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.solarnetwork.billing.killbill.invoice.notification;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.util.AbstractMap.SimpleEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.joda.time.DateTime;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.killbill.billing.ObjectType;
+import org.killbill.billing.invoice.api.Invoice;
+import org.killbill.billing.invoice.api.InvoiceItem;
+import org.killbill.billing.invoice.api.formatters.InvoiceFormatter;
+import org.killbill.billing.notification.plugin.api.ExtBusEvent;
+import org.killbill.billing.notification.plugin.api.ExtBusEventType;
+import org.killbill.billing.util.callcontext.TenantContext;
+import org.killbill.billing.util.customfield.CustomField;
+import org.killbill.billing.util.customfield.StringCustomField;
+
+import net.solarnetwork.billing.killbill.invoice.core.CustomFieldBatchQuery;
+import net.solarnetwork.billing.killbill.invoice.core.CustomFieldCache;
+import net.solarnetwork.billing.killbill.invoice.core.CustomFieldFetchGuard;
+import net.solarnetwork.billing.killbill.invoice.core.CustomFieldFetchStrategy;
+import net.solarnetwork.billing.killbill.invoice.metrics.AccumulatingFormatterMetrics;
+import net.solarnetwork.billing.killbill.invoice.metrics.FormatterMetrics;
+
+/**
+ * Test cases for the {@link SolarNetworkInvoiceFormatterFactory} and
+ * {@link CustomFieldCacheEventHandler} classes.
+ * 
+ * @author matt
+ */
+public class SolarNetworkInvoiceFormatterFactoryTests {
+
+  private static final Map<String, String> TRANSLATIONS = Collections.emptyMap();
+
+  private InMemoryCustomFieldUserApi customFieldApi;
+  private SolarNetworkInvoiceFormatterFactory factory;
+  private CustomFieldCacheEventHandler handler;
+  private UUID tenantId;
+  private UUID accountId;
+  private TenantContext context;
+  private Invoice invoice;
+
+  @Before
+  public void setup() {
+    customFieldApi = new InMemoryCustomFieldUserApi();
+    factory = new SolarNetworkInvoiceFormatterFactory(customFieldApi.getApi(),
+        new CustomFieldCache<>(100, 60000L));
+    handler = new CustomFieldCacheEventHandler(factory);
+    tenantId = UUID.randomUUID();
+    accountId = UUID.randomUUID();
+    context = tenantContext(tenantId);
+    invoice = invoice(accountId);
+    addField(accountId, "node", "1");
+  }
+
+  private static TenantContext tenantContext(UUID tenantId) {
+    TenantContext ctx = mock(TenantContext.class);
+    given(ctx.getTenantId()).willReturn(tenantId);
+    return ctx;
+  }
+
+  private static Invoice invoice(UUID accountId) {
+    Invoice inv = mock(Invoice.class);
+    given(inv.getAccountId()).willReturn(accountId);
+    given(inv.getInvoiceItems()).willReturn(Collections.emptyList());
+    return inv;
+  }
+
+  private void addField(UUID account, String name, String value) {
+    customFieldApi.addCustomField(account,
+        new StringCustomField(name, value, ObjectType.ACCOUNT, account, new DateTime()));
+  }
+
+  private static ExtBusEvent event(ExtBusEventType type, UUID tenantId, UUID accountId) {
+    ExtBusEvent event = mock(ExtBusEvent.class);
+    given(event.getEventType()).willReturn(type);
+    given(event.getTenantId()).willReturn(tenantId);
+    given(event.getAccountId()).willReturn(accountId);
+    given(event.getObjectType()).willReturn(ObjectType.CUSTOM_FIELD);
+    return event;
+  }
+
+  private List<CustomField> format(Invoice inv, TenantContext ctx) {
+    InvoiceFormatter formatter = factory.createInvoiceFormatter(TRANSLATIONS, inv, Locale.US, ctx);
+    assertThat("SolarNetworkInvoiceFormatter created", formatter,
+        instanceOf(SolarNetworkInvoiceFormatter.class));
+    return ((SolarNetworkInvoiceFormatter) formatter).getCustomFields();
+  }
+
+  @Test
+  public void cacheAccountFields() {
+    List<CustomField> fields1 = format(invoice, context);
+    List<CustomField> fields2 = format(invoice(accountId), context);
+
+    assertThat("API queried once", customFieldApi.getAccountQueryCount(), equalTo(1));
+    assertThat("Fields shared", fields2, sameInstance(fields1));
+    assertThat("Fields", fields1, hasSize(1));
+  }
+
+  @Test
+  public void recordMetrics() {
+    AccumulatingFormatterMetrics metrics = new AccumulatingFormatterMetrics();
+    factory = new SolarNetworkInvoiceFormatterFactory(customFieldApi.getApi(),
+        new CustomFieldCache<>(100, 60000L), metrics);
+    format(invoice, context);
+    SolarNetworkInvoiceFormatter formatter = (SolarNetworkInvoiceFormatter) factory
+        .createInvoiceFormatter(TRANSLATIONS, invoice, Locale.US, context);
+    formatter.getCustomFields();
+    formatter.getTaxInvoiceItems();
+
+    assertThat("Formatters created",
+        metrics.getStats(FormatterMetrics.CREATE_FORMATTER).getCount(), equalTo(2L));
+    assertThat("Fields fetched once",
+        metrics.getStats(FormatterMetrics.FETCH_CUSTOM_FIELDS).getCount(), equalTo(1L));
+    assertThat("Fields cached once",
+        metrics.getStats(FormatterMetrics.CUSTOM_FIELD_CACHE_HITS).getCount(), equalTo(1L));
+    assertThat("Field count recorded",
+        metrics.getStats(FormatterMetrics.CUSTOM_FIELD_COUNT).getTotal(), equalTo(2L));
+    assertThat("Partition timed", metrics
+        .getStats(FormatterMetrics.ATTRIBUTE_PREFIX + "invoiceItemPartition").getCount(),
+        equalTo(1L));
+  }
+
+  @Test
+  public void customFieldsLoadedLazily() {
+    SolarNetworkInvoiceFormatter formatter = (SolarNetworkInvoiceFormatter) factory
+        .createInvoiceFormatter(TRANSLATIONS, invoice, Locale.US, context);
+    formatter.getTaxInvoiceItems();
+    formatter.getTaxAmount();
+    assertThat("API not queried", customFieldApi.getAccountQueryCount(), equalTo(0));
+
+    assertThat("Fields loaded on demand", formatter.getCustomFields(), hasSize(1));
+    assertThat("API queried once", customFieldApi.getAccountQueryCount(), equalTo(1));
+  }
+
+  @Test
+  public void cacheIsTenantAware() {
+    format(invoice, context);
+    format(invoice, tenantContext(UUID.randomUUID()));
+
+    assertThat("API queried per tenant", customFieldApi.getAccountQueryCount(), equalTo(2));
+  }
+
+  @Test
+  public void noCacheWithoutCache() {
+    factory = new SolarNetworkInvoiceFormatterFactory(customFieldApi.getApi(), null);
+    format(invoice, context);
+    format(invoice, context);
+
+    assertThat("API queried every time", customFieldApi.getAccountQueryCount(), equalTo(2));
+  }
+
+  @Test
+  public void creationEventInvalidatesAccount() {
+    format(invoice, context);
+    addField(accountId, "site", "a");
+    handler.handleKillbillEvent(event(ExtBusEventType.CUSTOM_FIELD_CREATION, tenantId, accountId));
+    List<CustomField> fields = format(invoice, context);
+
+    assertThat("API queried again", customFieldApi.getAccountQueryCount(), equalTo(2));
+    assertThat("New field visible", fields, hasSize(2));
+  }
+
+  @Test
+  public void deletionEventInvalidatesAccount() {
+    format(invoice, context);
+    customFieldApi.removeCustomFields(accountId);
+    handler.handleKillbillEvent(event(ExtBusEventType.CUSTOM_FIELD_DELETION, tenantId, accountId));
+    List<CustomField> fields = format(invoice, context);
+
+    assertThat("Removed field gone", fields, hasSize(0));
+  }
+
+  @Test
+  public void eventForOtherAccountKeepsCache() {
+    UUID otherAccountId = UUID.randomUUID();
+    format(invoice, context);
+    handler.handleKillbillEvent(
+        event(ExtBusEventType.CUSTOM_FIELD_CREATION, tenantId, otherAccountId));
+    format(invoice, context);
+
+    assertThat("API queried once", customFieldApi.getAccountQueryCount(), equalTo(1));
+  }
+
+  @Test
+  public void eventForOtherTenantKeepsCache() {
+    format(invoice, context);
+    handler.handleKillbillEvent(
+        event(ExtBusEventType.CUSTOM_FIELD_CREATION, UUID.randomUUID(), accountId));
+    format(invoice, context);
+
+    assertThat("API queried once", customFieldApi.getAccountQueryCount(), equalTo(1));
+  }
+
+  @Test
+  public void eventWithoutAccountInvalidatesTenant() {
+    UUID otherAccountId = UUID.randomUUID();
+    Invoice otherInvoice = invoice(otherAccountId);
+    TenantContext otherTenant = tenantContext(UUID.randomUUID());
+    format(invoice, context);
+    format(otherInvoice, context);
+    format(invoice, otherTenant);
+    handler.handleKillbillEvent(event(ExtBusEventType.CUSTOM_FIELD_DELETION, tenantId, null));
+    format(invoice, context);
+    format(otherInvoice, context);
+    format(invoice, otherTenant);
+
+    assertThat("Tenant accounts reloaded", customFieldApi.getAccountQueryCount(), equalTo(5));
+  }
+
+  @Test
+  public void otherEventsIgnored() {
+    format(invoice, context);
+    handler.handleKillbillEvent(event(ExtBusEventType.INVOICE_CREATION, tenantId, accountId));
+    handler.handleKillbillEvent(event(ExtBusEventType.TAG_CREATION, tenantId, accountId));
+    handler.handleKillbillEvent(null);
+    format(invoice, context);
+
+    assertThat("API queried once", customFieldApi.getAccountQueryCount(), equalTo(1));
+  }
+
+  private void addSubscriptionField(UUID account, UUID subscriptionId, String name,
+      String value) {
+    customFieldApi.addCustomField(account, new StringCustomField(name, value,
+        ObjectType.SUBSCRIPTION, subscriptionId, new DateTime()));
+  }
+
+  private static Invoice invoice(UUID accountId, UUID... subscriptionIds) {
+    Invoice inv = mock(Invoice.class);
+    given(inv.getAccountId()).willReturn(accountId);
+    List<InvoiceItem> items = new ArrayList<>();
+    for (UUID subscriptionId : subscriptionIds) {
+      InvoiceItem item = mock(InvoiceItem.class);
+      given(item.getSubscriptionId()).willReturn(subscriptionId);
+      items.add(item);
+    }
+    given(inv.getInvoiceItems()).willReturn(items);
+    return inv;
+  }
+
+  private void useInvoiceScope(CustomFieldBatchQuery batchQuery) {
+    factory = new SolarNetworkInvoiceFormatterFactory(customFieldApi.getApi(), batchQuery,
+        new CustomFieldCache<>(100, 60000L),
+        CustomFieldFetchStrategy.of(CustomFieldFetchStrategy.Scope.INVOICE, null, 0, null), null,
+        null);
+    handler = new CustomFieldCacheEventHandler(factory);
+  }
+
+  @Test
+  public void invoiceScopeFetchesInvoiceSubscriptions() {
+    useInvoiceScope(null);
+    UUID sub1 = UUID.randomUUID();
+    UUID sub2 = UUID.randomUUID();
+    addSubscriptionField(accountId, sub1, "node", "1");
+    addSubscriptionField(accountId, sub2, "node", "2");
+    addSubscriptionField(accountId, UUID.randomUUID(), "node", "retired");
+
+    List<CustomField> fields = format(invoice(accountId, sub1, sub2, sub1), context);
+
+    assertThat("Account query not used", customFieldApi.getAccountQueryCount(), equalTo(0));
+    assertThat("Account and each subscription queried", customFieldApi.getObjectQueryCount(),
+        equalTo(3));
+    assertThat("Account and invoice subscription fields", fields.stream()
+        .map(CustomField::getFieldValue).collect(Collectors.toList()), contains("1", "1", "2"));
+  }
+
+  @Test
+  public void invoiceScopeNeverQueriesAllAccountSubscriptions() {
+    useInvoiceScope(null);
+    UUID sub1 = UUID.randomUUID();
+    UUID sub2 = UUID.randomUUID();
+    addSubscriptionField(accountId, sub1, "node", "1");
+    addSubscriptionField(accountId, sub2, "node", "2");
+    addSubscriptionField(accountId, UUID.randomUUID(), "node", "retired");
+
+    List<CustomField> fields = format(invoice(accountId, sub1, sub2), context);
+
+    assertThat("Account and each subscription queried", customFieldApi.getObjectQueryCount(),
+        equalTo(3));
+    assertThat("Account subscriptions not queried", customFieldApi.getAccountTypeQueryCount(),
+        equalTo(0));
+    assertThat("Retired subscription fields discarded", fields.stream()
+        .map(CustomField::getFieldValue).collect(Collectors.toList()), contains("1", "1", "2"));
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void invoiceScopeBatchQueryFetchesAllObjectsAtOnce() {
+    CustomFieldBatchQuery batchQuery = mock(CustomFieldBatchQuery.class);
+    useInvoiceScope(batchQuery);
+    UUID sub1 = UUID.randomUUID();
+    UUID sub2 = UUID.randomUUID();
+    Map<UUID, List<CustomField>> rows = new LinkedHashMap<>();
+    rows.put(sub2, Collections.singletonList(
+        new StringCustomField("node", "2", ObjectType.SUBSCRIPTION, sub2, new DateTime())));
+    rows.put(sub1, Collections.singletonList(
+        new StringCustomField("node", "1", ObjectType.SUBSCRIPTION, sub1, new DateTime())));
+    given(batchQuery.getCustomFieldsForTenantId(eq(tenantId), any(Map.class))).willReturn(rows);
+
+    List<CustomField> fields = format(invoice(accountId, sub1, sub2, sub1), context);
+
+    @SuppressWarnings("rawtypes")
+    ArgumentCaptor<Map<UUID, ObjectType>> objects = (ArgumentCaptor) ArgumentCaptor
+        .forClass(Map.class);
+    verify(batchQuery, times(1)).getCustomFieldsForTenantId(eq(tenantId), objects.capture());
+    assertThat("Account and each subscription requested in one query",
+        new ArrayList<>(objects.getValue().entrySet()),
+        contains(new SimpleEntry<>(accountId, ObjectType.ACCOUNT),
+            new SimpleEntry<>(sub1, ObjectType.SUBSCRIPTION),
+            new SimpleEntry<>(sub2, ObjectType.SUBSCRIPTION)));
+    assertThat("Objects not queried individually", customFieldApi.getObjectQueryCount(),
+        equalTo(0));
+    assertThat("Invoice subscription fields in invoice order", fields.stream()
+        .map(CustomField::getFieldValue).collect(Collectors.toList()), contains("1", "2"));
+  }
+
+  @Test
+  public void invoiceScopeCachesPerObject() {
+    useInvoiceScope(null);
+    UUID sub1 = UUID.randomUUID();
+    UUID sub2 = UUID.randomUUID();
+    addSubscriptionField(accountId, sub1, "node", "1");
+    addSubscriptionField(accountId, sub2, "node", "2");
+
+    format(invoice(accountId, sub1), context);
+    List<CustomField> fields = format(invoice(accountId, sub1, sub2), context);
+
+    assertThat("Only new subscription queried", customFieldApi.getObjectQueryCount(),
+        equalTo(3));
+    assertThat("Fields", fields, hasSize(3));
+
+    handler.handleKillbillEvent(event(ExtBusEventType.CUSTOM_FIELD_CREATION, tenantId, accountId));
+    format(invoice(accountId, sub1, sub2), context);
+
+    assertThat("All account objects invalidated", customFieldApi.getObjectQueryCount(),
+        equalTo(6));
+  }
+
+  @Test
+  public void batchPrefetchesEachAccountOnce() {
+    AccumulatingFormatterMetrics metrics = new AccumulatingFormatterMetrics();
+    factory = new SolarNetworkInvoiceFormatterFactory(customFieldApi.getApi(),
+        new CustomFieldCache<>(100, 60000L), metrics);
+    UUID otherAccountId = UUID.randomUUID();
+    addField(otherAccountId, "node", "2");
+    List<Invoice> invoices = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      invoices.add(invoice(i % 2 == 0 ? accountId : otherAccountId));
+    }
+
+    List<InvoiceFormatter> formatters = factory.createInvoiceFormatters(TRANSLATIONS, invoices,
+        Locale.US, context);
+
+    assertThat("API queried per account", customFieldApi.getAccountQueryCount(), equalTo(2));
+    assertThat("Formatter per invoice", formatters, hasSize(invoices.size()));
+    for (int i = 0; i < formatters.size(); i++) {
+      List<CustomField> fields = ((SolarNetworkInvoiceFormatter) formatters.get(i))
+          .getCustomFields();
+      assertThat("Account fields in input order", fields.get(0).getFieldValue(),
+          equalTo(i % 2 == 0 ? "1" : "2"));
+    }
+    assertThat("No further queries", customFieldApi.getAccountQueryCount(), equalTo(2));
+    assertThat("Batch timed", metrics.getStats(FormatterMetrics.CREATE_BATCH).getCount(),
+        equalTo(1L));
+  }
+
+  private static long count(AccumulatingFormatterMetrics metrics, String name) {
+    AccumulatingFormatterMetrics.Stats stats = metrics.getStats(name);
+    return (stats != null ? stats.getCount() : 0L);
+  }
+
+  @Test
+  public void concurrentLookupsShareFetch() throws Exception {
+    final int threads = 16;
+    AccumulatingFormatterMetrics metrics = new AccumulatingFormatterMetrics();
+    factory = new SolarNetworkInvoiceFormatterFactory(customFieldApi.getApi(),
+        new CustomFieldCache<>(100, 60000L), metrics);
+    customFieldApi.setQueryDelay(200L);
+    final CyclicBarrier start = new CyclicBarrier(threads);
+    final ExecutorService executor = Executors.newFixedThreadPool(threads);
+    final List<Future<List<CustomField>>> results = new ArrayList<>(threads);
+    try {
+      for (int i = 0; i < threads; i++) {
+        final Invoice inv = invoice(accountId);
+        results.add(executor.submit(() -> {
+          start.await(5, TimeUnit.SECONDS);
+          return format(inv, context);
+        }));
+      }
+      for (Future<List<CustomField>> f : results) {
+        assertThat("Fields", f.get(5, TimeUnit.SECONDS), hasSize(1));
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    assertThat("API queried once", customFieldApi.getAccountQueryCount(), equalTo(1));
+    final long coalesced = count(metrics, FormatterMetrics.CUSTOM_FIELD_COALESCED);
+    assertThat("Other lookups coalesced or cached",
+        coalesced + count(metrics, FormatterMetrics.CUSTOM_FIELD_CACHE_HITS),
+        equalTo((long) threads - 1));
+    assertThat("Coalesce wait timed", count(metrics, FormatterMetrics.CUSTOM_FIELD_COALESCE_WAIT),
+        equalTo(coalesced));
+  }
+
+  @Test
+  public void deadlineRendersStaleFields() throws InterruptedException {
+    AccumulatingFormatterMetrics metrics = new AccumulatingFormatterMetrics();
+    factory = new SolarNetworkInvoiceFormatterFactory(customFieldApi.getApi(),
+        new CustomFieldCache<>(100, 1L), CustomFieldFetchStrategy.of(null, null, 0,
+            CustomFieldFetchGuard.of(50L, CustomFieldFetchGuard.DEFAULT_MAX_CONCURRENT)),
+        metrics);
+    List<CustomField> fields = format(invoice, context);
+    Thread.sleep(5L);
+    customFieldApi.setQueryDelay(2000L);
+
+    final long start = System.nanoTime();
+    List<CustomField> stale = format(invoice(accountId), context);
+    assertThat("Latency bounded by deadline",
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), lessThan(1000L));
+    assertThat("Expired cached fields used", stale, sameInstance(fields));
+    assertThat("Degraded counted", count(metrics, FormatterMetrics.CUSTOM_FIELD_DEGRADED),
+        equalTo(1L));
+  }
+
+  @Test
+  public void deadlineRendersEmptyFieldsWithoutCache() {
+    AccumulatingFormatterMetrics metrics = new AccumulatingFormatterMetrics();
+    factory = new SolarNetworkInvoiceFormatterFactory(customFieldApi.getApi(),
+        new CustomFieldCache<>(100, 60000L), CustomFieldFetchStrategy.of(
+            CustomFieldFetchStrategy.Scope.INVOICE, null, 0, CustomFieldFetchGuard.of(50L, 1)),
+        metrics);
+    customFieldApi.setQueryDelay(2000L);
+
+    final long start = System.nanoTime();
+    List<CustomField> fields = format(invoice, context);
+    assertThat("Latency bounded by deadline",
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), lessThan(1000L));
+    assertThat("Rendered without fields", fields, hasSize(0));
+    assertThat("Degraded counted", count(metrics, FormatterMetrics.CUSTOM_FIELD_DEGRADED),
+        equalTo(1L));
+  }
+
+  @Test
+  public void batchPrefetchBoundedByDeadline() {
+    AccumulatingFormatterMetrics metrics = new AccumulatingFormatterMetrics();
+    factory = new SolarNetworkInvoiceFormatterFactory(customFieldApi.getApi(),
+        new CustomFieldCache<>(100, 60000L), CustomFieldFetchStrategy.of(null, null, 0,
+            CustomFieldFetchGuard.of(50L, CustomFieldFetchGuard.DEFAULT_MAX_CONCURRENT)),
+        metrics);
+    customFieldApi.setQueryDelay(2000L);
+    List<Invoice> invoices = Arrays.asList(invoice(accountId), invoice(accountId));
+
+    final long start = System.nanoTime();
+    List<InvoiceFormatter> formatters = factory.createInvoiceFormatters(TRANSLATIONS, invoices,
+        Locale.US, context);
+    assertThat("Latency bounded by deadline",
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), lessThan(1000L));
+    for (InvoiceFormatter formatter : formatters) {
+      assertThat("Rendered without fields",
+          ((SolarNetworkInvoiceFormatter) formatter).getCustomFields(), hasSize(0));
+    }
+    assertThat("Degraded counted once for the account",
+        count(metrics, FormatterMetrics.CUSTOM_FIELD_DEGRADED), equalTo(1L));
+  }
+
+  @Test
+  public void staleServedWhileRefreshing() throws InterruptedException {
+    AccumulatingFormatterMetrics metrics = new AccumulatingFormatterMetrics();
+    factory = new SolarNetworkInvoiceFormatterFactory(customFieldApi.getApi(),
+        new CustomFieldCache<>(100, 60000L, 1L), metrics);
+    List<CustomField> fields = format(invoice, context);
+    Thread.sleep(5L);
+    customFieldApi.setQueryDelay(200L);
+
+    final long start = System.nanoTime();
+    List<CustomField> stale = format(invoice(accountId), context);
+    assertThat("Stale fields served without waiting for the query",
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), lessThan(150L));
+    assertThat("Stale fields served", stale, sameInstance(fields));
+    assertThat("Stale serve counted", count(metrics, FormatterMetrics.CUSTOM_FIELD_STALE),
+        equalTo(1L));
+
+    final long deadline = System.currentTimeMillis() + 5000L;
+    while (customFieldApi.getAccountQueryCount() < 2 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10L);
+    }
+    assertThat("Refreshed in background", customFieldApi.getAccountQueryCount(), equalTo(2));
+  }
+
+}
@@ -20,6 +20,8 @@ import static java.util.Collections.emptyList;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.hasSize;
 import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
 import static org.junit.Assert.assertThat;
 import static org.mockito.BDDMockito.given;
 
@@ -30,12 +32,14 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.joda.time.DateTime;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.killbill.billing.ObjectType;
+import org.killbill.billing.catalog.api.Currency;
 import org.killbill.billing.currency.api.CurrencyConversionApi;
 import org.killbill.billing.invoice.api.Invoice;
 import org.killbill.billing.invoice.api.InvoiceItem;
@@ -48,8 +52,10 @@ import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.runners.MockitoJUnitRunner;
 
+import net.solarnetwork.billing.killbill.invoice.api.ExtendedAttributeMap;
 import net.solarnetwork.billing.killbill.invoice.api.ExtendedInvoiceItemFormatter;
 import net.solarnetwork.billing.killbill.invoice.core.SolarNetworkInvoiceItemFormatter;
+import net.solarnetwork.billing.killbill.invoice.util.MemoizingSupplier;
 
 /**
  * Test cases for the {@link SolarNetworkInvoiceFormatter} class.
@@ -226,4 +232,89 @@ public class SolarNetworkInvoiceFormatterTests {
     assertThat("VAT amount", vat.getAmount(), equalTo(AMOUNT_3.add(AMOUNT_4)));
   }
 
+  @Test
+  public void taxAndNonTaxAmounts() {
+    InvoiceItem item1 = createInvoiceItem(InvoiceItemType.USAGE, null, AMOUNT_1);
+    InvoiceItem tax1 = createInvoiceItem(InvoiceItemType.TAX, GST, AMOUNT_2);
+    InvoiceItem item2 = createInvoiceItem(InvoiceItemType.RECURRING, null, AMOUNT_3);
+    InvoiceItem tax2 = createInvoiceItem(InvoiceItemType.TAX, GST, AMOUNT_4);
+
+    // when
+    SolarNetworkInvoiceFormatter fmt = createDefaultFormatter(
+        createInvoice(asList(item1, tax1, item2, tax2)), EN_NZ);
+
+    // then
+    List<InvoiceItem> nonTaxItems = fmt.getNonTaxInvoiceItems();
+    assertThat("Non-tax items", nonTaxItems, hasSize(2));
+    assertThat("Non-tax item 1", nonTaxItems.get(0).getAmount(), equalTo(AMOUNT_1));
+    assertThat("Non-tax item 2", nonTaxItems.get(1).getAmount(), equalTo(AMOUNT_3));
+    assertThat("Non-tax amount", fmt.getNonTaxChargedAmount(), equalTo(AMOUNT_1.add(AMOUNT_3)));
+
+    List<InvoiceItem> taxItems = fmt.getTaxInvoiceItems();
+    assertThat("Tax items", taxItems, hasSize(2));
+    assertThat("Tax item 1", taxItems.get(0).getAmount(), equalTo(AMOUNT_2));
+    assertThat("Tax item 2", taxItems.get(1).getAmount(), equalTo(AMOUNT_4));
+    assertThat("Tax amount", fmt.getTaxAmount(), equalTo(AMOUNT_2.add(AMOUNT_4)));
+
+    assertThat("Non-tax items cached", fmt.getNonTaxInvoiceItems(), sameInstance(nonTaxItems));
+    assertThat("Tax items cached", fmt.getTaxInvoiceItems(), sameInstance(taxItems));
+  }
+
+  @Test
+  public void extendedAttributes() {
+    InvoiceItem item1 = createInvoiceItem(InvoiceItemType.USAGE, null, AMOUNT_1);
+    InvoiceItem tax1 = createInvoiceItem(InvoiceItemType.TAX, GST, AMOUNT_2);
+    Invoice invoice = createInvoice(asList(item1, tax1));
+    given(invoice.getCurrency()).willReturn(Currency.NZD);
+    given(invoice.getPaidAmount()).willReturn(AMOUNT_3);
+    given(invoice.getBalance()).willReturn(AMOUNT_4);
+
+    // when
+    SolarNetworkInvoiceFormatter fmt = createDefaultFormatter(invoice, EN_NZ);
+    Map<String, Object> attrs = fmt.getExtendedAttributes();
+
+    // then
+    assertThat("Same map returned", fmt.getExtendedAttributes(), sameInstance(attrs));
+    assertThat("Attribute count", attrs.size(),
+        equalTo(ExtendedAttributeMap.ATTRIBUTE_NAMES.size()));
+    assertThat("Tax amount", attrs.get("taxAmount"), equalTo(fmt.getTaxAmount()));
+    assertThat("Formatted tax amount", attrs.get("formattedTaxAmount"),
+        sameInstance(fmt.getFormattedTaxAmount()));
+    assertThat("Formatted non-tax amount", attrs.get("formattedNonTaxChargedAmount"),
+        sameInstance(fmt.getFormattedNonTaxChargedAmount()));
+    assertThat("Formatted paid amount", attrs.get("basicFormattedPaidAmount"),
+        sameInstance(fmt.getBasicFormattedPaidAmount()));
+    assertThat("Formatted balance", attrs.get("basicFormattedBalance"),
+        sameInstance(fmt.getBasicFormattedBalance()));
+    assertThat("Non-tax items", attrs.get("nonTaxInvoiceItems"),
+        sameInstance(fmt.getNonTaxInvoiceItems()));
+    assertThat("Grouped tax items", attrs.get("taxInvoiceItemsGroupedByDescription"),
+        sameInstance(fmt.getTaxInvoiceItemsGroupedByDescription()));
+  }
+
+  @Test
+  public void extendedAttributesLoadCustomFieldsOnDemand() {
+    // given
+    List<CustomField> fields = Arrays.asList(
+        new StringCustomField(ACCOUNT_FIELD, "acc", ObjectType.ACCOUNT, accountId, now));
+    AtomicInteger loads = new AtomicInteger();
+    MemoizingSupplier<List<CustomField>> supplier = MemoizingSupplier.of(() -> {
+      loads.incrementAndGet();
+      return fields;
+    });
+    InvoiceItem tax1 = createInvoiceItem(InvoiceItemType.TAX, GST, AMOUNT_2);
+    SolarNetworkInvoiceFormatter fmt = new SolarNetworkInvoiceFormatter(defaultTranslations(),
+        createInvoice(asList(tax1)), EN_NZ, supplier, null);
+
+    // when
+    Map<String, Object> attrs = fmt.getExtendedAttributes();
+    attrs.get("taxAmount");
+
+    // then
+    assertThat("Custom fields not loaded by other attributes", loads.get(), equalTo(0));
+    assertThat("Custom fields", attrs.get("customFields"), equalTo(fields));
+    assertThat("Custom fields loaded once", loads.get(), equalTo(1));
+    assertThat("Unknown attribute", attrs.containsKey("foo"), is(false));
+  }
+
 }
@@ -15,16 +15,26 @@
 
 package net.solarnetwork.billing.killbill.invoice.util;
 
+import static java.util.Arrays.asList;
+import static org.hamcrest.Matchers.contains;
 import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.nullValue;
 import static org.hamcrest.Matchers.sameInstance;
 import static org.junit.Assert.assertThat;
 import static org.mockito.BDDMockito.given;
 
+import java.lang.reflect.Proxy;
 import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Locale;
+import java.util.UUID;
 
 import org.junit.Test;
 import org.killbill.billing.catalog.api.Currency;
+import org.killbill.billing.invoice.api.InvoiceItemType;
 import org.mockito.Mockito;
 
 import net.solarnetwork.billing.killbill.invoice.api.ExtendedInvoiceItemFormatter;
@@ -92,4 +102,177 @@ public class AggregateInvoiceItemTests {
     assertThat("Aggregate amount", agg.getAmount(), equalTo(AMOUNT_1.add(AMOUNT_2)));
     assertThat("Formatted amount", agg.getFormattedAmount(), equalTo("$4.98"));
   }
+
+  @Test
+  public void runningTotals() {
+    // given
+    ExtendedInvoiceItemFormatter item1 = taxItem(UUID.randomUUID(), "GST", AMOUNT_2);
+    ExtendedInvoiceItemFormatter item2 = taxItem(UUID.randomUUID(), "GST", null);
+    ExtendedInvoiceItemFormatter item3 = taxItem(UUID.randomUUID(), "GST", AMOUNT_1);
+
+    // when
+    AggregateInvoiceItem agg = new AggregateInvoiceItem(Locale.US);
+    agg.addItem(item1).addItem(item2).addItem(item3);
+
+    // then
+    assertThat("Item count", agg.getItemCount(), equalTo(3));
+    assertThat("Aggregate amount", agg.getAmount(), equalTo(AMOUNT_1.add(AMOUNT_2)));
+    assertThat("Min amount", agg.getMinAmount(), equalTo(AMOUNT_1));
+    assertThat("Max amount", agg.getMaxAmount(), equalTo(AMOUNT_2));
+    assertThat("Items retained", agg.getItems(), contains(item1, item2, item3));
+  }
+
+  @Test
+  public void emptyRunningTotals() {
+    // when
+    AggregateInvoiceItem agg = new AggregateInvoiceItem(Locale.US, false);
+
+    // then
+    assertThat("Item count", agg.getItemCount(), equalTo(0));
+    assertThat("Min amount", agg.getMinAmount(), nullValue());
+    assertThat("Max amount", agg.getMaxAmount(), nullValue());
+    assertThat("No items", agg.getItems(), hasSize(0));
+  }
+
+  @Test
+  public void itemsNotRetained() {
+    // given
+    ExtendedInvoiceItemFormatter item1 = taxItem(UUID.randomUUID(), "GST", AMOUNT_1);
+    ExtendedInvoiceItemFormatter item2 = taxItem(UUID.randomUUID(), "VAT", AMOUNT_2);
+
+    // when
+    AggregateInvoiceItem agg = new AggregateInvoiceItem(Locale.US, false);
+    agg.addItem(item1).addItem(item2);
+
+    // then
+    assertThat("Items not retained", agg.getItems(), hasSize(0));
+    assertThat("Item count", agg.getItemCount(), equalTo(2));
+    assertThat("Aggregate amount", agg.getAmount(), equalTo(AMOUNT_1.add(AMOUNT_2)));
+    assertThat("Delegates to first item", agg.getDescription(), equalTo("GST"));
+  }
+
+  @Test
+  public void addItemsCombinesTotals() {
+    // given
+    ExtendedInvoiceItemFormatter item1 = taxItem(UUID.randomUUID(), "GST", AMOUNT_1);
+    ExtendedInvoiceItemFormatter item2 = taxItem(UUID.randomUUID(), "GST", AMOUNT_2);
+    AggregateInvoiceItem other = new AggregateInvoiceItem(Locale.US).addItem(item1)
+        .addItem(item2);
+
+    // when
+    AggregateInvoiceItem agg = new AggregateInvoiceItem(Locale.US);
+    agg.addItems(other);
+
+    // then
+    assertThat("Item count", agg.getItemCount(), equalTo(2));
+    assertThat("Aggregate amount", agg.getAmount(), equalTo(AMOUNT_1.add(AMOUNT_2)));
+    assertThat("Min amount", agg.getMinAmount(), equalTo(AMOUNT_1));
+    assertThat("Max amount", agg.getMaxAmount(), equalTo(AMOUNT_2));
+    assertThat("Items combined", agg.getItems(), contains(item1, item2));
+    assertThat("First item from other", agg.getId(), equalTo(item1.getId()));
+  }
+
+  @Test
+  public void formattedAmountUpdatedAfterAdd() {
+    // given
+    ExtendedInvoiceItemFormatter item1 = Mockito.mock(ExtendedInvoiceItemFormatter.class);
+    given(item1.getAmount()).willReturn(AMOUNT_1);
+    given(item1.getCurrency()).willReturn(Currency.USD);
+
+    ExtendedInvoiceItemFormatter item2 = Mockito.mock(ExtendedInvoiceItemFormatter.class);
+    given(item2.getAmount()).willReturn(AMOUNT_2);
+
+    AggregateInvoiceItem agg = new AggregateInvoiceItem(Locale.US, false);
+    agg.addItem(item1);
+
+    // when
+    String formatted1 = agg.getFormattedAmount();
+    agg.addItem(item2);
+    String formatted2 = agg.getFormattedAmount();
+
+    // then
+    assertThat("Formatted amount", formatted1, equalTo("$1.99"));
+    assertThat("Formatted amount cached", agg.getFormattedAmount(), sameInstance(formatted2));
+    assertThat("Formatted amount updated", formatted2, equalTo("$4.98"));
+  }
+
+  private static ExtendedInvoiceItemFormatter taxItem(UUID id, String description,
+      BigDecimal amount) {
+    // a light-weight proxy rather than a mock, so large item counts are cheap to create
+    return (ExtendedInvoiceItemFormatter) Proxy.newProxyInstance(
+        AggregateInvoiceItemTests.class.getClassLoader(),
+        new Class<?>[] { ExtendedInvoiceItemFormatter.class }, (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "getId":
+              return id;
+            case "getDescription":
+              return description;
+            case "getAmount":
+              return amount;
+            case "getInvoiceItemType":
+              return InvoiceItemType.TAX;
+            case "hashCode":
+              return System.identityHashCode(proxy);
+            case "equals":
+              return proxy == args[0];
+            default:
+              return null;
+          }
+        });
+  }
+
+  @Test
+  public void groupByDescriptionEmpty() {
+    // when
+    List<AggregateInvoiceItem> groups = AggregateInvoiceItem
+        .groupByDescription(Collections.emptyList(), Locale.US);
+
+    // then
+    assertThat("No groups", groups, hasSize(0));
+  }
+
+  @Test
+  public void groupByDescriptionPreservesOrder() {
+    // given
+    ExtendedInvoiceItemFormatter vat1 = taxItem(UUID.randomUUID(), "VAT", AMOUNT_1);
+    ExtendedInvoiceItemFormatter gst1 = taxItem(UUID.randomUUID(), "GST", AMOUNT_2);
+    ExtendedInvoiceItemFormatter none = taxItem(UUID.randomUUID(), null, AMOUNT_1);
+    ExtendedInvoiceItemFormatter vat2 = taxItem(UUID.randomUUID(), "VAT", AMOUNT_2);
+    ExtendedInvoiceItemFormatter gst2 = taxItem(UUID.randomUUID(), "GST", AMOUNT_1);
+
+    // when
+    List<AggregateInvoiceItem> groups = AggregateInvoiceItem
+        .groupByDescription(asList(vat1, gst1, none, vat2, gst2), Locale.US);
+
+    // then
+    assertThat("Group count", groups, hasSize(3));
+    assertThat("Group 1 ID from first item", groups.get(0).getId(), equalTo(vat1.getId()));
+    assertThat("Group 1 amount", groups.get(0).getAmount(), equalTo(AMOUNT_1.add(AMOUNT_2)));
+    assertThat("Group 2 ID from first item", groups.get(1).getId(), equalTo(gst1.getId()));
+    assertThat("Group 2 amount", groups.get(1).getAmount(), equalTo(AMOUNT_2.add(AMOUNT_1)));
+    assertThat("Group 3 without description", groups.get(2).getId(), equalTo(none.getId()));
+    assertThat("Group 3 amount", groups.get(2).getAmount(), equalTo(AMOUNT_1));
+  }
+
+  @Test
+  public void groupByDescriptionManyItems() {
+    // given
+    final int count = 50000;
+    final int descriptionCount = count / 2;
+    List<ExtendedInvoiceItemFormatter> items = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      items.add(taxItem(UUID.randomUUID(), "Tax " + (i % descriptionCount), AMOUNT_1));
+    }
+
+    // when
+    List<AggregateInvoiceItem> groups = AggregateInvoiceItem.groupByDescription(items, Locale.US);
+
+    // then
+    assertThat("Group count", groups, hasSize(descriptionCount));
+    for (int i = 0; i < descriptionCount; i++) {
+      AggregateInvoiceItem agg = groups.get(i);
+      assertThat("Group in order of first appearance", agg.getId(), equalTo(items.get(i).getId()));
+      assertThat("Group amount", agg.getAmount(), equalTo(AMOUNT_1.add(AMOUNT_1)));
+    }
+  }
 }
@@ -0,0 +1,159 @@
+/*  Copyright 2020 SolarNetwork Foundation
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.solarnetwork.billing.killbill.invoice.util;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+import java.math.BigDecimal;
+import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import net.solarnetwork.billing.killbill.invoice.util.CurrencyFormatCache.SymbolStyle;
+
+/**
+ * Test cases for the {@link CurrencyFormatCache} class.
+ * 
+ * @author matt
+ */
+public class CurrencyFormatCacheTests {
+
+  private static final Locale EN_NZ = new Locale("en", "NZ");
+
+  private CurrencyFormatCache cache;
+
+  @Before
+  public void setup() {
+    cache = new CurrencyFormatCache();
+  }
+
+  private static String expectedImplicit(BigDecimal amount, String currencyCode, Locale locale) {
+    NumberFormat number = NumberFormat.getCurrencyInstance(locale);
+    number.setCurrency(java.util.Currency.getInstance(currencyCode));
+    return number.format(amount);
+  }
+
+  @Test
+  public void missThenHit() {
+    String result = cache.format(new BigDecimal("1.99"), "NZD", EN_NZ, SymbolStyle.IMPLICIT);
+    assertThat("Formatted amount", result, equalTo("$1.99"));
+    assertThat("Miss count", cache.getMissCount(), equalTo(1L));
+    assertThat("Hit count", cache.getHitCount(), equalTo(0L));
+
+    result = cache.format(new BigDecimal("2.50"), "NZD", EN_NZ, SymbolStyle.IMPLICIT);
+    assertThat("Formatted amount", result, equalTo("$2.50"));
+    assertThat("Miss count", cache.getMissCount(), equalTo(1L));
+    assertThat("Hit count", cache.getHitCount(), equalTo(1L));
+    assertThat("Cache size", cache.size(), equalTo(1));
+  }
+
+  @Test
+  public void styleIsPartOfKey() {
+    String implicit = cache.format(new BigDecimal("1.99"), "USD", Locale.US,
+        SymbolStyle.IMPLICIT);
+    String explicit = cache.format(new BigDecimal("1.99"), "USD", Locale.US,
+        SymbolStyle.EXPLICIT);
+    assertThat("Implicit amount", implicit, equalTo("$1.99"));
+    assertThat("Explicit amount", explicit, equalTo("US$1.99"));
+    assertThat("Miss count", cache.getMissCount(), equalTo(2L));
+    assertThat("Cache size", cache.size(), equalTo(2));
+  }
+
+  @Test
+  public void explicitSymbolWithoutKillBillSymbol() {
+    // the JDK symbol is used for currencies without a Kill Bill symbol
+    String code = "XAU";
+    assertThat("No Kill Bill symbol", CurrencySymbols.symbol(code), equalTo(null));
+    String explicit = cache.format(new BigDecimal("1.99"), code, Locale.US, SymbolStyle.EXPLICIT);
+    assertThat("Explicit amount", explicit,
+        equalTo(java.util.Currency.getInstance(code).getSymbol(Locale.US) + "1.99"));
+  }
+
+  @Test
+  public void matchesUncachedFormatting() {
+    Locale[] locales = new Locale[] { EN_NZ, Locale.US, Locale.GERMANY, Locale.JAPAN };
+    String[] codes = new String[] { "NZD", "USD", "EUR", "JPY" };
+    BigDecimal[] amounts = new BigDecimal[] { BigDecimal.ZERO, new BigDecimal("1.23456"),
+        new BigDecimal("-42.5"), new BigDecimal("1234567.891") };
+    for (Locale locale : locales) {
+      for (String code : codes) {
+        for (BigDecimal amount : amounts) {
+          assertThat("Formatted " + amount + " " + code + " " + locale,
+              cache.format(amount, code, locale, SymbolStyle.IMPLICIT),
+              equalTo(expectedImplicit(amount, code, locale)));
+        }
+      }
+    }
+    assertThat("Miss count", cache.getMissCount(), equalTo(16L));
+    assertThat("Hit count", cache.getHitCount(), equalTo(48L));
+  }
+
+  @Test
+  public void clear() {
+    cache.format(BigDecimal.ONE, "NZD", EN_NZ, SymbolStyle.IMPLICIT);
+    cache.format(BigDecimal.ONE, "NZD", EN_NZ, SymbolStyle.IMPLICIT);
+    cache.clear();
+    assertThat("Cache size", cache.size(), equalTo(0));
+    assertThat("Miss count", cache.getMissCount(), equalTo(0L));
+    assertThat("Hit count", cache.getHitCount(), equalTo(0L));
+  }
+
+  @Test
+  public void concurrentFormatting() throws Exception {
+    final int threadCount = 8;
+    final int iterations = 2000;
+    ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+    try {
+      List<Future<Integer>> results = new ArrayList<>(threadCount);
+      for (int t = 0; t < threadCount; t++) {
+        final int offset = t;
+        results.add(executor.submit(new Callable<Integer>() {
+
+          @Override
+          public Integer call() throws Exception {
+            int errors = 0;
+            for (int i = 0; i < iterations; i++) {
+              BigDecimal amount = new BigDecimal(offset * iterations + i).movePointLeft(2);
+              String result = cache.format(amount, "USD", Locale.US, SymbolStyle.IMPLICIT);
+              if (!result.equals(expectedImplicit(amount, "USD", Locale.US))) {
+                errors++;
+              }
+            }
+            return errors;
+          }
+        }));
+      }
+      for (Future<Integer> f : results) {
+        assertThat("Formatting errors", f.get(), equalTo(0));
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    assertThat("Cache size", cache.size(), equalTo(1));
+    assertThat("Lookup count", cache.getHitCount() + cache.getMissCount(),
+        equalTo((long) threadCount * iterations));
+  }
+
+}
@@ -0,0 +1,71 @@
+/*  Copyright 2020 SolarNetwork Foundation
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package net.solarnetwork.billing.killbill.invoice.util;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import org.junit.Test;
+import org.killbill.billing.catalog.api.Currency;
+
+/**
+ * Test cases for the {@link CurrencySymbols} class.
+ * 
+ * @author matt
+ */
+public class CurrencySymbolsTests {
+
+  @Test
+  public void killBillSymbol() {
+    assertThat("USD symbol", CurrencySymbols.symbol("USD"), equalTo(Currency.USD.getSymbol()));
+    assertThat("All currencies", CurrencySymbols.size(), equalTo(Currency.values().length));
+  }
+
+  @Test
+  public void unsupportedCurrency() {
+    assertThat("Unknown code", CurrencySymbols.symbol("XXX"), nullValue());
+    assertThat("Null code", CurrencySymbols.symbol(null), nullValue());
+    assertThat("Codes are case sensitive", CurrencySymbols.symbol("usd"), nullValue());
+  }
+
+  @Test
+  public void computeTable() {
+    Map<String, String> table = CurrencySymbols.computeTable();
+    for (Currency currency : Currency.values()) {
+      assertThat(currency + " symbol", table.get(currency.name()),
+          equalTo(currency.getSymbol()));
+    }
+  }
+
+  @Test
+  public void parseGeneratedTable() throws IOException {
+    String content = "# generated\nEUR=€\nNZD=NZ$\nUSD=US$\n";
+    Map<String, String> table = CurrencySymbols
+        .parse(new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)));
+
+    assertThat("Table size", table.size(), equalTo(3));
+    assertThat("UTF-8 symbol", table.get("EUR"), equalTo("€"));
+    assertThat("NZD symbol", table.get("NZD"), equalTo("NZ$"));
+  }
+
+}
@@ -0,0 +1,117 @@
+/*  Copyright 2020 SolarNetwork Foundation
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.solarnetwork.billing.killbill.invoice.util;
+
+import static java.util.Arrays.asList;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import java.util.List;
+import java.util.UUID;
+
+import org.joda.time.DateTime;
+import org.junit.Before;
+import org.junit.Test;
+import org.killbill.billing.ObjectType;
+import org.killbill.billing.util.customfield.CustomField;
+import org.killbill.billing.util.customfield.StringCustomField;
+
+/**
+ * Test cases for the {@link CustomFieldIndex} class.
+ * 
+ * @author matt
+ */
+public class CustomFieldIndexTests {
+
+  private DateTime now;
+  private UUID accountId;
+  private UUID subscriptionId1;
+  private UUID subscriptionId2;
+
+  @Before
+  public void setup() {
+    now = new DateTime();
+    accountId = UUID.randomUUID();
+    subscriptionId1 = UUID.randomUUID();
+    subscriptionId2 = UUID.randomUUID();
+  }
+
+  private CustomField field(String name, ObjectType type, UUID objectId) {
+    return new StringCustomField(name, "value", type, objectId, now);
+  }
+
+  @Test
+  public void nullFields() {
+    // then
+    assertThat("Empty index", CustomFieldIndex.of(null), sameInstance(CustomFieldIndex.EMPTY));
+    assertThat("No fields", CustomFieldIndex.EMPTY.getSubscriptionCustomFields(subscriptionId1),
+        hasSize(0));
+  }
+
+  @Test
+  public void fieldsByObject() {
+    // given
+    CustomField acc = field("acc", ObjectType.ACCOUNT, accountId);
+    CustomField sub1a = field("a", ObjectType.SUBSCRIPTION, subscriptionId1);
+    CustomField sub2 = field("b", ObjectType.SUBSCRIPTION, subscriptionId2);
+    CustomField sub1b = field("c", ObjectType.SUBSCRIPTION, subscriptionId1);
+
+    // when
+    CustomFieldIndex index = CustomFieldIndex.of(asList(acc, sub1a, sub2, sub1b));
+
+    // then
+    assertThat("Account fields", index.getCustomFields(ObjectType.ACCOUNT, accountId),
+        contains(acc));
+    assertThat("Subscription 1 fields in order", index.getSubscriptionCustomFields(subscriptionId1),
+        contains(sub1a, sub1b));
+    assertThat("Subscription 2 fields", index.getSubscriptionCustomFields(subscriptionId2),
+        contains(sub2));
+    assertThat("Object type considered", index.getCustomFields(ObjectType.BUNDLE, subscriptionId1),
+        hasSize(0));
+    assertThat("Unknown subscription", index.getSubscriptionCustomFields(UUID.randomUUID()),
+        hasSize(0));
+    assertThat("Null subscription", index.getSubscriptionCustomFields(null), hasSize(0));
+  }
+
+  @Test
+  public void incompleteFieldsIgnored() {
+    // given
+    CustomField noType = field("a", null, subscriptionId1);
+    CustomField noId = field("b", ObjectType.SUBSCRIPTION, null);
+    CustomField sub1 = field("c", ObjectType.SUBSCRIPTION, subscriptionId1);
+
+    // when
+    CustomFieldIndex index = CustomFieldIndex.of(asList(noType, noId, null, sub1));
+
+    // then
+    assertThat("Subscription fields", index.getSubscriptionCustomFields(subscriptionId1),
+        contains(sub1));
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void fieldsNotModifiable() {
+    // given
+    CustomFieldIndex index = CustomFieldIndex
+        .of(asList(field("a", ObjectType.SUBSCRIPTION, subscriptionId1)));
+
+    // when
+    List<CustomField> fields = index.getSubscriptionCustomFields(subscriptionId1);
+    fields.clear();
+  }
+
+}
@@ -16,6 +16,7 @@
 package net.solarnetwork.billing.killbill.invoice.util;
 
 import static java.util.Arrays.asList;
+import static java.util.Collections.unmodifiableList;
 import static org.hamcrest.Matchers.arrayContaining;
 import static org.hamcrest.Matchers.equalTo;
 import static org.junit.Assert.assertThat;
@@ -333,4 +334,17 @@ public class CustomFieldsThenDescriptionComparatorTests {
     // then
     assertThat("Sorted", list, arrayContaining(itemA1, itemA2, itemA3, itemB1, itemB2, itemB3));
   }
+
+  @Test
+  public void unmodifiableFieldsNotSorted() {
+    // given
+    List<CustomField> fields1 = unmodifiableList(asList(field("b", "1"), field("a", "2")));
+    List<CustomField> fields2 = unmodifiableList(asList(field("b", "1"), field("a", "1")));
+    ExtendedInvoiceItemFormatter item1 = fmtWithDescriptionAndFields("A", fields1);
+    ExtendedInvoiceItemFormatter item2 = fmtWithDescriptionAndFields("A", fields2);
+
+    // then
+    assertThat("Comparison by sorted field names", cmp.compare(item1, item2), equalTo(1));
+    assertThat("Field order unchanged", fields1.get(0).getFieldName(), equalTo("b"));
+  }
 }
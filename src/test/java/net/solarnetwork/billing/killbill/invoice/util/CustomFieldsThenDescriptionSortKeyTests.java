@@ -0,0 +1,171 @@
+/*  Copyright 2020 SolarNetwork Foundation
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.solarnetwork.billing.killbill.invoice.util;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.unmodifiableList;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.mockito.BDDMockito.given;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+import org.killbill.billing.invoice.api.formatters.InvoiceItemFormatter;
+import org.killbill.billing.util.customfield.CustomField;
+import org.mockito.Mockito;
+
+import net.solarnetwork.billing.killbill.invoice.api.ExtendedInvoiceItemFormatter;
+
+/**
+ * Test cases for the {@link CustomFieldsThenDescriptionSortKey} class.
+ * 
+ * @author matt
+ */
+public class CustomFieldsThenDescriptionSortKeyTests {
+
+  private static final String[] NAMES = new String[] { null, "node", "Node", "site", "SITE" };
+  private static final String[] VALUES = new String[] { null, "", "a", "A", "b", "ab", "Ab", "aB",
+      "ÿ", "Ÿ", "µ", "μ", "_" };
+
+  private CustomField field(String name, String value) {
+    CustomField f = Mockito.mock(CustomField.class);
+    given(f.getFieldName()).willReturn(name);
+    given(f.getFieldValue()).willReturn(value);
+    return f;
+  }
+
+  private ExtendedInvoiceItemFormatter fmtWithDescriptionAndFields(String desc,
+      List<CustomField> fields) {
+    ExtendedInvoiceItemFormatter item = Mockito.mock(ExtendedInvoiceItemFormatter.class);
+    given(item.getDescription()).willReturn(desc);
+    given(item.getSubscriptionCustomFields()).willReturn(fields);
+    return item;
+  }
+
+  private static <T> T pick(Random rng, T[] values) {
+    return values[rng.nextInt(values.length)];
+  }
+
+  private List<InvoiceItemFormatter> randomItems(Random rng, int count) {
+    List<InvoiceItemFormatter> items = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      int kind = rng.nextInt(10);
+      if (kind == 0) {
+        items.add(null);
+      } else if (kind == 1) {
+        InvoiceItemFormatter item = Mockito.mock(InvoiceItemFormatter.class);
+        given(item.getDescription()).willReturn(pick(rng, VALUES));
+        items.add(item);
+      } else {
+        int fieldCount = rng.nextInt(4);
+        List<CustomField> fields = null;
+        if (fieldCount > 0 || rng.nextBoolean()) {
+          fields = new ArrayList<>(fieldCount);
+          for (int j = 0; j < fieldCount; j++) {
+            fields.add(rng.nextInt(20) == 0 ? null : field(pick(rng, NAMES), pick(rng, VALUES)));
+          }
+          fields = unmodifiableList(fields);
+        }
+        items.add(fmtWithDescriptionAndFields(pick(rng, VALUES), fields));
+      }
+    }
+    return items;
+  }
+
+  @Test
+  public void sortedList() {
+    // given
+    ExtendedInvoiceItemFormatter itemB3 = fmtWithDescriptionAndFields("C", asList(field("a", "2")));
+    ExtendedInvoiceItemFormatter itemB2 = fmtWithDescriptionAndFields("B", asList(field("a", "2")));
+    ExtendedInvoiceItemFormatter itemB1 = fmtWithDescriptionAndFields("a", asList(field("a", "2")));
+
+    ExtendedInvoiceItemFormatter itemA3 = fmtWithDescriptionAndFields("c", asList(field("A", "1")));
+    ExtendedInvoiceItemFormatter itemA2 = fmtWithDescriptionAndFields("B", asList(field("a", "1")));
+    ExtendedInvoiceItemFormatter itemA1 = fmtWithDescriptionAndFields("A", asList(field("a", "1")));
+
+    // when
+    List<ExtendedInvoiceItemFormatter> sorted = CustomFieldsThenDescriptionSortKey
+        .sort(asList(itemB3, itemB2, itemB1, itemA3, itemA2, itemA1));
+
+    // then
+    assertThat("Sorted", sorted, contains(itemA1, itemA2, itemA3, itemB1, itemB2, itemB3));
+  }
+
+  @Test
+  public void keyItem() {
+    // given
+    ExtendedInvoiceItemFormatter item = fmtWithDescriptionAndFields("A", null);
+
+    // when
+    CustomFieldsThenDescriptionSortKey<?> key = new CustomFieldsThenDescriptionSortKey<>(item);
+
+    // then
+    assertThat("Key item", key.getItem(), sameInstance(item));
+  }
+
+  @Test
+  public void comparisonsMatchComparator() {
+    // given
+    Random rng = new Random(123L);
+    List<InvoiceItemFormatter> items = randomItems(rng, 100);
+    CustomFieldsThenDescriptionComparator cmp = new CustomFieldsThenDescriptionComparator();
+
+    List<CustomFieldsThenDescriptionSortKey<InvoiceItemFormatter>> keys = new ArrayList<>();
+    for (InvoiceItemFormatter item : items) {
+      keys.add(new CustomFieldsThenDescriptionSortKey<>(item));
+    }
+
+    // then
+    for (CustomFieldsThenDescriptionSortKey<InvoiceItemFormatter> k1 : keys) {
+      for (CustomFieldsThenDescriptionSortKey<InvoiceItemFormatter> k2 : keys) {
+        assertThat("Key comparison matches comparator", k1.compareTo(k2),
+            equalTo(cmp.compare(k1.getItem(), k2.getItem())));
+      }
+    }
+  }
+
+  @Test
+  public void sortMatchesComparator() {
+    // given
+    Random rng = new Random(456L);
+    List<InvoiceItemFormatter> items = new ArrayList<>();
+    for (int i = 0; i < 1000; i++) {
+      // consistent field names, as the comparator only defines a total order in that case
+      List<CustomField> fields = (rng.nextInt(10) == 0 ? null
+          : asList(field(rng.nextBoolean() ? "site" : "SITE", pick(rng, VALUES)),
+              field(rng.nextBoolean() ? "node" : "Node", pick(rng, VALUES))));
+      items.add(fmtWithDescriptionAndFields(pick(rng, VALUES), fields));
+    }
+
+    // when
+    List<InvoiceItemFormatter> expected = new ArrayList<>(items);
+    expected.sort(
+        CustomFieldsThenDescriptionComparator.INVOICE_ITEM_SORT_BY_CUSTOM_FIELDS_THEN_DESC);
+    List<InvoiceItemFormatter> sorted = CustomFieldsThenDescriptionSortKey.sort(items);
+
+    // then
+    assertThat("Sorted size", sorted.size(), equalTo(expected.size()));
+    for (int i = 0, len = expected.size(); i < len; i++) {
+      assertThat("Sorted item " + i, sorted.get(i), sameInstance(expected.get(i)));
+    }
+  }
+
+}
@@ -0,0 +1,138 @@
+/*  Copyright 2020 SolarNetwork Foundation
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.solarnetwork.billing.killbill.invoice.util;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.junit.Test;
+
+/**
+ * Test cases for the {@link MemoizingSupplier} class.
+ * 
+ * @author matt
+ */
+public class MemoizingSupplierTests {
+
+  @Test
+  public void loadOnce() {
+    AtomicInteger calls = new AtomicInteger();
+    MemoizingSupplier<String> s = MemoizingSupplier.of(() -> "value" + calls.incrementAndGet());
+
+    assertThat("Not loaded", s.isLoaded(), equalTo(false));
+    assertThat("Not called", calls.get(), equalTo(0));
+    assertThat("Value", s.get(), equalTo("value1"));
+    assertThat("Memoized value", s.get(), equalTo("value1"));
+    assertThat("Loaded", s.isLoaded(), equalTo(true));
+    assertThat("Called once", calls.get(), equalTo(1));
+  }
+
+  @Test
+  public void memoizeNull() {
+    AtomicInteger calls = new AtomicInteger();
+    MemoizingSupplier<String> s = MemoizingSupplier.of(() -> {
+      calls.incrementAndGet();
+      return null;
+    });
+
+    assertThat("Value", s.get(), nullValue());
+    assertThat("Value", s.get(), nullValue());
+    assertThat("Called once", calls.get(), equalTo(1));
+  }
+
+  @Test
+  public void ofValue() {
+    MemoizingSupplier<String> s = MemoizingSupplier.ofValue("foo");
+    assertThat("Loaded", s.isLoaded(), equalTo(true));
+    assertThat("Value", s.get(), equalTo("foo"));
+  }
+
+  @Test
+  public void ofMemoizingSupplier() {
+    MemoizingSupplier<String> s = MemoizingSupplier.ofValue("foo");
+    assertThat("Same instance", MemoizingSupplier.of(s), sameInstance(s));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void ofNull() {
+    MemoizingSupplier.of(null);
+  }
+
+  @Test
+  public void retryAfterException() {
+    AtomicInteger calls = new AtomicInteger();
+    MemoizingSupplier<String> s = MemoizingSupplier.of(() -> {
+      if (calls.incrementAndGet() == 1) {
+        throw new IllegalStateException("boom");
+      }
+      return "ok";
+    });
+
+    try {
+      s.get();
+      fail("Exception should have been thrown");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    assertThat("Not loaded", s.isLoaded(), equalTo(false));
+    assertThat("Value", s.get(), equalTo("ok"));
+    assertThat("Called twice", calls.get(), equalTo(2));
+  }
+
+  @Test
+  public void concurrentLoadOnce() throws InterruptedException {
+    final AtomicInteger calls = new AtomicInteger();
+    final Supplier<Object> s = MemoizingSupplier.of(() -> {
+      calls.incrementAndGet();
+      return new Object();
+    });
+    final int threadCount = 8;
+    final CountDownLatch start = new CountDownLatch(1);
+    final Object[] results = new Object[threadCount];
+    List<Thread> threads = new ArrayList<>(threadCount);
+    for (int i = 0; i < threadCount; i++) {
+      final int idx = i;
+      Thread t = new Thread(() -> {
+        try {
+          start.await();
+          results[idx] = s.get();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      });
+      threads.add(t);
+      t.start();
+    }
+    start.countDown();
+    for (Thread t : threads) {
+      t.join();
+    }
+    assertThat("Called once", calls.get(), equalTo(1));
+    for (Object r : results) {
+      assertThat("Same value", r, sameInstance(results[0]));
+    }
+  }
+
+}
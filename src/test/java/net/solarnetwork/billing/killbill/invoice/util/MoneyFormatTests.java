@@ -0,0 +1,150 @@
+/*  Copyright 2020 SolarNetwork Foundation
+ *  
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.solarnetwork.billing.killbill.invoice.util;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.text.DecimalFormat;
+import java.text.NumberFormat;
+import java.util.Locale;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Test cases for the {@link MoneyFormat} class.
+ * 
+ * @author matt
+ */
+public class MoneyFormatTests {
+
+  private static final Locale EN_NZ = new Locale("en", "NZ");
+
+  private static DecimalFormat currencyFormat(String currencyCode, Locale locale) {
+    DecimalFormat format = (DecimalFormat) NumberFormat.getCurrencyInstance(locale);
+    format.setCurrency(java.util.Currency.getInstance(currencyCode));
+    return format;
+  }
+
+  private static void assertMatches(DecimalFormat format, BigDecimal amount) {
+    MoneyFormat money = MoneyFormat.of(format);
+    assertThat("Formatted " + amount, money.format(amount), equalTo(format.format(amount)));
+  }
+
+  @Test
+  public void basic() {
+    MoneyFormat format = MoneyFormat.of(currencyFormat("NZD", EN_NZ));
+    assertThat("Formatted amount", format.format(new BigDecimal("1.99")), equalTo("$1.99"));
+  }
+
+  @Test
+  public void rounded() {
+    MoneyFormat format = MoneyFormat.of(currencyFormat("NZD", EN_NZ));
+    assertThat("Formatted amount", format.format(new BigDecimal("1.23456")), equalTo("$1.23"));
+  }
+
+  @Test
+  public void grouping() {
+    MoneyFormat format = MoneyFormat.of(currencyFormat("NZD", EN_NZ));
+    assertThat("Formatted amount", format.format(new BigDecimal("1234567.8")),
+        equalTo("$1,234,567.80"));
+  }
+
+  @Test
+  public void negative() {
+    MoneyFormat format = MoneyFormat.of(currencyFormat("NZD", EN_NZ));
+    assertThat("Formatted amount", format.format(new BigDecimal("-1234.5")),
+        equalTo(currencyFormat("NZD", EN_NZ).format(new BigDecimal("-1234.5"))));
+  }
+
+  @Test
+  public void negativeRoundedToZero() {
+    assertMatches(currencyFormat("NZD", EN_NZ), new BigDecimal("-0.001"));
+  }
+
+  @Test
+  public void lessThanOne() {
+    MoneyFormat format = MoneyFormat.of(currencyFormat("NZD", EN_NZ));
+    assertThat("Formatted amount", format.format(new BigDecimal("0.05")), equalTo("$0.05"));
+    assertThat("Formatted amount", format.format(BigDecimal.ZERO), equalTo("$0.00"));
+  }
+
+  @Test
+  public void noFractionDigits() {
+    assertMatches(currencyFormat("JPY", Locale.JAPAN), new BigDecimal("1234.5"));
+    assertMatches(currencyFormat("JPY", Locale.JAPAN), new BigDecimal("1235.5"));
+  }
+
+  @Test
+  public void exactLargeAmount() {
+    MoneyFormat format = MoneyFormat.of(currencyFormat("USD", Locale.US));
+    BigDecimal amount = new BigDecimal("12345678901234567890.12");
+    assertThat("Formatted amount", format.format(amount),
+        equalTo("$12,345,678,901,234,567,890.12"));
+  }
+
+  @Test
+  public void exactRounding() {
+    // 1.015 as a double is slightly less than 1.015, so would round down to 1.01
+    MoneyFormat format = MoneyFormat.of(currencyFormat("USD", Locale.US));
+    assertThat("Formatted amount", format.format(new BigDecimal("1.015")), equalTo("$1.02"));
+  }
+
+  @Test
+  public void appendsToBuffer() {
+    MoneyFormat format = MoneyFormat.of(currencyFormat("USD", Locale.US));
+    StringBuilder buf = new StringBuilder("Total: ");
+    format.format(new BigDecimal("2.5"), buf);
+    assertThat("Appended amount", buf.toString(), equalTo("Total: $2.50"));
+  }
+
+  @Test
+  public void formatIsCopied() {
+    DecimalFormat df = currencyFormat("USD", Locale.US);
+    MoneyFormat format = MoneyFormat.of(df);
+    df.setRoundingMode(RoundingMode.DOWN);
+    df.setMaximumFractionDigits(0);
+    assertThat("Formatted amount", format.format(new BigDecimal("1.999")), equalTo("$2.00"));
+  }
+
+  @Test
+  public void matchesDecimalFormatAcrossLocales() {
+    final Random r = new Random(123);
+    final String[] codes = new String[] { "USD", "EUR", "JPY", "NZD", "KWD" };
+    for (Locale locale : Locale.getAvailableLocales()) {
+      if (locale.getCountry().isEmpty()) {
+        continue;
+      }
+      for (String code : codes) {
+        DecimalFormat format = currencyFormat(code, locale);
+        MoneyFormat money = MoneyFormat.of(format);
+        for (int i = 0; i < 20; i++) {
+          BigDecimal amount = new BigDecimal(new BigInteger(20 + r.nextInt(60), r), r.nextInt(6));
+          if (r.nextBoolean()) {
+            amount = amount.negate();
+          }
+          assertThat("Formatted " + amount + " " + code + " " + locale, money.format(amount),
+              equalTo(format.format(amount)));
+        }
+      }
+    }
+  }
+
+}